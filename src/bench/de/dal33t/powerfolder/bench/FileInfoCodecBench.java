@@ -0,0 +1,172 @@
+/*
+* Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+*
+* This file is part of PowerFolder.
+*
+* PowerFolder is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* PowerFolder is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+*
+* $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+*/
+package de.dal33t.powerfolder.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+/**
+ * Bench test of the folder database persistence. Compares plain java
+ * serialization of a FileInfo[] (old format) with the {@link FileInfoCodec}.
+ * <p>
+ * Each run writes and reads back 200.000 FileInfos of 20 members in 2.000
+ * directories 5 times. The result is the total time in milliseconds. The
+ * number of bytes written is printed too.
+ */
+public class FileInfoCodecBench extends Bench {
+
+    private static final int N_FILES = 200000;
+    private static final int N_RUNS = 5;
+
+    private final FileInfo[] files;
+
+    public FileInfoCodecBench() {
+        FolderInfo foInfo = new FolderInfo("Bench folder",
+            IdGenerator.makeFolderId()).intern();
+        MemberInfo[] members = new MemberInfo[20];
+        AccountInfo[] accounts = new AccountInfo[members.length];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new MemberInfo("Member " + i, IdGenerator.makeId(),
+                IdGenerator.makeId()).intern();
+            accounts[i] = new AccountInfo(IdGenerator.makeId(), "user" + i
+                + "@powerfolder.com").intern();
+        }
+        files = new FileInfo[N_FILES];
+        for (int i = 0; i < files.length; i++) {
+            String name = "dir-" + (i % 200) + "/subdir-" + (i % 2000)
+                + "/file-" + i + ".txt";
+            files[i] = FileInfoFactory.unmarshallExistingFile(foInfo, name,
+                null, (long) (Math.random() * 10000000),
+                members[i % members.length], accounts[i % accounts.length],
+                new Date(System.currentTimeMillis() - i * 1000L), i % 10,
+                null, false, null);
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        FileInfoCodecBench bench = new FileInfoCodecBench();
+        bench.run();
+    }
+
+    /**
+     * The run that takes the lowest time is the winner.
+     *
+     * @return
+     */
+    protected boolean winnerIsGreatest() {
+        return false;
+    }
+
+    /**
+     * Get results for both runs.
+     *
+     * @return
+     */
+    protected Map<String, Comparable> getResults() {
+        HashMap<String, Comparable> map = new HashMap<String, Comparable>();
+        try {
+            // Warm up
+            doSerializationRun();
+            doCodecRun();
+
+            map.put("ObjectOutputStream", doSerializationRun());
+            map.put("FileInfoCodec", doCodecRun());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return map;
+    }
+
+    private Comparable doSerializationRun() throws IOException,
+        ClassNotFoundException
+    {
+        Date start = new Date();
+        int size = 0;
+        for (int i = 0; i < N_RUNS; i++) {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bOut);
+            out.writeObject(files);
+            out.close();
+            byte[] buf = bOut.toByteArray();
+            size = buf.length;
+
+            ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(buf));
+            FileInfo[] copy = (FileInfo[]) in.readObject();
+            in.close();
+            check(copy);
+        }
+        Date end = new Date();
+        System.out.println("ObjectOutputStream: " + size + " bytes");
+        return end.getTime() - start.getTime();
+    }
+
+    private Comparable doCodecRun() throws IOException {
+        Date start = new Date();
+        int size = 0;
+        for (int i = 0; i < N_RUNS; i++) {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bOut);
+            FileInfoCodec.writeHeader(out);
+            FileInfoCodec.writeFileInfos(out, files);
+            out.close();
+            byte[] buf = bOut.toByteArray();
+            size = buf.length;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                buf));
+            FileInfoCodec.readHeader(in);
+            FileInfo[] copy = FileInfoCodec.readFileInfos(in);
+            in.close();
+            check(copy);
+        }
+        Date end = new Date();
+        System.out.println("FileInfoCodec: " + size + " bytes");
+        return end.getTime() - start.getTime();
+    }
+
+    private void check(FileInfo[] copy) {
+        if (copy.length != files.length) {
+            throw new IllegalStateException("Read " + copy.length
+                + " files, expected " + files.length);
+        }
+    }
+}
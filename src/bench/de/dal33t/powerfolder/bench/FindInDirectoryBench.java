@@ -0,0 +1,164 @@
+/*
+* Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+*
+* This file is part of PowerFolder.
+*
+* PowerFolder is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* PowerFolder is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+*
+* $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+*/
+package de.dal33t.powerfolder.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+/**
+ * Bench test of FileInfoDAO.findInDirectory on a synthetic tree of 1.000.000
+ * files: 100 top level directories with 10 subdirectories each, 1.000 files
+ * per subdirectory.
+ * <p>
+ * Compares the lookup by the directory index of the DAO with filtering all
+ * files by path prefix (the former implementation). Each run does 1.000
+ * non-recursive lookups of a subdirectory and 10 recursive lookups of a top
+ * level directory. The result is the total time in milliseconds.
+ * <p>
+ * Requires about 2 GB of heap (-Xmx2g).
+ */
+public class FindInDirectoryBench extends Bench {
+
+    private static final int N_TOP_DIRS = 100;
+    private static final int N_SUB_DIRS = 10;
+    private static final int N_FILES = 1000;
+
+    private final FileInfoDAO dao;
+
+    public FindInDirectoryBench() {
+        FolderInfo foInfo = new FolderInfo("Bench folder",
+            IdGenerator.makeFolderId()).intern();
+        MemberInfo mInfo = new MemberInfo("Member", IdGenerator.makeId(),
+            IdGenerator.makeId()).intern();
+        dao = new FileInfoDAOHashMapImpl("ME", null);
+        Date now = new Date();
+        List<FileInfo> fInfos = new ArrayList<FileInfo>(N_FILES);
+        for (int t = 0; t < N_TOP_DIRS; t++) {
+            for (int s = 0; s < N_SUB_DIRS; s++) {
+                fInfos.clear();
+                for (int f = 0; f < N_FILES; f++) {
+                    String name = "dir-" + t + "/subdir-" + s + "/file-" + f
+                        + ".txt";
+                    fInfos.add(FileInfoFactory.unmarshallExistingFile(foInfo,
+                        name, null, f, mInfo, null, now, 0, null, false, null));
+                }
+                dao.store(null, fInfos);
+            }
+        }
+    }
+
+    /**
+     * Main.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        FindInDirectoryBench bench = new FindInDirectoryBench();
+        bench.run();
+    }
+
+    /**
+     * The run that takes the lowest time is the winner.
+     *
+     * @return
+     */
+    protected boolean winnerIsGreatest() {
+        return false;
+    }
+
+    /**
+     * Get results for both runs.
+     *
+     * @return
+     */
+    protected Map<String, Comparable> getResults() {
+        HashMap<String, Comparable> map = new HashMap<String, Comparable>();
+        // Warm up
+        doIndexRun();
+        doPrefixScanRun();
+
+        map.put("Directory index", doIndexRun());
+        map.put("Prefix scan", doPrefixScanRun());
+        return map;
+    }
+
+    private Comparable doIndexRun() {
+        Date start = new Date();
+        for (int i = 0; i < N_TOP_DIRS * N_SUB_DIRS; i++) {
+            String path = "dir-" + (i % N_TOP_DIRS) + "/subdir-"
+                + (i % N_SUB_DIRS);
+            check(dao.findInDirectory(null, path, false), N_FILES);
+        }
+        for (int i = 0; i < 10; i++) {
+            check(dao.findInDirectory(null, "dir-" + i, true), N_SUB_DIRS
+                * N_FILES);
+        }
+        Date end = new Date();
+        return end.getTime() - start.getTime();
+    }
+
+    private Comparable doPrefixScanRun() {
+        Date start = new Date();
+        for (int i = 0; i < N_TOP_DIRS * N_SUB_DIRS; i++) {
+            String path = "dir-" + (i % N_TOP_DIRS) + "/subdir-"
+                + (i % N_SUB_DIRS);
+            check(prefixScan(path, false), N_FILES);
+        }
+        for (int i = 0; i < 10; i++) {
+            check(prefixScan("dir-" + i, true), N_SUB_DIRS * N_FILES);
+        }
+        Date end = new Date();
+        return end.getTime() - start.getTime();
+    }
+
+    private Collection<FileInfo> prefixScan(String path, boolean recursive) {
+        path += "/";
+        List<FileInfo> items = new ArrayList<FileInfo>();
+        for (FileInfo fInfo : dao.findAllFiles(null)) {
+            String name = fInfo.getRelativeName();
+            if (!name.startsWith(path)) {
+                continue;
+            }
+            if (recursive || name.indexOf('/', path.length() + 1) < 0) {
+                items.add(fInfo);
+            }
+        }
+        return items;
+    }
+
+    private void check(Collection<FileInfo> items, int expected) {
+        if (items.size() != expected) {
+            throw new IllegalStateException("Found " + items.size()
+                + " files, expected " + expected);
+        }
+    }
+}
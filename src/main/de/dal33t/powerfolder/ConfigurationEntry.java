@@ -34,6 +34,7 @@ import com.jgoodies.binding.value.ValueModel;
 import de.dal33t.powerfolder.disk.FolderSettings;
 import de.dal33t.powerfolder.disk.FolderStatistic;
 import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.message.FileBatch;
 import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.RequestNodeInformation;
 import de.dal33t.powerfolder.security.AccessMode;
@@ -606,6 +607,25 @@ public enum ConfigurationEntry {
      */
     NET_SOCKET_LAN_BUFFER_LIMIT("net.socket.lan.buffer.limit", 32 * 1024 * 1024),
 
+    /**
+     * If TCP connections should use the non-blocking NIO connection handler.
+     * Served by a small pool of selector threads instead of two threads per
+     * connection.
+     */
+    NET_NIO_ENABLED("net.nio", false),
+
+    /**
+     * The number of selector threads for NIO connections.
+     */
+    NET_NIO_SELECTOR_THREADS("net.nio.selectors", 2),
+
+    /**
+     * The estimated bytes of messages queued for sending to a peer, above
+     * which status messages are dropped. The peer gets disconnected at four
+     * times this size.
+     */
+    NET_SEND_QUEUE_MAX_BYTES("net.send.queue.max.bytes", 16 * 1024 * 1024),
+
     /**
      * Auto detect WAN speeds
      */
@@ -631,6 +651,28 @@ public enum ConfigurationEntry {
      */
     DOWNLOAD_LIMIT_LAN("landownloadlimit", 0),
 
+    /**
+     * The upload limit for LAN and WAN connections together in KB/s
+     */
+    UPLOAD_LIMIT_TOTAL("totaluploadlimit", 0),
+
+    /**
+     * The download limit for LAN and WAN connections together in KB/s
+     */
+    DOWNLOAD_LIMIT_TOTAL("totaldownloadlimit", 0),
+
+    /**
+     * The upload limit for a single connection in KB/s. 0 = the connection
+     * gets a fair share of the LAN or WAN limit.
+     */
+    UPLOAD_LIMIT_CONNECTION("connectionuploadlimit", 0),
+
+    /**
+     * The download limit for a single connection in KB/s. 0 = the connection
+     * gets a fair share of the LAN or WAN limit.
+     */
+    DOWNLOAD_LIMIT_CONNECTION("connectiondownloadlimit", 0),
+
     /**
      * The maximum size (in bytes) of an {@link FileChunk} used for file
      * transfers
@@ -642,6 +684,25 @@ public enum ConfigurationEntry {
      */
     TRANSFERS_MAX_REQUESTS_QUEUED("transfers.max.request.queued", 15),
 
+    /**
+     * If {@link FileChunk}s may be received as raw file region. Allows the
+     * remote side to send them without serializing the data.
+     */
+    TRANSFERS_FILE_CHUNK_REGIONS("transfers.file.chunk.regions", true),
+
+    /**
+     * If small files are requested in batches of {@link FileBatch}es instead
+     * of one download per file. Batched files do not show up as single
+     * downloads/uploads.
+     */
+    TRANSFERS_FILE_BATCHES("transfers.file.batches", false),
+
+    /**
+     * The number of threads requesting the incoming files of the folders. 0 =
+     * one per processor core.
+     */
+    TRANSFERS_REQUESTOR_THREADS("transfers.requestor.threads", 0),
+
     /**
      * My dynamic dns hostname or fix ip.
      */
@@ -675,6 +736,13 @@ public enum ConfigurationEntry {
      */
     USE_ZIP_ON_LAN("use_zip_on_lan", false),
 
+    /**
+     * If compressed connections use one deflate stream for all messages
+     * instead of compressing each message on its own. Only if both sides
+     * support it.
+     */
+    USE_STREAM_COMPRESSION("use_stream_compression", true),
+
     /**
      * Setting to enable/disable swarming in an LAN environment. If swarming
      * below is set to false, this is ignored!
@@ -688,6 +756,23 @@ public enum ConfigurationEntry {
 
     USE_DELTA_ON_LAN("deltasync.lan.enabled", true),
 
+    /**
+     * Delta-sync: The maximum size of all cached file part records in MB. 0 =
+     * no caching.
+     */
+    DELTA_RECORD_CACHE_MAX_MB("deltasync.record_cache.max_mb", 512),
+
+    /**
+     * Delta-sync: The number of threads matching a large local file against
+     * the remote file parts. 0 = number of processors.
+     */
+    DELTA_MATCHING_THREADS("deltasync.matching.threads", 0),
+
+    /**
+     * Delta-sync: Read the local file memory-mapped while matching.
+     */
+    DELTA_MATCHING_MAPPED("deltasync.matching.mapped", true),
+
     /**
      * Setting to enable/disable swarming.
      */
@@ -891,12 +976,32 @@ public enum ConfigurationEntry {
      */
     FOLDER_STATS_CALC_TIME("filedb.stats.seconds", 30),
 
+    /**
+     * The number of seconds after which a {@link FolderStatistic} gets fully
+     * recalculated instead of updated by the changed files only.
+     */
+    FOLDER_STATS_VERIFY_TIME("filedb.stats.verify.seconds", 600),
+
     /**
      * The maximum time powerfolder keeps the folder database dirty in memory
      * before writing it to disk in seconds.
      */
     FOLDER_DB_PERSIST_TIME("filedb.persist.seconds", 60),
 
+    /**
+     * The maximum number of changes recorded in the journal of the folder
+     * database before it gets compacted into a full snapshot. 0 = disable the
+     * journal and always write the full database.
+     */
+    FOLDER_DB_JOURNAL_MAX_ENTRIES("filedb.journal.max_entries", 50000),
+
+    /**
+     * Keeps the file lists of all members off-heap in memory-mapped files
+     * instead of in-memory hash maps. Reduces heap usage on servers with many
+     * members and large folders.
+     */
+    FOLDER_DB_MAPPED("filedb.mapped", false),
+
     /**
      * #2637: Disabling can save OS resources.
      */
@@ -916,6 +1021,12 @@ public enum ConfigurationEntry {
      */
     DB_MAINTENANCE_SECONDS("filedb.maintenance.seconds", 3600),
 
+    /**
+     * The number of files checked per maintenance run of a folder db. 0 = all
+     * at once.
+     */
+    DB_MAINTENANCE_SLICE_SIZE("filedb.maintenance.slice.size", 10000),
+
     /**
      * The age of a deleted file until it gets removed by the folder db
      * maintenance. In Seconds! Default: 3 month
@@ -1065,9 +1176,38 @@ public enum ConfigurationEntry {
     UNC_TRANSFER_MODE("unc.transfer.mode"),
 
     /**
-     * The number of maximum activate
+     * The number of threads crawling directories on local storage. 0 = number
+     * of CPU cores. Network storage is crawled with at most 2 threads.
+     */
+    FOLDER_SCANNER_MAX_CRAWLERS("sync.folder.max_crawlers", 0),
+
+    /**
+     * The maximum number of folders scanned and maintained at the same time.
+     */
+    FOLDER_SCANNER_MAX_SCANS("sync.folder.max_scans", 4),
+
+    /**
+     * Calculates the content hashes of new and changed files in the
+     * background after the scan.
+     */
+    FOLDER_HASHER_ENABLED("sync.folder.hasher.enabled", true),
+
+    /**
+     * The number of threads calculating file content hashes.
+     */
+    FOLDER_HASHER_THREADS("sync.folder.hasher.threads", 1),
+
+    /**
+     * The maximum disk read rate of all hashing threads in KB/s. 0 =
+     * unlimited.
+     */
+    FOLDER_HASHER_MAX_KBS("sync.folder.hasher.max_kbs", 20480),
+
+    /**
+     * The maximum number of files waiting for hashing. If exceeded the
+     * remaining files are picked up by a full pass over the folder later.
      */
-    FOLDER_SCANNER_MAX_CRAWLERS("sync.folder.max_crawlers", 3),
+    FOLDER_HASHER_QUEUE_SIZE("sync.folder.hasher.queue_size", 10000),
 
     /**
      * Automatically setup all folders the user has access to and also
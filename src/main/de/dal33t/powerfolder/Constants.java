@@ -57,9 +57,13 @@ public class Constants {
 
     public static final String DB_FILENAME;
     public static final String DB_BACKUP_FILENAME;
+    public static final String DB_JOURNAL_FILENAME;
+    public static final String DB_MAPPED_DIRNAME;
     static {
         DB_FILENAME = System.getProperty("pf.dbfilename", ".PowerFolder.db");
         DB_BACKUP_FILENAME = DB_FILENAME + ".bak";
+        DB_JOURNAL_FILENAME = DB_FILENAME + ".journal";
+        DB_MAPPED_DIRNAME = DB_FILENAME + ".mapped";
     }
 
     /**
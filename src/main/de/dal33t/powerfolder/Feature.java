@@ -65,6 +65,12 @@ public enum Feature {
      */
     CORRECT_INTERNET_DETECTION,
 
+    /**
+     * If connections to this computer are not bandwidth limited. Disable to
+     * simulate slow peers in tests.
+     */
+    OMIT_LOCAL_BANDWIDTH_LIMIT,
+
     /**
      * If file movements should be checked after scan.
      */
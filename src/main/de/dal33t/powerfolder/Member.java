@@ -35,6 +35,7 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import de.dal33t.powerfolder.clientserver.RequestExecutor;
 import de.dal33t.powerfolder.clientserver.ServerClient;
 import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.disk.FolderRepository;
@@ -48,6 +49,7 @@ import de.dal33t.powerfolder.message.AbortUpload;
 import de.dal33t.powerfolder.message.AddFriendNotification;
 import de.dal33t.powerfolder.message.ConfigurationLoadRequest;
 import de.dal33t.powerfolder.message.DownloadQueued;
+import de.dal33t.powerfolder.message.FileBatch;
 import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.FileHistoryReply;
 import de.dal33t.powerfolder.message.FileHistoryRequest;
@@ -75,6 +77,7 @@ import de.dal33t.powerfolder.message.QuotaExceeded;
 import de.dal33t.powerfolder.message.RelayedMessage;
 import de.dal33t.powerfolder.message.ReplyFilePartsRecord;
 import de.dal33t.powerfolder.message.RequestDownload;
+import de.dal33t.powerfolder.message.RequestFileBatch;
 import de.dal33t.powerfolder.message.RequestFilePartsRecord;
 import de.dal33t.powerfolder.message.RequestNodeInformation;
 import de.dal33t.powerfolder.message.RequestNodeList;
@@ -122,6 +125,9 @@ public class Member extends PFComponent implements Comparable<Member> {
     /** Listener support for incoming messages */
     private MessageListenerSupport messageListenerSupport;
 
+    /** Executes requests on this node, e.g. remote service calls */
+    private RequestExecutor requestExecutor;
+
     /** The current connection handler */
     private volatile ConnectionHandler peer;
 
@@ -192,6 +198,18 @@ public class Member extends PFComponent implements Comparable<Member> {
     /** If the remote node is a server. */
     private boolean server;
 
+    /** The last ping sent to measure the round trip time */
+    private volatile Ping lastPing;
+
+    /** The smoothed round trip time in ms. -1 if not measured yet */
+    private volatile long roundTripTime = -1;
+
+    /** The lowest round trip time in ms. -1 if not measured yet */
+    private volatile long minRoundTripTime = -1;
+
+    /** When the round trip time was measured the last time */
+    private volatile long lastRoundTripTimeMeasured;
+
     /**
      * Constructs a member using parameters from another member. nick, id ,
      * connect address.
@@ -1346,6 +1364,64 @@ public class Member extends PFComponent implements Comparable<Member> {
         }
     }
 
+    /**
+     * Sends a ping to measure the round trip time. The pong is handled by
+     * {@link #pongReceived(Pong)}.
+     */
+    public void ping() {
+        Ping ping = new Ping(0);
+        ping.sent();
+        lastPing = ping;
+        sendMessageAsynchron(ping);
+    }
+
+    /**
+     * Updates the round trip time if the pong answers the last ping.
+     *
+     * @param pong
+     */
+    public void pongReceived(Pong pong) {
+        Ping ping = lastPing;
+        if (ping == null || pong.id == null || !pong.id.equals(ping.id)) {
+            return;
+        }
+        lastPing = null;
+        long took = Math.max(1, pong.took(ping));
+        long rtt = roundTripTime;
+        // Smoothed like TCP: 7/8 old value, 1/8 new sample
+        roundTripTime = rtt < 0 ? took : (7 * rtt + took) / 8;
+        if (minRoundTripTime < 0 || took < minRoundTripTime) {
+            minRoundTripTime = took;
+        }
+        lastRoundTripTimeMeasured = System.currentTimeMillis();
+        if (isFiner()) {
+            logFiner("Round trip time: " + took + "ms, smoothed: "
+                + roundTripTime + "ms, min: " + minRoundTripTime + "ms");
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time in ms or -1 if not measured yet.
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * @return the lowest round trip time in ms ever measured or -1 if not
+     *         measured yet.
+     */
+    public long getMinRoundTripTime() {
+        return minRoundTripTime;
+    }
+
+    /**
+     * @return the time when the round trip time was last measured. 0 if never.
+     */
+    public long getLastRoundTripTimeMeasured() {
+        return lastRoundTripTimeMeasured;
+    }
+
     /**
      * Handles an incomming message from the remote peer (ConnectionHandler)
      *
@@ -1550,6 +1626,26 @@ public class Member extends PFComponent implements Comparable<Member> {
                 }
                 expectedTime = 100;
 
+            } else if (message instanceof RequestFileBatch) {
+                RequestFileBatch batchReq = (RequestFileBatch) message;
+                if (getController().isPaused()) {
+                    // Send back without data. Remote side falls back to
+                    // normal downloads, which get aborted.
+                    logFine("Not sending batch (paused) of "
+                        + batchReq.files.length + " files");
+                    sendMessagesAsynchron(new FileBatch(batchReq.files,
+                        new byte[batchReq.files.length][]));
+                } else {
+                    getController().getTransferManager().getFileBatchManager()
+                        .handleRequest(this, batchReq);
+                }
+                expectedTime = 100;
+
+            } else if (message instanceof FileBatch) {
+                getController().getTransferManager().getFileBatchManager()
+                    .receivedBatch(this, (FileBatch) message);
+                expectedTime = 100;
+
             } else if (message instanceof DownloadQueued) {
                 // set queued flag here, if we received status from other side
                 DownloadQueued dlQueued = (DownloadQueued) message;
@@ -2045,6 +2141,17 @@ public class Member extends PFComponent implements Comparable<Member> {
         getMessageListenerSupport().fireMessage(this, message);
     }
 
+    /**
+     * @return the executor for requests to this node. Shared by all callers,
+     *         executes many requests concurrently.
+     */
+    public synchronized RequestExecutor getRequestExecutor() {
+        if (requestExecutor == null) {
+            requestExecutor = new RequestExecutor(getController(), this);
+        }
+        return requestExecutor;
+    }
+
     private synchronized MessageListenerSupport getMessageListenerSupport() {
         if (messageListenerSupport == null) {
             messageListenerSupport = new MessageListenerSupport(this);
@@ -21,10 +21,15 @@ package de.dal33t.powerfolder.clientserver;
  */
 
 import java.awt.EventQueue;
+import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,6 +39,7 @@ import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.clientserver.RemoteMethodCallRequest;
 import de.dal33t.powerfolder.message.clientserver.RemoteMethodCallResponse;
+import de.dal33t.powerfolder.message.clientserver.Response;
 import de.dal33t.powerfolder.net.ConnectionException;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.StackDump;
@@ -93,6 +99,75 @@ public class RemoteServiceStubFactory {
             .getClassLoader(), new Class[]{serviceInterface}, handler);
     }
 
+    /**
+     * Invokes a method of a remote stub without waiting for the result.
+     * <p>
+     * Example:
+     * <code>invokeAsync(securityService, SecurityService.class.getMethod("getDefaultPermission", FolderInfo.class), foInfo)</code>
+     *
+     * @param <R>
+     *            the return type of the method
+     * @param stub
+     *            the stub created by this factory.
+     * @param method
+     *            the method of the service interface to invoke.
+     * @param args
+     *            the arguments
+     * @return the future result. Throws the exception of the remote call
+     *         wrapped into a <code>ExecutionException</code>.
+     * @throws RemoteCallException
+     *             if the request could not be sent.
+     */
+    @SuppressWarnings("unchecked")
+    public static <R> Future<R> invokeAsync(Object stub, Method method,
+        Object... args)
+    {
+        Reject.ifNull(stub, "Stub is null");
+        Reject.ifNull(method, "Method is null");
+        Reject.ifFalse(Proxy.isProxyClass(stub.getClass())
+            && Proxy.getInvocationHandler(stub) instanceof RemoteInvocationHandler,
+            "Not a remote stub: " + stub.getClass());
+        RemoteInvocationHandler handler = (RemoteInvocationHandler) Proxy
+            .getInvocationHandler(stub);
+        return (Future<R>) handler.invokeAsync(method, args);
+    }
+
+    /**
+     * Calls to methods without side effects can be joined with an equal call
+     * already waiting for its result. By convention these are the getters and
+     * queries of the service interfaces.
+     * <p>
+     * Joined calls share the result object. Only methods with an immutable
+     * result (primitives, their wrappers, strings and enums) are joined, so a
+     * caller can't change the result of another caller. Results like
+     * collections or arrays are requested for each call.
+     * <p>
+     * Note: This is no batching of calls to the same method with different
+     * arguments. Only equal calls (same service, method and arguments) are
+     * joined into one request.
+     *
+     * @param method
+     * @return true if equal calls of the method may be joined.
+     */
+    private static boolean isCoalescable(Method method) {
+        String name = method.getName();
+        return isImmutable(method.getReturnType())
+            && (name.startsWith("get") || name.startsWith("has")
+                || name.startsWith("is") || name.startsWith("search"));
+    }
+
+    private static boolean isImmutable(Class<?> type) {
+        if (type.equals(Void.TYPE)) {
+            return false;
+        }
+        return type.isPrimitive() || type.isEnum()
+            || type.equals(String.class) || type.equals(Boolean.class)
+            || type.equals(Character.class) || type.equals(Byte.class)
+            || type.equals(Short.class) || type.equals(Integer.class)
+            || type.equals(Long.class) || type.equals(Float.class)
+            || type.equals(Double.class);
+    }
+
     private static class RemoteInvocationHandler implements InvocationHandler {
         private Controller controller;
         private Member remoteSide;
@@ -124,33 +199,98 @@ public class RemoteServiceStubFactory {
                     + (args != null ? Arrays.asList(args) : "n/a"),
                     new StackDump());
             }
-            Identity id = remoteSide.getIdentity();
-            RequestExecutor executor = new RequestExecutor(controller,
-                remoteSide);
-            RemoteMethodCallRequest request = new RemoteMethodCallRequest(
-                serviceId, method, args);
-            if (id == null || id.isSupportsSerializedRequest()) {
-                request = request.toSerzializedForm();
-            } else {
-                if (ConfigurationEntry.SECURITY_PERMISSIONS_STRICT
-                    .getValueBoolean(controller))
+            RemoteMethodCallResponse response;
+            try {
+                response = (RemoteMethodCallResponse) send(method, args)
+                    .getResponse();
+            } catch (ConnectionException e) {
+                throw new RemoteCallException(e);
+            }
+            return processResponse(method, response);
+        }
+
+        private Future<Object> invokeAsync(final Method method, Object[] args)
+        {
+            final RequestExecutor.ResponseFuture future;
+            try {
+                future = send(method, args);
+            } catch (ConnectionException e) {
+                throw new RemoteCallException(e);
+            }
+            return new Future<Object>() {
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    return future.cancel(mayInterruptIfRunning);
+                }
+
+                public boolean isCancelled() {
+                    return future.isCancelled();
+                }
+
+                public boolean isDone() {
+                    return future.isDone();
+                }
+
+                public Object get() throws InterruptedException,
+                    ExecutionException
                 {
-                    LOG
-                        .severe("Using strict permission security setting while executing legacy type request."
-                            + "Please check program version of "
-                            + remoteSide
-                            + ": "
-                            + (id == null ? "" : id.getProgramVersion())
-                            + ". Request: " + request);
+                    return process(future.get());
                 }
 
-            }
-            RemoteMethodCallResponse response;
+                public Object get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException,
+                    TimeoutException
+                {
+                    return process(future.get(timeout, unit));
+                }
+
+                private Object process(Response response)
+                    throws ExecutionException
+                {
+                    try {
+                        return processResponse(method,
+                            (RemoteMethodCallResponse) response);
+                    } catch (Throwable t) {
+                        throw new ExecutionException(t);
+                    }
+                }
+            };
+        }
+
+        private RequestExecutor.ResponseFuture send(Method method,
+            Object[] args) throws ConnectionException
+        {
+            Identity id = remoteSide.getIdentity();
+            RemoteMethodCallRequest request = new RemoteMethodCallRequest(
+                serviceId, method, args);
+            Object coalesceKey = isCoalescable(method) ? new CallKey(
+                serviceId, method, args) : null;
             try {
-                response = (RemoteMethodCallResponse) executor.execute(request);
-            } catch (ConnectionException e) {
+                if (id == null || id.isSupportsSerializedRequest()) {
+                    request = request.toSerzializedForm();
+                } else {
+                    if (ConfigurationEntry.SECURITY_PERMISSIONS_STRICT
+                        .getValueBoolean(controller))
+                    {
+                        LOG
+                            .severe("Using strict permission security setting while executing legacy type request."
+                                + "Please check program version of "
+                                + remoteSide
+                                + ": "
+                                + (id == null ? "" : id.getProgramVersion())
+                                + ". Request: " + request);
+                    }
+
+                }
+            } catch (IOException e) {
                 throw new RemoteCallException(e);
             }
+            return remoteSide.getRequestExecutor().executeAsync(request,
+                coalesceKey);
+        }
+
+        private Object processResponse(Method method,
+            RemoteMethodCallResponse response) throws Throwable
+        {
             if (response.isException()) {
                 StackTraceElement[] serverSte = response.getException()
                     .getStackTrace();
@@ -186,4 +326,39 @@ public class RemoteServiceStubFactory {
         }
     }
 
+    /**
+     * Identifies equal calls of a service method.
+     */
+    private static class CallKey {
+        private final String serviceId;
+        private final Method method;
+        private final Object[] args;
+
+        private CallKey(String serviceId, Method method, Object[] args) {
+            this.serviceId = serviceId;
+            this.method = method;
+            this.args = args != null ? args.clone() : null;
+        }
+
+        @Override
+        public int hashCode() {
+            return serviceId.hashCode() * 31 * 31 + method.hashCode() * 31
+                + Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CallKey)) {
+                return false;
+            }
+            CallKey other = (CallKey) obj;
+            return serviceId.equals(other.serviceId)
+                && method.equals(other.method)
+                && Arrays.deepEquals(args, other.args);
+        }
+    }
+
 }
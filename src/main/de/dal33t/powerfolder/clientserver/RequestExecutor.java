@@ -19,6 +19,18 @@
  */
 package de.dal33t.powerfolder.clientserver;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
@@ -33,24 +45,39 @@ import de.dal33t.powerfolder.net.ConnectionException;
 import de.dal33t.powerfolder.util.Reject;
 
 /**
- * Performs a basic request - response message cycle.
+ * Performs basic request - response message cycles.
  * <p>
- * Rationale: Executes a request on a remote node.
+ * Rationale: Executes requests on a remote node.
  * <p>
- * Is thread safe. Can execute only one request.
+ * Is thread safe. Can execute many requests concurrently. Responses are
+ * correlated to their request by the request id. Use
+ * {@link Member#getRequestExecutor()} to get the shared executor of a node.
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
  * @version $Revision: 1.5 $
  */
 public class RequestExecutor extends PFComponent {
 
-    private Object waitForResponseLock = new Object();
     private Member node;
 
     private DisconnectListener discoListener;
     private ResponseMessageListener messageListener;
-    private String requestId;
-    private Response response;
+
+    /**
+     * The requests waiting for a response. Request id -> Future.
+     */
+    private final Map<String, ResponseFuture> pending = new ConcurrentHashMap<String, ResponseFuture>();
+
+    /**
+     * The requests, which can be joined by equal requests. Coalesce key ->
+     * Future.
+     */
+    private final ConcurrentMap<Object, ResponseFuture> coalescable = new ConcurrentHashMap<Object, ResponseFuture>();
+
+    /**
+     * If the listeners are currently registered. Guarded by this.
+     */
+    private boolean listening;
 
     public RequestExecutor(Controller controller, Member node) {
         super(controller);
@@ -60,76 +87,273 @@ public class RequestExecutor extends PFComponent {
         this.messageListener = new ResponseMessageListener();
     }
 
-    public synchronized Response execute(Request request)
+    /**
+     * Sends the request and waits for the response.
+     *
+     * @param request
+     * @return the response
+     * @throws ConnectionException
+     *             if disconnected or on timeout.
+     */
+    public Response execute(Request request) throws ConnectionException {
+        return executeAsync(request).getResponse();
+    }
+
+    /**
+     * Sends the request. Does not wait for the response.
+     *
+     * @param request
+     * @return the future of the response.
+     * @throws ConnectionException
+     *             if not connected
+     */
+    public ResponseFuture executeAsync(Request request)
+        throws ConnectionException
+    {
+        return executeAsync(request, null);
+    }
+
+    /**
+     * Sends the request. Does not wait for the response. Joins an equal
+     * request still waiting for its response instead of sending again.
+     *
+     * @param request
+     * @param coalesceKey
+     *            the key which identifies equal requests. Should only be used
+     *            for requests without side effects and with an immutable
+     *            response. Joined callers get the same response object.
+     *            <code>null</code> to never join other requests.
+     * @return the future of the response.
+     * @throws ConnectionException
+     *             if not connected
+     */
+    public ResponseFuture executeAsync(Request request, Object coalesceKey)
         throws ConnectionException
     {
         if (!node.isConnected()) {
             throw new ConnectionException("Not connected to " + node.getNick());
         }
-
-        // Prepare
-        response = null;
-        requestId = request.getRequestId();
+        String requestId = request.getRequestId();
+        ResponseFuture future;
+        synchronized (this) {
+            if (coalesceKey != null) {
+                future = coalescable.get(coalesceKey);
+                if (future != null) {
+                    if (isFiner()) {
+                        logFiner("Joining request to " + node.getNick()
+                            + " (" + future.requestId + "): " + request);
+                    }
+                    return future;
+                }
+            }
+            future = new ResponseFuture(requestId, coalesceKey);
+            pending.put(requestId, future);
+            if (coalesceKey != null) {
+                coalescable.put(coalesceKey, future);
+            }
+            if (!listening) {
+                // Listen to receive the responses
+                getController().getNodeManager().addNodeManagerListener(
+                    discoListener);
+                node.addMessageListener(messageListener);
+                listening = true;
+            }
+        }
 
         if (isFiner()) {
             logFiner("Sending request to " + node.getNick() + " (" + requestId
                 + "): " + request);
         }
-        // Listen to receive the response
-        getController().getNodeManager().addNodeManagerListener(discoListener);
-        node.addMessageListener(messageListener);
-        node.sendMessage(request);
-
         try {
-            waitForResponse(Constants.REQUEST_RESPONSE_TIMEOUT);
+            node.sendMessage(request);
+        } catch (ConnectionException e) {
+            // Disconnect might have been processed already. Don't let equal
+            // requests join this one.
+            future.fail(e);
+            throw e;
+        }
+        return future;
+    }
 
-            if (response == null) {
-                if (!node.isConnected()) {
-                    throw new ConnectionException(node.getNick()
-                        + " disconnected");
-                }
-                throw new ConnectionException("Timeout to " + node.getNick());
-            }
+    /**
+     * @return the number of requests waiting for a response.
+     */
+    public int countPending() {
+        return pending.size();
+    }
+
+    // Internal helper ********************************************************
 
-            if (isFiner()) {
-                logFiner("Response from " + node.getNick() + " (" + requestId
-                    + "): " + response + " to " + request);
+    private void cleanup(ResponseFuture future) {
+        if (isFiner()) {
+            logFiner("Cleanup of request: " + future.requestId);
+        }
+        synchronized (this) {
+            pending.remove(future.requestId);
+            if (future.coalesceKey != null) {
+                coalescable.remove(future.coalesceKey, future);
+            }
+            if (pending.isEmpty() && listening) {
+                node.removeMessageListener(messageListener);
+                getController().getNodeManager().removeNodeManagerListener(
+                    discoListener);
+                listening = false;
             }
-        } finally {
-            notifyAndcleanup();
         }
-
-        return response;
     }
 
-    // Internal helper ********************************************************
+    /**
+     * The future response of a request.
+     */
+    public class ResponseFuture implements Future<Response> {
+        private final String requestId;
+        private final Object coalesceKey;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Response response;
+        private volatile ConnectionException failure;
+        /**
+         * The number of callers currently waiting for the response.
+         */
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        private ResponseFuture(String requestId, Object coalesceKey) {
+            this.requestId = requestId;
+            this.coalesceKey = coalesceKey;
+        }
+
+        /**
+         * Waits for the response up to
+         * {@link Constants#REQUEST_RESPONSE_TIMEOUT}. Every caller waits
+         * against its own deadline. The request fails when the last waiting
+         * caller times out.
+         *
+         * @return the response.
+         * @throws ConnectionException
+         *             if disconnected, on timeout or if the calling thread
+         *             was interrupted. The interrupt flag of the thread is
+         *             kept.
+         */
+        public Response getResponse() throws ConnectionException {
+            return getResponse(Constants.REQUEST_RESPONSE_TIMEOUT * 1000L);
+        }
 
-    private void waitForResponse(long seconds) {
-        synchronized (waitForResponseLock) {
+        /**
+         * @param timeoutMS
+         *            the time this caller waits at most.
+         * @return the response.
+         * @throws ConnectionException
+         * @see #getResponse()
+         */
+        Response getResponse(long timeoutMS) throws ConnectionException {
+            try {
+                return await(timeoutMS);
+            } catch (InterruptedException e) {
+                // Only this caller stops waiting
+                Thread.currentThread().interrupt();
+                throw new ConnectionException(
+                    "Interrupted while waiting for response of "
+                        + node.getNick(), e);
+            }
+        }
+
+        /**
+         * @param timeoutMS
+         *            the time this caller waits at most.
+         * @return the response
+         * @throws InterruptedException
+         * @throws ConnectionException
+         *             if disconnected or on timeout.
+         */
+        private Response await(long timeoutMS) throws InterruptedException,
+            ConnectionException
+        {
+            waiters.incrementAndGet();
+            boolean received;
+            try {
+                received = done.await(timeoutMS, TimeUnit.MILLISECONDS);
+            } finally {
+                waiters.decrementAndGet();
+            }
+            if (!received) {
+                timedOut();
+            }
             if (response != null) {
-                // Already got response
+                if (isFiner()) {
+                    logFiner("Response from " + node.getNick() + " ("
+                        + requestId + "): " + response);
+                }
+                return response;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            throw new ConnectionException("Timeout to " + node.getNick());
+        }
+
+        /**
+         * A caller did not get the response in time. Equal requests must not
+         * join this one anymore. Fails the request if nobody else waits for
+         * it.
+         */
+        private void timedOut() {
+            synchronized (RequestExecutor.this) {
+                if (coalesceKey != null) {
+                    coalescable.remove(coalesceKey, this);
+                }
+            }
+            if (waiters.get() > 0) {
                 return;
             }
-            try {
-                waitForResponseLock.wait(1000L * seconds);
-            } catch (InterruptedException e) {
-                logWarning("Interrupted while waiting for response (" + node
-                    + "): " + e);
-                logFiner("InterruptedException", e);
+            if (!node.isConnected()) {
+                fail(new ConnectionException(node.getNick() + " disconnected"));
+            } else {
+                fail(new ConnectionException("Timeout to " + node.getNick()));
             }
         }
-    }
 
-    private void notifyAndcleanup() {
-        if (isFiner()) {
-            logFiner("Cleanup of request: " + requestId);
+        private void complete(Response aResponse) {
+            response = aResponse;
+            done.countDown();
+            cleanup(this);
+        }
+
+        private void fail(ConnectionException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            done.countDown();
+            cleanup(this);
         }
-        synchronized (waitForResponseLock) {
-            waitForResponseLock.notifyAll();
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public Response get() throws InterruptedException, ExecutionException
+        {
+            try {
+                return await(Constants.REQUEST_RESPONSE_TIMEOUT * 1000L);
+            } catch (ConnectionException e) {
+                throw new ExecutionException(e);
+            }
+        }
+
+        public Response get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException("Timeout to " + node.getNick());
+            }
+            return get();
         }
-        node.removeMessageListener(messageListener);
-        getController().getNodeManager().removeNodeManagerListener(
-            discoListener);
     }
 
     private class DisconnectListener extends NodeManagerAdapter {
@@ -147,8 +371,13 @@ public class RequestExecutor extends PFComponent {
             if (!e.getNode().equals(node)) {
                 return;
             }
-            // Break request
-            notifyAndcleanup();
+            // Break requests
+            List<ResponseFuture> futures = new ArrayList<ResponseFuture>(
+                pending.values());
+            for (ResponseFuture future : futures) {
+                future.fail(new ConnectionException(node.getNick()
+                    + " disconnected"));
+            }
         }
 
         public boolean fireInEventDispatchThread() {
@@ -166,9 +395,12 @@ public class RequestExecutor extends PFComponent {
                 return;
             }
             Response canidate = (Response) message;
-            if (requestId.equals(canidate.requestId)) {
-                response = canidate;
-                notifyAndcleanup();
+            if (canidate.requestId == null) {
+                return;
+            }
+            ResponseFuture future = pending.get(canidate.requestId);
+            if (future != null) {
+                future.complete(canidate);
             }
         }
 
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.StringUtils;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * PFC-2352: Calculates the content hashes ({@link FileInfo#getHashes()}) of
+ * local files in the background.
+ * <p>
+ * New and changed files are queued when they get stored into the folder
+ * database, e.g. after a scan has been committed. The files are hashed by a
+ * small pool of low priority threads with a limited disk read rate. If the
+ * queue overflows, the folder is marked for a full pass which hashes all known
+ * files without hashes. Each folder gets one full pass per session to pick up
+ * files of older databases.
+ * <p>
+ * A file is only hashed if size and modification date on disk match the
+ * database. The hashes are stored without creating a new version of the file.
+ * If the file changed while hashing, the result is discarded; the change will
+ * be queued again by the next scan.
+ *
+ * @author sprajc
+ */
+public class FileHasher extends PFComponent {
+    /** The content hash algorithm. Hashes are stored as lower case hex */
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BlockingQueue<FileInfo> queue;
+
+    /** Folders waiting for a full pass */
+    private final Set<FolderInfo> fullPassFolders;
+
+    /** Folders that already had their full pass in this session */
+    private final Set<FolderInfo> completedFolders;
+
+    private final int nThreads;
+    private final long bytesPerSecond;
+
+    /** Queued files and folders not processed yet */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** Throttling: Earliest time of the next read in nanos */
+    private final AtomicLong nextRead = new AtomicLong();
+
+    private final AtomicLong hashedFiles = new AtomicLong();
+    private final AtomicLong hashedBytes = new AtomicLong();
+
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    /**
+     * Do not use this constructor, this should only be done by the Folder
+     * Repositoty, to get the hasher call: folderRepository.getFileHasher()
+     *
+     * @param controller
+     */
+    FileHasher(Controller controller) {
+        super(controller);
+        queue = new LinkedBlockingQueue<FileInfo>(Math.max(1,
+            ConfigurationEntry.FOLDER_HASHER_QUEUE_SIZE
+                .getValueInt(getController())));
+        fullPassFolders = Collections
+            .newSetFromMap(new ConcurrentHashMap<FolderInfo, Boolean>());
+        completedFolders = Collections
+            .newSetFromMap(new ConcurrentHashMap<FolderInfo, Boolean>());
+        nThreads = Math.max(1,
+            ConfigurationEntry.FOLDER_HASHER_THREADS
+                .getValueInt(getController()));
+        bytesPerSecond = 1024L * Math.max(0,
+            ConfigurationEntry.FOLDER_HASHER_MAX_KBS
+                .getValueInt(getController()));
+    }
+
+    /**
+     * Starts the hashing threads.
+     */
+    public synchronized void start() {
+        if (executor != null
+            || !ConfigurationEntry.FOLDER_HASHER_ENABLED
+                .getValueBoolean(getController()))
+        {
+            return;
+        }
+        running = true;
+        executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FileHasher-"
+                    + count.incrementAndGet());
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < nThreads; i++) {
+            executor.execute(new Worker());
+        }
+    }
+
+    /**
+     * Stops the hashing threads. Queued files are dropped.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        queue.clear();
+        fullPassFolders.clear();
+        completedFolders.clear();
+        pending.set(0);
+    }
+
+    /**
+     * Queues the files for hashing. Deleted files, directories and files that
+     * already have hashes are ignored.
+     *
+     * @param fileInfos
+     */
+    public void hashLater(Collection<FileInfo> fileInfos) {
+        if (!running) {
+            return;
+        }
+        for (FileInfo fInfo : fileInfos) {
+            if (!requiresHashing(fInfo)) {
+                continue;
+            }
+            pending.incrementAndGet();
+            if (!queue.offer(fInfo)) {
+                pending.decrementAndGet();
+                // Overflow: Catch up later with a full pass
+                if (fullPassFolders.add(fInfo.getFolderInfo())) {
+                    pending.incrementAndGet();
+                    if (isFine()) {
+                        logFine("Hashing queue full. Scheduling full pass of "
+                            + fInfo.getFolderInfo());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules a full pass over the folder to hash all known files without
+     * hashes. Happens only once per folder and session.
+     *
+     * @param folder
+     */
+    public void hashFolder(Folder folder) {
+        if (!running || completedFolders.contains(folder.getInfo())) {
+            return;
+        }
+        if (fullPassFolders.add(folder.getInfo())) {
+            pending.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if no files are queued or currently hashed.
+     */
+    public boolean isIdle() {
+        return pending.get() <= 0;
+    }
+
+    /**
+     * @return the total number of files hashed.
+     */
+    public long getHashedFilesCount() {
+        return hashedFiles.get();
+    }
+
+    /**
+     * @return the total number of bytes hashed.
+     */
+    public long getHashedBytes() {
+        return hashedBytes.get();
+    }
+
+    /**
+     * @param data
+     * @return the content hash in the format stored in
+     *         {@link FileInfo#getHashes()}.
+     */
+    public static String toHashString(byte[] data) {
+        return new String(Util.encodeHex(data));
+    }
+
+    private static boolean requiresHashing(FileInfo fInfo) {
+        return fInfo != null && fInfo.isFile() && !fInfo.isDeleted()
+            && StringUtils.isBlank(fInfo.getHashes());
+    }
+
+    /**
+     * Hashes the file and stores the hashes if the file is still the same on
+     * disk and in the database.
+     *
+     * @param fInfo
+     * @throws InterruptedException
+     */
+    private void hash(FileInfo fInfo) throws InterruptedException {
+        Folder folder = fInfo.getFolder(getController().getFolderRepository());
+        if (folder == null) {
+            return;
+        }
+        FileInfo localInfo = folder.getFile(fInfo);
+        if (!requiresHashing(localInfo)
+            || localInfo.getVersion() != fInfo.getVersion())
+        {
+            // Changed meanwhile
+            return;
+        }
+        Path file = localInfo.getDiskFile(getController()
+            .getFolderRepository());
+        if (file == null || !localInfo.inSyncWithDisk(file)) {
+            // Changed on disk. Next scan will queue it again.
+            return;
+        }
+        String hashes;
+        try {
+            hashes = toHashString(digest(file));
+        } catch (IOException e) {
+            logFine("Unable to hash " + file + ". " + e);
+            return;
+        }
+        if (!localInfo.inSyncWithDisk(file)) {
+            logFine("File changed while hashing: " + file);
+            return;
+        }
+        if (folder.storeHashes(localInfo, hashes)) {
+            hashedFiles.incrementAndGet();
+            if (isFiner()) {
+                logFiner("Hashed " + localInfo.toDetailString() + ": "
+                    + hashes);
+            }
+        }
+    }
+
+    /**
+     * Hashes all known files of the folder that have no hashes yet.
+     *
+     * @param foInfo
+     * @throws InterruptedException
+     */
+    private void hashFolder(FolderInfo foInfo) throws InterruptedException {
+        FolderRepository repo = getController().getFolderRepository();
+        Folder folder = repo.getFolder(foInfo);
+        if (folder == null) {
+            return;
+        }
+        completedFolders.add(foInfo);
+        long start = System.currentTimeMillis();
+        long before = hashedFiles.get();
+        for (FileInfo fInfo : folder.getKnownFiles()) {
+            if (!running || !repo.hasJoinedFolder(foInfo)) {
+                return;
+            }
+            if (requiresHashing(fInfo)) {
+                hash(fInfo);
+            }
+        }
+        long hashed = hashedFiles.get() - before;
+        if (hashed > 0) {
+            logInfo("Hashed " + hashed + " files of " + folder + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private byte[] digest(Path file) throws IOException, InterruptedException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                if (!running || Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                throttle(read);
+                digest.update(buf, 0, read);
+                hashedBytes.addAndGet(read);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Limits the read rate of all hashing threads to
+     * {@link ConfigurationEntry#FOLDER_HASHER_MAX_KBS}.
+     *
+     * @param bytes
+     *            the bytes just read.
+     * @throws InterruptedException
+     */
+    private void throttle(int bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long cost = bytes * 1000000000L / bytesPerSecond;
+        long now = System.nanoTime();
+        long readTime;
+        long next;
+        do {
+            next = nextRead.get();
+            readTime = next - now > 0 ? next : now;
+        } while (!nextRead.compareAndSet(next, readTime + cost));
+        long waitNanos = readTime - now;
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            while (running) {
+                try {
+                    FileInfo fInfo = queue.poll(500, TimeUnit.MILLISECONDS);
+                    if (fInfo != null) {
+                        try {
+                            hash(fInfo);
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                        continue;
+                    }
+                    Iterator<FolderInfo> it = fullPassFolders.iterator();
+                    if (!it.hasNext()) {
+                        continue;
+                    }
+                    FolderInfo foInfo = it.next();
+                    if (fullPassFolders.remove(foInfo)) {
+                        try {
+                            hashFolder(foInfo);
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    logSevere("Error while hashing files: " + e, e);
+                }
+            }
+        }
+    }
+}
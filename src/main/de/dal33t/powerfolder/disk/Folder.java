@@ -22,10 +22,12 @@ package de.dal33t.powerfolder.disk;
 import static de.dal33t.powerfolder.disk.FolderSettings.PREFIX_V4;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.Externalizable;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.file.DirectoryStream;
@@ -49,7 +51,6 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -71,6 +72,8 @@ import de.dal33t.powerfolder.PreferencesEntry;
 import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOMappedImpl;
+import de.dal33t.powerfolder.disk.dao.FileInfoJournal;
 import de.dal33t.powerfolder.disk.problem.DeviceDisconnectedProblem;
 import de.dal33t.powerfolder.disk.problem.FileConflictProblem;
 import de.dal33t.powerfolder.disk.problem.FilenameProblemHelper;
@@ -89,6 +92,7 @@ import de.dal33t.powerfolder.event.RemoteMassDeletionEvent;
 import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.light.DirectoryInfo;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
@@ -157,6 +161,12 @@ public class Folder extends PFComponent {
      */
     private FileInfoDAO dao;
 
+    /**
+     * Write-ahead journal of the changes to the own files in the DAO. Avoids
+     * rewriting the whole folder database on every change. null if disabled.
+     */
+    private FileInfoJournal journal;
+
     /**
      * Date of the last directory scan
      */
@@ -177,6 +187,16 @@ public class Folder extends PFComponent {
      */
     private Date lastDBMaintenance;
 
+    /**
+     * The db maintenance in progress or null if none.
+     */
+    private volatile DBMaintenance dbMaintenance;
+
+    /**
+     * Lock for the db maintenance.
+     */
+    private final Object dbMaintenanceLock = new Object();
+
     /**
      * Access lock to the DB/DAO.
      */
@@ -185,6 +205,9 @@ public class Folder extends PFComponent {
     /** files that should(not) be downloaded in auto download */
     private final DiskItemFilter diskItemFilter;
 
+    /** The files, which might be incoming from other members */
+    private final IncomingFilesIndex incomingFilesIndex;
+
     /**
      * Stores the priorities for downloading of the files in this folder.
      */
@@ -237,6 +260,12 @@ public class Folder extends PFComponent {
      */
     private volatile boolean dirty;
 
+    /**
+     * Flag indicating that data not covered by the journal (e.g. members) has
+     * changed and a full snapshot of the folder database is required.
+     */
+    private volatile boolean snapshotDirty;
+
     /**
      * The FileInfos that have problems inlcuding the desciptions of the
      * problems. DISABLED
@@ -428,6 +457,8 @@ public class Folder extends PFComponent {
         transferPriorities = new TransferPriorities();
 
         diskItemFilter = new DiskItemFilter();
+        incomingFilesIndex = new IncomingFilesIndex(this);
+        diskItemFilter.addListener(incomingFilesIndex);
 
         // Initialize the DAO
         initFileInfoDAO();
@@ -650,6 +681,12 @@ public class Folder extends PFComponent {
 
         hasOwnDatabase = true;
 
+        if (!currentInfo.isMetaFolder()) {
+            // PFC-2352: Pick up files still without hashes, once per session
+            getController().getFolderRepository().getFileHasher()
+                .hashFolder(this);
+        }
+
         if (isInfo() || isFine()) {
             if (scanResult.isChangeDetected()) {
                 String msg = "Scanned " + scanResult.getTotalFilesCount() + " total, "
@@ -1798,6 +1835,7 @@ public class Folder extends PFComponent {
                 if (deleteFile(fInfo, diskFile)) {
                     // 2) Purge DB
                     dao.delete(null, fInfo);
+                    incomingFilesIndex.changed(fInfo);
                     return true;
                 } else {
                     logWarning("Unable to erase: " + diskFile + ". " + fInfo);
@@ -1812,6 +1850,20 @@ public class Folder extends PFComponent {
             // Stop old DAO
             dao.stop();
         }
+        if (ConfigurationEntry.FOLDER_DB_MAPPED.getValueBoolean(getController())
+            && !deviceDisconnected)
+        {
+            Path dbDir = getSystemSubDir0().resolve(
+                Constants.DB_MAPPED_DIRNAME);
+            try {
+                dao = new FileInfoDAOMappedImpl(getMySelf().getId(),
+                    diskItemFilter, dbDir);
+                return;
+            } catch (IOException e) {
+                logWarning("Unable to use memory-mapped database at " + dbDir
+                    + ". Falling back to in-memory database. " + e);
+            }
+        }
         dao = new FileInfoDAOHashMapImpl(getMySelf().getId(),
             diskItemFilter);
 
@@ -1833,8 +1885,6 @@ public class Folder extends PFComponent {
      *            the file to load as db file
      * @return true if succeeded
      */
-    // @SuppressWarnings("unchecked")
-    @SuppressWarnings({"unchecked"})
     private boolean loadFolderDB(Path dbFile) {
         synchronized (scanLock) {
             if (Files.notExists(dbFile)) {
@@ -1842,15 +1892,30 @@ public class Folder extends PFComponent {
                     + dbFile.toAbsolutePath());
                 return false;
             }
-            InputStream fIn = null;
-            ObjectInputStream in = null;
-            try {
-                // load files and scan in
-                 fIn = new BufferedInputStream(
-                    Files.newInputStream(dbFile));
-                 in = new ObjectInputStream(fIn);
-
-                FileInfo[] files = (FileInfo[]) in.readObject();
+            try (BufferedInputStream fIn = new BufferedInputStream(
+                Files.newInputStream(dbFile)))
+            {
+                FileInfo[] files;
+                MemberInfo[] members1;
+                if (FileInfoCodec.hasHeader(fIn)) {
+                    DataInputStream in = new DataInputStream(fIn);
+                    FileInfoCodec.readHeader(in);
+                    files = FileInfoCodec.readFileInfos(in);
+                    members1 = FileInfoCodec.readMemberInfos(in);
+                    long lastScanTime = in.readLong();
+                    if (lastScanTime >= 0) {
+                        lastScan = new Date(lastScanTime);
+                    }
+                } else {
+                    // Old format: Plain java serialization
+                    ObjectInputStream in = new ObjectInputStream(fIn);
+                    files = (FileInfo[]) in.readObject();
+                    members1 = (MemberInfo[]) in.readObject();
+                    readFolderDBTrailer(in, dbFile);
+                    // Write in new format on next persist.
+                    snapshotDirty = true;
+                    setDBDirty();
+                }
                 // Convert.cleanMemberInfos(getController().getNodeManager(),
                 // files);
                 synchronized (dbAccessLock) {
@@ -1866,12 +1931,12 @@ public class Folder extends PFComponent {
                     dao.deleteDomain(null, files.length);
                     dao.store(null, files);
                 }
+                incomingFilesIndex.invalidate();
 
                 // Ok has own database
                 hasOwnDatabase = true;
 
                 // read them always ..
-                MemberInfo[] members1 = (MemberInfo[]) in.readObject();
                 // Do not load members
                 logFiner("Loading " + members1.length + " members");
                 for (MemberInfo memberInfo : members1) {
@@ -1906,44 +1971,6 @@ public class Folder extends PFComponent {
                     }
                 }
 
-                // Old blacklist explicit items.
-                // Now disused, but maintained for backward compatability.
-                try {
-                    Object object = in.readObject();
-                    Collection<FileInfo> infos = (Collection<FileInfo>) object;
-                    for (FileInfo info : infos) {
-                        diskItemFilter.addPattern(info.getRelativeName());
-                        if (isFiner()) {
-                            logFiner("ignore@" + info.getRelativeName());
-                        }
-                    }
-                } catch (EOFException e) {
-                    logFiner("No ignore list");
-                } catch (Exception e) {
-                    logSevere("read ignore error: " + this + e.getMessage(), e);
-                } catch (OutOfMemoryError e) {
-                    logWarning("Read ignore error: " + this + " on " + dbFile
-                        + ": " + e.getMessage());
-                }
-
-                try {
-                    Object object = in.readObject();
-                    if (object instanceof Date) {
-                        lastScan = (Date) object;
-                        if (isFiner()) {
-                            logFiner("lastScan " + lastScan);
-                        }
-                    }
-                } catch (EOFException e) {
-                    // ignore nothing available for ignore
-                    logFine("No last scan date");
-                } catch (Exception e) {
-                    logSevere("read ignore error: " + this + e.getMessage(), e);
-                }
-
-                in.close();
-                fIn.close();
-
                 logFine("Loaded folder database (" + files.length
                     + " files) from " + dbFile.toAbsolutePath());
             } catch (Exception e) {
@@ -1951,25 +1978,54 @@ public class Folder extends PFComponent {
                     + dbFile.toAbsolutePath() + ". " + e);
                 logFiner(e);
                 return false;
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                    }
-                }
-                if (fIn != null) {
-                    try {
-                        fIn.close();
-                    } catch (IOException e) {
-                    }
-                }
             }
         }
 
         return true;
     }
 
+    /**
+     * Reads the old blacklist and the last scan date of a folder database in
+     * the old (java serialization) format.
+     */
+    @SuppressWarnings({"unchecked"})
+    private void readFolderDBTrailer(ObjectInputStream in, Path dbFile) {
+        // Old blacklist explicit items.
+        // Now disused, but maintained for backward compatability.
+        try {
+            Object object = in.readObject();
+            Collection<FileInfo> infos = (Collection<FileInfo>) object;
+            for (FileInfo info : infos) {
+                diskItemFilter.addPattern(info.getRelativeName());
+                if (isFiner()) {
+                    logFiner("ignore@" + info.getRelativeName());
+                }
+            }
+        } catch (EOFException e) {
+            logFiner("No ignore list");
+        } catch (Exception e) {
+            logSevere("read ignore error: " + this + e.getMessage(), e);
+        } catch (OutOfMemoryError e) {
+            logWarning("Read ignore error: " + this + " on " + dbFile + ": "
+                + e.getMessage());
+        }
+
+        try {
+            Object object = in.readObject();
+            if (object instanceof Date) {
+                lastScan = (Date) object;
+                if (isFiner()) {
+                    logFiner("lastScan " + lastScan);
+                }
+            }
+        } catch (EOFException e) {
+            // ignore nothing available for ignore
+            logFine("No last scan date");
+        } catch (Exception e) {
+            logSevere("read ignore error: " + this + e.getMessage(), e);
+        }
+    }
+
     /**
      * Loads the metadata information of this folder. Folder database, ignore
      * patterns and last synchronized date.
@@ -1985,17 +2041,39 @@ public class Folder extends PFComponent {
      * Loads the folder db from disk
      */
     private void loadFolderDB() {
-        if (loadFolderDB(getSystemSubDir0().resolve(Constants.DB_FILENAME))) {
-            return;
+        if (!loadFolderDB(getSystemSubDir0().resolve(Constants.DB_FILENAME))
+            && !loadFolderDB(getSystemSubDir0().resolve(
+                Constants.DB_BACKUP_FILENAME)))
+        {
+            logFine("Unable to read folder db, even from backup. Maybe new folder?");
+            snapshotDirty = true;
         }
+        loadFolderDBJournal();
+    }
 
-        if (loadFolderDB(getSystemSubDir0().resolve(
-            Constants.DB_BACKUP_FILENAME)))
+    /**
+     * Replays the changes recorded after the last snapshot and attaches the
+     * journal to the DAO.
+     */
+    private void loadFolderDBJournal() {
+        if (ConfigurationEntry.FOLDER_DB_JOURNAL_MAX_ENTRIES
+            .getValueInt(getController()) <= 0)
         {
             return;
         }
-
-        logFine("Unable to read folder db, even from backup. Maybe new folder?");
+        journal = new FileInfoJournal(getSystemSubDir0().resolve(
+            Constants.DB_JOURNAL_FILENAME));
+        synchronized (scanLock) {
+            synchronized (dbAccessLock) {
+                int replayed = journal.replay(dao, null);
+                if (replayed > 0) {
+                    hasOwnDatabase = true;
+                    logFine("Replayed " + replayed
+                        + " changes from folder database journal");
+                }
+                dao.setJournal(journal);
+            }
+        }
     }
 
     /**
@@ -2017,6 +2095,10 @@ public class Folder extends PFComponent {
         }
         getController().removeScheduled(persister);
         getController().removeScheduled(persisterFuture);
+        dao.setJournal(null);
+        if (journal != null) {
+            journal.close();
+        }
         dao.stop();
         removeAllListeners();
         ListenerSupportFactory.removeAllListeners(folderListenerSupport);
@@ -2064,6 +2146,10 @@ public class Folder extends PFComponent {
         try {
             FileInfo[] diskItems;
             synchronized (dbAccessLock) {
+                if (journal != null) {
+                    // Changes from now on go into the new journal
+                    journal.rotate();
+                }
                 Collection<FileInfo> files = dao.findAllFiles(null);
                 Collection<DirectoryInfo> dirs = dao.findAllDirectories(null);
                 diskItems = new FileInfo[files.size() + dirs.size()];
@@ -2093,26 +2179,26 @@ public class Folder extends PFComponent {
                 return false;
             }
 
-            try (ObjectOutputStream oOut = new ObjectOutputStream(Files.newOutputStream(dbTempFile))) {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(dbTempFile))))
+            {
+                FileInfoCodec.writeHeader(out);
                 // Store files
-                oOut.writeObject(diskItems);
+                FileInfoCodec.writeFileInfos(out, diskItems);
                 // Store members
-                oOut.writeObject(Convert.asMemberInfos(getMembersAsCollection()
-                    .toArray(new Member[getMembersAsCollection().size()])));
-                // Old blacklist. Maintained for backward serialization
-                // compatability. Do not remove.
-                oOut.writeObject(new ArrayList<FileInfo>());
-
+                FileInfoCodec.writeMemberInfos(out, Convert
+                    .asMemberInfos(getMembersAsCollection().toArray(
+                        new Member[getMembersAsCollection().size()])));
                 if (lastScan == null) {
                     if (isFiner()) {
                         logFiner("write default time: " + new Date());
                     }
-                    oOut.writeObject(new Date());
+                    out.writeLong(System.currentTimeMillis());
                 } else {
                     if (isFiner()) {
                         logFiner("write lastScan: " + lastScan);
                     }
-                    oOut.writeObject(lastScan);
+                    out.writeLong(lastScan.getTime());
                 }
             }
 
@@ -2139,6 +2225,10 @@ public class Folder extends PFComponent {
                 }
             }
 
+            if (journal != null) {
+                journal.commitRotation();
+            }
+            snapshotDirty = false;
             if (isFine()) {
                 logFine("Successfully wrote folder database file ("
                     + diskItems.length + " disk items)");
@@ -2174,121 +2264,237 @@ public class Folder extends PFComponent {
      * deleted long ago do not stay in DB for ever.
      * <p>
      * Also: #2759 Check sync consistency
+     * <p>
+     * Runs the whole maintenance at once. A sliced maintenance in progress is
+     * superseded.
      *
      * @param removeBefore
      */
     public void maintainFolderDB(long removeBefore) {
-        Date removeBeforeDate = new Date(removeBefore);
-        int nFilesBefore = getKnownItemCount();
-        if (isFiner()) {
-            logFiner("Maintaining folder db, known files: " + nFilesBefore
-                + ". Expiring deleted files older than " + removeBeforeDate);
-        }
-        int expired = 0;
-        int keepDeleted = 0;
-        int total = 0;
-        List<FileInfo> brokenExisting = new LinkedList<FileInfo>();
-        for (FileInfo file : dao.findAllFiles(null)) {
-            total++;
-            if (!file.isDeleted()) {
-                // #2759 Check sync consistency
-                for (Member member : members.keySet()) {
-                    FileInfo remoteFile = member.getFile(file);
-                    if (remoteFile == null
-                        || remoteFile.getVersion() != file.getVersion())
-                    {
-                        continue;
+        synchronized (dbMaintenanceLock) {
+            DBMaintenance maintenance = new DBMaintenance(removeBefore);
+            while (!maintenance.maintainSlice()) {
+                // Next slice
+            }
+            dbMaintenance = null;
+        }
+    }
+
+    /**
+     * Runs the next slice of the folder db maintenance. Starts a new
+     * maintenance if none is in progress.
+     */
+    private void maintainFolderDBSlice() {
+        synchronized (dbMaintenanceLock) {
+            if (dbMaintenance == null) {
+                long removeBefore = System.currentTimeMillis()
+                    - 1000L
+                    * ConfigurationEntry.MAX_FILEINFO_DELETED_AGE_SECONDS
+                        .getValueInt(getController());
+                dbMaintenance = new DBMaintenance(removeBefore);
+            }
+            if (dbMaintenance.maintainSlice()) {
+                dbMaintenance = null;
+            }
+        }
+    }
+
+    /**
+     * The maintenance of the folder db. Walks through the database in slices
+     * of {@link ConfigurationEntry#DB_MAINTENANCE_SLICE_SIZE} files, so a
+     * large folder does not block the folder maintenance for long.
+     */
+    private class DBMaintenance {
+        private final long removeBefore;
+        private final Date removeBeforeDate;
+        private final int sliceSize;
+        private final int nFilesBefore;
+        private final Iterator<FileInfo> files;
+        private int total;
+        private int expired;
+        private int keepDeleted;
+        private int fixed;
+
+        private DBMaintenance(long removeBefore) {
+            this.removeBefore = removeBefore;
+            this.removeBeforeDate = new Date(removeBefore);
+            int size = ConfigurationEntry.DB_MAINTENANCE_SLICE_SIZE
+                .getValueInt(getController());
+            this.sliceSize = size > 0 ? size : Integer.MAX_VALUE;
+            this.nFilesBefore = getKnownItemCount();
+            this.files = dao.findAllFiles(null).iterator();
+            if (isFiner()) {
+                logFiner("Maintaining folder db, known files: "
+                    + nFilesBefore + ". Expiring deleted files older than "
+                    + removeBeforeDate);
+            }
+        }
+
+        /**
+         * @return true if the maintenance is complete.
+         */
+        private boolean maintainSlice() {
+            List<FileInfo> expiredFiles = new ArrayList<FileInfo>();
+            List<FileInfo> brokenExisting = new ArrayList<FileInfo>();
+            for (int i = 0; i < sliceSize && files.hasNext(); i++) {
+                FileInfo file = files.next();
+                total++;
+                if (!file.isDeleted()) {
+                    if (isBroken(file)) {
+                        brokenExisting.add(file);
                     }
-                    // Same version
-                    if (remoteFile.isVersionDateAndSizeIdentical(file)) {
-                        // File is ok
+                    continue;
+                }
+                if (file.getModifiedDate().before(removeBeforeDate)) {
+                    // Don't remove. We have archived files.
+                    if (archiver.hasArchivedFileInfo(file)) {
                         continue;
                     }
-                    boolean sameDate = remoteFile.getModifiedDate().equals(
-                        file.getModifiedDate());
-                    boolean remoteOlder = !sameDate
-                        && remoteFile.getModifiedDate().before(
-                            file.getModifiedDate());
-                    boolean remoteSmaller = remoteFile.getSize() < file
-                        .getSize();
-                    if (remoteOlder || (sameDate && remoteSmaller)) {
-                        // Our version is "better" newer or bigger.
-                        // Increase version to force re-sync
-                        if (!brokenExisting.contains(file)) {
-                            brokenExisting.add(file);
-                            if (isWarning() && !currentInfo.isMetaFolder()) {
-                                logWarning("Fixing file entry. Local: "
-                                    + file.toDetailString() + ".\n@"
-                                    + member.getNick() + ": "
-                                    + remoteFile.toDetailString());
-                            }
-                        }
-                    }
+                    expiredFiles.add(file);
+                } else {
+                    keepDeleted++;
                 }
-                continue;
             }
-            if (file.getModifiedDate().before(removeBeforeDate)) {
-                // Don't remove. We have archived files.
-                if (archiver.hasArchivedFileInfo(file)) {
+            removeExpired(expiredFiles);
+            fixBroken(brokenExisting);
+            if (files.hasNext()) {
+                return false;
+            }
+            finish();
+            return true;
+        }
+
+        /**
+         * #2759 Check sync consistency
+         *
+         * @param file
+         * @return true if the local entry has the same version, but is
+         *         "better" than the one of a member.
+         */
+        private boolean isBroken(FileInfo file) {
+            for (Member member : members.keySet()) {
+                if (member.isMySelf()) {
                     continue;
                 }
-                expired++;
-                // Remove
-                dao.delete(null, file);
-                for (Member member : members.values()) {
-                    dao.delete(member.getId(), file);
+                FileInfo remoteFile = dao.find(file, member.getId());
+                if (remoteFile == null
+                    || remoteFile.getVersion() != file.getVersion())
+                {
+                    continue;
                 }
-                if (isFiner()) {
+                // Same version
+                if (remoteFile.isVersionDateAndSizeIdentical(file)) {
+                    // File is ok
+                    continue;
+                }
+                boolean sameDate = remoteFile.getModifiedDate().equals(
+                    file.getModifiedDate());
+                boolean remoteOlder = !sameDate
+                    && remoteFile.getModifiedDate().before(
+                        file.getModifiedDate());
+                boolean remoteSmaller = remoteFile.getSize() < file.getSize();
+                if (remoteOlder || (sameDate && remoteSmaller)) {
+                    // Our version is "better" newer or bigger.
+                    if (isWarning() && !currentInfo.isMetaFolder()) {
+                        logWarning("Fixing file entry. Local: "
+                            + file.toDetailString() + ".\n@"
+                            + member.getNick() + ": "
+                            + remoteFile.toDetailString());
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void removeExpired(List<FileInfo> expiredFiles) {
+            // Might have been restored since
+            for (Iterator<FileInfo> it = expiredFiles.iterator(); it
+                .hasNext();)
+            {
+                FileInfo localFile = getFile(it.next());
+                if (localFile == null || !localFile.isDeleted()
+                    || !localFile.getModifiedDate().before(removeBeforeDate))
+                {
+                    it.remove();
+                }
+            }
+            if (expiredFiles.isEmpty()) {
+                return;
+            }
+            expired += expiredFiles.size();
+            dao.delete(null, expiredFiles);
+            for (Member member : members.values()) {
+                dao.delete(member.getId(), expiredFiles);
+            }
+            incomingFilesIndex.changed(expiredFiles);
+            if (isFiner()) {
+                for (FileInfo file : expiredFiles) {
                     logFiner("FileInfo expired: " + file.toDetailString());
                 }
-            } else {
-                keepDeleted++;
             }
+            setDBDirty();
         }
-        if (!brokenExisting.isEmpty()) {
-            for (int i = 0; i < brokenExisting.size(); i++) {
-                FileInfo fileInfo = brokenExisting.get(i);
-                FileInfo newFileInfo = FileInfoFactory.unmarshallExistingFile(
-                    currentInfo, fileInfo.getRelativeName(), fileInfo.getOID(),
-                    fileInfo.getSize(), fileInfo.getModifiedBy(),
-                    fileInfo.getModifiedByAccount(),
+
+        private void fixBroken(List<FileInfo> brokenExisting) {
+            List<FileInfo> fixedFiles = new ArrayList<FileInfo>(
+                brokenExisting.size());
+            for (FileInfo fileInfo : brokenExisting) {
+                // Might have been changed since
+                FileInfo localFile = getFile(fileInfo);
+                if (localFile == null
+                    || localFile.getVersion() != fileInfo.getVersion())
+                {
+                    continue;
+                }
+                // Increase version to force re-sync
+                fixedFiles.add(FileInfoFactory.unmarshallExistingFile(
+                    currentInfo, fileInfo.getRelativeName(),
+                    fileInfo.getOID(), fileInfo.getSize(),
+                    fileInfo.getModifiedBy(), fileInfo.getModifiedByAccount(),
                     fileInfo.getModifiedDate(), fileInfo.getVersion() + 1,
                     fileInfo.getHashes(), fileInfo.isDiretory(),
-                    fileInfo.getTags());
-                brokenExisting.set(i, newFileInfo);
+                    fileInfo.getTags()));
             }
-            store(getMySelf(), brokenExisting);
-            filesChanged(brokenExisting);
-        }
-
-        if (expired > 0 || brokenExisting.size() > 0) {
+            if (fixedFiles.isEmpty()) {
+                return;
+            }
+            fixed += fixedFiles.size();
+            store(getMySelf(), fixedFiles);
+            filesChanged(fixedFiles);
             setDBDirty();
-            logFine("Maintained folder db, " + nFilesBefore + " known files, "
-                + expired + " expired FileInfos, " + brokenExisting.size()
-                + " fixed entries. Expiring deleted files older than "
-                + removeBeforeDate);
-            statistic.scheduleCalculate();
-        } else if (isFiner()) {
-            logFiner("Maintained folder db, " + nFilesBefore + " known files, "
-                + expired
-                + " expired FileInfos. Expiring deleted files older than "
-                + removeBeforeDate);
         }
-        lastDBMaintenance = new Date();
 
-        long max = Runtime.getRuntime().maxMemory() / 4181;
-        if (total > max && total - keepDeleted * 2 < 0) {
-            Problem fdp = new FolderDatabaseProblem(currentInfo);
-            if (!getProblems().contains(fdp)) {
-                addProblem(new FolderDatabaseProblem(currentInfo));
+        private void finish() {
+            if (expired > 0 || fixed > 0) {
+                logFine("Maintained folder db, " + nFilesBefore
+                    + " known files, " + expired + " expired FileInfos, "
+                    + fixed
+                    + " fixed entries. Expiring deleted files older than "
+                    + removeBeforeDate);
+                statistic.scheduleCalculate();
+            } else if (isFiner()) {
+                logFiner("Maintained folder db, " + nFilesBefore
+                    + " known files, " + expired
+                    + " expired FileInfos. Expiring deleted files older than "
+                    + removeBeforeDate);
+            }
+            lastDBMaintenance = new Date();
+
+            long max = Runtime.getRuntime().maxMemory() / 4181;
+            if (total > max && total - keepDeleted * 2 < 0) {
+                Problem fdp = new FolderDatabaseProblem(currentInfo);
+                if (!getProblems().contains(fdp)) {
+                    addProblem(new FolderDatabaseProblem(currentInfo));
+                }
             }
-        }
 
-        // Also maintain meta folder
-        Folder mFolder = getController().getFolderRepository()
-            .getMetaFolderForParent(currentInfo);
-        if (mFolder != null) {
-            mFolder.maintainFolderDB(removeBefore);
+            // Also maintain meta folder
+            Folder mFolder = getController().getFolderRepository()
+                .getMetaFolderForParent(currentInfo);
+            if (mFolder != null) {
+                mFolder.maintainFolderDB(removeBefore);
+            }
         }
     }
 
@@ -2297,7 +2503,7 @@ public class Folder extends PFComponent {
      *
      * @return
      */
-    private boolean isRevertLocalChanges() {
+    boolean isRevertLocalChanges() {
         boolean mySelfReadOnly = hasReadPermission(getMySelf())
             && !hasWritePermission(getMySelf());
         return mySelfReadOnly || syncProfile.equals(SyncProfile.BACKUP_TARGET);
@@ -2413,6 +2619,7 @@ public class Folder extends PFComponent {
                     }
                 }
                 dao.delete(null, fileInfo);
+                incomingFilesIndex.changed(fileInfo);
             }
             return true;
         } finally {
@@ -2639,12 +2846,8 @@ public class Folder extends PFComponent {
                 checkRevertLocalChanges();
             }
         }
-        if (maintainFolderDBrequired()) {
-            long removeBefore = System.currentTimeMillis()
-                - 1000L
-                * ConfigurationEntry.MAX_FILEINFO_DELETED_AGE_SECONDS
-                    .getValueInt(getController());
-            maintainFolderDB(removeBefore);
+        if (dbMaintenance != null || maintainFolderDBrequired()) {
+            maintainFolderDBSlice();
         }
     }
 
@@ -2652,7 +2855,8 @@ public class Folder extends PFComponent {
      * @return true if this folder requires the maintenance to be run.
      */
     public boolean isMaintenanceRequired() {
-        return scanForced || autoScanRequired() || maintainFolderDBrequired();
+        return scanForced || autoScanRequired() || dbMaintenance != null
+            || maintainFolderDBrequired();
     }
 
     /*
@@ -2744,6 +2948,12 @@ public class Folder extends PFComponent {
         Reject.ifNull(member, "Member is null, unable to join");
         // member will be joined, here on local
         boolean wasMember = members.put(member, member) != null;
+        if (!wasMember && !member.isMySelf()) {
+            // Files of the member might be known already
+            incomingFilesIndex.changed(dao.findAllFiles(member.getId()));
+            incomingFilesIndex.changed(dao.findAllDirectories(member
+                .getId()));
+        }
         if (!wasMember && isInfo() && !init && !currentInfo.isMetaFolder()) {
             logInfo(getName() + ": Member " + member.getNick()
                 + " joined (connected? " + member.isConnected() + ")");
@@ -2769,6 +2979,7 @@ public class Folder extends PFComponent {
                 fireMemberJoined(member);
                 updateMetaFolderMembers();
                 // Persist new members list
+                snapshotDirty = true;
                 setDBDirty();
             }
         }
@@ -2942,6 +3153,7 @@ public class Folder extends PFComponent {
 
         // remove files of this member in our datastructure
         dao.deleteDomain(member.getId(), -1);
+        incomingFilesIndex.invalidate();
 
         // Fire event
         fireMemberLeft(member);
@@ -2960,7 +3172,18 @@ public class Folder extends PFComponent {
     public void removeDeletedFileInfo(FileInfo fileInfo) {
         Reject.ifFalse(fileInfo.isDeleted(),
             "Should only be removing deleted infos.");
+        removeLocalFileInfo(fileInfo);
+    }
+
+    /**
+     * Removes the local version of a file from the database. The file gets
+     * incoming again, if available on the remote side.
+     *
+     * @param fileInfo
+     */
+    public void removeLocalFileInfo(FileInfo fileInfo) {
         dao.delete(null, fileInfo);
+        incomingFilesIndex.changed(fileInfo);
         setDBDirty();
     }
 
@@ -2993,8 +3216,7 @@ public class Folder extends PFComponent {
     public boolean isSyncing() {
         return isScanning()
             || isTransferring()
-            || getController().getFolderRepository()
-                .getCurrentlyMaintainingFolder() == this;
+            || getController().getFolderRepository().isMaintaining(this);
     }
 
     /**
@@ -3011,7 +3233,7 @@ public class Folder extends PFComponent {
      */
     public boolean isScanning() {
         return getController().getFolderRepository().getFolderScanner()
-            .getCurrentScanningFolder() == this;
+            .isScanning(this);
     }
 
     /**
@@ -3606,38 +3828,32 @@ public class Folder extends PFComponent {
             return;
         }
 
-        // Correct FolderInfo in case it differs.
-        if (newList.files != null) {
-            for (int i = 0; i < newList.files.length; i++) {
-                FileInfo fInfo = newList.files[i];
-                newList.files[i] = FileInfoFactory.changedFolderInfo(fInfo,
-                    currentInfo);
-            }
-        }
-
-        // #1022 - Mass delete detection. Switch to a safe profile if
-        // a large percent of files would get deleted by another node.
-        if (newList.files != null
-            && syncProfile.isSyncDeletion()
-            && PreferencesEntry.EXPERT_MODE.getValueBoolean(getController())
-            && ConfigurationEntry.MASS_DELETE_PROTECTION
-                .getValueBoolean(getController()))
-        {
-            checkForMassDeletion(from, newList.files);
-        }
-
         // Update DAO
         if (newList.isNull()) {
             // Delete files in domain and do nothing
             dao.deleteDomain(from.getId(), -1);
+            incomingFilesIndex.invalidate();
             return;
         }
-        // Store but also deleted/clear domain before.
-        int expectedItems = newList.nFollowingDeltas * newList.files.length;
+
+        SameFiles sameFiles = new SameFiles(from);
+        int delsCount = processRemoteFiles(newList.files, sameFiles);
+
+        // #1022 - Mass delete detection. Switch to a safe profile if
+        // a large percent of files would get deleted by another node.
+        if (isMassDeletionProtected()) {
+            checkForMassDeletion(from, delsCount);
+        }
+
+        // Store but also deleted/clear domain before. Sized for the whole
+        // list incl. the following deltas.
+        int expectedItems = newList.nFollowingDeltas > 0
+            ? (newList.nFollowingDeltas + 1) * newList.files.length
+            : 0;
         store(from, expectedItems, newList.files);
 
-        // Try to find same files
-        findSameFiles(from, Arrays.asList(newList.files));
+        // Take over same files
+        sameFiles.store();
 
         if (syncProfile.isAutodownload() && from.isCompletelyConnected()) {
             // Trigger file requestor
@@ -3671,51 +3887,34 @@ public class Folder extends PFComponent {
             return;
         }
 
-        // Correct FolderInfo in case it differs.
+        SameFiles sameFiles = new SameFiles(from);
+        boolean massDeletionProtected = isMassDeletionProtected();
         if (changes.getFiles() != null) {
-            for (int i = 0; i < changes.getFiles().length; i++) {
-                FileInfo fInfo = changes.getFiles()[i];
-                changes.getFiles()[i] = FileInfoFactory.changedFolderInfo(
-                    fInfo, currentInfo);
+            int delsCount = processRemoteFiles(changes.getFiles(), sameFiles);
+            // #1022 - Mass delete detection. Switch to a safe profile if
+            // a large percent of files would get deleted by another node.
+            if (massDeletionProtected) {
+                checkForMassDeletion(from, delsCount);
             }
         }
         if (changes.getRemoved() != null) {
-            for (int i = 0; i < changes.getRemoved().length; i++) {
-                FileInfo fInfo = changes.getRemoved()[i];
-                changes.getRemoved()[i] = FileInfoFactory.changedFolderInfo(
-                    fInfo, currentInfo);
+            int delsCount = processRemoteFiles(changes.getRemoved(),
+                sameFiles);
+            if (massDeletionProtected) {
+                checkForMassDeletion(from, delsCount);
             }
         }
 
-        // #1022 - Mass delete detection. Switch to a safe profile if
-        // a large percent of files would get deleted by another node.
-        if (changes.getFiles() != null
-            && syncProfile.isSyncDeletion()
-            && PreferencesEntry.EXPERT_MODE.getValueBoolean(getController())
-            && ConfigurationEntry.MASS_DELETE_PROTECTION
-                .getValueBoolean(getController()))
-        {
-            checkForMassDeletion(from, changes.getFiles());
-        }
-        if (changes.getRemoved() != null
-            && syncProfile.isSyncDeletion()
-            && PreferencesEntry.EXPERT_MODE.getValueBoolean(getController())
-            && ConfigurationEntry.MASS_DELETE_PROTECTION
-                .getValueBoolean(getController()))
-        {
-            checkForMassDeletion(from, changes.getRemoved());
-        }
-
-        // Try to find same files
         if (changes.getFiles() != null) {
             store(from, changes.getFiles());
-            findSameFiles(from, Arrays.asList(changes.getFiles()));
         }
         if (changes.getRemoved() != null) {
             store(from, changes.getRemoved());
-            findSameFiles(from, Arrays.asList(changes.getRemoved()));
         }
 
+        // Take over same files
+        sameFiles.store();
+
         // Avoid hammering of sync remote deletion
         boolean singleExistingFileMsg = changes.getFiles() != null
             && changes.getFiles().length == 1
@@ -3786,28 +3985,93 @@ public class Folder extends PFComponent {
             }
             dao.store(domainID, fileInfos);
         }
+        if (newDomainSize > 0) {
+            incomingFilesIndex.invalidate();
+        } else {
+            incomingFilesIndex.changed(fileInfos);
+        }
+        if (member.isMySelf() && !currentInfo.isMetaFolder()) {
+            // PFC-2352: Calculate content hashes in background
+            getController().getFolderRepository().getFileHasher()
+                .hashLater(fileInfos);
+        }
     }
 
-    private void checkForMassDeletion(Member from, FileInfo[] fileInfos) {
-        if (ProUtil.isZyncro(getController())) {
-            // SYNC-234
-            return;
+    /**
+     * PFC-2352: Stores the content hashes calculated by the
+     * {@link FileHasher}. Does not create a new version. Nothing happens if
+     * the file has been changed in the meantime.
+     *
+     * @param fInfo
+     *            the local file the hashes were calculated for.
+     * @param hashes
+     * @return true if the hashes were stored.
+     */
+    boolean storeHashes(FileInfo fInfo, String hashes) {
+        synchronized (dbAccessLock) {
+            FileInfo localInfo = dao.find(fInfo, null);
+            if (localInfo == null || localInfo.isDeleted()
+                || localInfo.getVersion() != fInfo.getVersion()
+                || localInfo.getSize() != fInfo.getSize()
+                || !localInfo.getModifiedDate().equals(
+                    fInfo.getModifiedDate())
+                || StringUtils.isNotBlank(localInfo.getHashes()))
+            {
+                return false;
+            }
+            dao.store(null, FileInfoFactory.setHashes(localInfo, hashes));
         }
+        setDBDirty();
+        return true;
+    }
 
+    /**
+     * Processes the files received from a member in a single pass: Corrects
+     * the FolderInfo in place, counts the deletions of local files and looks
+     * for same files.
+     *
+     * @param fileInfos
+     *            the remote files
+     * @param sameFiles
+     *            collects the same files found
+     * @return the number of existing local files the remote files delete.
+     */
+    private int processRemoteFiles(FileInfo[] fileInfos, SameFiles sameFiles)
+    {
         int delsCount = 0;
-        for (FileInfo remoteFile : fileInfos) {
-            if (!remoteFile.isDeleted()) {
+        for (int i = 0; i < fileInfos.length; i++) {
+            // Correct FolderInfo in case it differs.
+            FileInfo remoteFile = FileInfoFactory.changedFolderInfo(
+                fileInfos[i], currentInfo);
+            fileInfos[i] = remoteFile;
+            FileInfo localFile = getFile(remoteFile);
+            if (localFile == null) {
                 continue;
             }
             // #1842: Actually check if these files have just been deleted.
-            FileInfo localFile = getFile(remoteFile);
-            if (localFile != null && !localFile.isDeleted()
+            if (remoteFile.isDeleted() && !localFile.isDeleted()
                 && remoteFile.isNewerThan(localFile))
             {
                 delsCount++;
             }
+            sameFiles.check(localFile, remoteFile);
         }
+        return delsCount;
+    }
+
+    /**
+     * @return true if remote mass deletions should switch to a safe profile.
+     */
+    private boolean isMassDeletionProtected() {
+        return syncProfile.isSyncDeletion()
+            && PreferencesEntry.EXPERT_MODE.getValueBoolean(getController())
+            && ConfigurationEntry.MASS_DELETE_PROTECTION
+                .getValueBoolean(getController())
+            // SYNC-234
+            && !ProUtil.isZyncro(getController());
+    }
 
+    private void checkForMassDeletion(Member from, int delsCount) {
         if (delsCount >= Constants.FILE_LIST_MAX_FILES_PER_MESSAGE) {
             // #1786 - If deletion >= max files per message, switch.
             switchToSafe(from, delsCount, false);
@@ -3874,16 +4138,44 @@ public class Folder extends PFComponent {
                 + remoteFileInfos.size() + " files from " + member);
         }
 
-        Boolean hasWrite = null;
-        List<FileInfo> found = new LinkedList<FileInfo>();
+        SameFiles sameFiles = new SameFiles(member);
         for (FileInfo remoteFileInfo : remoteFileInfos) {
             FileInfo localFileInfo = getFile(remoteFileInfo);
             if (localFileInfo == null) {
                 continue;
             }
+            if (!sameFiles.check(localFileInfo, remoteFileInfo)) {
+                return false;
+            }
+        }
+        return sameFiles.store();
+    }
 
+    /**
+     * Collects the remote files, which are the same as the local ones. See
+     * {@link #findSameFiles(Member, Collection)} for the rules.
+     */
+    private class SameFiles {
+        private final Member member;
+        private final List<FileInfo> found = new ArrayList<FileInfo>();
+        private Boolean hasWrite;
+
+        private SameFiles(Member member) {
+            this.member = member;
+        }
+
+        /**
+         * @param localFileInfo
+         * @param remoteFileInfo
+         * @return false if the member is not allowed to change our files.
+         */
+        private boolean check(FileInfo localFileInfo, FileInfo remoteFileInfo)
+        {
+            if (Boolean.FALSE.equals(hasWrite)) {
+                return false;
+            }
             if (localFileInfo.isDeleted() != remoteFileInfo.isDeleted()) {
-                continue;
+                return true;
             }
 
             boolean fileSizeSame = localFileInfo.getSize() == remoteFileInfo
@@ -3901,10 +4193,7 @@ public class Folder extends PFComponent {
                 // localFileInfo.getModifiedDate(), remoteFileInfo
                 // .getModifiedDate());
                 if (fileSizeSame && dateSame) {
-                    if (hasWrite == null) {
-                        hasWrite = hasWritePermission(member);
-                    }
-                    if (!hasWrite) {
+                    if (!hasWritePermission()) {
                         if (isFine()) {
                             logFine("Not searching same files. " + member
                                 + " / " + member.getAccountInfo()
@@ -3943,10 +4232,7 @@ public class Folder extends PFComponent {
                 if (localFileInfo.getRelativeName().compareTo(
                     remoteFileInfo.getRelativeName()) <= 0)
                 {
-                    if (hasWrite == null) {
-                        hasWrite = hasWritePermission(member);
-                    }
-                    if (!hasWrite) {
+                    if (!hasWritePermission()) {
                         if (isInfo()) {
                             logInfo("Not searching same files. " + member
                                 + " / " + member.getAccountInfo()
@@ -3969,18 +4255,33 @@ public class Folder extends PFComponent {
                             + ". Taking over all infos");
                     }
 
-                    remoteFileInfo = correctFolderInfo(remoteFileInfo);
-                    found.add(remoteFileInfo);
+                    found.add(correctFolderInfo(remoteFileInfo));
                 }
             }
+            return true;
+        }
+
+        private boolean hasWritePermission() {
+            if (hasWrite == null) {
+                hasWrite = Folder.this.hasWritePermission(member);
+            }
+            return hasWrite;
         }
 
-        if (!found.isEmpty()) {
-            store(getMySelf(), found);
+        /**
+         * Takes over the found same files. Nothing is taken over if the member
+         * has no write permission.
+         *
+         * @return true if same files have been found.
+         */
+        private boolean store() {
+            if (found.isEmpty() || Boolean.FALSE.equals(hasWrite)) {
+                return false;
+            }
+            Folder.this.store(getMySelf(), found);
             filesChanged(found);
             return true;
         }
-        return false;
     }
 
     /**
@@ -4063,6 +4364,21 @@ public class Folder extends PFComponent {
             return;
         }
 
+        if (journal != null && !snapshotDirty) {
+            int maxEntries = Math.min(
+                ConfigurationEntry.FOLDER_DB_JOURNAL_MAX_ENTRIES
+                    .getValueInt(getController()), getKnownItemCount());
+            if (!journal.isCompactionRequired(maxEntries) && journal.flush())
+            {
+                if (isFiner()) {
+                    logFiner("Flushed folder database journal ("
+                        + journal.getEntryCount() + " changes)");
+                }
+                dirty = false;
+                return;
+            }
+        }
+
         int tries = 1;
         boolean success = storeFolderDB();
         while (!success && tries < 10) {
@@ -4467,6 +4783,8 @@ public class Folder extends PFComponent {
             ? new HashMap<Member, Integer>(getMembersCount())
             : null;
         boolean revert = isRevertLocalChanges();
+        // Only the candidates can be incoming
+        Collection<FileInfo> candidates = incomingFilesIndex.getCandidates();
         for (Member member : getMembersAsCollection()) {
             if (!member.isCompletelyConnected()) {
                 // disconnected or myself (=skip)
@@ -4487,90 +4805,59 @@ public class Folder extends PFComponent {
                 continue;
             }
 
-            Collection<FileInfo> memberFiles = getFilesAsCollection(member);
             if (incomingCount != null) {
                 incomingCount.put(member, 0);
             }
-            if (memberFiles != null) {
-                for (FileInfo remoteFile : memberFiles) {
-                    if (incomingCount != null
-                        && incomingCount.get(member) > maxPerMember)
-                    {
-                        continue;
-                    }
-                    if (remoteFile.isDeleted() && !includeDeleted) {
-                        continue;
-                    }
-
-                    // Check if remote file is newer
-                    FileInfo localFile = getFile(remoteFile);
-                    if (revert && localFile != null) {
-                        FileInfo newestFileInfo = remoteFile
-                            .getNewestVersion(getController()
-                                .getFolderRepository());
-                        if (localFile.isNewerThan(newestFileInfo)) {
-                            // Ignore/Rever local files
-                            logWarning("Local change detected, but has no write permission: "
-                                + localFile.toDetailString());
-                            localFile = null;
-                        }
-                    }
-                    FileInfo alreadyIncoming = incomingFiles.get(remoteFile);
-                    boolean notLocal = localFile == null;
-                    boolean newerThanLocal = localFile != null
-                        && remoteFile.isNewerThan(localFile);
-                    // Check if this remote file is newer than one we may
-                    // already have.
-                    boolean newestRemote = alreadyIncoming == null
-                        || remoteFile.isNewerThan(alreadyIncoming);
-                    if (notLocal && remoteFile.isDeleted()) {
-                        // A remote deleted file is not incoming!
-                        // TODO Maby download deleted files from archive of
-                        // remote?
-                        // and put it directly into own recycle bin.
-                        continue;
-                    }
-                    if (notLocal || newerThanLocal && newestRemote) {
-                        // Okay this one is expected
-                        if (!diskItemFilter.isExcluded(remoteFile)) {
-                            incomingFiles.put(remoteFile, remoteFile);
-                            if (incomingCount != null) {
-                                Integer i = incomingCount.get(member);
-                                incomingCount.put(member, ++i);
-                            }
-                        }
-                    }
+            for (FileInfo candidate : candidates) {
+                FileInfo remoteFile = dao.find(candidate, member.getId());
+                if (remoteFile == null) {
+                    continue;
+                }
+                boolean isFile = remoteFile.isFile();
+                if (isFile && incomingCount != null
+                    && incomingCount.get(member) > maxPerMember)
+                {
+                    continue;
+                }
+                if (remoteFile.isDeleted() && !includeDeleted) {
+                    continue;
                 }
-            }
-            Collection<DirectoryInfo> memberDirs = dao
-                .findAllDirectories(member.getId());
-            if (memberDirs != null) {
-                for (DirectoryInfo remoteDir : memberDirs) {
-                    if (remoteDir.isDeleted() && !includeDeleted) {
-                        continue;
-                    }
 
-                    // Check if remote file is newer
-                    FileInfo localFile = getFile(remoteDir);
-                    FileInfo alreadyIncoming = incomingFiles.get(remoteDir);
-                    boolean notLocal = localFile == null;
-                    boolean newerThanLocal = localFile != null
-                        && remoteDir.isNewerThan(localFile);
-                    // Check if this remote file is newer than one we may
-                    // already have.
-                    boolean newestRemote = alreadyIncoming == null
-                        || remoteDir.isNewerThan(alreadyIncoming);
-                    if (notLocal && remoteDir.isDeleted()) {
-                        // A remote deleted file is not incoming!
-                        // TODO Maby download deleted files from archive of
-                        // remote?
-                        // and put it directly into own recycle bin.
-                        continue;
+                // Check if remote file is newer
+                FileInfo localFile = getFile(remoteFile);
+                if (isFile && revert && localFile != null) {
+                    FileInfo newestFileInfo = remoteFile
+                        .getNewestVersion(getController()
+                            .getFolderRepository());
+                    if (localFile.isNewerThan(newestFileInfo)) {
+                        // Ignore/Rever local files
+                        logWarning("Local change detected, but has no write permission: "
+                            + localFile.toDetailString());
+                        localFile = null;
                     }
-                    if (notLocal || newerThanLocal && newestRemote) {
-                        // Okay this one is expected
-                        if (!diskItemFilter.isExcluded(remoteDir)) {
-                            incomingFiles.put(remoteDir, remoteDir);
+                }
+                FileInfo alreadyIncoming = incomingFiles.get(remoteFile);
+                boolean notLocal = localFile == null;
+                boolean newerThanLocal = localFile != null
+                    && remoteFile.isNewerThan(localFile);
+                // Check if this remote file is newer than one we may
+                // already have.
+                boolean newestRemote = alreadyIncoming == null
+                    || remoteFile.isNewerThan(alreadyIncoming);
+                if (notLocal && remoteFile.isDeleted()) {
+                    // A remote deleted file is not incoming!
+                    // TODO Maby download deleted files from archive of
+                    // remote?
+                    // and put it directly into own recycle bin.
+                    continue;
+                }
+                if (notLocal || newerThanLocal && newestRemote) {
+                    // Okay this one is expected
+                    if (!diskItemFilter.isExcluded(remoteFile)) {
+                        incomingFiles.put(remoteFile, remoteFile);
+                        if (isFile && incomingCount != null) {
+                            Integer i = incomingCount.get(member);
+                            incomingCount.put(member, ++i);
                         }
                     }
                 }
@@ -4601,6 +4888,7 @@ public class Folder extends PFComponent {
      */
     public void visitIncomingFiles(Visitor<FileInfo> vistor) {
         // add0 expeced files
+        Collection<FileInfo> candidates = incomingFilesIndex.getCandidates();
         for (Member member : getMembersAsCollection()) {
             if (!member.isCompletelyConnected()) {
                 // disconnected or myself (=skip)
@@ -4621,23 +4909,11 @@ public class Folder extends PFComponent {
                 continue;
             }
 
-            Collection<FileInfo> memberFiles = getFilesAsCollection(member);
-            if (memberFiles != null) {
-                for (FileInfo fileInfo : memberFiles) {
-                    if (!visitFileIfNewer(fileInfo, vistor)) {
-                        // Stop visiting.
-                        return;
-                    }
-                }
-            }
-            Collection<DirectoryInfo> memberDirs = dao
-                .findAllDirectories(member.getId());
-            if (memberDirs != null) {
-                for (FileInfo fileInfo : memberDirs) {
-                    if (!visitFileIfNewer(fileInfo, vistor)) {
-                        // Stop visiting.
-                        return;
-                    }
+            for (FileInfo candidate : candidates) {
+                FileInfo fileInfo = dao.find(candidate, member.getId());
+                if (fileInfo != null && !visitFileIfNewer(fileInfo, vistor)) {
+                    // Stop visiting.
+                    return;
                 }
             }
         }
@@ -43,10 +43,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -114,7 +121,11 @@ public class FolderRepository extends PFComponent implements Runnable {
     private final Map<FolderInfo, Folder> metaFolders;
     private Thread myThread;
     private final FileRequestor fileRequestor;
-    private Folder currentlyMaintainingFolder;
+    /** The folders currently maintained */
+    private final Set<Folder> maintainingFolders = Collections
+        .newSetFromMap(Util.<Folder, Boolean> createConcurrentHashMap());
+    /** Maintains several folders at the same time */
+    private ExecutorService maintenancePool;
     private final Set<String> onLoginFolderEntryIds;
     // Flag if the repo is started
     private boolean started;
@@ -130,6 +141,9 @@ public class FolderRepository extends PFComponent implements Runnable {
     /** The disk scanner */
     private final FolderScanner folderScanner;
 
+    /** Calculates the content hashes of files in the background */
+    private final FileHasher fileHasher;
+
     /**
      * PFC-1962: For locking files
      */
@@ -174,6 +188,7 @@ public class FolderRepository extends PFComponent implements Runnable {
         loadRemovedFolderDirectories();
 
         folderScanner = new FolderScanner(getController());
+        fileHasher = new FileHasher(getController());
         locking = new Locking(getController());
 
         // Create listener support
@@ -224,6 +239,11 @@ public class FolderRepository extends PFComponent implements Runnable {
         return folderScanner;
     }
 
+    /** @return the hasher that calculates the content hashes of files */
+    public FileHasher getFileHasher() {
+        return fileHasher;
+    }
+
     public Locking getLocking() {
         return locking;
     }
@@ -629,6 +649,24 @@ public class FolderRepository extends PFComponent implements Runnable {
         }
 
         folderScanner.start();
+        fileHasher.start();
+
+        int nThreads = Math.max(1,
+            ConfigurationEntry.FOLDER_SCANNER_MAX_SCANS
+                .getValueInt(getController()));
+        maintenancePool = Executors.newFixedThreadPool(nThreads,
+            new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FolderMaintenance-"
+                        + count.incrementAndGet());
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
         // Now start thread
         myThread = new Thread(this, getClass().getName());
@@ -658,10 +696,14 @@ public class FolderRepository extends PFComponent implements Runnable {
             }
         }
         folderScanner.shutdown();
+        fileHasher.shutdown();
 
         if (myThread != null) {
             myThread.interrupt();
         }
+        if (maintenancePool != null) {
+            maintenancePool.shutdownNow();
+        }
         synchronized (scanTrigger) {
             scanTrigger.notifyAll();
         }
@@ -1239,11 +1281,7 @@ public class FolderRepository extends PFComponent implements Runnable {
             triggerSynchronizeAllFolderMemberships();
 
             // Abort scanning
-            boolean folderCurrentlyScannng = folder.equals(folderScanner
-                .getCurrentScanningFolder());
-            if (folderCurrentlyScannng) {
-                folderScanner.abortScan();
-            }
+            folderScanner.abortScan(folder);
 
             // Delete the .PowerFolder dir and contents
             if (deleteSystemSubDir) {
@@ -1394,7 +1432,16 @@ public class FolderRepository extends PFComponent implements Runnable {
      *         maintaining any folder.
      */
     public Folder getCurrentlyMaintainingFolder() {
-        return currentlyMaintainingFolder;
+        Iterator<Folder> it = maintainingFolders.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder currently gets maintained.
+     */
+    public boolean isMaintaining(Folder folder) {
+        return maintainingFolders.contains(folder);
     }
 
     /**
@@ -1411,6 +1458,25 @@ public class FolderRepository extends PFComponent implements Runnable {
         }
     }
 
+    /**
+     * Runs the maintenance of one folder. A folder is never maintained twice
+     * at the same time.
+     *
+     * @param folder
+     */
+    private void maintain(Folder folder) {
+        if (!maintainingFolders.add(folder)) {
+            return;
+        }
+        try {
+            fireMaintanceStarted(folder);
+            folder.maintain();
+        } finally {
+            maintainingFolders.remove(folder);
+            fireMaintenanceFinished(folder);
+        }
+    }
+
     /**
      * Mainenance thread for the folders
      */
@@ -1466,28 +1532,39 @@ public class FolderRepository extends PFComponent implements Runnable {
                     logFiner("Maintaining " + scanningFolders.size()
                         + " folders...");
                 }
-                for (Folder folder : scanningFolders) {
-                    currentlyMaintainingFolder = folder;
-                    // Fire event
-                    fireMaintanceStarted(currentlyMaintainingFolder);
-                    currentlyMaintainingFolder.maintain();
-                    Folder maintainedFolder = currentlyMaintainingFolder;
-                    currentlyMaintainingFolder = null;
-                    // Fire event
-                    fireMaintenanceFinished(maintainedFolder);
-
+                // Maintain in parallel, wait for the whole batch
+                List<Future<?>> tasks = new ArrayList<Future<?>>(
+                    scanningFolders.size());
+                for (final Folder folder : scanningFolders) {
                     if (controller.isPaused() || myThread.isInterrupted()) {
                         break;
                     }
-
-                    // Wait a bit to give other waiting sync processes time...
                     try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
+                        tasks.add(maintenancePool.submit(new Runnable() {
+                            public void run() {
+                                maintain(folder);
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        // Shut down
                         break;
                     }
                 }
-                
+                try {
+                    for (Future<?> task : tasks) {
+                        task.get();
+                    }
+                } catch (InterruptedException e) {
+                    logFiner(e);
+                    break;
+                } catch (CancellationException e) {
+                    // Shut down
+                    break;
+                } catch (ExecutionException e) {
+                    logSevere("Exception while maintaining folders. "
+                        + e.getCause(), e.getCause());
+                }
+
                 if (isFiner()) {
                     logFiner("Maintained " + scanningFolders.size()
                         + " folder(s)");
@@ -24,13 +24,23 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
@@ -47,65 +57,57 @@ import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
 
 /**
- * Disk Scanner for a folder. It compares the curent database of files agains
- * the ones availeble on disk and produces a ScanResult. MultiThreading is used,
- * for each subfolder of the root a DirectoryCrawler is used with a maximum of
- * MAX_CRAWLERS.<BR>
+ * Disk Scanner for folders. It compares the curent database of files agains
+ * the ones availeble on disk and produces a ScanResult.
+ * <p>
+ * The directory tree is crawled by a {@link ForkJoinPool}: Every directory is a
+ * task, subdirectories are forked and idle threads steal work from busy ones.
+ * Folders on local storage share a pool sized to the number of CPU cores,
+ * folders on network storage a small one. Several folders may be scanned at
+ * the same time, limited by {@link ConfigurationEntry#FOLDER_SCANNER_MAX_SCANS}.
+ * <BR>
  * On succes the resultState of ScanResult is ScanResult.ResultState.SCANNED.<BR>
  * If the user aborted the scan (by selecting paused mode) the resultState =
  * ScanResult.ResultState.USER_ABORT.<BR>
  * If during scanning files dare deleted when scanning, the whole folder is
  * deleted or in practice the harddisk fails the resultState is
  * ScanResult.ResultState.HARDWARE_FAILURE. <BR>
+ * If the folder is already being scanned or too many folders are scanned the
+ * resultState is ScanResult.ResultState.BUSY. <BR>
  * usage:<BR>
  * <code>
  * ScanResult result = folderScannner.scanFolder(folder);
  * </code>
  */
 public class FolderScanner extends PFComponent {
-    /** The folder that is being scanned */
-    private Folder currentScanningFolder;
-    private ScanResult currentScanResult;
-
     /**
-     * This is the list of knownfiles, if a file is found on disk the file is
-     * removed from this list. The files that are left in this list after
-     * scanning are deleted from disk.
+     * File system types of network storage. Crawled with lower parallelism.
      */
-    private Map<String, FileInfo> remaining = Util.createConcurrentHashMap();
+    private static final Set<String> NETWORK_FILE_SYSTEMS = new HashSet<String>(
+        Arrays.asList("nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "afpfs",
+            "ncpfs", "davfs", "webdav", "fuse.sshfs"));
 
-    /** DirectoryCrawler threads that are idle */
-    private final List<DirectoryCrawler> directoryCrawlersPool = new CopyOnWriteArrayList<DirectoryCrawler>();
+    /** The scans currently running */
+    private final ConcurrentMap<Folder, Scan> currentScans = Util
+        .createConcurrentHashMap(4);
 
-    /** Where crawling DirectoryCrawlers are */
-    private final List<DirectoryCrawler> activeDirectoryCrawlers = new CopyOnWriteArrayList<DirectoryCrawler>();
     /**
-     * Maximum number of DirectoryCrawlers after test of a big folder this seams
-     * the optimum number.
+     * Global budget: Maximum number of folders scanned at the same time.
      */
-    private int maxCrawlers = 3;
+    private final Semaphore scanPermits;
 
     /**
-     * The files which could not be scanned
+     * Number of threads crawling local storage. 0 = number of CPU cores.
      */
-    private List<Path> unableToScanFiles = new CopyOnWriteArrayList<Path>();
+    private final int maxCrawlers;
 
-    /**
-     * Because of multi threading we use a flag to indicate a failed besides
-     * returning false
-     */
-    private volatile boolean failure = false;
+    private ForkJoinPool localPool;
+    private ForkJoinPool networkPool;
+    private volatile boolean shutdown;
 
-    /**
-     * when set to true the scanning process will be aborted and the resultState
-     * of the scan will be ScanResult.ResultState.USER_ABORT
-     */
-    private volatile boolean abort = false;
-
-    /**
-     * The semaphore to acquire = means this thread got the folder scan now.
-     */
-    private Semaphore threadOwnership;
+    /** Totals of all scans for throughput reporting */
+    private final AtomicLong totalScannedItems = new AtomicLong();
+    private final AtomicLong totalScanTime = new AtomicLong();
 
     /**
      * Do not use this constructor, this should only be done by the Folder
@@ -117,63 +119,103 @@ public class FolderScanner extends PFComponent {
      */
     FolderScanner(Controller controller) {
         super(controller);
-        threadOwnership = new Semaphore(1);
-        maxCrawlers = ConfigurationEntry.FOLDER_SCANNER_MAX_CRAWLERS
+        int crawlers = ConfigurationEntry.FOLDER_SCANNER_MAX_CRAWLERS
+            .getValueInt(getController());
+        maxCrawlers = crawlers > 0 ? crawlers : Runtime.getRuntime()
+            .availableProcessors();
+        int scans = ConfigurationEntry.FOLDER_SCANNER_MAX_SCANS
             .getValueInt(getController());
+        scanPermits = new Semaphore(Math.max(1, scans));
     }
 
     /**
-     * Starts the folder scanner, creates MAX_CRAWLERS number of
-     * DirectoryCrawler
+     * Starts the folder scanner, creates the crawler pools.
      */
-    public void start() {
-        // start directoryCrawlers
-        for (int i = 0; i < maxCrawlers; ++i) {
-            DirectoryCrawler directoryCrawler = new DirectoryCrawler();
-            Thread thread = new Thread(directoryCrawler,
-                "FolderScanner.DirectoryCrawler #" + i);
-            thread.setPriority(Thread.MIN_PRIORITY);
-            thread.start();
-            directoryCrawlersPool.add(directoryCrawler);
+    public synchronized void start() {
+        shutdown = false;
+        if (localPool == null) {
+            localPool = createPool("local", maxCrawlers);
+        }
+        if (networkPool == null) {
+            networkPool = createPool("network", Math.min(2, maxCrawlers));
         }
-        currentScanResult = new ScanResult(true);
     }
 
     /**
-     * sets aborted to true (user probably closed the program), and shutsdown
-     * the DirectoryCrawlers
+     * Aborts all scans (user probably closed the program), and shuts down the
+     * crawler pools.
      */
-    public void shutdown() {
-        abort = true;
-        synchronized (directoryCrawlersPool) {
-            for (DirectoryCrawler directoryCrawler : directoryCrawlersPool) {
-                directoryCrawler.shutdown();
-            }
-            for (DirectoryCrawler directoryCrawler : activeDirectoryCrawlers) {
-                directoryCrawler.shutdown();
-            }
+    public synchronized void shutdown() {
+        shutdown = true;
+        abortScan();
+        if (localPool != null) {
+            localPool.shutdown();
+            localPool = null;
+        }
+        if (networkPool != null) {
+            networkPool.shutdown();
+            networkPool = null;
         }
-        // waitForCrawlersToStop();
     }
 
+    /**
+     * @return one of the folders currently being scanned or null if no scan
+     *         is running.
+     */
     public Folder getCurrentScanningFolder() {
-        return currentScanningFolder;
+        Iterator<Folder> it = currentScans.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder is currently being scanned
+     */
+    public boolean isScanning(Folder folder) {
+        return currentScans.containsKey(folder);
     }
 
     /**
-     * Abort scanning. when called the scanning process will be aborted and the
-     * resultState of the scan will be ScanResult.ResultState.USER_ABORT
+     * Abort all scans. The scanning processes will be aborted and the
+     * resultState of the scans will be ScanResult.ResultState.USER_ABORT
      *
      * @return true if abort has been initiated, false if not currently scanning
      */
     public boolean abortScan() {
-        if (currentScanningFolder != null) {
-            abort = true;
+        boolean aborted = false;
+        for (Scan scan : currentScans.values()) {
+            scan.abort = true;
+            aborted = true;
+        }
+        return aborted;
+    }
+
+    /**
+     * Abort the scan of the folder. The resultState of the scan will be
+     * ScanResult.ResultState.USER_ABORT
+     *
+     * @param folder
+     * @return true if abort has been initiated, false if the folder is not
+     *         currently scanned
+     */
+    public boolean abortScan(Folder folder) {
+        Scan scan = currentScans.get(folder);
+        if (scan != null) {
+            scan.abort = true;
             return true;
         }
         return false;
     }
 
+    /**
+     * @return the average throughput of all scans done so far in scanned
+     *         files and directories per second.
+     */
+    public long getFilesPerSecond() {
+        long time = totalScanTime.get();
+        return time > 0 ? totalScannedItems.get() * 1000L / time : 0;
+    }
+
     /**
      * Scans a folder. See class description for explaining.
      *
@@ -181,36 +223,131 @@ public class FolderScanner extends PFComponent {
      *            The folder to scan.
      * @return a ScanResult the scan result.
      */
-    public synchronized ScanResult scanFolder(Folder folder) {
+    public ScanResult scanFolder(Folder folder) {
         Reject.ifNull(folder, "folder cannot be null");
-
-        if (!threadOwnership.tryAcquire()) {
+        if (shutdown) {
+            return new ScanResult(ScanResult.ResultState.USER_ABORT);
+        }
+        if (!scanPermits.tryAcquire()) {
             return new ScanResult(ScanResult.ResultState.BUSY);
         }
+        try {
+            Scan scan = new Scan(folder);
+            if (currentScans.putIfAbsent(folder, scan) != null) {
+                return new ScanResult(ScanResult.ResultState.BUSY);
+            }
+            try {
+                return scan.run();
+            } finally {
+                // Not longer scanning
+                currentScans.remove(folder, scan);
+            }
+        } finally {
+            scanPermits.release();
+        }
+    }
+
+    // Internal ***************************************************************
 
+    private synchronized ForkJoinPool getPool(Folder folder) {
+        if (localPool == null) {
+            // Not started yet
+            start();
+        }
+        return isNetworkStorage(folder.getLocalBase())
+            ? networkPool
+            : localPool;
+    }
+
+    private boolean isNetworkStorage(Path base) {
+        if (base.toString().startsWith("\\\\")) {
+            // Windows UNC path
+            return true;
+        }
         try {
-            currentScanningFolder = folder;
+            String type = Files.getFileStore(base).type();
+            return type != null
+                && NETWORK_FILE_SYSTEMS.contains(type.toLowerCase());
+        } catch (IOException e) {
+            logFiner("Unable to get file store of " + base + ". " + e);
+            return false;
+        }
+    }
+
+    private static ForkJoinPool createPool(final String name, int parallelism)
+    {
+        ForkJoinWorkerThreadFactory factory = new ForkJoinWorkerThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                };
+                thread.setName("FolderScanner." + name + " #"
+                    + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new ForkJoinPool(parallelism, factory, null, false);
+    }
+
+    /**
+     * A running scan of one folder.
+     */
+    private class Scan {
+        /** The folder that is being scanned */
+        private final Folder folder;
+        private final ScanResult result = new ScanResult(true);
+
+        /**
+         * This is the list of knownfiles, if a file is found on disk the file
+         * is removed from this list. The files that are left in this list
+         * after scanning are deleted from disk.
+         */
+        private final RemainingFiles remaining = new RemainingFiles(
+            FileInfo.IGNORE_CASE);
+
+        /**
+         * The files which could not be scanned
+         */
+        private final List<Path> unableToScanFiles = new CopyOnWriteArrayList<Path>();
+
+        /**
+         * Because of multi threading we use a flag to indicate a failed
+         * besides returning false
+         */
+        private volatile boolean failure;
+
+        /**
+         * when set to true the scanning process will be aborted and the
+         * resultState of the scan will be ScanResult.ResultState.USER_ABORT
+         */
+        private volatile boolean abort;
+
+        Scan(Folder folder) {
+            this.folder = folder;
+        }
+
+        ScanResult run() {
             if (isFiner()) {
                 logFiner("Scan of folder: " + folder.getName() + " start");
             }
             long started = System.currentTimeMillis();
-            // Debug.dumpThreadStacks();
 
-            Path base = currentScanningFolder.getLocalBase();
-            remaining.clear();
-            for (FileInfo fInfo : currentScanningFolder.getKnownFiles()) {
-                remaining.put(fInfo.getRelativeName(), fInfo);
+            Path base = folder.getLocalBase();
+            for (FileInfo fInfo : folder.getKnownFiles()) {
+                remaining.add(fInfo);
             }
-            for (FileInfo fInfo : currentScanningFolder.getKnownDirectories()) {
-                remaining.put(fInfo.getRelativeName(), fInfo);
+            for (FileInfo fInfo : folder.getKnownDirectories()) {
+                remaining.add(fInfo);
             }
             if (!scan(base) || failure) {
                 // if false there was an IOError
-                reset();
                 return new ScanResult(ScanResult.ResultState.HARDWARE_FAILURE);
             }
             if (abort) {
-                reset();
                 return new ScanResult(ScanResult.ResultState.USER_ABORT);
             }
             // from , to
@@ -222,13 +359,12 @@ public class FolderScanner extends PFComponent {
             int n = unableToScanFiles.size();
             for (int i = 0; i < n; i++) {
                 Path file = unableToScanFiles.get(i);
-                FileInfo fInfo = FileInfoFactory.lookupInstance(
-                    currentScanningFolder, file);
+                FileInfo fInfo = FileInfoFactory.lookupInstance(folder, file);
                 remaining.remove(fInfo.getRelativeName());
                 // TRAC #523
                 if (Files.isDirectory(file)) {
-                    String dirPath = file.toAbsolutePath().toString().replace(
-                        file.getFileSystem().getSeparator(), "/");
+                    String dirPath = file.toAbsolutePath().toString()
+                        .replace(file.getFileSystem().getSeparator(), "/");
                     // Is a directory. Remove all from remaining that are in
                     // that
                     // dir.
@@ -286,539 +422,343 @@ public class FolderScanner extends PFComponent {
                 FileInfo deletedFileInfo = FileInfoFactory.deletedFile(
                     fileInfo, getController().getMySelf().getInfo(),
                     getController().getMySelf().getAccountInfo(), new Date());
-                currentScanResult.deletedFiles.add(deletedFileInfo);
+                result.deletedFiles.add(deletedFileInfo);
             }
 
-            // result.setMovedFiles(moved);
-            // result.setProblemFiles(problemFiles);
-            // result.setRestoredFiles(restoredFiles);
-            // currentScanResult.totalFilesCount = totalFilesCount;
-            // result.setResultState(ScanResult.ResultState.SCANNED);
-
-            // prepare for next scan
-            ScanResult myResult = currentScanResult;
-            reset();
+            long took = System.currentTimeMillis() - started;
+            result.setScanTime(took);
+            totalScannedItems.addAndGet(result.getTotalFilesCount());
+            totalScanTime.addAndGet(took);
             if (isWarning()) {
-                long took = System.currentTimeMillis() - started;
-                if (currentScanResult.getResultState() == ResultState.SCANNED
+                if (result.getResultState() == ResultState.SCANNED
                     || took > 1000L * 60 * 5)
                 {
                     logFiner("Scan of folder " + folder.getName() + " done in "
-                        + took + "ms. Result: "
-                        + currentScanResult.getResultState());
+                        + took + "ms (" + result.getFilesPerSecond()
+                        + " files/s). Result: " + result.getResultState());
                 } else {
                     logWarning("Scan of folder " + folder.getName()
-                        + " done in " + took + "ms. Result: "
-                        + currentScanResult.getResultState());
-                }
-            }
-            return myResult;
-        } finally {
-            // Not longer scanning
-            currentScanningFolder = null;
-            // Remove ownership for this thread
-            threadOwnership.release();
-        }
-    }
-
-    /** after scanning the state of this scanning should be reset */
-    private void reset() {
-        // Ensure gracful stop
-        waitForCrawlersToStop();
-        abort = false;
-        failure = false;
-        // changedFiles.clear();
-        // newFiles.clear();
-        // allFiles.clear();
-        // restoredFiles.clear();
-        unableToScanFiles.clear();
-        // totalFilesCount = 0;
-        currentScanResult = new ScanResult(true);
-    }
-
-    private void waitForCrawlersToStop() {
-        while (!activeDirectoryCrawlers.isEmpty()) {
-            logFine("Waiting for " + activeDirectoryCrawlers.size()
-                + " crawlers to stop");
-            synchronized (this) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                }
-            }
-        }
-    }
-
-    /**
-     * Produces a list of FilenameProblems per FileInfo that has problems.
-     * Public for testing
-     *
-     * @param files
-     */
-    private void tryFindProblemsInCurrentScan() {
-        if (!PreferencesEntry.FILE_NAME_CHECK.getValueBoolean(getController()))
-        {
-            return;
-        }
-        tryToFindProblemsInCurrentScan(currentScanResult.getChangedFiles());
-        tryToFindProblemsInCurrentScan(currentScanResult.getRestoredFiles());
-        tryToFindProblemsInCurrentScan(currentScanResult.getNewFiles());
-    }
-
-    private void tryToFindProblemsInCurrentScan(Collection<FileInfo> files)
-    {
-        for (FileInfo fileInfo : files) {
-            List<Problem> problemList = null;
-            if (FilenameProblemHelper.hasProblems(fileInfo)) {
-                if (problemList == null) {
-                    problemList = new ArrayList<Problem>();
+                        + " done in " + took + "ms (" + result.getFilesPerSecond()
+                        + " files/s). Result: " + result.getResultState());
                 }
-                problemList.addAll(FilenameProblemHelper.getProblems(
-                    getController(), fileInfo));
-
             }
-            if (problemList != null) {
-                currentScanResult.putFileProblems(fileInfo, problemList);
+            if (isFine() && took > 1000L) {
+                logFine("Scanned " + result.getTotalFilesCount()
+                    + " items of folder " + folder.getName() + " in " + took
+                    + "ms (" + result.getFilesPerSecond() + " files/s)");
             }
-        }
-    }
-
-    /**
-     * Scans folder from the local base folder as root
-     *
-     * @param folderBase
-     *            The file root of the folder to scan from.
-     * @returns true on success, false on failure (hardware not found?)
-     */
-    private boolean scan(Path folderBase) {
-        if (folderBase == null) {
-            failure = true;
-            return false;
+            return result;
         }
 
-        try (DirectoryStream<Path> stream = Files
-            .newDirectoryStream(folderBase)) {
-
-            if (stream == null) {
-                failure = true;
-                return false;
-            }
-
-            Iterator<Path> it = stream.iterator();
-
-            if (it == null) {
-                failure = true;
-                return false;
-            }
-
-            while (it.hasNext()) {
-                Path path = it.next();
-
-                if (failure) {
-                    return false;
-                }
-                if (abort) {
-                    break;
-                }
-                if (Files.exists(path) && Files.isRegularFile(path)) {
-                    if (PathUtils.isScannable(path, currentScanningFolder)) {
-                        if (!scanFile(path, "")) {
-                            failure = true;
-                            return false;
-                        }
-                    }
-                } else if (Files.isDirectory(path)) {
-                    if (!PathUtils.isScannable(path, currentScanningFolder)
-                        || currentScanningFolder.isSystemSubDir(path))
-                    {
-                        continue;
-                    }
-                    while (directoryCrawlersPool.isEmpty()) {
-                        synchronized (this) {
-                            try {
-                                wait();
-                            } catch (InterruptedException e) {
-                            }
-                        }
-                    }
-                    synchronized (directoryCrawlersPool) {
-                        DirectoryCrawler crawler = directoryCrawlersPool
-                            .remove(0);
-                        activeDirectoryCrawlers.add(crawler);
-                        crawler.scan(path);
-                    }
-                } else {
-                    boolean deviceDisconnected = currentScanningFolder
-                        .checkIfDeviceDisconnected();
-                    logWarning("Unable to scan file: " + path.toAbsolutePath()
-                        + ". Folder device disconnected? " + deviceDisconnected);
-                    if (deviceDisconnected) {
-                        // Hardware not longer available? BREAK scan!
-                        failure = true;
-                        return false;
-                    }
-                    unableToScanFiles.add(path);
-                }
-            }
-        } catch (IOException ioe) {
-            return false;
-        }
-
-        while (!isReady()) {
-            try {
-                synchronized (this) {
-                    wait();
-                }
-            } catch (InterruptedException e) {
-                logFiner(e);
-                return false;
+        /**
+         * Produces a list of FilenameProblems per FileInfo that has problems.
+         */
+        private void tryFindProblemsInCurrentScan() {
+            if (!PreferencesEntry.FILE_NAME_CHECK
+                .getValueBoolean(getController()))
+            {
+                return;
             }
+            tryToFindProblemsInCurrentScan(result.getChangedFiles());
+            tryToFindProblemsInCurrentScan(result.getRestoredFiles());
+            tryToFindProblemsInCurrentScan(result.getNewFiles());
         }
-        return true;
-    }
 
-    /** @return true if all directory Crawler are idle. */
-    private boolean isReady() {
-        boolean ready;
-        synchronized (directoryCrawlersPool) {
-            ready = activeDirectoryCrawlers.isEmpty()
-                && directoryCrawlersPool.size() == maxCrawlers;
-        }
-        return ready;
-    }
-
-    /**
-     * if a file is in the knownFilesNotOnDisk list and in the newlyFoundFiles
-     * list with the same size and modification date the file is for 99% sure
-     * moved. Map<from , to>
-     */
-    private void tryFindMovementsInCurrentScan() {
-        if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
-            return;
-        }
-        for (FileInfo deletedFile : remaining.values()) {
-            long size = deletedFile.getSize();
-            long modificationDate = deletedFile.getModifiedDate().getTime();
-            for (FileInfo newFile : currentScanResult.newFiles) {
-                if (newFile.getSize() == size
-                    && newFile.getModifiedDate().getTime() == modificationDate)
-                {
-                    // possible movement detected
-                    if (isFine()) {
-                        logFine("Movement from: " + deletedFile + " to: "
-                            + newFile);
+        private void tryToFindProblemsInCurrentScan(Collection<FileInfo> files)
+        {
+            for (FileInfo fileInfo : files) {
+                List<Problem> problemList = null;
+                if (FilenameProblemHelper.hasProblems(fileInfo)) {
+                    if (problemList == null) {
+                        problemList = new ArrayList<Problem>();
                     }
-                    currentScanResult.movedFiles.put(deletedFile, newFile);
-                }
-            }
-        }
-    }
-
-    /**
-     * scans a single file.
-     *
-     * @param fileToScan
-     *            the disk file to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanFile(Path fileToScan, String currentDirName) {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-        currentScanResult.incrementTotalFilesCount();
-        String filename;
-        if (currentDirName.length() == 0) {
-            filename = fileToScan.getFileName().toString();
-        } else {
-            filename = currentDirName + '/' + fileToScan.getFileName().toString();
-        }
-        return scanDiskItem(fileToScan, FileInfoFactory.decodeIllegalChars(filename), false);
-    }
+                    problemList.addAll(FilenameProblemHelper.getProblems(
+                        getController(), fileInfo));
 
-    /**
-     * scans a single directory.
-     *
-     * @param dirToScan
-     *            the disk directory to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanDirectory(Path dirToScan, String currentDirName) {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-        if (isFiner()) {
-            logFiner("Scanning subdir " + dirToScan + " / " + currentDirName);
-        }
-        currentScanResult.incrementTotalFilesCount();
-        return scanDiskItem(dirToScan, FileInfoFactory.decodeIllegalChars(currentDirName), true);
-    }
-
-    /**
-     * scans a single file.
-     *
-     * @param fileToScan
-     *            the disk file to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanDiskItem(Path fileToScan, String filename,
-        boolean directory)
-    {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-
-        // #1531 / #1804
-        FileInfo exists = remaining.remove(filename);
-        if (exists == null && FileInfo.IGNORE_CASE) {
-            // Try harder, same file with the
-            for (FileInfo otherFInfo : remaining.values()) {
-                if (otherFInfo.getRelativeName().equalsIgnoreCase(filename)) {
-                    if (isFiner()) {
-                        logFiner("Found local diskfile with diffrent name-case in db. file: "
-                            + fileToScan.toAbsolutePath().toString()
-                            + ", dbFile: "
-                            + otherFInfo.toDetailString());
-                    }
-                    // if (fInfo.getRelativeName().equals(
-                    // otherFInfo.getRelativeName())
-                    // && !fInfo.equals(otherFInfo))
-                    // {
-                    // throw new RuntimeException(
-                    // "Bad failure: FileInfos not equal. "
-                    // + fInfo.toDetailString() + " and "
-                    // + otherFInfo.toDetailString()
-                    // + " Probably FolderInfo objects are not equal?");
-                    // }
-                    remaining.remove(otherFInfo.getRelativeName());
-                    exists = otherFInfo;
-                }
-            }
-        }
-        try {
-            if (exists != null) {// file was known
-                if (exists.isDeleted()) {
-                    // file restored
-                    FileInfo restoredFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
-                    if (restoredFile != null) {
-                        if (isInfo()) {
-                            logInfo("Restored detected: "
-                                + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
-                        }
-                        currentScanResult.restoredFiles.add(restoredFile);
-                    }
-                } else {
-                    FileInfo changedFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
-                    if (changedFile != null) {
-                        if (isInfo()
-                            && currentScanningFolder.getDiskItemFilter()
-                                .isRetained(changedFile))
-                        {
-                            logInfo("Change detected: "
-                                + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
-                        }
-                        currentScanResult.changedFiles.add(changedFile);
-                    }
                 }
-            } else {
-                // file is new
-                // PFC-2352: TODO Generate ID / Hashes
-                FileInfo info = FileInfoFactory.newFile(currentScanningFolder,
-                    fileToScan, null, getController().getMySelf().getInfo(),
-                    getController().getMySelf().getAccountInfo(), null,
-                    directory, null);
-                currentScanResult.newFiles.add(info);
-                if (isFiner()) {
-                    logFiner("New found: " + info.toDetailString());
+                if (problemList != null) {
+                    result.putFileProblems(fileInfo, problemList);
                 }
             }
-        } catch (Exception e) {
-            logWarning("Unable to scan: " + fileToScan + ". " + e);
-            unableToScanFiles.add(fileToScan);
-        }
-        return true;
-    }
-
-    /**
-     * calculates the subdir of this file relative to the location of the folder
-     */
-    private static String getCurrentDirName(Folder folder, Path subFile) {
-        String fileName = subFile.getFileName().toString();
-        Path parent = subFile.getParent();
-        Path folderBase = folder.getLocalBase();
-        while (!folderBase.equals(parent)) {
-            if (parent == null) {
-                throw new NullPointerException(
-                    "Local file seems not to be in a subdir of the local powerfolder copy");
-            }
-            fileName = parent.getFileName().toString() + '/' + fileName;
-            parent = parent.getParent();
         }
-        return fileName;
-    }
 
-    /** A Thread that scans a directory */
-    private class DirectoryCrawler implements Runnable {
-        private Path root;
-        private boolean shutdown = false;
-
-        private void scan(Path aRoot) {
-            if (root != null) {
-                throw new IllegalStateException(
-                    "cannot scan 2 directories at once");
-            }
-            synchronized (this) {
-                root = aRoot;
-                notify();
+        /**
+         * Scans folder from the local base folder as root
+         *
+         * @param folderBase
+         *            The file root of the folder to scan from.
+         * @returns true on success, false on failure (hardware not found?)
+         */
+        private boolean scan(Path folderBase) {
+            if (folderBase == null) {
+                failure = true;
+                return false;
             }
+            getPool(folder).invoke(
+                new DirectoryTask(this, folderBase, "", true));
+            return !failure;
         }
 
-        public void shutdown() {
-            shutdown = true;
-            synchronized (this) {
-                notify();
+        /**
+         * if a file is in the knownFilesNotOnDisk list and in the
+         * newlyFoundFiles list with the same size and modification date the
+         * file is for 99% sure moved. Map<from , to>
+         */
+        private void tryFindMovementsInCurrentScan() {
+            if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
+                return;
             }
-        }
-
-        public void run() {
-            while (true) {
-                try {
-                    while (root == null) {
-                        synchronized (this) {
-                            if (root != null) {
-                                // Make sure that we don't wait with root!
-                                continue;
-                            }
-                            try {
-                                wait();
-                                if (shutdown) {
-                                    return;
-                                }
-                            } catch (InterruptedException e) {
-                                logFiner(e.getMessage());
-                                return;
-                            }
+            for (FileInfo deletedFile : remaining.values()) {
+                long size = deletedFile.getSize();
+                long modificationDate = deletedFile.getModifiedDate().getTime();
+                for (FileInfo newFile : result.newFiles) {
+                    if (newFile.getSize() == size
+                        && newFile.getModifiedDate().getTime() == modificationDate)
+                    {
+                        // possible movement detected
+                        if (isFine()) {
+                            logFine("Movement from: " + deletedFile + " to: "
+                                + newFile);
                         }
-                    }
-                    if (!scanDir(root)) {
-                        // hardware failure
-                        failure = true;
-                    }
-                    root = null;
-
-                    synchronized (directoryCrawlersPool) {
-                        activeDirectoryCrawlers.remove(this);
-                        directoryCrawlersPool.add(this);
-                    }
-
-                } catch (RuntimeException e) {
-                    logSevere("Folder scanner crashed @ " + root + ". " + e, e);
-                    failure = true;
-                } finally {
-                    // scan of this directory is ready, notify FolderScanner we
-                    // are ready for the next folder.
-                    synchronized (FolderScanner.this) {
-                        FolderScanner.this.notify();
+                        result.movedFiles.put(deletedFile, newFile);
                     }
                 }
             }
         }
 
         /**
-         * Scans a directory, will recurse into subdirectories
+         * Scans the items of a directory. Subdirectories are crawled in
+         * parallel.
          *
          * @param dirToScan
          *            The directory to scan
-         * @return true or succes or false is failed (harware failure or
-         *         directory or file removed in the meantime)
+         * @param currentDirName
+         *            the relative name of the directory, "" for the base
+         *            directory.
+         * @param root
+         *            if this is the base directory of the folder
          */
-        private boolean scanDir(Path dirToScan) {
-            Reject.ifNull(currentScanningFolder,
-                "current scanning folder must not be null");
-            String currentDirName = getCurrentDirName(currentScanningFolder,
-                dirToScan);
-            try {
-                // Give CPU room to breath. Don't consume 100% CPU.
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        private void crawl(Path dirToScan, String currentDirName, boolean root)
+        {
+            if (!root) {
+                scanDirectory(dirToScan, currentDirName);
             }
-            scanDirectory(dirToScan, currentDirName);
-
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirToScan)) {
-                Iterator<Path> it = stream.iterator();
-
-                if (it == null) {
-                    throw new IOException("Unable to access directory");
-                }
-
-                while (it.hasNext()) {
-                    Path path = it.next();
-                    if (failure) {
-                        return false;
-                    }
-                    if (abort) {
-                        break;
+            List<DirectoryTask> subdirs = null;
+            try (DirectoryStream<Path> stream = Files
+                .newDirectoryStream(dirToScan))
+            {
+                for (Path path : stream) {
+                    if (failure || abort) {
+                        return;
                     }
                     if (Files.isRegularFile(path)) {
-                        if (PathUtils.isScannable(path, currentScanningFolder)
-                            && !scanFile(path, currentDirName)) {
+                        if (PathUtils.isScannable(path, folder)
+                            && !scanFile(path, currentDirName))
+                        {
                             failure = true;
-                            return false;
+                            return;
                         }
                     } else if (Files.isDirectory(path)) {
-                        if (PathUtils.isScannable(path, currentScanningFolder)
-                            && !scanDir(path)) {
-                            failure = true;
-                            return false;
+                        if (!PathUtils.isScannable(path, folder)
+                            || root && folder.isSystemSubDir(path))
+                        {
+                            continue;
+                        }
+                        String name = path.getFileName().toString();
+                        if (!root) {
+                            name = currentDirName + '/' + name;
                         }
+                        if (subdirs == null) {
+                            subdirs = new ArrayList<DirectoryTask>();
+                        }
+                        subdirs.add(new DirectoryTask(this, path, name, false));
                     } else {
-                        boolean deviceDisconnected = currentScanningFolder
+                        boolean deviceDisconnected = folder
                             .checkIfDeviceDisconnected();
                         logWarning("Unable to scan file: "
                             + path.toAbsolutePath()
-                            + ". Folder device disconnected? " + deviceDisconnected);
+                            + ". Folder device disconnected? "
+                            + deviceDisconnected);
                         if (deviceDisconnected) {
-                            // hardware failure
+                            // Hardware not longer available? BREAK scan!
                             failure = true;
-                            return false;
+                            return;
                         }
                         unableToScanFiles.add(path);
                     }
                 }
-
-                return true;
-            }
-            catch (IOException ioe) {
-                boolean deviceDisconnected = currentScanningFolder
-                    .checkIfDeviceDisconnected();
+            } catch (IOException ioe) {
+                if (root) {
+                    failure = true;
+                    return;
+                }
+                boolean deviceDisconnected = folder.checkIfDeviceDisconnected();
                 logWarning("Unable to scan dir: " + dirToScan.toAbsolutePath()
                     + ". Folder device disconnected? " + deviceDisconnected);
                 if (deviceDisconnected) {
                     // hardware failure
                     failure = true;
-                    return false;
+                    return;
                 }
                 unableToScanFiles.add(dirToScan);
-                return true;
+                return;
+            }
+            if (subdirs != null) {
+                // Stream is closed. Fork subdirectories for work stealing.
+                ForkJoinTask.invokeAll(subdirs);
+            }
+        }
+
+        /**
+         * scans a single file.
+         *
+         * @param fileToScan
+         *            the disk file to examine.
+         * @param currentDirName
+         *            The location the use when creating a FileInfo. This is
+         *            that same for each file in the same directory and so not
+         *            neccesary to "calculate" this per file.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanFile(Path fileToScan, String currentDirName) {
+            result.incrementTotalFilesCount();
+            String filename;
+            if (currentDirName.length() == 0) {
+                filename = fileToScan.getFileName().toString();
+            } else {
+                filename = currentDirName + '/'
+                    + fileToScan.getFileName().toString();
+            }
+            return scanDiskItem(fileToScan,
+                FileInfoFactory.decodeIllegalChars(filename), false);
+        }
+
+        /**
+         * scans a single directory.
+         *
+         * @param dirToScan
+         *            the disk directory to examine.
+         * @param currentDirName
+         *            The location the use when creating a FileInfo.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanDirectory(Path dirToScan, String currentDirName) {
+            if (isFiner()) {
+                logFiner("Scanning subdir " + dirToScan + " / "
+                    + currentDirName);
+            }
+            result.incrementTotalFilesCount();
+            return scanDiskItem(dirToScan,
+                FileInfoFactory.decodeIllegalChars(currentDirName), true);
+        }
+
+        /**
+         * scans a single file.
+         *
+         * @param fileToScan
+         *            the disk file to examine.
+         * @param currentDirName
+         *            The location the use when creating a FileInfo. This is that
+         *            same for each file in the same directory and so not neccesary
+         *            to "calculate" this per file.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanDiskItem(Path fileToScan, String filename,
+            boolean directory)
+        {
+            // #1531 / #1804
+            FileInfo exists = remaining.removeFound(filename);
+            if (exists != null && isFiner()
+                && !exists.getRelativeName().equals(filename))
+            {
+                logFiner("Found local diskfile with diffrent name-case in db. file: "
+                    + fileToScan.toAbsolutePath().toString()
+                    + ", dbFile: "
+                    + exists.toDetailString());
+            }
+            try {
+                if (exists != null) {// file was known
+                    if (exists.isDeleted()) {
+                        // file restored
+                        FileInfo restoredFile = exists.syncFromDiskIfRequired(
+                            folder, fileToScan);
+                        if (restoredFile != null) {
+                            if (isInfo()) {
+                                logInfo("Restored detected: "
+                                    + exists.toDetailString() + ". On disk: size: "
+                                    + Files.size(fileToScan) + ", lastMod: "
+                                    + Files.getLastModifiedTime(fileToScan));
+                            }
+                            result.restoredFiles.add(restoredFile);
+                        }
+                    } else {
+                        FileInfo changedFile = exists.syncFromDiskIfRequired(
+                            folder, fileToScan);
+                        if (changedFile != null) {
+                            if (isInfo()
+                                && folder.getDiskItemFilter()
+                                    .isRetained(changedFile))
+                            {
+                                logInfo("Change detected: "
+                                    + exists.toDetailString() + ". On disk: size: "
+                                    + Files.size(fileToScan) + ", lastMod: "
+                                    + Files.getLastModifiedTime(fileToScan));
+                            }
+                            result.changedFiles.add(changedFile);
+                        }
+                    }
+                } else {
+                    // file is new
+                    // PFC-2352: TODO Generate ID. Hashes: See FileHasher
+                    FileInfo info = FileInfoFactory.newFile(folder,
+                        fileToScan, null, getController().getMySelf().getInfo(),
+                        getController().getMySelf().getAccountInfo(), null,
+                        directory, null);
+                    result.newFiles.add(info);
+                    if (isFiner()) {
+                        logFiner("New found: " + info.toDetailString());
+                    }
+                }
+            } catch (Exception e) {
+                logWarning("Unable to scan: " + fileToScan + ". " + e);
+                unableToScanFiles.add(fileToScan);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Crawls one directory of a scan. Forks a task per subdirectory.
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Scan scan;
+        private final Path dir;
+        private final String dirName;
+        private final boolean root;
+
+        DirectoryTask(Scan scan, Path dir, String dirName, boolean root) {
+            this.scan = scan;
+            this.dir = dir;
+            this.dirName = dirName;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            if (scan.failure || scan.abort) {
+                return;
+            }
+            try {
+                scan.crawl(dir, dirName, root);
+            } catch (RuntimeException e) {
+                logSevere("Folder scanner crashed @ " + dir + ". " + e, e);
+                scan.failure = true;
             }
         }
     }
-}
\ No newline at end of file
+}
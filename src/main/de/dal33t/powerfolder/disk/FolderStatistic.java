@@ -23,8 +23,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
 import java.util.logging.Level;
@@ -44,6 +47,8 @@ import de.dal33t.powerfolder.event.NodeManagerListener;
 import de.dal33t.powerfolder.event.PatternChangedEvent;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FolderStatisticInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FolderFilesChanged;
 import de.dal33t.powerfolder.util.ProUtil;
 import de.dal33t.powerfolder.util.SimpleTimeEstimator;
 import de.dal33t.powerfolder.util.TransferCounter;
@@ -52,6 +57,10 @@ import de.dal33t.powerfolder.util.Util;
 /**
  * Class to hold pre-calculated static data for a folder. Only freshly
  * calculated if needed.
+ * <p>
+ * Changes to single files only update the contribution of these files. All
+ * files are recalculated on membership, connection and pattern changes and
+ * periodically as consistency check.
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
  * @version $Revision: 1.22 $
@@ -71,6 +80,7 @@ public class FolderStatistic extends PFComponent {
 
     private final Folder folder;
     private final long delay;
+    private final long verifyInterval;
 
     private volatile FolderStatisticInfo calculating;
     private volatile FolderStatisticInfo current;
@@ -86,7 +96,31 @@ public class FolderStatistic extends PFComponent {
     // the "accepted" traffic. (= If the downloaded chunk was saved to a file)
     // Used to calculate ETA
     private TransferCounter downloadCounter;
-    private MyCalculatorTask calculatorTask;
+    private volatile MyCalculatorTask calculatorTask;
+
+    /**
+     * The contribution of each file to the current statistics. Guarded by
+     * this.
+     */
+    private Map<FileInfo, FileStat> fileStats;
+
+    /**
+     * The members the current statistics were calculated for. null if not
+     * calculated yet. Guarded by this.
+     */
+    private List<Member> calculatedMembers;
+
+    /**
+     * The files changed since the last calculation.
+     */
+    private final Map<FileInfo, FileInfo> changedFiles = Util
+        .createConcurrentHashMap();
+
+    /**
+     * If all files need to be recalculated.
+     */
+    private volatile boolean recalculationRequired = true;
+    private volatile long lastRecalculation;
     private NodeManagerListener nodeManagerListener;
 
     FolderStatistic(Folder folder) {
@@ -97,6 +131,8 @@ public class FolderStatistic extends PFComponent {
         downloadCounter = new TransferCounter();
         delay = 1000L * ConfigurationEntry.FOLDER_STATS_CALC_TIME
             .getValueInt(getController());
+        verifyInterval = 1000L * ConfigurationEntry.FOLDER_STATS_VERIFY_TIME
+            .getValueInt(getController());
 
         MyFolderListener listener = new MyFolderListener();
         folder.addFolderListener(listener);
@@ -121,6 +157,27 @@ public class FolderStatistic extends PFComponent {
 
     // package protected called from Folder
     public void scheduleCalculate() {
+        recalculationRequired = true;
+        schedule();
+    }
+
+    /**
+     * Schedules the update of the statistics for the given files only.
+     *
+     * @param fileInfos
+     *            the files changed locally or at any member.
+     */
+    private void scheduleUpdate(Collection<FileInfo> fileInfos) {
+        if (fileInfos == null || fileInfos.isEmpty()) {
+            return;
+        }
+        for (FileInfo fileInfo : fileInfos) {
+            changedFiles.put(fileInfo, fileInfo);
+        }
+        schedule();
+    }
+
+    private void schedule() {
         if (calculating != null) {
             return;
         }
@@ -135,7 +192,9 @@ public class FolderStatistic extends PFComponent {
         if (calculatorTask != null) {
             return;
         }
-        if (current.getAnalyzedFiles() < MAX_ITEMS) {
+        if (!recalculationRequired
+            || current.getAnalyzedFiles() < MAX_ITEMS)
+        {
             setCalculateIn(2000);
         } else {
             setCalculateIn(delay);
@@ -161,7 +220,9 @@ public class FolderStatistic extends PFComponent {
     }
 
     /**
-     * Calculates the statistics
+     * Calculates the statistics of all files. Also used as periodic
+     * consistency check of the updates by
+     * {@link #calculateChanges0()}.
      *
      * @private public because for test
      */
@@ -170,21 +231,43 @@ public class FolderStatistic extends PFComponent {
             logFiner("-------------Recalculation statisitcs on " + folder);
         }
         long startTime = System.currentTimeMillis();
+        recalculationRequired = false;
+        changedFiles.clear();
         // clear statistics before
         calculating = new FolderStatisticInfo(folder.getInfo());
 
-        Collection<Member> members = folder.getMembersAsCollection();
-        Collection<Member> membersCalulated = new ArrayList<Member>(
-            members.size());
+        List<Member> members = new ArrayList<Member>();
+        for (Member member : folder.getMembersAsCollection()) {
+            if (member.isCompletelyConnected() || member.isMySelf()) {
+                members.add(member);
+            }
+        }
 
-        // Calc member stats.
+        // Calc file stats.
+        Map<FileInfo, FileStat> stats = new HashMap<FileInfo, FileStat>();
+        Counters counters = new Counters(members.size());
         for (Member member : members) {
-            if (member.isCompletelyConnected() || member.isMySelf()) {
-                if (calculateMemberStats(member, membersCalulated)) {
-                    membersCalulated.add(member);
+            Collection<FileInfo> files = folder.getFilesAsCollection(member);
+            calculating.setAnalyzedFiles(calculating.getAnalyzedFiles()
+                + files.size());
+            for (FileInfo fileInfo : files) {
+                if (!folder.isStarted()) {
+                    recalculationRequired = true;
+                    calculating = null;
+                    return;
                 }
+                if (stats.containsKey(fileInfo)) {
+                    // Already calculated from the list of another member
+                    continue;
+                }
+                FileStat stat = calculateFileStat(fileInfo, members);
+                stats.put(fileInfo, stat);
+                counters.add(stat, 1);
             }
         }
+        counters.writeTo(calculating, members);
+        fileStats = stats;
+        calculatedMembers = members;
 
         // Update the estimator with the new total sync.
         calculating.setEstimatedSyncDate(estimator.updateEstimate(calculating
@@ -204,26 +287,9 @@ public class FolderStatistic extends PFComponent {
             current.getPartialSyncStatMap());
         current = calculating;
         calculating = null;
+        lastRecalculation = System.currentTimeMillis();
 
-        if (!folder.isDeviceDisconnected()) {
-            Path tempFile = folder.getSystemSubDir().resolve(
-                Folder.FOLDER_STATISTIC + ".writing");
-            Path file = folder.getSystemSubDir().resolve(
-                Folder.FOLDER_STATISTIC);
-            if (current.save(tempFile)) {
-                try {
-                    Files.deleteIfExists(file);
-                    Files.move(tempFile, file);
-                } catch (IOException e) {
-                    try {
-                        Files.copy(tempFile, file);
-                        Files.delete(tempFile);
-                    } catch (IOException e2) {
-                    }
-                }
-                // Ignore exceptions. Folder Statistics are not crucial for operations.
-            }
-        }
+        save();
 
         // Recalculate the last modified date of the folder.
         Date date = null;
@@ -252,6 +318,94 @@ public class FolderStatistic extends PFComponent {
         folder.notifyStatisticsCalculated();
     }
 
+    /**
+     * Updates the statistics with the files changed since the last
+     * calculation. Subtracts the previous contribution of each changed file
+     * and adds the new one.
+     *
+     * @private public because for test
+     */
+    public synchronized void calculateChanges0() {
+        if (calculatedMembers == null || changedFiles.isEmpty()) {
+            // Nothing to update or never calculated.
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        List<FileInfo> changed = new ArrayList<FileInfo>(
+            changedFiles.keySet());
+        changedFiles.keySet().removeAll(changed);
+
+        List<Member> members = calculatedMembers;
+        Counters counters = new Counters(members.size());
+        counters.readFrom(current, members);
+        Date date = lastFileChangeDate;
+        for (FileInfo fileInfo : changed) {
+            FileStat stat = calculateFileStat(fileInfo, members);
+            FileStat oldStat = fileStats.put(fileInfo, stat);
+            if (oldStat != null) {
+                counters.add(oldStat, -1);
+            }
+            counters.add(stat, 1);
+
+            FileInfo localFileInfo = folder.getFile(fileInfo);
+            if (localFileInfo != null && localFileInfo.isFile()
+                && localFileInfo.getModifiedDate() != null)
+            {
+                if (date == null
+                    || date.compareTo(localFileInfo.getModifiedDate()) < 0)
+                {
+                    date = localFileInfo.getModifiedDate();
+                }
+            }
+        }
+
+        FolderStatisticInfo updated = new FolderStatisticInfo(
+            folder.getInfo());
+        counters.writeTo(updated, members);
+        updated.setAnalyzedFiles(current.getAnalyzedFiles());
+        updated.setArchiveSize(current.getArchiveSize());
+        updated.setEstimatedSyncDate(estimator.updateEstimate(updated
+            .getAverageSyncPercentage()));
+        updated.getPartialSyncStatMap().putAll(
+            current.getPartialSyncStatMap());
+        current = updated;
+        lastFileChangeDate = date;
+
+        save();
+
+        if (isFine()) {
+            logFine("Update completed (" + changed.size()
+                + " Files analyzed) in "
+                + (System.currentTimeMillis() - startTime) + "ms. Sync: "
+                + getHarmonizedSyncPercentage());
+        }
+
+        // Fire event
+        folder.notifyStatisticsCalculated();
+    }
+
+    private void save() {
+        if (folder.isDeviceDisconnected()) {
+            return;
+        }
+        Path tempFile = folder.getSystemSubDir().resolve(
+            Folder.FOLDER_STATISTIC + ".writing");
+        Path file = folder.getSystemSubDir().resolve(Folder.FOLDER_STATISTIC);
+        if (current.save(tempFile)) {
+            try {
+                Files.deleteIfExists(file);
+                Files.move(tempFile, file);
+            } catch (IOException e) {
+                try {
+                    Files.copy(tempFile, file);
+                    Files.delete(tempFile);
+                } catch (IOException e2) {
+                }
+            }
+            // Ignore exceptions. Folder Statistics are not crucial for operations.
+        }
+    }
+
     /**
      * @return the date that one of the files in the folder changed.
      */
@@ -284,137 +438,83 @@ public class FolderStatistic extends PFComponent {
     }
 
     /**
-     * @param member
-     * @param alreadyConsidered
-     * @return true if the member stats could be calced. false if filelist is
-     *         missing.
+     * Calculates what a single file adds to the statistics. The file is
+     * counted to the totals by the first of the members that has the newest
+     * version.
+     *
+     * @param fileInfo
+     * @param members
+     *            the members to calculate the stats for.
+     * @return the contribution of the file to the statistics.
      */
-    private boolean calculateMemberStats(Member member,
-        Collection<Member> alreadyConsidered)
+    private FileStat calculateFileStat(FileInfo fileInfo, List<Member> members)
     {
-        Collection<FileInfo> files = folder.getFilesAsCollection(member);
-        if (files == null) {
-            logWarning("Unable to calc stats on member, no filelist yet: "
-                + member);
-            return false;
+        FileStat stat = new FileStat();
+        if (folder.getDiskItemFilter().isExcluded(fileInfo)) {
+            return stat;
         }
-
         FolderRepository repo = getController().getFolderRepository();
-        int memberFilesCount = 0;
-        int memberFilesCountInSync = 0;
-        // The total size of the folder at the member (including files not in
-        // sync).
-        long memberSize = 0;
-        // Total size of files completely in sync at the member.
-        long memberSizeInSync = 0;
-        for (FileInfo fileInfo : files) {
-            if (!folder.isStarted()) {
-                return false;
-            }
-            calculating.setAnalyzedFiles(calculating.getAnalyzedFiles() + 1);
-            if (fileInfo.isDeleted()) {
+        FileInfo newestFileInfo = null;
+        // If one of the previous members has the newest version
+        boolean inSyncBefore = false;
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get(i);
+            FileInfo memberFileInfo = member.getFile(fileInfo);
+            if (memberFileInfo == null || !memberFileInfo.isFile()) {
                 continue;
             }
-            if (folder.getDiskItemFilter().isExcluded(fileInfo)) {
-                continue;
+            if (newestFileInfo == null) {
+                newestFileInfo = memberFileInfo.getNewestVersion(repo);
             }
-
-            FileInfo newestFileInfo = fileInfo.getNewestVersion(repo);
-            FileInfo myFileInfo = folder.getFile(fileInfo);
-
             if (newestFileInfo == null) {
-                if (folder.hasWritePermission(member)) {
+                if (!memberFileInfo.isDeleted()
+                    && folder.hasWritePermission(member))
+                {
                     logWarning("Newest version not found for "
-                        + fileInfo.toDetailString());
+                        + memberFileInfo.toDetailString());
                 }
-                // newestFileInfo = fileInfo;
                 continue;
             }
-            boolean inSync = inSync(member, fileInfo, newestFileInfo);
-
-            if (inSync) {
-                // Remove partial stat for this member / file, if it exists.
-                Map<FileInfo, Long> memberMap = current.getPartialSyncStatMap()
-                    .get(member.getInfo());
-                if (memberMap != null) {
-                    Long removedBytes = memberMap.remove(fileInfo);
-                    if (removedBytes != null) {
-                        if (isFiner()) {
-                            logFiner("Removed partial stat for "
-                                + member.getInfo().nick + ", "
-                                + fileInfo.getRelativeName() + ", "
-                                + removedBytes);
-                        }
-                    }
-                }
-            }
-
-            if (inSync && !newestFileInfo.isDeleted()) {
-                boolean incoming = true;
-                for (Member alreadyMember : alreadyConsidered) {
-                    FileInfo otherMemberFile = alreadyMember.getFile(fileInfo);
-                    if (otherMemberFile == null) {
-                        continue;
-                    }
-
-                    boolean otherInSync = inSync(alreadyMember,
-                        otherMemberFile, newestFileInfo);
-                    if (otherInSync) {
-                        incoming = false;
-                        break;
-                    }
-                }
-                if (incoming
-                    && (myFileInfo == null || newestFileInfo
-                        .isNewerThan(myFileInfo)))
-                {
-                    calculating.setIncomingFilesCount(calculating
-                        .getIncomingFilesCount() + 1);
-                }
+            boolean inSync = inSync(member, memberFileInfo, newestFileInfo);
+            if (memberFileInfo.isDeleted()) {
+                inSyncBefore |= inSync;
+                continue;
             }
 
-            // Count file
-            memberFilesCount++;
-            memberSize += fileInfo.getSize();
             if (inSync) {
-                memberFilesCountInSync++;
-                memberSizeInSync += fileInfo.getSize();
-            }
-
-            if (!inSync) {
-                // Not in sync, therefore not added to totals
-                continue;
+                removePartialSyncStat(member, memberFileInfo);
+                if (!inSyncBefore && !newestFileInfo.isDeleted()) {
+                    stat.totalSize = memberFileInfo.getSize();
+                    FileInfo myFileInfo = folder.getFile(fileInfo);
+                    stat.incoming = myFileInfo == null
+                        || newestFileInfo.isNewerThan(myFileInfo);
+                }
+                inSyncBefore = true;
             }
+            stat.put(i, members.size(), memberFileInfo.getSize(), inSync);
+        }
+        return stat;
+    }
 
-            boolean addToTotals = !newestFileInfo.isDeleted();
-            for (Member alreadyM : alreadyConsidered) {
-                FileInfo otherMemberFile = alreadyM.getFile(fileInfo);
-                if (otherMemberFile == null) {
-                    continue;
-                }
-                boolean otherInSync = inSync(alreadyM, otherMemberFile,
-                    newestFileInfo);
-                if (otherInSync) {
-                    // File already added to totals
-                    addToTotals = false;
-                    break;
+    /**
+     * Remove partial stat for this member / file, if it exists.
+     *
+     * @param member
+     * @param fileInfo
+     */
+    private void removePartialSyncStat(Member member, FileInfo fileInfo) {
+        Map<FileInfo, Long> memberMap = current.getPartialSyncStatMap().get(
+            member.getInfo());
+        if (memberMap != null) {
+            Long removedBytes = memberMap.remove(fileInfo);
+            if (removedBytes != null) {
+                if (isFiner()) {
+                    logFiner("Removed partial stat for "
+                        + member.getInfo().nick + ", "
+                        + fileInfo.getRelativeName() + ", " + removedBytes);
                 }
             }
-            if (addToTotals) {
-                calculating
-                    .setTotalFilesCount(calculating.getTotalFilesCount() + 1);
-                calculating.setTotalSize(calculating.getTotalSize()
-                    + fileInfo.getSize());
-            }
         }
-
-        calculating.getFilesCount().put(member.getInfo(), memberFilesCount);
-        calculating.getFilesCountInSync().put(member.getInfo(),
-            memberFilesCountInSync);
-        calculating.getSizes().put(member.getInfo(), memberSize);
-        // logWarning("put: " + member + ", sizeinSync: " + memberSizeInSync);
-        calculating.getSizesInSync().put(member.getInfo(), memberSizeInSync);
-        return true;
     }
 
     public String toString() {
@@ -674,8 +774,21 @@ public class FolderStatistic extends PFComponent {
 
     private class MyCalculatorTask extends TimerTask {
         public void run() {
-            calculate0();
-            calculatorTask = null;
+            try {
+                if (recalculationRequired
+                    || System.currentTimeMillis() - lastRecalculation > verifyInterval)
+                {
+                    calculate0();
+                } else {
+                    calculateChanges0();
+                }
+            } finally {
+                calculatorTask = null;
+            }
+            if (recalculationRequired || !changedFiles.isEmpty()) {
+                // Changed during calculation
+                schedule();
+            }
         }
 
         @Override
@@ -703,24 +816,47 @@ public class FolderStatistic extends PFComponent {
         }
 
         public void remoteContentsChanged(FolderEvent folderEvent) {
-            calculateIfRequired(folderEvent);
+            FolderFilesChanged changes = folderEvent.getChangeList();
+            if (changes == null) {
+                // New filelist
+                calculateIfRequired(folderEvent);
+                return;
+            }
+            if (folderEvent.getMember() != null
+                && !folderEvent.getMember().isCompletelyConnected())
+            {
+                // Member not completely connected.
+                return;
+            }
+            if (changes.getFiles() != null) {
+                scheduleUpdate(Arrays.asList(changes.getFiles()));
+            }
+            if (changes.getRemoved() != null) {
+                scheduleUpdate(Arrays.asList(changes.getRemoved()));
+            }
         }
 
         public void scanResultCommited(FolderEvent folderEvent) {
-            if (folderEvent.getScanResult().isChangeDetected()) {
-                // Recalculate statistics
-                scheduleCalculate();
+            ScanResult scanResult = folderEvent.getScanResult();
+            if (scanResult.isChangeDetected()) {
+                // Update statistics
+                scheduleUpdate(scanResult.getNewFiles());
+                scheduleUpdate(scanResult.getChangedFiles());
+                scheduleUpdate(scanResult.getDeletedFiles());
+                scheduleUpdate(scanResult.getRestoredFiles());
+                scheduleUpdate(scanResult.getMovedFiles().keySet());
+                scheduleUpdate(scanResult.getMovedFiles().values());
             }
         }
 
         public void fileChanged(FolderEvent folderEvent) {
-            // Recalculate statistics
-            scheduleCalculate();
+            // Update statistics
+            scheduleUpdate(folderEvent.getScannedFileInfos());
         }
 
         public void filesDeleted(FolderEvent folderEvent) {
-            // Recalculate statistics
-            scheduleCalculate();
+            // Update statistics
+            scheduleUpdate(folderEvent.getDeletedFileInfos());
         }
 
         public void syncProfileChanged(FolderEvent folderEvent) {
@@ -760,6 +896,118 @@ public class FolderStatistic extends PFComponent {
         }
     }
 
+    /**
+     * The contribution of a single file to the statistics.
+     */
+    private static class FileStat {
+        // Size of the file at each of the calculated members. -1 if not
+        // counted at the member.
+        private long[] sizes;
+        private boolean[] inSync;
+        // Size added to the totals. -1 if not counted in the totals.
+        private long totalSize = -1;
+        private boolean incoming;
+
+        private void put(int memberIndex, int nMembers, long size,
+            boolean memberInSync)
+        {
+            if (sizes == null) {
+                sizes = new long[nMembers];
+                Arrays.fill(sizes, -1);
+                inSync = new boolean[nMembers];
+            }
+            sizes[memberIndex] = size;
+            inSync[memberIndex] = memberInSync;
+        }
+    }
+
+    /**
+     * The sums of the file contributions.
+     */
+    private static class Counters {
+        private final int[] filesCount;
+        private final int[] filesCountInSync;
+        private final long[] sizes;
+        private final long[] sizesInSync;
+        private int totalFilesCount;
+        private long totalSize;
+        private int incomingFilesCount;
+
+        private Counters(int nMembers) {
+            filesCount = new int[nMembers];
+            filesCountInSync = new int[nMembers];
+            sizes = new long[nMembers];
+            sizesInSync = new long[nMembers];
+        }
+
+        /**
+         * @param stat
+         * @param sign
+         *            1 to add, -1 to subtract the contribution.
+         */
+        private void add(FileStat stat, int sign) {
+            if (stat.sizes != null) {
+                for (int i = 0; i < stat.sizes.length; i++) {
+                    if (stat.sizes[i] < 0) {
+                        continue;
+                    }
+                    filesCount[i] += sign;
+                    sizes[i] += sign * stat.sizes[i];
+                    if (stat.inSync[i]) {
+                        filesCountInSync[i] += sign;
+                        sizesInSync[i] += sign * stat.sizes[i];
+                    }
+                }
+            }
+            if (stat.totalSize >= 0) {
+                totalFilesCount += sign;
+                totalSize += sign * stat.totalSize;
+            }
+            if (stat.incoming) {
+                incomingFilesCount += sign;
+            }
+        }
+
+        private void readFrom(FolderStatisticInfo info, List<Member> members)
+        {
+            for (int i = 0; i < members.size(); i++) {
+                MemberInfo memberInfo = members.get(i).getInfo();
+                filesCount[i] = valueOf(info.getFilesCount().get(memberInfo));
+                filesCountInSync[i] = valueOf(info.getFilesCountInSync().get(
+                    memberInfo));
+                sizes[i] = valueOf(info.getSizes().get(memberInfo));
+                sizesInSync[i] = valueOf(info.getSizesInSync().get(
+                    memberInfo));
+            }
+            totalFilesCount = info.getTotalFilesCount();
+            totalSize = info.getTotalSize();
+            incomingFilesCount = info.getIncomingFilesCount();
+        }
+
+        private void writeTo(FolderStatisticInfo info, List<Member> members)
+        {
+            for (int i = 0; i < members.size(); i++) {
+                MemberInfo memberInfo = members.get(i).getInfo();
+                info.getFilesCount().put(memberInfo, filesCount[i]);
+                info.getFilesCountInSync().put(memberInfo,
+                    filesCountInSync[i]);
+                info.getSizes().put(memberInfo, sizes[i]);
+                info.getSizesInSync().put(memberInfo, sizesInSync[i]);
+            }
+            info.setTotalFilesCount(totalFilesCount);
+            info.setTotalSize(totalSize);
+            info.setIncomingFilesCount(incomingFilesCount);
+        }
+
+        private static int valueOf(Integer value) {
+            return value != null ? value : 0;
+        }
+
+        private static long valueOf(Long value) {
+            return value != null ? value : 0;
+        }
+    }
+
     /**
      * Listens to the nodemanager and triggers recalculation if required
      *
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.event.DiskItemFilterListener;
+import de.dal33t.powerfolder.event.PatternChangedEvent;
+import de.dal33t.powerfolder.light.DirectoryInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * The files and directories of a folder, which might be incoming. Contains
+ * every item, of which a member has a newer version than the local one,
+ * except remote deleted items not known locally and excluded items. If local
+ * changes get reverted, also the files changed locally.
+ * <p>
+ * Maintained incrementally from the changes to the database of the folder.
+ * Changes to the ignore patterns rebuild the index on next access. The
+ * candidates are a superset of the incoming files: The final check, which
+ * depends on connection, permission and newest version, is done by
+ * {@link Folder#getIncomingFiles(boolean, int)}.
+ * <p>
+ * Thread safe.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+class IncomingFilesIndex extends Loggable implements DiskItemFilterListener {
+    private final Folder folder;
+    private final Map<FileInfo, FileInfo> candidates = Util
+        .createConcurrentHashMap();
+
+    /**
+     * If the index needs to be rebuilt from the whole database.
+     */
+    private boolean dirty = true;
+
+    /**
+     * If local changes get reverted. Locally changed files are candidates
+     * then.
+     */
+    private boolean revert;
+
+    IncomingFilesIndex(Folder folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @return a snapshot of the items, which might be incoming.
+     */
+    Collection<FileInfo> getCandidates() {
+        synchronized (this) {
+            boolean revertNow = folder.isRevertLocalChanges();
+            if (dirty || revert != revertNow) {
+                revert = revertNow;
+                rebuild();
+            }
+            return new ArrayList<FileInfo>(candidates.keySet());
+        }
+    }
+
+    /**
+     * Re-evaluates the items after a change of the local or any remote
+     * version.
+     *
+     * @param fInfos
+     */
+    void changed(Collection<? extends FileInfo> fInfos) {
+        synchronized (this) {
+            if (dirty) {
+                // Covered by the rebuild
+                return;
+            }
+            for (FileInfo fInfo : fInfos) {
+                update(fInfo);
+            }
+        }
+    }
+
+    /**
+     * Re-evaluates the item after a change of the local or any remote version.
+     *
+     * @param fInfo
+     */
+    void changed(FileInfo fInfo) {
+        changed(Collections.singleton(fInfo));
+    }
+
+    /**
+     * Rebuilds the index on next access. To be called if a whole domain of the
+     * database has changed.
+     */
+    synchronized void invalidate() {
+        dirty = true;
+        candidates.clear();
+    }
+
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        candidates.clear();
+        FileInfoDAO dao = folder.getDAO();
+        for (Member member : folder.getMembersAsCollection()) {
+            if (member.isMySelf()) {
+                continue;
+            }
+            for (FileInfo fInfo : dao.findAllFiles(member.getId())) {
+                if (!candidates.containsKey(fInfo)) {
+                    update(fInfo);
+                }
+            }
+            for (DirectoryInfo dirInfo : dao.findAllDirectories(member
+                .getId()))
+            {
+                if (!candidates.containsKey(dirInfo)) {
+                    update(dirInfo);
+                }
+            }
+        }
+        dirty = false;
+        if (isFine()) {
+            logFine("Rebuilt incoming files index of " + folder + ": "
+                + candidates.size() + " candidates in "
+                + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private void update(FileInfo fInfo) {
+        if (isCandidate(fInfo)) {
+            candidates.put(fInfo, fInfo);
+        } else {
+            candidates.remove(fInfo);
+        }
+    }
+
+    private boolean isCandidate(FileInfo fInfo) {
+        if (folder.getDiskItemFilter().isExcluded(fInfo)) {
+            return false;
+        }
+        FileInfo localFile = folder.getFile(fInfo);
+        FileInfoDAO dao = folder.getDAO();
+        for (Member member : folder.getMembersAsCollection()) {
+            if (member.isMySelf()) {
+                continue;
+            }
+            FileInfo remoteFile = dao.find(fInfo, member.getId());
+            if (remoteFile == null) {
+                continue;
+            }
+            if (localFile == null) {
+                if (!remoteFile.isDeleted()) {
+                    return true;
+                }
+            } else if (remoteFile.isNewerThan(localFile)) {
+                return true;
+            } else if (revert && remoteFile.isFile()
+                && !remoteFile.isDeleted() && localFile.isNewerThan(remoteFile))
+            {
+                // Incoming, local changes get reverted
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // DiskItemFilterListener *************************************************
+
+    public void patternAdded(PatternChangedEvent e) {
+        invalidate();
+    }
+
+    public void patternRemoved(PatternChangedEvent e) {
+        invalidate();
+    }
+
+    public boolean fireInEventDispatchThread() {
+        return false;
+    }
+}
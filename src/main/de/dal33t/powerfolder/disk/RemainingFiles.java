@@ -0,0 +1,129 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * The known files and directories of a folder not (yet) found on disk during
+ * a scan. Keyed by relative name.
+ * <p>
+ * #1531 / #1804: If case is ignored a second map with the case-folded relative
+ * names allows constant time lookups of files with different case on disk.
+ * Known items that differ only in case are rare and kept in a list.
+ * <p>
+ * Thread safe.
+ *
+ * @author sprajc
+ */
+public class RemainingFiles {
+    private final boolean ignoreCase;
+    private final Map<String, FileInfo> remaining = Util
+        .createConcurrentHashMap();
+
+    /**
+     * Case-folded relative name -> known item. May contain items already
+     * removed from {@link #remaining}.
+     */
+    private final Map<String, FileInfo> foldedNames;
+    private final List<FileInfo> caseCollisions = new CopyOnWriteArrayList<FileInfo>();
+
+    /**
+     * @param ignoreCase
+     *            usually {@link FileInfo#IGNORE_CASE}
+     */
+    public RemainingFiles(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.foldedNames = ignoreCase
+            ? Util.<String, FileInfo> createConcurrentHashMap()
+            : null;
+    }
+
+    /**
+     * @param fInfo
+     *            the known item to add
+     */
+    public void add(FileInfo fInfo) {
+        remaining.put(fInfo.getRelativeName(), fInfo);
+        if (ignoreCase) {
+            FileInfo previous = foldedNames.put(fInfo.getRelativeName()
+                .toLowerCase(), fInfo);
+            if (previous != null && previous != fInfo) {
+                caseCollisions.add(previous);
+            }
+        }
+    }
+
+    /**
+     * Removes the known item with exactly this relative name.
+     *
+     * @param relativeName
+     * @return the removed item or null if not remaining.
+     */
+    public FileInfo remove(String relativeName) {
+        return remaining.remove(relativeName);
+    }
+
+    /**
+     * Removes the known item that matches the relative name of a file found
+     * on disk. If case is ignored an item with a different case matches too.
+     * If several items match all get removed.
+     *
+     * @param relativeName
+     * @return the removed item or null if not remaining.
+     */
+    public FileInfo removeFound(String relativeName) {
+        FileInfo exists = remaining.remove(relativeName);
+        if (exists != null || !ignoreCase) {
+            return exists;
+        }
+        FileInfo candidate = foldedNames.get(relativeName.toLowerCase());
+        if (candidate != null
+            && remaining.remove(candidate.getRelativeName()) != null)
+        {
+            exists = candidate;
+        }
+        for (FileInfo other : caseCollisions) {
+            if (other.getRelativeName().equalsIgnoreCase(relativeName)
+                && remaining.remove(other.getRelativeName()) != null)
+            {
+                exists = other;
+            }
+        }
+        return exists;
+    }
+
+    /**
+     * @return the remaining items. Removal through the iterator is supported.
+     */
+    public Collection<FileInfo> values() {
+        return remaining.values();
+    }
+
+    public int size() {
+        return remaining.size();
+    }
+}
@@ -25,6 +25,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.Reject;
@@ -59,7 +60,8 @@ public class ScanResult {
     /** files with potential problems in filenames (like 2 long or illegal chars) */
     private Map<FileInfo, List<Problem>> problemFiles;
 
-    private volatile int totalFilesCount;
+    private final AtomicInteger totalFilesCount = new AtomicInteger();
+    private long scanTime;
 
     public ScanResult(ResultState result) {
         this(false);
@@ -138,7 +140,27 @@ public class ScanResult {
     }
 
     public int getTotalFilesCount() {
-        return totalFilesCount;
+        return totalFilesCount.get();
+    }
+
+    /**
+     * @return the time the scan took in milliseconds.
+     */
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    public void setScanTime(long scanTime) {
+        this.scanTime = scanTime;
+    }
+
+    /**
+     * @return the scanned files and directories per second.
+     */
+    public long getFilesPerSecond() {
+        return scanTime > 0
+            ? totalFilesCount.get() * 1000L / scanTime
+            : totalFilesCount.get();
     }
 
     // public void setTotalFilesCount(int totalFilesCount) {
@@ -166,11 +188,11 @@ public class ScanResult {
     }
 
     public void incrementTotalFilesCount() {
-            totalFilesCount++;
+        totalFilesCount.incrementAndGet();
     }
 
     public String toString() {
-        return resultState + ", Total files: " + totalFilesCount
+        return resultState + ", Total files: " + totalFilesCount.get()
             + ", Newfiles: " + newFiles.size() + ", changed files: "
             + changedFiles.size() + ", deleted files: " + deletedFiles.size()
             + " restoredFiles: " + restoredFiles.size() + ", movedFiles: "
@@ -48,6 +48,14 @@ public interface FileInfoDAO {
      */
     void stop();
 
+    /**
+     * Attaches a journal that records all changes of the own domain (
+     * <code>null</code>). Pass <code>null</code> to detach.
+     *
+     * @param journal
+     */
+    void setJournal(FileInfoJournal journal);
+
     /**
      * Puts the file into the index, replacs existing FileInfo that has same
      * fileName, folderId and domain
@@ -111,6 +119,14 @@ public interface FileInfoDAO {
      */
     void delete(String domain, FileInfo fInfo);
 
+    /**
+     * Deletes the FileInfos from the DAO in one batch.
+     *
+     * @param domain
+     * @param fInfos
+     */
+    void delete(String domain, Collection<FileInfo> fInfos);
+
     /**
      * Clears the whole domain by deleting all FileInfo within that domain.
      *
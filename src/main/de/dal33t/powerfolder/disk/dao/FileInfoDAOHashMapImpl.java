@@ -4,9 +4,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 import de.dal33t.powerfolder.disk.DiskItemFilter;
 import de.dal33t.powerfolder.disk.dao.FileInfoCriteria.Type;
@@ -25,11 +27,15 @@ import de.dal33t.powerfolder.util.logging.Loggable;
  * @author sprajc
  */
 public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
+    private static final Pattern HASH_SEPARATOR = Pattern.compile("[,;\\s]+");
+    private static final String[] NO_HASHES = new String[0];
+
     private final ConcurrentMap<String, Domain> domains = Util
         .createConcurrentHashMap(4);
 
     private String selfDomain;
     private DiskItemFilter filter;
+    private volatile FileInfoJournal journal;
 
     public FileInfoDAOHashMapImpl(String selfDomain, DiskItemFilter filter) {
         super();
@@ -120,17 +126,54 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public void delete(String domain, FileInfo info) {
-        if (info.isFile()) {
-            getDomain(domain).files.remove(info);
-        } else {
-            logWarning("Deleting directory: " + info.toDetailString());
-            getDomain(domain).directories.remove(info);
+        Domain d = getDomain(domain);
+        synchronized (d) {
+            FileInfo removed;
+            if (info.isFile()) {
+                removed = d.files.remove(info);
+            } else {
+                logWarning("Deleting directory: " + info.toDetailString());
+                removed = d.directories.remove(info);
+            }
+            if (removed != null) {
+                d.unindex(removed);
+            }
+        }
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logDelete(info);
+        }
+    }
+
+    public void delete(String domain, Collection<FileInfo> infos) {
+        Domain d = getDomain(domain);
+        synchronized (d) {
+            for (FileInfo info : infos) {
+                FileInfo removed;
+                if (info.isFile()) {
+                    removed = d.files.remove(info);
+                } else {
+                    logWarning("Deleting directory: " + info.toDetailString());
+                    removed = d.directories.remove(info);
+                }
+                if (removed != null) {
+                    d.unindex(removed);
+                }
+            }
+        }
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logDelete(infos);
         }
     }
 
     public void deleteDomain(String domain, int newInitialSize) {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
         domains.remove(theDomain);
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logClear();
+        }
         if (newInitialSize > 0) {
             domains.put(theDomain, new Domain(newInitialSize));
             if (isFiner()) {
@@ -153,29 +196,16 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         Reject.ifBlank(oid, "OID");
         FileInfo newestVersion = null;
         for (String domain : domains) {
-            Domain d = getDomain(domain);
-            for (FileInfo candidateFile : d.files.values()) {
-                if (StringUtils.isBlank(candidateFile.getOID())) {
-                    continue;
-                }
-                if (candidateFile.getOID().equals(oid)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
-                }
+            Map<FileInfo, FileInfo> candidates = getDomain(domain).oids
+                .get(oid);
+            if (candidates == null) {
+                continue;
             }
-            for (FileInfo candidateFile : d.directories.values()) {
-                if (StringUtils.isBlank(candidateFile.getOID())) {
-                    continue;
-                }
-                if (candidateFile.getOID().equals(oid)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
+            for (FileInfo candidateFile : candidates.values()) {
+                if (newestVersion == null
+                    || candidateFile.isNewerThan(newestVersion))
+                {
+                    newestVersion = candidateFile;
                 }
             }
         }
@@ -187,23 +217,16 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         Reject.ifBlank(hash, "Hash");
         FileInfo newestVersion = null;
         for (String domain : domains) {
-            Domain d = getDomain(domain);
-            for (FileInfo candidateFile : d.files.values()) {
-                if (candidateFile.isMatchingHash(hash)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
-                }
+            Map<FileInfo, FileInfo> candidates = getDomain(domain).hashes
+                .get(hash);
+            if (candidates == null) {
+                continue;
             }
-            for (FileInfo candidateFile : d.directories.values()) {
-                if (candidateFile.isMatchingHash(hash)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
+            for (FileInfo candidateFile : candidates.values()) {
+                if (newestVersion == null
+                    || candidateFile.isNewerThan(newestVersion))
+                {
+                    newestVersion = candidateFile;
                 }
             }
         }
@@ -258,6 +281,10 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         domains.clear();
     }
 
+    public void setJournal(FileInfoJournal journal) {
+        this.journal = journal;
+    }
+
     public void store(String domain, FileInfo... infos) {
         store(domain, Arrays.asList(infos));
     }
@@ -265,21 +292,37 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     public void store(String domain, Collection<FileInfo> infos) {
         Domain d = getDomain(domain);
 
-        for (FileInfo fileInfo : infos) {
-            if (fileInfo.isFile()) {
-                d.files.put(fileInfo, fileInfo);
-                // Make sure not dir is left with name name.
-                d.directories.remove(fileInfo);
-            } else {
-                if (isFiner()) {
-                    logFiner("Storing directory: " + fileInfo.toDetailString());
+        synchronized (d) {
+            for (FileInfo fileInfo : infos) {
+                FileInfo old;
+                if (fileInfo.isFile()) {
+                    old = d.files.put(fileInfo, fileInfo);
+                    // Make sure not dir is left with name name.
+                    FileInfo oldDir = d.directories.remove(fileInfo);
+                    if (old == null) {
+                        old = oldDir;
+                    }
+                } else {
+                    if (isFiner()) {
+                        logFiner("Storing directory: "
+                            + fileInfo.toDetailString());
+                    }
+                    old = d.directories.put((DirectoryInfo) fileInfo,
+                        (DirectoryInfo) fileInfo);
+                    // Make sure not file is left with name name.
+                    FileInfo oldFile = d.files.remove(fileInfo);
+                    if (old == null) {
+                        old = oldFile;
+                    }
                 }
-                d.directories.put((DirectoryInfo) fileInfo,
-                    (DirectoryInfo) fileInfo);
-                // Make sure not file is left with name name.
-                d.files.remove(fileInfo);
+                d.index(fileInfo, old);
             }
         }
+        // Journal after the maps have been updated. See FileInfoJournal.
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logStore(infos);
+        }
     }
 
     public Collection<FileInfo> findInDirectory(String domainStr,
@@ -322,55 +365,12 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
             if (domain == null) {
                 continue;
             }
-            if (criteria.getType() == Type.DIRECTORIES_ONLY
-                || criteria.getType() == Type.FILES_AND_DIRECTORIES)
-            {
-                for (DirectoryInfo dInfo : domain.directories.values()) {
-                    // if (filter.isExcluded(dInfo)) {
-                    // continue;
-                    // }
-
-                    if (criteria.getMaxResults() > 0
-                        && items.size() >= criteria.getMaxResults())
-                    {
-                        return items;
-                    }
-
-                    if (isInSubDir(dInfo, path, recursive)
-                        && !Util.equalsRelativeName(dInfo.getRelativeName(),
-                            path))
-                    {
-                        if (!items.contains(dInfo)
-                            && matches(dInfo, criteria.getKeyWords()))
-                        {
-                            items.add(dInfo);
-                        }
-                    }
-                }
+            DirectoryNode node = domain.findNode(path);
+            if (node == null) {
+                continue;
             }
-
-            if (criteria.getType() == Type.FILES_ONLY
-                || criteria.getType() == Type.FILES_AND_DIRECTORIES)
-            {
-                for (FileInfo fInfo : domain.files.values()) {
-                    // if (filter.isExcluded(fInfo)) {
-                    // continue;
-                    // }
-
-                    if (criteria.getMaxResults() > 0
-                        && items.size() >= criteria.getMaxResults())
-                    {
-                        return items;
-                    }
-
-                    if (isInSubDir(fInfo, path, recursive)) {
-                        if (!items.contains(fInfo)
-                            && matches(fInfo, criteria.getKeyWords()))
-                        {
-                            items.add(fInfo);
-                        }
-                    }
-                }
+            if (!collect(node, criteria, recursive, items)) {
+                return items;
             }
         }
         return items;
@@ -399,6 +399,10 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         }
     }
 
+    private boolean isSelfDomain(String domain) {
+        return StringUtils.isBlank(domain) || domain.equals(selfDomain);
+    }
+
     /*
      * TODO: Performance optimization
      */
@@ -415,17 +419,41 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return true;
     }
 
-    private boolean isInSubDir(FileInfo fInfo, String path, boolean recursive) {
-        if (!fInfo.getRelativeName().startsWith(path)) {
-            return false;
+    /**
+     * Adds the matching items of the directory node and optionally of all its
+     * subdirectories.
+     *
+     * @return false if the max results have been reached.
+     */
+    private boolean collect(DirectoryNode node, FileInfoCriteria criteria,
+        boolean recursive, Collection<FileInfo> items)
+    {
+        Type type = criteria.getType();
+        for (FileInfo fInfo : node.items.values()) {
+            if (type == Type.DIRECTORIES_ONLY && !fInfo.isDiretory()
+                || type == Type.FILES_ONLY && fInfo.isDiretory())
+            {
+                continue;
+            }
+            if (criteria.getMaxResults() > 0
+                && items.size() >= criteria.getMaxResults())
+            {
+                return false;
+            }
+            if (!items.contains(fInfo)
+                && matches(fInfo, criteria.getKeyWords()))
+            {
+                items.add(fInfo);
+            }
         }
         if (recursive) {
-            return true;
+            for (DirectoryNode subdir : node.subdirs.values()) {
+                if (!collect(subdir, criteria, recursive, items)) {
+                    return false;
+                }
+            }
         }
-        int offset = path.length() + 1;
-        int i = fInfo.getRelativeName().indexOf('/', offset);
-        // No other subdirectory at end.
-        return i < 0;
+        return true;
     }
 
     private static class Domain {
@@ -433,16 +461,183 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         private final ConcurrentMap<FileInfo, FileInfo> files;
         private final ConcurrentMap<DirectoryInfo, DirectoryInfo> directories = Util
             .createConcurrentHashMap(4);
+        private final DirectoryNode root = new DirectoryNode(null, "");
+        /**
+         * Secondary indexes: OID / single hash of {@link FileInfo#getHashes()}
+         * -> all items with it.
+         */
+        private final ConcurrentMap<String, ConcurrentMap<FileInfo, FileInfo>> oids = Util
+            .createConcurrentHashMap(4);
+        private final ConcurrentMap<String, ConcurrentMap<FileInfo, FileInfo>> hashes = Util
+            .createConcurrentHashMap(4);
 
         public Domain(int suggestedSize) {
             super();
             files = Util.createConcurrentHashMap(suggestedSize);
         }
 
+        /**
+         * Adds the item to the node of its parent directory and the secondary
+         * indexes. Call while holding the lock on this domain.
+         *
+         * @param fInfo
+         * @param old
+         *            the replaced item with the same name or null.
+         */
+        private void index(FileInfo fInfo, FileInfo old) {
+            if (old != null) {
+                if (!old.getRelativeName().equals(fInfo.getRelativeName())) {
+                    // Case changed: Old entry is in a different directory node
+                    unindex(old);
+                } else {
+                    if (!Util.equals(old.getOID(), fInfo.getOID())) {
+                        removeKey(oids, old.getOID(), old);
+                    }
+                    if (!Util.equals(old.getHashes(), fInfo.getHashes())) {
+                        for (String hash : splitHashes(old.getHashes())) {
+                            removeKey(hashes, hash, old);
+                        }
+                    }
+                }
+            }
+            addKey(oids, fInfo.getOID(), fInfo);
+            for (String hash : splitHashes(fInfo.getHashes())) {
+                addKey(hashes, hash, fInfo);
+            }
+
+            String name = fInfo.getRelativeName();
+            DirectoryNode node = root;
+            int start = 0;
+            int i;
+            while ((i = name.indexOf('/', start)) >= 0) {
+                String dirName = name.substring(start, i);
+                DirectoryNode subdir = node.subdirs.get(dirName);
+                if (subdir == null) {
+                    subdir = new DirectoryNode(node, dirName);
+                    node.subdirs.put(dirName, subdir);
+                }
+                node = subdir;
+                start = i + 1;
+            }
+            node.items.put(fInfo, fInfo);
+        }
+
+        /**
+         * Removes the item from the node of its parent directory and the
+         * secondary indexes. Prunes empty nodes. Call while holding the lock on this domain.
+         *
+         * @param fInfo
+         */
+        private void unindex(FileInfo fInfo) {
+            removeKey(oids, fInfo.getOID(), fInfo);
+            for (String hash : splitHashes(fInfo.getHashes())) {
+                removeKey(hashes, hash, fInfo);
+            }
+
+            String name = fInfo.getRelativeName();
+            int i = name.lastIndexOf('/');
+            DirectoryNode node = findNode(i < 0 ? "" : name.substring(0, i));
+            if (node == null) {
+                return;
+            }
+            node.items.remove(fInfo);
+            while (node.parent != null && node.items.isEmpty()
+                && node.subdirs.isEmpty())
+            {
+                node.parent.subdirs.remove(node.name, node);
+                node = node.parent;
+            }
+        }
+
+        /**
+         * @param path
+         *            the relative name of the directory, with or without
+         *            trailing slash. "" for the base directory.
+         * @return the node or null if there are no items in/below this path.
+         */
+        private DirectoryNode findNode(String path) {
+            DirectoryNode node = root;
+            int start = 0;
+            while (node != null && start < path.length()) {
+                int i = path.indexOf('/', start);
+                if (i < 0) {
+                    i = path.length();
+                }
+                node = node.subdirs.get(path.substring(start, i));
+                start = i + 1;
+            }
+            return node;
+        }
+
+        private static void addKey(
+            ConcurrentMap<String, ConcurrentMap<FileInfo, FileInfo>> index,
+            String key, FileInfo fInfo)
+        {
+            if (StringUtils.isBlank(key)) {
+                return;
+            }
+            ConcurrentMap<FileInfo, FileInfo> items = index.get(key);
+            if (items == null) {
+                items = Util.createConcurrentHashMap(2);
+                index.put(key, items);
+            }
+            items.put(fInfo, fInfo);
+        }
+
+        private static void removeKey(
+            ConcurrentMap<String, ConcurrentMap<FileInfo, FileInfo>> index,
+            String key, FileInfo fInfo)
+        {
+            if (StringUtils.isBlank(key)) {
+                return;
+            }
+            ConcurrentMap<FileInfo, FileInfo> items = index.get(key);
+            if (items == null) {
+                return;
+            }
+            items.remove(fInfo);
+            if (items.isEmpty()) {
+                index.remove(key, items);
+            }
+        }
+
         public String toString() {
             return "Domain: " + files.size() + " files, " + directories.size()
                 + " dirs";
         }
     }
 
+    /**
+     * @param hashes
+     *            the hashes of a FileInfo, separated by comma, semicolon or
+     *            whitespace.
+     * @return the single hashes.
+     */
+    static String[] splitHashes(String hashes) {
+        if (StringUtils.isBlank(hashes)) {
+            return NO_HASHES;
+        }
+        return HASH_SEPARATOR.split(hashes.trim());
+    }
+
+    /**
+     * Node of the directory hierarchy of a domain. Holds the items directly in
+     * this directory and the nodes of the subdirectories. A node exists for
+     * every path that contains items, even if no {@link DirectoryInfo} was
+     * stored for it.
+     */
+    private static class DirectoryNode {
+        private final DirectoryNode parent;
+        private final String name;
+        private final ConcurrentMap<FileInfo, FileInfo> items = Util
+            .createConcurrentHashMap(4);
+        private final ConcurrentMap<String, DirectoryNode> subdirs = Util
+            .createConcurrentHashMap(4);
+
+        DirectoryNode(DirectoryNode parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
 }
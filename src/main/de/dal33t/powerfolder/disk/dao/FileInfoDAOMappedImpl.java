@@ -0,0 +1,1027 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria.Type;
+import de.dal33t.powerfolder.light.DirectoryInfo;
+import de.dal33t.powerfolder.light.FileHistory;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.StringUtils;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * A {@link FileInfoDAO} implementation that keeps the records of every domain
+ * off-heap in memory-mapped files. Useful for servers with many members and
+ * large folders where {@link FileInfoDAOHashMapImpl} would hold a full
+ * on-heap copy of every member's file list.
+ * <p>
+ * Each domain consists of two files in the database directory:
+ * <ul>
+ * <li>Data file: Append-only records encoded with {@link FileInfoCodec}.
+ * Updated or deleted records are only flagged as dead. Dead records get
+ * removed by compaction once they take more space than the live ones.</li>
+ * <li>Index file: Open addressing hash table (linear probing) of the relative
+ * name. Each slot holds the hash code and the offset of the record in the
+ * data file.</li>
+ * </ul>
+ * {@link FileInfo} objects are only materialized on access. Collections
+ * returned by this DAO are lazy and weakly consistent: Items changed while
+ * iterating are returned in their latest version, items added are not
+ * returned.
+ * <p>
+ * The files are NOT the persistent folder database. They are discarded on
+ * {@link #stop()} and when a new instance is created on the same directory.
+ * <p>
+ * Since this DAO is used per folder the index is keyed by relative name only.
+ *
+ * @author sprajc
+ */
+public class FileInfoDAOMappedImpl extends Loggable implements FileInfoDAO {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String DATA_EXT = ".dat";
+    private static final String INDEX_EXT = ".idx";
+
+    private static final byte STATUS_DEAD = 0;
+    private static final byte STATUS_LIVE = 1;
+    private static final byte TYPE_FILE = 0;
+    private static final byte TYPE_DIRECTORY = 1;
+
+    /**
+     * Record header: status (byte), type (byte), record length (int), hash
+     * (int), name length (int). Followed by the UTF-8 relative name and the
+     * {@link FileInfoCodec} encoded FileInfo.
+     */
+    private static final int RECORD_HEADER = 14;
+
+    /**
+     * Index slot: hash (int), offset in data file + 1 (long). 0 = empty, -1 =
+     * deleted.
+     */
+    private static final int SLOT_SIZE = 12;
+    private static final long SLOT_EMPTY = 0;
+    private static final long SLOT_DELETED = -1;
+
+    private static final int MIN_SLOTS = 64;
+    private static final int MIN_DATA_SIZE = 64 * 1024;
+    private static final int MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private final ConcurrentMap<String, Domain> domains = Util
+        .createConcurrentHashMap(4);
+    private final AtomicInteger domainCounter = new AtomicInteger();
+
+    private final Path dbDir;
+    private String selfDomain;
+    private DiskItemFilter filter;
+    private volatile FileInfoJournal journal;
+
+    /**
+     * @param selfDomain
+     * @param filter
+     * @param dbDir
+     *            the directory to store the mapped files in. Existing files
+     *            get deleted.
+     * @throws IOException
+     *             if the directory could not be created or cleared.
+     */
+    public FileInfoDAOMappedImpl(String selfDomain, DiskItemFilter filter,
+        Path dbDir) throws IOException
+    {
+        super();
+        Reject.ifNull(dbDir, "Database directory is null");
+        this.selfDomain = selfDomain;
+        this.filter = filter;
+        if (filter == null) {
+            this.filter = new DiskItemFilter();
+        }
+        this.dbDir = dbDir;
+        Files.createDirectories(dbDir);
+        deleteFiles();
+    }
+
+    public int count(String domain, boolean includeDirs, boolean excludeIgnored)
+    {
+        Domain d = getDomain(domain);
+        if (excludeIgnored) {
+            int c = 0;
+            Type type = includeDirs ? Type.FILES_AND_DIRECTORIES : Type.FILES_ONLY;
+            for (FileInfo fInfo : d.items(type)) {
+                if (filter.isRetained(fInfo) && !fInfo.isDeleted()) {
+                    c++;
+                }
+            }
+            return c;
+        } else {
+            return d.size(includeDirs
+                ? Type.FILES_AND_DIRECTORIES
+                : Type.FILES_ONLY);
+        }
+    }
+
+    public int countInSync(String domain, boolean includeDirs,
+        boolean excludeIgnored)
+    {
+        Domain d = getDomain(domain);
+        Type type = includeDirs ? Type.FILES_AND_DIRECTORIES : Type.FILES_ONLY;
+        int c = 0;
+        for (FileInfo fInfo : d.items(type)) {
+            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
+                continue;
+            }
+            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
+            if (inSync(fInfo, newestFileInfo)) {
+                c++;
+            }
+        }
+        return c;
+    }
+
+    public long bytesInSync(String domain) {
+        Domain d = getDomain(domain);
+        long bytes = 0;
+        for (FileInfo fInfo : d.items(Type.FILES_ONLY)) {
+            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
+                continue;
+            }
+            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
+            if (inSync(fInfo, newestFileInfo)) {
+                bytes += fInfo.getSize();
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean inSync(FileInfo fileInfo, FileInfo newestFileInfo) {
+        if (newestFileInfo == null) {
+            // It is intended not to use Reject.ifNull for performance reasons.
+            throw new NullPointerException("Newest FileInfo not found of "
+                + fileInfo.toDetailString());
+        }
+        if (fileInfo == null) {
+            return false;
+        }
+        return !newestFileInfo.isNewerThan(fileInfo);
+    }
+
+    public void delete(String domain, FileInfo info) {
+        if (info.isDiretory()) {
+            logWarning("Deleting directory: " + info.toDetailString());
+        }
+        getDomain(domain).remove(info);
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logDelete(info);
+        }
+    }
+
+    public void delete(String domain, Collection<FileInfo> infos) {
+        for (FileInfo info : infos) {
+            if (info.isDiretory()) {
+                logWarning("Deleting directory: " + info.toDetailString());
+            }
+        }
+        getDomain(domain).removeAll(infos);
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logDelete(infos);
+        }
+    }
+
+    public void deleteDomain(String domain, int newInitialSize) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
+        synchronized (domains) {
+            Domain d = domains.remove(theDomain);
+            if (d != null) {
+                d.close();
+            }
+            if (newInitialSize > 0) {
+                domains.put(theDomain, new Domain(theDomain, newInitialSize));
+                if (isFiner()) {
+                    logFiner("Created new domain (" + theDomain
+                        + ") with initial capacity " + newInitialSize);
+                }
+            }
+        }
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logClear();
+        }
+    }
+
+    public FileInfo find(FileInfo info, String domain) {
+        return getDomain(domain).get(info);
+    }
+
+    @Override
+    public FileInfo findNewestByOID(String oid, String... domains) {
+        Reject.ifBlank(oid, "OID");
+        FileInfo newestVersion = null;
+        for (String domain : domains) {
+            Domain d = getDomain(domain);
+            for (FileInfo candidateFile : d.items(Type.FILES_AND_DIRECTORIES))
+            {
+                if (StringUtils.isBlank(candidateFile.getOID())) {
+                    continue;
+                }
+                if (candidateFile.getOID().equals(oid)) {
+                    if (newestVersion == null
+                        || candidateFile.isNewerThan(newestVersion))
+                    {
+                        newestVersion = candidateFile;
+                    }
+                }
+            }
+        }
+        return newestVersion;
+    }
+
+    @Override
+    public FileInfo findNewestByHash(String hash, String... domains) {
+        Reject.ifBlank(hash, "Hash");
+        FileInfo newestVersion = null;
+        for (String domain : domains) {
+            Domain d = getDomain(domain);
+            for (FileInfo candidateFile : d.items(Type.FILES_AND_DIRECTORIES))
+            {
+                if (hasHash(candidateFile, hash)) {
+                    if (newestVersion == null
+                        || candidateFile.isNewerThan(newestVersion))
+                    {
+                        newestVersion = candidateFile;
+                    }
+                }
+            }
+        }
+        return newestVersion;
+    }
+
+    /**
+     * @return true if the hash is one of the single hashes of the file. Same
+     *         matching as the hash index of {@link FileInfoDAOHashMapImpl}.
+     */
+    private static boolean hasHash(FileInfo fInfo, String hash) {
+        for (String fileHash : FileInfoDAOHashMapImpl.splitHashes(fInfo
+            .getHashes()))
+        {
+            if (fileHash.equals(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Collection<FileInfo> findAllFiles(String domain) {
+        return getDomain(domain).items(Type.FILES_ONLY);
+    }
+
+    public Collection<DirectoryInfo> findAllDirectories(String domain) {
+        return getDomain(domain).items(Type.DIRECTORIES_ONLY);
+    }
+
+    public FileInfo findNewestVersion(FileInfo info, String... domainStrings) {
+        return findNewestVersion(info, Arrays.asList(domainStrings));
+    }
+
+    private FileInfo findNewestVersion(FileInfo info,
+        Collection<String> domainStrings)
+    {
+        FileInfo newestVersion = null;
+        for (String domain : domainStrings) {
+            Domain d = getDomain(domain);
+
+            // Get remote file
+            FileInfo candidateFile = d.get(info);
+            if (candidateFile == null) {
+                continue;
+            }
+            if (!candidateFile.isValid()) {
+                continue;
+            }
+            // Check if remote file in newer
+            if (newestVersion == null
+                || candidateFile.isNewerThan(newestVersion))
+            {
+                newestVersion = candidateFile;
+            }
+        }
+        return newestVersion;
+    }
+
+    public void stop() {
+        synchronized (domains) {
+            for (Domain d : domains.values()) {
+                d.close();
+            }
+            domains.clear();
+        }
+        try {
+            deleteFiles();
+        } catch (IOException e) {
+            logFine("Unable to delete database files in " + dbDir + ". " + e);
+        }
+    }
+
+    public void setJournal(FileInfoJournal journal) {
+        this.journal = journal;
+    }
+
+    public void store(String domain, FileInfo... infos) {
+        store(domain, Arrays.asList(infos));
+    }
+
+    public void store(String domain, Collection<FileInfo> infos) {
+        Domain d = getDomain(domain);
+        for (FileInfo fileInfo : infos) {
+            if (fileInfo.isDiretory() && isFiner()) {
+                logFiner("Storing directory: " + fileInfo.toDetailString());
+            }
+            // Replaces file or directory with same name.
+            d.put(fileInfo);
+        }
+        // Journal after the domain has been updated. See FileInfoJournal.
+        FileInfoJournal j = journal;
+        if (j != null && isSelfDomain(domain)) {
+            j.logStore(infos);
+        }
+    }
+
+    public Collection<FileInfo> findInDirectory(String domainStr,
+        DirectoryInfo directoryInfo, boolean recursive)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domainStr);
+        crit.setPath(directoryInfo);
+        crit.setRecursive(recursive);
+        return findFiles(crit);
+    }
+
+    public Collection<FileInfo> findInDirectory(String domainStr, String path,
+        boolean recursive)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domainStr);
+        crit.setPath(path);
+        crit.setRecursive(recursive);
+        return findFiles(crit);
+    }
+
+    public Collection<FileInfo> findFiles(FileInfoCriteria criteria) {
+        Reject.ifTrue(criteria.getDomains().isEmpty(),
+            "No domains/members selected in criteria");
+        String path = criteria.getPath();
+        if (path == null) {
+            path = "";
+        }
+        if (path.equals("/")) {
+            path = "";
+        }
+        if (path.length() > 0 && !path.endsWith("/")) {
+            path += "/";
+        }
+        boolean recursive = criteria.isRecursive();
+        Collection<FileInfo> items = new HashSet<FileInfo>();
+        for (String domainStr : criteria.getDomains()) {
+            Domain domain = getDomain(domainStr);
+            for (FileInfo fInfo : domain.items(criteria.getType())) {
+                if (criteria.getMaxResults() > 0
+                    && items.size() >= criteria.getMaxResults())
+                {
+                    return items;
+                }
+                if (!isInSubDir(fInfo, path, recursive)) {
+                    continue;
+                }
+                if (fInfo.isDiretory()
+                    && Util.equalsRelativeName(fInfo.getRelativeName(), path))
+                {
+                    continue;
+                }
+                if (!items.contains(fInfo)
+                    && matches(fInfo, criteria.getKeyWords()))
+                {
+                    items.add(fInfo);
+                }
+            }
+        }
+        return items;
+    }
+
+    public FileHistory getFileHistory(FileInfo fileInfo) {
+        return null;
+    }
+
+    // Internals **************************************************************
+
+    private Domain getDomain(String domain) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
+        Domain d = domains.get(theDomain);
+        if (d != null) {
+            return d;
+        }
+        synchronized (domains) {
+            d = domains.get(theDomain);
+            if (d != null) {
+                return d;
+            }
+            if (isFiner()) {
+                logFiner("Domain '" + theDomain + "' created");
+            }
+            d = new Domain(theDomain, 500);
+            domains.put(theDomain, d);
+            return d;
+        }
+    }
+
+    private boolean isSelfDomain(String domain) {
+        return StringUtils.isBlank(domain) || domain.equals(selfDomain);
+    }
+
+    private void deleteFiles() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dbDir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(DATA_EXT) || name.endsWith(INDEX_EXT)) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // Still mapped on Windows. Deleted on next start.
+                        logFiner("Unable to delete " + file + ". " + e);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean matches(FileInfo fInfo, Set<String> keyWords) {
+        if (keyWords.isEmpty()) {
+            return true;
+        }
+        String lower = fInfo.getRelativeName().toLowerCase();
+        for (String keyWord : keyWords) {
+            if (!lower.contains(keyWord)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isInSubDir(FileInfo fInfo, String path, boolean recursive) {
+        if (!fInfo.getRelativeName().startsWith(path)) {
+            return false;
+        }
+        if (recursive) {
+            return true;
+        }
+        int offset = path.length() + 1;
+        int i = fInfo.getRelativeName().indexOf('/', offset);
+        // No other subdirectory at end.
+        return i < 0;
+    }
+
+    private static boolean matchesType(byte recordType, Type type) {
+        switch (type) {
+            case FILES_ONLY :
+                return recordType == TYPE_FILE;
+            case DIRECTORIES_ONLY :
+                return recordType == TYPE_DIRECTORY;
+            default :
+                return true;
+        }
+    }
+
+    private static String readName(ByteBuffer buf, int offset) {
+        byte[] name = new byte[buf.getInt(offset + 10)];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset + RECORD_HEADER);
+        dup.get(name);
+        return new String(name, UTF8);
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+            FileChannel channel = raf.getChannel())
+        {
+            // Mapping stays valid after the channel got closed.
+            return channel.map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        int slots = MIN_SLOTS;
+        while (slots < n) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    /**
+     * The records of one member, stored in a data and an index file.
+     */
+    private class Domain {
+        private final String id;
+        private final int number;
+
+        /**
+         * Incremented whenever the data file gets replaced. Iterators on older
+         * generations need to lookup every record.
+         */
+        private volatile int generation;
+        private Path dataFile;
+        private Path indexFile;
+        private MappedByteBuffer data;
+        private MappedByteBuffer index;
+        private int slots;
+        private int end;
+        private int liveBytes;
+        private int files;
+        private int directories;
+        private int usedSlots;
+        private int deletedSlots;
+        private int indexVersion;
+        private boolean closed;
+
+        Domain(String id, int suggestedSize) {
+            this.id = id;
+            this.number = domainCounter.incrementAndGet();
+            reset(nextPowerOfTwo(suggestedSize * 2));
+        }
+
+        synchronized FileInfo get(FileInfo info) {
+            int slot = findSlot(info.hashCode(), info.getRelativeName());
+            if (slot < 0) {
+                return null;
+            }
+            return decode(data, offsetAt(slot));
+        }
+
+        synchronized void put(FileInfo fInfo) {
+            byte[] name = fInfo.getRelativeName().getBytes(UTF8);
+            byte[] payload = encode(fInfo);
+            int length = RECORD_HEADER + name.length + payload.length;
+            int hash = fInfo.hashCode();
+
+            int slot = findSlot(hash, fInfo.getRelativeName());
+            if (slot >= 0) {
+                kill(offsetAt(slot));
+            }
+            // Might compact and rebuild the index
+            ensureCapacity(length);
+            if ((usedSlots + deletedSlots + 1) * 2 > slots) {
+                rebuildIndex(nextPowerOfTwo((usedSlots + 1) * 4));
+            }
+
+            int offset = end;
+            data.put(offset, STATUS_LIVE);
+            data.put(offset + 1, fInfo.isDiretory()
+                ? TYPE_DIRECTORY
+                : TYPE_FILE);
+            data.putInt(offset + 2, length);
+            data.putInt(offset + 6, hash);
+            data.putInt(offset + 10, name.length);
+            ByteBuffer dup = data.duplicate();
+            dup.position(offset + RECORD_HEADER);
+            dup.put(name);
+            dup.put(payload);
+            end += length;
+            liveBytes += length;
+            if (fInfo.isDiretory()) {
+                directories++;
+            } else {
+                files++;
+            }
+
+            // Slot may have moved by compaction or index rebuild.
+            slot = findSlot(hash, fInfo.getRelativeName());
+            if (slot < 0) {
+                slot = freeSlot(hash);
+                if (index.getLong(slot * SLOT_SIZE + 4) == SLOT_DELETED) {
+                    deletedSlots--;
+                }
+                usedSlots++;
+            }
+            index.putInt(slot * SLOT_SIZE, hash);
+            index.putLong(slot * SLOT_SIZE + 4, offset + 1L);
+        }
+
+        synchronized void remove(FileInfo info) {
+            int slot = findSlot(info.hashCode(), info.getRelativeName());
+            if (slot < 0) {
+                return;
+            }
+            kill(offsetAt(slot));
+            index.putLong(slot * SLOT_SIZE + 4, SLOT_DELETED);
+            usedSlots--;
+            deletedSlots++;
+        }
+
+        synchronized void removeAll(Collection<FileInfo> infos) {
+            for (FileInfo info : infos) {
+                remove(info);
+            }
+        }
+
+        synchronized int size(Type type) {
+            switch (type) {
+                case FILES_ONLY :
+                    return files;
+                case DIRECTORIES_ONLY :
+                    return directories;
+                default :
+                    return files + directories;
+            }
+        }
+
+        <T extends FileInfo> Collection<T> items(final Type type) {
+            return new AbstractCollection<T>() {
+                @Override
+                public Iterator<T> iterator() {
+                    return new RecordIterator<T>(Domain.this, type);
+                }
+
+                @Override
+                public int size() {
+                    return Domain.this.size(type);
+                }
+            };
+        }
+
+        /**
+         * @return the offsets of all live records of the given type.
+         */
+        synchronized int[] liveOffsets(Type type) {
+            int[] offsets = new int[size(type)];
+            int n = 0;
+            int offset = 0;
+            while (offset < end && n < offsets.length) {
+                if (data.get(offset) == STATUS_LIVE
+                    && matchesType(data.get(offset + 1), type))
+                {
+                    offsets[n++] = offset;
+                }
+                offset += data.getInt(offset + 2);
+            }
+            return n == offsets.length ? offsets : Arrays.copyOf(offsets, n);
+        }
+
+        synchronized ByteBuffer snapshot() {
+            return data.duplicate();
+        }
+
+        /**
+         * Materializes the record at the given offset of an iterator
+         * snapshot.
+         */
+        FileInfo materialize(ByteBuffer buf, int offset, int snapshotGeneration)
+        {
+            if (snapshotGeneration == generation
+                && buf.get(offset) == STATUS_LIVE)
+            {
+                // Records below end are never overwritten. Only their status.
+                return decode(buf, offset);
+            }
+            // Changed or deleted since snapshot. Lookup latest version.
+            int hash = buf.getInt(offset + 6);
+            String name = readName(buf, offset);
+            synchronized (this) {
+                int slot = findSlot(hash, name);
+                return slot >= 0 ? decode(data, offsetAt(slot)) : null;
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            deleteQuietly(dataFile);
+            deleteQuietly(indexFile);
+        }
+
+        // Internals **********************************************************
+
+        private void reset(int newSlots) {
+            generation++;
+            Path oldData = dataFile;
+            Path oldIndex = indexFile;
+            dataFile = dbDir.resolve(number + "-" + generation + DATA_EXT);
+            indexFile = dbDir.resolve(number + "-" + generation + INDEX_EXT);
+            try {
+                data = map(dataFile, MIN_DATA_SIZE);
+                slots = newSlots;
+                index = map(indexFile, slots * SLOT_SIZE);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to map database of "
+                    + id + " at " + dbDir + ". " + e, e);
+            }
+            end = 0;
+            liveBytes = 0;
+            files = 0;
+            directories = 0;
+            usedSlots = 0;
+            deletedSlots = 0;
+            deleteQuietly(oldData);
+            deleteQuietly(oldIndex);
+        }
+
+        private int offsetAt(int slot) {
+            return (int) (index.getLong(slot * SLOT_SIZE + 4) - 1);
+        }
+
+        /**
+         * @return the slot of the given name or -1 if not found.
+         */
+        private int findSlot(int hash, String name) {
+            int mask = slots - 1;
+            int slot = hash & mask;
+            while (true) {
+                long ref = index.getLong(slot * SLOT_SIZE + 4);
+                if (ref == SLOT_EMPTY) {
+                    return -1;
+                }
+                if (ref != SLOT_DELETED
+                    && index.getInt(slot * SLOT_SIZE) == hash
+                    && Util.equalsRelativeName(name,
+                        readName(data, (int) (ref - 1))))
+                {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * @return the first empty or deleted slot for the hash.
+         */
+        private int freeSlot(int hash) {
+            int mask = slots - 1;
+            int slot = hash & mask;
+            while (true) {
+                long ref = index.getLong(slot * SLOT_SIZE + 4);
+                if (ref == SLOT_EMPTY || ref == SLOT_DELETED) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void kill(int offset) {
+            data.put(offset, STATUS_DEAD);
+            liveBytes -= data.getInt(offset + 2);
+            if (data.get(offset + 1) == TYPE_DIRECTORY) {
+                directories--;
+            } else {
+                files--;
+            }
+        }
+
+        private void ensureCapacity(int length) {
+            if (closed) {
+                throw new IllegalStateException("Domain " + id
+                    + " already closed");
+            }
+            if ((long) end + length <= data.capacity()) {
+                return;
+            }
+            int deadBytes = end - liveBytes;
+            if (deadBytes > liveBytes && end > MIN_COMPACT_SIZE) {
+                compact();
+                if ((long) end + length <= data.capacity()) {
+                    return;
+                }
+            }
+            long newSize = Math.max((long) data.capacity() * 2, (long) end
+                + length);
+            if (newSize > Integer.MAX_VALUE) {
+                newSize = Integer.MAX_VALUE;
+            }
+            if ((long) end + length > newSize) {
+                throw new IllegalStateException("Database of " + id
+                    + " exceeds maximum size of " + Integer.MAX_VALUE
+                    + " bytes");
+            }
+            try {
+                data = map(dataFile, (int) newSize);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to grow database of "
+                    + id + " to " + newSize + " bytes. " + e, e);
+            }
+        }
+
+        /**
+         * Copies all live records into a new data file and rebuilds the
+         * index.
+         */
+        private void compact() {
+            ByteBuffer old = data;
+            int oldEnd = end;
+            int oldFiles = files;
+            int oldDirectories = directories;
+            int required = Math.max(MIN_DATA_SIZE, liveBytes * 2);
+            reset(slots);
+            try {
+                data = map(dataFile, required);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to compact database of "
+                    + id + ". " + e, e);
+            }
+            ByteBuffer src = old.duplicate();
+            ByteBuffer dst = data.duplicate();
+            int offset = 0;
+            while (offset < oldEnd) {
+                int length = old.getInt(offset + 2);
+                if (old.get(offset) == STATUS_LIVE) {
+                    src.limit(offset + length).position(offset);
+                    dst.put(src);
+                    src.limit(src.capacity());
+                }
+                offset += length;
+            }
+            end = dst.position();
+            liveBytes = end;
+            files = oldFiles;
+            directories = oldDirectories;
+            rebuildIndex(slots);
+            if (isFine()) {
+                logFine("Compacted database of " + id + " from " + oldEnd
+                    + " to " + end + " bytes");
+            }
+        }
+
+        /**
+         * Rebuilds the index from the live records in the data file.
+         */
+        private void rebuildIndex(int newSlots) {
+            Path oldIndex = indexFile;
+            indexFile = dbDir.resolve(number + "-" + generation + "-"
+                + (++indexVersion) + INDEX_EXT);
+            try {
+                slots = newSlots;
+                index = map(indexFile, slots * SLOT_SIZE);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to rebuild index of "
+                    + id + ". " + e, e);
+            }
+            deleteQuietly(oldIndex);
+            usedSlots = 0;
+            deletedSlots = 0;
+            int offset = 0;
+            while (offset < end) {
+                if (data.get(offset) == STATUS_LIVE) {
+                    int hash = data.getInt(offset + 6);
+                    int slot = freeSlot(hash);
+                    index.putInt(slot * SLOT_SIZE, hash);
+                    index.putLong(slot * SLOT_SIZE + 4, offset + 1L);
+                    usedSlots++;
+                }
+                offset += data.getInt(offset + 2);
+            }
+        }
+
+        private byte[] encode(FileInfo fInfo) {
+            try {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream(128);
+                DataOutputStream out = new DataOutputStream(bOut);
+                FileInfoCodec.writeFileInfo(out, fInfo);
+                out.flush();
+                return bOut.toByteArray();
+            } catch (IOException e) {
+                // Never happens on a byte array.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private FileInfo decode(ByteBuffer buf, int offset) {
+            int nameLength = buf.getInt(offset + 10);
+            byte[] payload = new byte[buf.getInt(offset + 2) - RECORD_HEADER
+                - nameLength];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(offset + RECORD_HEADER + nameLength);
+            dup.get(payload);
+            try {
+                return FileInfoCodec.readFileInfo(new DataInputStream(
+                    new ByteArrayInputStream(payload)));
+            } catch (IOException e) {
+                logWarning("Unable to read record at " + offset + " of "
+                    + dataFile + ". " + e);
+                return null;
+            }
+        }
+
+        private void deleteQuietly(Path file) {
+            if (file == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Still mapped on Windows. Deleted on next start.
+                logFiner("Unable to delete " + file + ". " + e);
+            }
+        }
+
+        public String toString() {
+            return "Domain: " + files + " files, " + directories + " dirs";
+        }
+    }
+
+    /**
+     * Iterates the records of a domain as they were live when the iterator
+     * got created. Records are only materialized in {@link #next()}.
+     */
+    private static class RecordIterator<T extends FileInfo> implements
+        Iterator<T>
+    {
+        private final Domain domain;
+        private final ByteBuffer buf;
+        private final int generation;
+        private final int[] offsets;
+        private int i;
+        private T next;
+
+        RecordIterator(Domain domain, Type type) {
+            this.domain = domain;
+            synchronized (domain) {
+                this.buf = domain.snapshot();
+                this.generation = domain.generation;
+                this.offsets = domain.liveOffsets(type);
+            }
+            advance();
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public T next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            T current = next;
+            advance();
+            return current;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (next == null && i < offsets.length) {
+                byte type = buf.get(offsets[i] + 1);
+                FileInfo fInfo = domain.materialize(buf, offsets[i++],
+                    generation);
+                // Type may have changed from file to directory or vice versa.
+                if (fInfo != null
+                    && fInfo.isDiretory() == (type == TYPE_DIRECTORY))
+                {
+                    next = (T) fInfo;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Append-only write-ahead journal of the changes made to one domain of a
+ * {@link FileInfoDAO}. Every stored or deleted {@link FileInfo} is appended as
+ * small record instead of rewriting the whole folder database.
+ * <p>
+ * The journal is compacted by writing a full snapshot of the domain. To not
+ * loose changes that happen while the snapshot is written the journal gets
+ * rotated before the snapshot is taken ({@link #rotate()}) and the rotated
+ * part is only removed after the snapshot was written successfully (
+ * {@link #commitRotation()}).
+ * <p>
+ * Record layout: op (byte), payload length (int), CRC32 of payload (long),
+ * payload ({@link FileInfo#writeExternal(java.io.ObjectOutput)}). A truncated
+ * or corrupt tail, e.g. after a crash, ends the replay. The tail is cut off,
+ * so records appended afterwards can be replayed again.
+ *
+ * @author sprajc
+ */
+public class FileInfoJournal extends Loggable {
+    private static final int MAGIC = 0x50464a31;
+    private static final byte OP_STORE = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_CLEAR = 3;
+
+    private final Path file;
+    private final Path rotatedFile;
+
+    private DataOutputStream out;
+    private int entries;
+    private int rotatedEntries;
+
+    /**
+     * Set if appending to the journal failed. The journal then no longer
+     * reflects all changes and a full snapshot is required.
+     */
+    private boolean failed;
+
+    /**
+     * @param file
+     *            the journal file. Gets created on first write.
+     */
+    public FileInfoJournal(Path file) {
+        Reject.ifNull(file, "Journal file is null");
+        this.file = file;
+        this.rotatedFile = file.resolveSibling(file.getFileName() + ".old");
+    }
+
+    /**
+     * Appends stored {@link FileInfo}s to the journal.
+     *
+     * @param fInfos
+     */
+    public synchronized void logStore(Collection<FileInfo> fInfos) {
+        for (FileInfo fInfo : fInfos) {
+            append(OP_STORE, fInfo);
+        }
+    }
+
+    /**
+     * Appends a deleted {@link FileInfo} to the journal.
+     *
+     * @param fInfo
+     */
+    public synchronized void logDelete(FileInfo fInfo) {
+        append(OP_DELETE, fInfo);
+    }
+
+    /**
+     * Appends deleted {@link FileInfo}s to the journal.
+     *
+     * @param fInfos
+     */
+    public synchronized void logDelete(Collection<FileInfo> fInfos) {
+        for (FileInfo fInfo : fInfos) {
+            append(OP_DELETE, fInfo);
+        }
+    }
+
+    /**
+     * Appends a clear of the whole domain to the journal.
+     */
+    public synchronized void logClear() {
+        append(OP_CLEAR, null);
+    }
+
+    /**
+     * Writes out all buffered records to disk.
+     *
+     * @return true if the journal is now consistent on disk. false if
+     *         appending failed and a full snapshot is required.
+     */
+    public synchronized boolean flush() {
+        if (failed) {
+            return false;
+        }
+        if (out == null) {
+            return true;
+        }
+        try {
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            logWarning("Unable to flush journal " + file + ". " + e);
+            failed = true;
+            closeQuietly();
+            return false;
+        }
+    }
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries to keep in the journal
+     * @return true if the journal should be compacted into a snapshot
+     */
+    public synchronized boolean isCompactionRequired(int maxEntries) {
+        return failed || rotatedEntries > 0
+            || entries + rotatedEntries >= maxEntries;
+    }
+
+    /**
+     * @return the number of records in the journal since the last compaction.
+     */
+    public synchronized int getEntryCount() {
+        return entries + rotatedEntries;
+    }
+
+    /**
+     * Moves the current journal aside. Records appended from now on go into a
+     * fresh journal file. MUST be called BEFORE taking a snapshot of the
+     * domain.
+     *
+     * @throws IOException
+     */
+    public synchronized void rotate() throws IOException {
+        closeQuietly();
+        // The snapshot taken after this covers any record that got lost.
+        failed = false;
+        rotatedEntries += entries;
+        entries = 0;
+        if (Files.notExists(file)) {
+            return;
+        }
+        if (Files.exists(rotatedFile)) {
+            // Previous compaction failed. Keep those records too.
+            try (OutputStream rOut = Files.newOutputStream(rotatedFile,
+                StandardOpenOption.APPEND);
+                InputStream jIn = Files.newInputStream(file))
+            {
+                DataInputStream dIn = new DataInputStream(jIn);
+                if (dIn.readInt() != MAGIC) {
+                    throw new IOException("Illegal journal header in " + file);
+                }
+                byte[] buf = new byte[8192];
+                int read;
+                while ((read = jIn.read(buf)) > 0) {
+                    rOut.write(buf, 0, read);
+                }
+            }
+            Files.delete(file);
+        } else {
+            Files.move(file, rotatedFile);
+        }
+    }
+
+    /**
+     * Removes the rotated journal after a snapshot has been written
+     * successfully.
+     */
+    public synchronized void commitRotation() {
+        try {
+            Files.deleteIfExists(rotatedFile);
+        } catch (IOException e) {
+            logWarning("Unable to delete rotated journal " + rotatedFile
+                + ". " + e);
+            return;
+        }
+        rotatedEntries = 0;
+    }
+
+    /**
+     * Replays the journal on top of the given domain. Call this after the
+     * snapshot has been loaded and BEFORE attaching this journal to the DAO.
+     *
+     * @param dao
+     * @param domain
+     * @return the number of replayed records.
+     */
+    public synchronized int replay(FileInfoDAO dao, String domain) {
+        rotatedEntries = replay(rotatedFile, dao, domain);
+        entries = replay(file, dao, domain);
+        return entries + rotatedEntries;
+    }
+
+    /**
+     * Flushes and closes the journal.
+     */
+    public synchronized void close() {
+        flush();
+        closeQuietly();
+    }
+
+    // Internal ***************************************************************
+
+    private void append(byte op, FileInfo fInfo) {
+        if (failed) {
+            return;
+        }
+        try {
+            byte[] payload = fInfo != null ? serialize(fInfo) : new byte[0];
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            DataOutputStream dOut = getOut();
+            dOut.writeByte(op);
+            dOut.writeInt(payload.length);
+            dOut.writeLong(crc.getValue());
+            dOut.write(payload);
+            entries++;
+        } catch (IOException e) {
+            logWarning("Unable to write to journal " + file + ". " + e);
+            failed = true;
+            closeQuietly();
+        }
+    }
+
+    private DataOutputStream getOut() throws IOException {
+        if (out != null) {
+            return out;
+        }
+        boolean newFile = Files.notExists(file) || Files.size(file) == 0;
+        out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)));
+        if (newFile) {
+            out.writeInt(MAGIC);
+        }
+        return out;
+    }
+
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logFiner("Unable to close journal " + file + ". " + e);
+        }
+        out = null;
+    }
+
+    /**
+     * Replays one journal file and cuts off a corrupt tail behind the last
+     * good record.
+     *
+     * @return the number of replayed records.
+     */
+    private int replay(Path journalFile, FileInfoDAO dao, String domain) {
+        if (Files.notExists(journalFile)) {
+            return 0;
+        }
+        int replayed = 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(journalFile))))
+        {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Illegal journal header");
+            }
+            validLength = 4;
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int len = in.readInt();
+                long checksum = in.readLong();
+                if (len < 0 || len > 16 * 1024 * 1024) {
+                    throw new IOException("Illegal record length " + len);
+                }
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    throw new IOException("Checksum mismatch at record "
+                        + replayed);
+                }
+                switch (op) {
+                    case OP_STORE :
+                        dao.store(domain, deserialize(payload));
+                        break;
+                    case OP_DELETE :
+                        dao.delete(domain, deserialize(payload));
+                        break;
+                    case OP_CLEAR :
+                        dao.deleteDomain(domain, 0);
+                        break;
+                    default :
+                        throw new IOException("Illegal record type " + op);
+                }
+                replayed++;
+                validLength += 1 + 4 + 8 + len;
+            }
+        } catch (EOFException e) {
+            logWarning("Journal " + journalFile + " ends with incomplete record after "
+                + replayed + " records");
+        } catch (Exception e) {
+            logWarning("Stopped replay of journal " + journalFile + " after "
+                + replayed + " records. " + e);
+        }
+        truncate(journalFile, validLength);
+        if (isFine()) {
+            logFine("Replayed " + replayed + " records from " + journalFile);
+        }
+        return replayed;
+    }
+
+    /**
+     * Cuts off the journal behind the last good record. Otherwise records
+     * appended after a crash would end up behind the corrupt tail and get
+     * lost on next replay.
+     *
+     * @param journalFile
+     * @param validLength
+     *            the offset after the last good record.
+     */
+    private void truncate(Path journalFile, long validLength) {
+        try (FileChannel channel = FileChannel.open(journalFile,
+            StandardOpenOption.WRITE))
+        {
+            if (channel.size() <= validLength) {
+                return;
+            }
+            logWarning("Cutting off corrupt tail of journal " + journalFile
+                + " at " + validLength + " of " + channel.size() + " bytes");
+            channel.truncate(validLength);
+        } catch (IOException e) {
+            logWarning("Unable to cut off corrupt tail of journal "
+                + journalFile + ". " + e);
+            // Don't append behind the corrupt tail. Force a snapshot.
+            failed = true;
+        }
+    }
+
+    private static byte[] serialize(FileInfo fInfo) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oOut = new ObjectOutputStream(bOut)) {
+            fInfo.writeExternal(oOut);
+        }
+        return bOut.toByteArray();
+    }
+
+    private static FileInfo deserialize(byte[] payload) throws IOException,
+        ClassNotFoundException
+    {
+        try (ObjectInputStream oIn = new ObjectInputStream(
+            new ByteArrayInputStream(payload)))
+        {
+            return FileInfoFactory.readExt(oIn);
+        }
+    }
+}
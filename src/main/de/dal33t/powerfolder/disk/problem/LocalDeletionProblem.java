@@ -47,7 +47,7 @@ public class LocalDeletionProblem extends ResolvableProblem {
                 } else if (response == 1) {
                     // Discard changes. Remove all old FileInfos with
                     // deleted-flag.
-                    folder.getDAO().delete(null, fileInfo);
+                    folder.removeLocalFileInfo(fileInfo);
                     // And re-download them
                     controller.getFolderRepository().getFileRequestor()
                         .triggerFileRequesting(folderInfo);
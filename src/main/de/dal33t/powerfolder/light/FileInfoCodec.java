@@ -0,0 +1,486 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.light;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact, versioned binary format to persist large amounts of
+ * {@link FileInfo} and {@link DirectoryInfo} objects, e.g. the folder
+ * database.
+ * <p>
+ * Compared to plain java serialization no object graph is written. Instead
+ * {@link FolderInfo}, {@link MemberInfo}, {@link AccountInfo} and the parent
+ * directory of each file are written once and referenced by index afterwards.
+ * Numbers (size, modification date, version) are written as varints.
+ *
+ * @author sprajc
+ */
+public final class FileInfoCodec {
+    private static final Logger LOG = Logger.getLogger(FileInfoCodec.class
+        .getName());
+
+    /**
+     * Header of a stream in this format: "PFDB". Never collides with the
+     * header of a java serialization stream (0xACED).
+     */
+    public static final int MAGIC = 0x50464442;
+
+    /**
+     * The current version of the format.
+     */
+    public static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_DELETED = 1 << 1;
+    private static final int FLAG_OID = 1 << 2;
+    private static final int FLAG_HASHES = 1 << 3;
+    private static final int FLAG_TAGS = 1 << 4;
+    private static final int FLAG_MODIFIED_BY = 1 << 5;
+    private static final int FLAG_ACCOUNT = 1 << 6;
+
+    private FileInfoCodec() {
+        // No instance allowed
+    }
+
+    /**
+     * Writes the header of the format.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        writeVarLong(out, VERSION);
+    }
+
+    /**
+     * Reads and checks the header of the format.
+     *
+     * @param in
+     * @return the version of the stream
+     * @throws IOException
+     *             if the stream is not in this format or too new
+     */
+    public static int readHeader(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("Not a FileInfo stream. Header: "
+                + Integer.toHexString(magic));
+        }
+        int version = (int) readVarLong(in);
+        if (version < 1 || version > VERSION) {
+            throw new InvalidClassException(FileInfoCodec.class.getName(),
+                "Unable to read. Version(stream): " + version
+                    + ", supported: " + VERSION);
+        }
+        return version;
+    }
+
+    /**
+     * @param in
+     *            the stream to check. Position is NOT changed.
+     * @return true if the stream starts with the header of this format.
+     * @throws IOException
+     */
+    public static boolean hasHeader(BufferedInputStream in)
+        throws IOException
+    {
+        in.mark(4);
+        try {
+            return new DataInputStream(in).readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Writes all {@link FileInfo}s.
+     *
+     * @param out
+     * @param fInfos
+     * @throws IOException
+     */
+    public static void writeFileInfos(DataOutput out, FileInfo[] fInfos)
+        throws IOException
+    {
+        writeVarLong(out, fInfos.length);
+        Encoder enc = new Encoder(out);
+        for (FileInfo fInfo : fInfos) {
+            enc.write(fInfo);
+        }
+    }
+
+    /**
+     * Reads {@link FileInfo}s written by
+     * {@link #writeFileInfos(DataOutput, FileInfo[])}. Invalid entries are
+     * skipped.
+     *
+     * @param in
+     * @return the {@link FileInfo}s
+     * @throws IOException
+     */
+    public static FileInfo[] readFileInfos(DataInput in) throws IOException {
+        int n = (int) readVarLong(in);
+        Decoder dec = new Decoder(in);
+        List<FileInfo> fInfos = new ArrayList<FileInfo>(n);
+        for (int i = 0; i < n; i++) {
+            FileInfo fInfo = dec.read();
+            if (fInfo != null) {
+                fInfos.add(fInfo);
+            }
+        }
+        return fInfos.toArray(new FileInfo[fInfos.size()]);
+    }
+
+    /**
+     * Writes a single, self-contained {@link FileInfo} record without
+     * references to previously written records.
+     *
+     * @param out
+     * @param fInfo
+     * @throws IOException
+     */
+    public static void writeFileInfo(DataOutput out, FileInfo fInfo)
+        throws IOException
+    {
+        new Encoder(out).write(fInfo);
+    }
+
+    /**
+     * Reads a {@link FileInfo} written by
+     * {@link #writeFileInfo(DataOutput, FileInfo)}.
+     *
+     * @param in
+     * @return the {@link FileInfo} or null if the record is invalid.
+     * @throws IOException
+     */
+    public static FileInfo readFileInfo(DataInput in) throws IOException {
+        return new Decoder(in).read();
+    }
+
+    /**
+     * Writes the basic information (id, nick, network id) of the members.
+     *
+     * @param out
+     * @param members
+     * @throws IOException
+     */
+    public static void writeMemberInfos(DataOutput out, MemberInfo[] members)
+        throws IOException
+    {
+        writeVarLong(out, members.length);
+        for (MemberInfo member : members) {
+            writeString(out, member.id);
+            writeString(out, member.nick);
+            writeString(out, member.networkId);
+        }
+    }
+
+    /**
+     * @param in
+     * @return the members written by
+     *         {@link #writeMemberInfos(DataOutput, MemberInfo[])}
+     * @throws IOException
+     */
+    public static MemberInfo[] readMemberInfos(DataInput in)
+        throws IOException
+    {
+        MemberInfo[] members = new MemberInfo[(int) readVarLong(in)];
+        for (int i = 0; i < members.length; i++) {
+            String id = readString(in);
+            String nick = readString(in);
+            String networkId = readString(in);
+            members[i] = new MemberInfo(nick, id, networkId).intern();
+        }
+        return members;
+    }
+
+    // Primitives *************************************************************
+
+    /**
+     * Writes an unsigned variable length long. 7 bits per byte.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeVarLong(DataOutput out, long value)
+        throws IOException
+    {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Writes a nullable string: varint length + 1 (0 = null) and UTF-8 bytes.
+     *
+     * @param out
+     * @param str
+     * @throws IOException
+     */
+    public static void writeString(DataOutput out, String str)
+        throws IOException
+    {
+        if (str == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = str.getBytes(UTF8);
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int len = (int) readVarLong(in);
+        if (len == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len - 1];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    // Internal ***************************************************************
+
+    /**
+     * Writes objects and remembers the index of referenced objects.
+     */
+    private static class Encoder {
+        private final DataOutput out;
+        private final Map<Object, Integer> refs = new HashMap<Object, Integer>();
+        private final Map<String, Integer> dirRefs = new HashMap<String, Integer>();
+
+        Encoder(DataOutput out) {
+            this.out = out;
+        }
+
+        void write(FileInfo fInfo) throws IOException {
+            int flags = 0;
+            if (fInfo.isDiretory()) {
+                flags |= FLAG_DIRECTORY;
+            }
+            if (fInfo.isDeleted()) {
+                flags |= FLAG_DELETED;
+            }
+            if (fInfo.getOID() != null) {
+                flags |= FLAG_OID;
+            }
+            if (fInfo.getHashes() != null) {
+                flags |= FLAG_HASHES;
+            }
+            if (fInfo.getTags() != null) {
+                flags |= FLAG_TAGS;
+            }
+            if (fInfo.getModifiedBy() != null) {
+                flags |= FLAG_MODIFIED_BY;
+            }
+            if (fInfo.getModifiedByAccount() != null) {
+                flags |= FLAG_ACCOUNT;
+            }
+            out.writeByte(flags);
+
+            String name = fInfo.getRelativeName();
+            int i = name.lastIndexOf('/');
+            writeDirRef(i < 0 ? "" : name.substring(0, i));
+            writeString(out, name.substring(i + 1));
+
+            FolderInfo foInfo = fInfo.getFolderInfo();
+            if (writeRef(foInfo)) {
+                writeString(out, foInfo.getName());
+                writeString(out, foInfo.getId());
+            }
+            writeVarLong(out, fInfo.getSize());
+            // 0 = no date.
+            Date modDate = fInfo.getModifiedDate();
+            writeVarLong(out, modDate != null ? modDate.getTime() + 1 : 0);
+            writeVarLong(out, fInfo.getVersion());
+
+            MemberInfo mInfo = fInfo.getModifiedBy();
+            if (mInfo != null && writeRef(mInfo)) {
+                writeString(out, mInfo.id);
+                writeString(out, mInfo.nick);
+                writeString(out, mInfo.networkId);
+            }
+            AccountInfo aInfo = fInfo.getModifiedByAccount();
+            if (aInfo != null && writeRef(aInfo)) {
+                writeString(out, aInfo.getOID());
+                writeString(out, aInfo.getUsername());
+                writeString(out, aInfo.getDisplayName());
+            }
+            if (fInfo.getOID() != null) {
+                writeString(out, fInfo.getOID());
+            }
+            if (fInfo.getHashes() != null) {
+                writeString(out, fInfo.getHashes());
+            }
+            if (fInfo.getTags() != null) {
+                writeString(out, fInfo.getTags());
+            }
+        }
+
+        /**
+         * @return true if the object is new and has to be written
+         */
+        private boolean writeRef(Object object) throws IOException {
+            Integer ref = refs.get(object);
+            if (ref != null) {
+                writeVarLong(out, ref.intValue() + 1);
+                return false;
+            }
+            refs.put(object, refs.size());
+            writeVarLong(out, 0);
+            return true;
+        }
+
+        private void writeDirRef(String dir) throws IOException {
+            Integer ref = dirRefs.get(dir);
+            if (ref != null) {
+                writeVarLong(out, ref.intValue() + 1);
+                return;
+            }
+            dirRefs.put(dir, dirRefs.size());
+            writeVarLong(out, 0);
+            writeString(out, dir);
+        }
+    }
+
+    /**
+     * Reads objects and resolves references to objects already read.
+     */
+    private static class Decoder {
+        private final DataInput in;
+        private final List<Object> refs = new ArrayList<Object>();
+        private final List<String> dirRefs = new ArrayList<String>();
+
+        Decoder(DataInput in) {
+            this.in = in;
+        }
+
+        FileInfo read() throws IOException {
+            int flags = in.readUnsignedByte();
+
+            String dir;
+            int dirRef = (int) readVarLong(in);
+            if (dirRef == 0) {
+                dir = readString(in);
+                dirRefs.add(dir);
+            } else {
+                dir = dirRefs.get(dirRef - 1);
+            }
+            String name = readString(in);
+            if (dir.length() > 0) {
+                name = dir + '/' + name;
+            }
+
+            FolderInfo foInfo;
+            int ref = (int) readVarLong(in);
+            if (ref == 0) {
+                String foName = readString(in);
+                String foId = readString(in);
+                foInfo = new FolderInfo(foName, foId).intern();
+                refs.add(foInfo);
+            } else {
+                foInfo = (FolderInfo) refs.get(ref - 1);
+            }
+            long size = readVarLong(in);
+            long modTime = readVarLong(in);
+            Date modDate = modTime > 0 ? new Date(modTime - 1) : null;
+            int version = (int) readVarLong(in);
+
+            MemberInfo mInfo = null;
+            if ((flags & FLAG_MODIFIED_BY) != 0) {
+                ref = (int) readVarLong(in);
+                if (ref == 0) {
+                    String id = readString(in);
+                    String nick = readString(in);
+                    String networkId = readString(in);
+                    mInfo = new MemberInfo(nick, id, networkId).intern();
+                    refs.add(mInfo);
+                } else {
+                    mInfo = (MemberInfo) refs.get(ref - 1);
+                }
+            }
+            AccountInfo aInfo = null;
+            if ((flags & FLAG_ACCOUNT) != 0) {
+                ref = (int) readVarLong(in);
+                if (ref == 0) {
+                    String oid = readString(in);
+                    String username = readString(in);
+                    String displayName = readString(in);
+                    aInfo = new AccountInfo(oid, username, displayName)
+                        .intern();
+                    refs.add(aInfo);
+                } else {
+                    aInfo = (AccountInfo) refs.get(ref - 1);
+                }
+            }
+            String oid = (flags & FLAG_OID) != 0 ? readString(in) : null;
+            String hashes = (flags & FLAG_HASHES) != 0 ? readString(in) : null;
+            String tags = (flags & FLAG_TAGS) != 0 ? readString(in) : null;
+            boolean deleted = (flags & FLAG_DELETED) != 0;
+
+            try {
+                if ((flags & FLAG_DIRECTORY) != 0) {
+                    return new DirectoryInfo(name, oid, size, mInfo, aInfo,
+                        modDate, version, hashes, deleted, tags, foInfo);
+                }
+                return new FileInfo(name, oid, size, mInfo, aInfo, modDate,
+                    version, hashes, deleted, tags, foInfo);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Skipping invalid entry " + name
+                    + ". " + e);
+                return null;
+            }
+        }
+    }
+}
@@ -167,6 +167,28 @@ public final class FileInfoFactory {
             fInfo.isDeleted(), fInfo.getTags(), fInfo.getFolderInfo());
     }
 
+    /**
+     * PFC-2352
+     * @param fInfo
+     * @param hashes
+     * @return a new instance with the given content hashes, same version.
+     */
+    public static FileInfo setHashes(FileInfo fInfo, String hashes) {
+        Reject.ifNull(fInfo, "FileInfo");
+        if (fInfo instanceof DirectoryInfo) {
+            return new DirectoryInfo(fInfo.getRelativeName(), fInfo.getOID(),
+                fInfo.getSize(), fInfo.getModifiedBy(),
+                fInfo.getModifiedByAccount(), fInfo.getModifiedDate(),
+                fInfo.getVersion(), hashes, fInfo.isDeleted(),
+                fInfo.getTags(), fInfo.getFolderInfo());
+        }
+        return new FileInfo(fInfo.getRelativeName(), fInfo.getOID(),
+            fInfo.getSize(), fInfo.getModifiedBy(),
+            fInfo.getModifiedByAccount(), fInfo.getModifiedDate(),
+            fInfo.getVersion(), hashes, fInfo.isDeleted(), fInfo.getTags(),
+            fInfo.getFolderInfo());
+    }
+
     public static FileInfo unmarshallExistingFile(FolderInfo fi,
         String fileName, String oid, long size, MemberInfo modByDevice,
         AccountInfo modByAccount, Date modDate, int version, String hashes,
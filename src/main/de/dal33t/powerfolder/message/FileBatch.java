@@ -0,0 +1,95 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Part of the answer to a {@link RequestFileBatch}. Contains the complete
+ * contents of some of the requested files. Each file is preceded by its
+ * {@link FileInfo} header.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
+ */
+public class FileBatch extends Message implements LimitBandwidth {
+    private static final long serialVersionUID = 100L;
+
+    /**
+     * The files. Exactly the versions requested.
+     */
+    public FileInfo[] files;
+
+    /**
+     * The contents of the files. <code>null</code> for a file, which could
+     * not be sent. It needs to be downloaded the normal way.
+     */
+    public byte[][] data;
+
+    public FileBatch() {
+        // Serialisation constructor
+    }
+
+    public FileBatch(FileInfo[] files, byte[][] data) {
+        Reject.ifNull(files, "Files is null");
+        Reject.ifNull(data, "Data is null");
+        Reject.ifFalse(files.length == data.length,
+            "Number of files and data differs");
+        this.files = files;
+        this.data = data;
+    }
+
+    /**
+     * @return true if there is data for each file and no data is larger than
+     *         its file. Received batches are checked with this before use.
+     */
+    public boolean isValid() {
+        if (files == null || data == null || files.length != data.length) {
+            return false;
+        }
+        for (int i = 0; i < files.length; i++) {
+            if (files[i] == null) {
+                return false;
+            }
+            if (data[i] != null && data[i].length > files[i].getSize()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the total number of bytes of file data in this batch.
+     */
+    public long getDataSize() {
+        long size = 0;
+        for (byte[] d : data) {
+            if (d != null) {
+                size += d.length;
+            }
+        }
+        return size;
+    }
+
+    public String toString() {
+        return "FileBatch of " + files.length + " files, " + getDataSize()
+            + " bytes";
+    }
+}
@@ -50,6 +50,13 @@ public class FileChunk extends Message implements LimitBandwidth {
         validate();
     }
 
+    /**
+     * @return the number of bytes of this chunk.
+     */
+    public int getLength() {
+        return data.length;
+    }
+
     public String toString() {
         return "FileChunk: " + file + " ("
             + Format.formatDecimal(file.getSize()) + " total bytes), offset: "
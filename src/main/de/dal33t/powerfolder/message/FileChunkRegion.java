@@ -0,0 +1,126 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.message;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Validate;
+
+/**
+ * A file chunk to be sent, which references a region of an open file instead
+ * of holding the data.
+ * <p>
+ * Connection handlers supporting it write the data straight from the
+ * {@link FileChannel} into the connection. Never appears on the wire itself:
+ * On normal serialization it gets replaced by a {@link FileChunkExt} holding
+ * the data read from the file. The channel must stay open until the message
+ * has been sent.
+ *
+ * @author sprajc
+ */
+public class FileChunkRegion extends FileChunkExt {
+    private static final long serialVersionUID = 100L;
+
+    private transient FileChannel channel;
+    private transient int length;
+
+    /**
+     * @param file
+     *            the file
+     * @param offset
+     *            the offset in the file
+     * @param channel
+     *            the open channel to read the data from
+     * @param length
+     *            the number of bytes of the chunk
+     */
+    public FileChunkRegion(FileInfo file, long offset, FileChannel channel,
+        int length)
+    {
+        super();
+        Reject.noNullElements(file, channel);
+        Validate.isTrue(offset >= 0);
+        Validate.isTrue(length >= 0);
+        Validate.isTrue(offset + length <= file.getSize());
+        this.file = file;
+        this.offset = offset;
+        this.channel = channel;
+        this.length = length;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the channel to read the data from.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the chunk without data. Sent ahead of the data of the region.
+     */
+    public FileChunkExt getHeader() {
+        return new FileChunkExt(file, offset, new byte[0]);
+    }
+
+    /**
+     * Reads the data of the region into a regular file chunk.
+     *
+     * @return the chunk holding the data.
+     * @throws IOException
+     *             if the file could not be read.
+     */
+    public FileChunkExt read() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, offset + buf.position());
+            if (read < 0) {
+                throw new IOException("Requested part exceeds filesize!");
+            }
+        }
+        return new FileChunkExt(file, offset, buf.array());
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        try {
+            return read();
+        } catch (IOException e) {
+            throw new InvalidObjectException("Unable to read " + this + ": "
+                + e);
+        }
+    }
+
+    public String toString() {
+        return "FileChunkRegion: " + file + " ("
+            + Format.formatDecimal(file.getSize()) + " total bytes), offset: "
+            + offset + ", chunk size: " + length;
+    }
+}
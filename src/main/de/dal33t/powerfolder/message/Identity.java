@@ -82,6 +82,23 @@ public class Identity extends Message {
     private boolean supportingPartTransfers = true;
 
     private Boolean useCompressedStream;
+
+    /**
+     * If the connection handler accepts {@link FileChunkRegion} frames.
+     */
+    private boolean supportsFileChunkRegions;
+
+    /**
+     * If small files may be requested in batches with
+     * {@link RequestFileBatch}.
+     */
+    private boolean supportsFileBatches;
+
+    /**
+     * If messages may be sent in one deflate stream per connection instead of
+     * one gzip stream per message.
+     */
+    private boolean supportsStreamCompression;
     /**
      * #2072: {@link Externalizable} protocol history:
      * <p>
@@ -163,6 +180,7 @@ public class Identity extends Message {
         this.requestFullFolderlist = controller.getMySelf().isServer();
 
         this.configurationURL = controller.getConfig().getProperty("config.url");
+        this.supportsFileBatches = true;
     }
 
     /**
@@ -226,6 +244,39 @@ public class Identity extends Message {
         return requestFullFolderlist;
     }
 
+    /**
+     * @return true if file chunks may be sent as raw file region after a data
+     *         less {@link FileChunkExt}.
+     */
+    public boolean isSupportsFileChunkRegions() {
+        return supportsFileChunkRegions;
+    }
+
+    public void setSupportsFileChunkRegions(boolean supportsFileChunkRegions) {
+        this.supportsFileChunkRegions = supportsFileChunkRegions;
+    }
+
+    /**
+     * @return true if messages may be sent in one deflate stream per
+     *         connection.
+     */
+    public boolean isSupportsStreamCompression() {
+        return supportsStreamCompression;
+    }
+
+    public void setSupportsStreamCompression(boolean supportsStreamCompression)
+    {
+        this.supportsStreamCompression = supportsStreamCompression;
+    }
+
+    /**
+     * @return true if small files may be requested in batches with
+     *         {@link RequestFileBatch}.
+     */
+    public boolean isSupportsFileBatches() {
+        return supportsFileBatches;
+    }
+
     /**
      * @return true if this is a tunneled connection.
      */
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import java.util.Arrays;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Request to download many small files at once. Answered by one or more
+ * {@link FileBatch} messages, which contain all requested files.
+ *
+ * @see Identity#isSupportsFileBatches()
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
+ */
+public class RequestFileBatch extends Message {
+    private static final long serialVersionUID = 100L;
+
+    public FileInfo[] files;
+
+    public RequestFileBatch() {
+        // Serialisation constructor
+    }
+
+    /**
+     * @param files
+     *            the exact versions of the files to download.
+     */
+    public RequestFileBatch(FileInfo[] files) {
+        Reject.ifNull(files, "Files is null");
+        this.files = files;
+    }
+
+    public String toString() {
+        return "Request to download batch of " + files.length + " files: "
+            + Arrays.asList(files);
+    }
+}
@@ -0,0 +1,1493 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.Feature;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileChunkExt;
+import de.dal33t.powerfolder.message.FileChunkRegion;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.IdentityReply;
+import de.dal33t.powerfolder.message.LimitBandwidth;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.Problem;
+import de.dal33t.powerfolder.transfer.BandwidthLimiter;
+import de.dal33t.powerfolder.util.BufferPool;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.net.NetworkUtil;
+
+/**
+ * Connection handler on a non-blocking {@link SocketChannel}. Wire compatible
+ * to {@link AbstractSocketConnectionHandler}: Each message is sent as 4 byte
+ * length header followed by the serialized message.
+ * <p>
+ * The framed data is read and written by a thread of the
+ * {@link NIOSelectorPool}. Received messages are deserialized and processed
+ * in order by a worker of the {@link IOProvider}, which is only active while
+ * messages are waiting. Same for the serialization of messages to be sent
+ * asynchronously. An idle connection does not occupy any thread.
+ * <p>
+ * WARNING: The handshake and message handling is copied from
+ * {@link AbstractSocketConnectionHandler}.
+ *
+ * @author sprajc
+ */
+public abstract class AbstractNIOSocketConnectionHandler extends PFComponent
+    implements ConnectionHandler
+{
+    /**
+     * Stop reading from the socket if this amount of received data is waiting
+     * for processing.
+     */
+    private static final int MAX_RECEIVE_BACKLOG = 4 * 1024 * 1024;
+
+    /**
+     * Stop serializing messages if this amount of data is waiting to be
+     * written into the socket.
+     */
+    private static final int MAX_SEND_BACKLOG = 1024 * 1024;
+
+    // Read states of a body
+    private static final int READ_MESSAGE = 0;
+    private static final int READ_REGION_SIZES = 1;
+    private static final int READ_REGION_HEADER = 2;
+    private static final int READ_REGION_DATA = 3;
+
+    /** The max size of one message */
+    private static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024;
+
+    /** The non-blocking channel */
+    private final SocketChannel channel;
+
+    /** The assigned member */
+    private Member member;
+
+    // Our identity
+    private Identity myIdentity;
+
+    // Identity of remote peer
+    private Identity identity;
+    private IdentityReply identityReply;
+    // The magic id, which has been send to the remote peer
+    private String myMagicId;
+
+    private ByteSerializer serializer;
+    /** The pool of the frame and packet buffers */
+    private final BufferPool pool = BufferPool.getDefault();
+
+    private volatile BandwidthLimiter outLimiter;
+    private volatile BandwidthLimiter inLimiter;
+
+    private volatile boolean started;
+    // Flag if client is on lan
+    private boolean onLAN;
+
+    // Locks
+    private final Object identityWaiter = new Object();
+    private final Object identityAcceptWaiter = new Object();
+    // Lock for serializing messages
+    private final Object sendLock = new Object();
+
+    // Keepalive stuff
+    private Date lastKeepaliveMessage;
+
+    /**
+     * If true all bandwidth limits are omitted, if false it's handled message
+     * based
+     */
+    private boolean omitBandwidthLimit;
+
+    // Selector side **********************************************************
+
+    private NIOSelectorPool.Loop loop;
+    private SelectionKey key;
+
+    /** The header of the message currently read */
+    private final ByteBuffer readHeader = ByteBuffer.allocate(4);
+    /** The body of the message currently read or null if reading header */
+    private ByteBuffer readBody;
+    /** What the body currently read is */
+    private int readState;
+    private int regionLength;
+    private byte[] regionHeader;
+    private int regionHeaderSize;
+    /** Set while reading waits for the processor to catch up */
+    private final AtomicBoolean readPaused = new AtomicBoolean();
+    private boolean readThrottled;
+    private boolean writeThrottled;
+
+    /** The frame currently written */
+    private volatile Frame writeFrame;
+
+    // Receiving **************************************************************
+
+    private final Queue<Packet> receivedQueue = new ConcurrentLinkedQueue<Packet>();
+    private final AtomicInteger receivedBytes = new AtomicInteger();
+    private final AtomicBoolean processing = new AtomicBoolean();
+
+    // Sending ****************************************************************
+
+    /** Messages to be serialized and sent */
+    private final SendQueue messagesToSendQueue;
+
+    /** Serialized messages to be written into the socket */
+    private final Queue<Frame> frames = new ConcurrentLinkedQueue<Frame>();
+    private final AtomicInteger frameBytes = new AtomicInteger();
+
+    /**
+     * The current active sender.
+     */
+    private Runnable sender;
+
+    /**
+     * Lock to ensure that modifications to senders are performed by one thread
+     * only.
+     */
+    private final Lock senderSpawnLock = new ReentrantLock();
+
+    /**
+     * Builds a new anonymous connection handler for the channel.
+     * <p>
+     * Should be called from <code>ConnectionHandlerFactory</code> only.
+     *
+     * @see ConnectionHandlerFactory
+     * @param controller
+     *            the controller.
+     * @param channel
+     *            the connected channel.
+     */
+    protected AbstractNIOSocketConnectionHandler(Controller controller,
+        SocketChannel channel)
+    {
+        super(controller);
+        Reject.ifNull(channel, "Channel is null");
+        this.channel = channel;
+        this.serializer = new ByteSerializer();
+        this.messagesToSendQueue = new SendQueue(
+            ConfigurationEntry.NET_SEND_QUEUE_MAX_BYTES.getValueInt(controller));
+    }
+
+    // Abstract behaviour *****************************************************
+
+    /**
+     * Called before the message gets written into the channel.
+     *
+     * @param message
+     *            the message to serialize
+     * @return the serialized message
+     */
+    protected abstract byte[] serialize(Message message)
+        throws ConnectionException;
+
+    /**
+     * Called when the data got read from the channel. Should re-construct the
+     * serialized object from the data.
+     *
+     * @param data
+     *            the serialized data
+     * @param len
+     *            the actual size of the data in data buffer
+     * @return the deserialized object
+     */
+    protected abstract Object deserialize(byte[] data, int len)
+        throws ConnectionException, ClassNotFoundException;
+
+    /**
+     * (Optional) Handles the received object.
+     *
+     * @param obj
+     *            the obj that was received
+     * @return true if this object/message was handled.
+     * @throws ConnectionException
+     *             if something is broken.
+     */
+    protected boolean receivedObject(Object obj) throws ConnectionException {
+        return false;
+    }
+
+    /**
+     * @return an identity that gets send to the remote side.
+     */
+    protected abstract Identity createOwnIdentity();
+
+    /**
+     * @return the internal used serializer
+     */
+    protected ByteSerializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * @return the tcp/ip socket of the channel
+     */
+    protected Socket getSocket() {
+        return channel.socket();
+    }
+
+    /**
+     * Initializes the connection handler.
+     *
+     * @throws ConnectionException
+     */
+    public void init() throws ConnectionException {
+        if (!channel.isOpen() || !channel.isConnected()) {
+            throw new ConnectionException("Connection to peer is closed")
+                .with(this);
+        }
+        this.started = true;
+        this.identity = null;
+        this.identityReply = null;
+        long startTime = System.currentTimeMillis();
+
+        try {
+            outLimiter = getController().getTransferManager().getOutputLimiter(
+                this);
+            inLimiter = getController().getTransferManager().getInputLimiter(
+                this);
+
+            // Pre-Analyse connection
+            analyseConnection();
+
+            // Generate magic id, 16 byte * 8 * 8 bit = 1024 bit key
+            myMagicId = IdGenerator.makeId() + IdGenerator.makeId()
+                + IdGenerator.makeId() + IdGenerator.makeId()
+                + IdGenerator.makeId() + IdGenerator.makeId()
+                + IdGenerator.makeId() + IdGenerator.makeId();
+
+            // Create identity
+            myIdentity = createOwnIdentity();
+            myIdentity
+                .setSupportsFileChunkRegions(ConfigurationEntry.TRANSFERS_FILE_CHUNK_REGIONS
+                    .getValueBoolean(getController()));
+            if (isFiner()) {
+                logFiner("Sending my identity, nick: '"
+                    + myIdentity.getMemberInfo().nick + "', ID: "
+                    + myIdentity.getMemberInfo().id);
+            }
+
+            // Start receiving
+            loop = getController().getIOProvider().getNIOSelectorPool()
+                .register(channel, this);
+
+            // Send identity
+            sendMessagesAsynchron(myIdentity);
+        } catch (IOException e) {
+            throw new ConnectionException("Unable to open connection: "
+                + e.getMessage(), e).with(this);
+        }
+        waitForRemoteIdentity();
+
+        if (!isConnected()) {
+            shutdown();
+            throw new ConnectionException(
+                "Remote peer disconnected while waiting for his identity")
+                .with(this);
+        }
+        if (identity == null || identity.getMemberInfo() == null) {
+            throw new ConnectionException(
+                "Did not receive a valid identity from peer after 60s")
+                .with(this);
+        }
+
+        long took = System.currentTimeMillis() - startTime;
+        if (isFiner()) {
+            logFiner("Connect took " + took + "ms, time differ: "
+                + ((getTimeDeltaMS() / 1000) / 60) + " min, remote ident: "
+                + getIdentity());
+        }
+
+        // Re-Analyse connection
+        analyseConnection();
+
+        // Check this connection for keep-alive
+        getController().getIOProvider().startKeepAliveCheck(this);
+    }
+
+    /**
+     * Shuts down this connection handler by calling shutdown of member. If no
+     * associated member is found, the con handler gets directly shut down.
+     * <p>
+     */
+    public void shutdownWithMember() {
+        Member thisMember = getMember();
+        if (thisMember != null) {
+            // Shutdown member. This means this connection handler gets shut
+            // down by member
+            thisMember.shutdown();
+        }
+
+        if (started) {
+            // Not shutdown yet, just shut down
+            shutdown();
+        }
+    }
+
+    /**
+     * Shuts down the connection handler. The member is shut down optionally
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            started = false;
+        }
+        if (isFiner()) {
+            logFiner("Shutting down");
+        }
+        // Remove link to member
+        setMember(null);
+        // Clear send queue
+        messagesToSendQueue.clear();
+
+        getController().getIOProvider().removeKeepAliveCheck(this);
+
+        // close channel. Cancels the selection key
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logFiner("IOException", e);
+        }
+        if (loop != null) {
+            loop.unregistered();
+        }
+
+        // Release threads waiting for sent messages
+        Frame frame;
+        while ((frame = frames.poll()) != null) {
+            frame.done();
+            pool.release(frame.pooled);
+        }
+        if (writeFrame != null) {
+            // Might still be written by the selector thread. Not released.
+            writeFrame.done();
+        }
+        Packet packet;
+        while ((packet = receivedQueue.poll()) != null) {
+            packet.release(pool);
+        }
+
+        // Trigger all waiting treads
+        synchronized (identityWaiter) {
+            identityWaiter.notifyAll();
+        }
+        synchronized (identityAcceptWaiter) {
+            identityAcceptWaiter.notifyAll();
+        }
+
+        // make sure the garbage collector gets this
+        serializer = null;
+    }
+
+    /**
+     * @return true if the connection is active
+     */
+    public boolean isConnected() {
+        return started && channel.isOpen() && channel.isConnected()
+            && serializer != null;
+    }
+
+    public boolean isEncrypted() {
+        return false;
+    }
+
+    public boolean isOnLAN() {
+        return onLAN;
+    }
+
+    public void setOnLAN(boolean onlan) {
+        onLAN = onlan;
+        outLimiter = getController().getTransferManager()
+            .getOutputLimiter(this);
+        inLimiter = getController().getTransferManager().getInputLimiter(this);
+    }
+
+    public void setMember(Member member) {
+        this.member = member;
+    }
+
+    public Member getMember() {
+        return member;
+    }
+
+    public Date getLastKeepaliveMessageTime() {
+        return lastKeepaliveMessage;
+    }
+
+    public void sendMessage(Message message) throws ConnectionException {
+        if (message == null) {
+            throw new NullPointerException("Message is null");
+        }
+
+        if (!isConnected()) {
+            throw new ConnectionException("Connection to remote peer closed")
+                .with(this);
+        }
+
+        // break if remote peer did no identitfy
+        if (identity == null && (!(message instanceof Identity))) {
+            throw new ConnectionException(
+                "Unable to send message, peer did not identify yet").with(this);
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            Frame frame = createFrame(message, true);
+            enqueueFrame(frame);
+            frame.await();
+            if (!frame.sent) {
+                throw new ConnectionException(
+                    "Unable to send message to peer, connection shutdown")
+                    .with(member).with(this);
+            }
+            long took = System.currentTimeMillis() - start;
+            if (took > 40000) {
+                logWarning("Sending (" + frame.size + " bytes) took " + took
+                    + "ms: " + message);
+            }
+        } catch (InterruptedException e) {
+            throw new ConnectionException(
+                "Interrupted while sending message to peer", e).with(member)
+                .with(this);
+        } catch (ConnectionException e) {
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
+        } catch (RuntimeException e) {
+            logSevere("Runtime exception while serializing: " + message, e);
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
+        }
+    }
+
+    public void sendMessagesAsynchron(Message... messages) {
+        for (Message message : messages) {
+            sendMessageAsynchron(message);
+        }
+    }
+
+    /**
+     * A message to be send later. code execution does not wait util message was
+     * sent successfully
+     *
+     * @param message
+     *            the message to be sent
+     */
+    private void sendMessageAsynchron(Message message) {
+        Reject.ifNull(message, "Message is null");
+
+        senderSpawnLock.lock();
+        try {
+            if (!messagesToSendQueue.offer(message)) {
+                if (isFiner()) {
+                    logFiner("Send queue full, dropped " + message);
+                }
+                return;
+            }
+            if (messagesToSendQueue.size() > 500 && isWarning()) {
+                String msg = "Many messages in send queue: "
+                    + messagesToSendQueue.size() + ": " + messagesToSendQueue;
+                if (msg.length() > 300) {
+                    msg = msg.substring(0, 300);
+                    msg += "...";
+                }
+                logWarning(msg);
+            }
+            // PFC-2591: Start
+            if (messagesToSendQueue.size() > 5000) {
+                String msg = "Disconnecting " + getIdentity()
+                    + ": Too many messages in send queue: "
+                    + messagesToSendQueue.size();
+                logWarning(msg);
+                shutdownWithMember();
+                return;
+            }
+            // PFC-2591: End
+            if (messagesToSendQueue.isOverflow()) {
+                logWarning("Disconnecting " + getIdentity()
+                    + ": Too many bytes in send queue: "
+                    + Format.formatBytesShort(messagesToSendQueue.getBytes()));
+                shutdownWithMember();
+                return;
+            }
+            spawnSender();
+        } finally {
+            senderSpawnLock.unlock();
+        }
+    }
+
+    /**
+     * Starts the sender if messages are waiting and not too much data is
+     * waiting to be written. Requires the {@link #senderSpawnLock}.
+     */
+    private void spawnSender() {
+        if (sender == null && !messagesToSendQueue.isEmpty()
+            && frameBytes.get() < MAX_SEND_BACKLOG)
+        {
+            sender = new Sender();
+            getController().getIOProvider().startIO(sender);
+        }
+    }
+
+    /**
+     * Serializes the message into a frame with length header.
+     *
+     * @param message
+     * @param sync
+     *            if the sender waits for completion.
+     * @return the frame
+     * @throws ConnectionException
+     */
+    private Frame createFrame(Message message, boolean sync)
+        throws ConnectionException
+    {
+        byte[] data;
+        FileChunkRegion region = null;
+        synchronized (sendLock) {
+            if (isFiner()) {
+                logFiner("-- (sending) -> " + message);
+            }
+            if (!isConnected()) {
+                throw new ConnectionException(
+                    "Connection to remote peer closed").with(this);
+            }
+            if (message instanceof FileChunkRegion
+                && isFileChunkRegionSupported())
+            {
+                region = (FileChunkRegion) message;
+                data = serialize(region.getHeader());
+            } else {
+                data = serialize(message);
+            }
+        }
+        int frameSize = data.length + (region != null ? 12 : 4);
+        byte[] pooled = pool.borrow(frameSize);
+        ByteBuffer buffer = ByteBuffer.wrap(pooled, 0, frameSize);
+        if (region != null) {
+            buffer.putInt(AbstractSocketConnectionHandler.FILE_CHUNK_REGION_FRAME);
+            buffer.putInt(data.length);
+            buffer.putInt(region.getLength());
+        } else {
+            buffer.putInt(data.length);
+        }
+        buffer.put(data);
+        buffer.flip();
+        // Not limit some pakets
+        boolean limited = message instanceof LimitBandwidth
+            && !omitBandwidthLimit;
+        return new Frame(buffer, pooled, region, limited, sync);
+    }
+
+    /**
+     * @return true if file chunks can be sent as file region. Not on
+     *         compressed connections, the raw data would not get compressed.
+     */
+    private boolean isFileChunkRegionSupported() {
+        return identity != null && identity.isSupportsFileChunkRegions()
+            && !Boolean.TRUE.equals(myIdentity.isUseCompressedStream());
+    }
+
+    private void enqueueFrame(Frame frame) throws ConnectionException {
+        if (!isConnected() || loop == null) {
+            throw new ConnectionException("Connection to remote peer closed")
+                .with(this);
+        }
+        frameBytes.addAndGet(frame.size);
+        frames.offer(frame);
+        loop.execute(new Runnable() {
+            public void run() {
+                enableWrite();
+            }
+        });
+    }
+
+    public int getSendQueueSize() {
+        return messagesToSendQueue.size() + frames.size();
+    }
+
+    public long getSendQueueBytes() {
+        return frameBytes.get() + messagesToSendQueue.getBytes();
+    }
+
+    public long getTimeDeltaMS() {
+        if (identity.getTimeGMT() == null)
+            return 0;
+        return myIdentity.getTimeGMT().getTimeInMillis()
+            - identity.getTimeGMT().getTimeInMillis();
+    }
+
+    public boolean canMeasureTimeDifference() {
+        return identity.getTimeGMT() != null;
+    }
+
+    public Identity getIdentity() {
+        return identity;
+    }
+
+    public Identity getMyIdentity() {
+        return myIdentity;
+    }
+
+    public String getMyMagicId() {
+        return myMagicId;
+    }
+
+    public String getRemoteMagicId() {
+        return identity != null ? identity.getMagicId() : null;
+    }
+
+    public ConnectionQuality getConnectionQuality() {
+        // When acting as HTTP tunnel. The other side is a socket connector.
+        if (identity != null && identity.isTunneled()) {
+            return ConnectionQuality.POOR;
+        }
+        return ConnectionQuality.GOOD;
+    }
+
+    /**
+     * Waits until we received the remote identity
+     */
+    private void waitForRemoteIdentity() {
+        synchronized (identityWaiter) {
+            if (identity == null && started) {
+                // wait for remote identity
+                try {
+                    identityWaiter.wait(60000);
+                } catch (InterruptedException e) {
+                    // Ignore
+                    logFiner("InterruptedException", e);
+                }
+            }
+        }
+    }
+
+    public boolean acceptIdentity(Member node) {
+        Reject.ifNull(node, "node is null");
+        // Connect member with this node
+        member = node;
+
+        // now handshake
+        if (isFiner()) {
+            logFiner("Sending accept of identity to " + this);
+        }
+        sendMessagesAsynchron(IdentityReply.accept());
+
+        // wait for accept of our identity
+        long start = System.currentTimeMillis();
+        synchronized (identityAcceptWaiter) {
+            if (identityReply == null && started) {
+                try {
+                    identityAcceptWaiter.wait(20000);
+                } catch (InterruptedException e) {
+                    logFiner("InterruptedException", e);
+                }
+            }
+        }
+
+        long took = (System.currentTimeMillis() - start) / 1000;
+        if (identityReply != null && !identityReply.accepted) {
+            logWarning("Remote peer rejected our connection: "
+                + identityReply.message);
+            member = null;
+            return false;
+        }
+
+        if (!isConnected()) {
+            if (isFiner()) {
+                logFiner("Remote member disconnected while waiting for identity reply. "
+                    + identity);
+            }
+            member = null;
+            return false;
+        }
+
+        if (identityReply == null) {
+            logWarning("Did not receive a identity reply after " + took
+                + "s. Connected? " + isConnected() + ". remote id: " + identity);
+            member = null;
+            return false;
+        }
+
+        if (identityReply.accepted) {
+            if (isFiner()) {
+                logFiner("Identity accepted by remote peer. " + this);
+            }
+        } else {
+            member = null;
+            logWarning("Identity rejected by remote peer. " + this);
+        }
+
+        return identityReply.accepted;
+    }
+
+    public boolean waitForEmptySendQueue(long ms) {
+        long waited = 0;
+        while (!isSendQueueEmpty() && isConnected()) {
+            try {
+                waited += 50;
+                // Wait a bit the let the send queue get empty
+                Thread.sleep(50);
+
+                if (ms >= 0 && waited >= ms) {
+                    // Stop waiting
+                    break;
+                }
+            } catch (InterruptedException e) {
+                logFiner("InterruptedException", e);
+                break;
+            }
+        }
+        if (waited > 0) {
+            if (isFiner()) {
+                logFiner("Waited " + waited
+                    + "ms for empty sendbuffer, clear now, proceeding to "
+                    + getMember());
+            }
+        }
+        return isSendQueueEmpty();
+    }
+
+    private boolean isSendQueueEmpty() {
+        return messagesToSendQueue.isEmpty() && frameBytes.get() == 0;
+    }
+
+    /**
+     * Analysese the connection of the user
+     */
+    private void analyseConnection() {
+        if (Feature.CORRECT_LAN_DETECTION.isDisabled()) {
+            logFine("ON LAN because of correct connection analyse disabled");
+            setOnLAN(true);
+            return;
+        }
+        if (Feature.CORRECT_INTERNET_DETECTION.isDisabled()) {
+            logFine("ON Internet because of correct connection analyse disabled");
+            setOnLAN(false);
+            return;
+        }
+        if (identity != null && identity.isTunneled()) {
+            setOnLAN(false);
+            return;
+        }
+        if (getRemoteAddress() != null
+            && getRemoteAddress().getAddress() != null)
+        {
+            InetAddress adr = getRemoteAddress().getAddress();
+            setOnLAN(getController().getNodeManager().isOnLANorConfiguredOnLAN(
+                adr));
+            // Check if the remote address is one of this machine's
+            // interfaces.
+            try {
+                omitBandwidthLimit = Feature.OMIT_LOCAL_BANDWIDTH_LIMIT
+                    .isEnabled()
+                    && NetworkUtil.isFromThisComputer(adr);
+            } catch (SocketException e) {
+                logSevere("Omitting bandwidth", e);
+            }
+        }
+
+        if (isFiner()) {
+            logFiner("analyse connection: lan: " + onLAN);
+        }
+    }
+
+    public boolean acceptHandshake() {
+        return true;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+    }
+
+    public int getRemoteListenerPort() {
+        if (identity == null || identity.getMemberInfo() == null
+            || identity.getMemberInfo().getConnectAddress() == null)
+        {
+            return -1;
+        }
+        if (identity.isTunneled()) {
+            // No reconnection available to a tunneled connection.
+            return -1;
+        }
+
+        return identity.getMemberInfo().getConnectAddress().getPort();
+    }
+
+    /**
+     * Logs a connection closed event
+     *
+     * @param e
+     */
+    private void logConnectionClose(Exception e) {
+        String msg = "Connection closed to "
+            + ((member == null) ? this.toString() : member.toString());
+
+        if (e instanceof ConnectionException) {
+            msg += ". Cause: " + ((ConnectionException) e).getCause();
+        } else if (e != null) {
+            msg += ". Cause: " + e.toString();
+        }
+        logFiner(msg);
+        logFiner("Exception", e);
+    }
+
+    // Selector thread ********************************************************
+
+    void setSelectionKey(SelectionKey key) {
+        this.key = key;
+        if (!started) {
+            key.cancel();
+        }
+    }
+
+    /**
+     * Called by the selector thread if data can be read.
+     *
+     * @throws IOException
+     */
+    void readReady() throws IOException {
+        while (started) {
+            if (receivedBytes.get() >= MAX_RECEIVE_BACKLOG) {
+                // Wait for the processor to catch up
+                readPaused.set(true);
+                setInterest(SelectionKey.OP_READ, false);
+                // The processor might have drained the backlog before it saw
+                // the pause.
+                if (receivedBytes.get() < MAX_RECEIVE_BACKLOG / 2
+                    && readPaused.compareAndSet(true, false))
+                {
+                    setInterest(SelectionKey.OP_READ, true);
+                    continue;
+                }
+                return;
+            }
+            ByteBuffer buffer = readBody != null ? readBody : readHeader;
+            if (buffer.hasRemaining()) {
+                int allowed = (int) inLimiter.tryRequestBandwidth(buffer
+                    .remaining());
+                if (allowed == 0) {
+                    readThrottled = true;
+                    setInterest(SelectionKey.OP_READ, false);
+                    loop.throttle(this);
+                    return;
+                }
+                int limit = buffer.limit();
+                buffer.limit(buffer.position() + allowed);
+                int read = 0;
+                try {
+                    read = channel.read(buffer);
+                } finally {
+                    buffer.limit(limit);
+                    if (read < allowed) {
+                        inLimiter.returnAvailable(allowed - Math.max(0, read));
+                    }
+                }
+                if (read < 0) {
+                    throw new EOFException("Connection closed by peer");
+                }
+                if (buffer.hasRemaining()) {
+                    if (read < allowed) {
+                        // Nothing more available
+                        return;
+                    }
+                    continue;
+                }
+            }
+            if (readBody == null) {
+                readHeader.flip();
+                int totalSize = readHeader.getInt();
+                readHeader.clear();
+                getController().getTransferManager()
+                    .getTotalDownloadTrafficCounter().bytesTransferred(4);
+                if (totalSize == AbstractSocketConnectionHandler.FILE_CHUNK_REGION_FRAME)
+                {
+                    readState = READ_REGION_SIZES;
+                    readBody = ByteBuffer.allocate(8);
+                    continue;
+                }
+                if (totalSize == -1393754107) {
+                    throw new IOException("Client has old protocol version");
+                }
+                if (totalSize == -1) {
+                    throw new EOFException("Connection closed by peer");
+                }
+                if (totalSize <= 0) {
+                    throw new IOException("Illegal paket size: " + totalSize);
+                }
+                if (totalSize > MAX_MESSAGE_SIZE) {
+                    throw new IOException(
+                        "Max buffersize overflow while reading. expected size "
+                            + totalSize);
+                }
+                readState = READ_MESSAGE;
+                readBody = ByteBuffer.wrap(pool.borrow(totalSize), 0,
+                    totalSize);
+            } else if (readState == READ_REGION_SIZES) {
+                readBody.flip();
+                int headerSize = readBody.getInt();
+                regionLength = readBody.getInt();
+                if (headerSize <= 0 || headerSize > MAX_MESSAGE_SIZE
+                    || regionLength < 0
+                    || regionLength > AbstractSocketConnectionHandler.MAX_REGION_SIZE)
+                {
+                    throw new IOException("Illegal file chunk size: "
+                        + headerSize + "/" + regionLength);
+                }
+                readState = READ_REGION_HEADER;
+                readBody = ByteBuffer.wrap(pool.borrow(headerSize), 0,
+                    headerSize);
+            } else if (readState == READ_REGION_HEADER) {
+                regionHeader = readBody.array();
+                regionHeaderSize = readBody.limit();
+                readState = READ_REGION_DATA;
+                // Not pooled, becomes the data of the file chunk
+                readBody = ByteBuffer.allocate(regionLength);
+            } else {
+                Packet packet;
+                if (readState == READ_REGION_DATA) {
+                    packet = new Packet(readBody.array(), readBody.limit(),
+                        regionHeader, regionHeaderSize);
+                } else {
+                    packet = new Packet(readBody.array(), readBody.limit(),
+                        null, 0);
+                }
+                readBody = null;
+                regionHeader = null;
+                received(packet);
+            }
+        }
+    }
+
+    /**
+     * Called by the selector thread if data can be written.
+     *
+     * @throws IOException
+     */
+    void writeReady() throws IOException {
+        while (started) {
+            if (writeFrame == null) {
+                writeFrame = frames.poll();
+                if (writeFrame == null) {
+                    setInterest(SelectionKey.OP_WRITE, false);
+                    return;
+                }
+            }
+            long remaining = writeFrame.partRemaining();
+            if (remaining > 0) {
+                long allowed = remaining;
+                BandwidthLimiter limiter = outLimiter;
+                if (writeFrame.limited) {
+                    allowed = limiter.tryRequestBandwidth(remaining);
+                    if (allowed == 0) {
+                        writeThrottled = true;
+                        setInterest(SelectionKey.OP_WRITE, false);
+                        loop.throttle(this);
+                        return;
+                    }
+                }
+                long written = 0;
+                try {
+                    written = writeFrame.write(channel, allowed);
+                } finally {
+                    if (writeFrame.limited && written < allowed) {
+                        limiter.returnAvailable((int) (allowed - written));
+                    }
+                }
+                if (writeFrame.partRemaining() > 0) {
+                    if (written < allowed) {
+                        // Socket buffer full
+                        setInterest(SelectionKey.OP_WRITE, true);
+                        return;
+                    }
+                    continue;
+                }
+            }
+            Frame frame = writeFrame;
+            writeFrame = null;
+            getController().getTransferManager()
+                .getTotalUploadTrafficCounter().bytesTransferred(frame.size);
+            frame.sent = true;
+            frame.done();
+            pool.release(frame.pooled);
+            if (frameBytes.addAndGet(-frame.size) < MAX_SEND_BACKLOG
+                && !messagesToSendQueue.isEmpty())
+            {
+                senderSpawnLock.lock();
+                try {
+                    spawnSender();
+                } finally {
+                    senderSpawnLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the selector thread to retry I/O that has been stopped because
+     * of bandwidth limits.
+     */
+    void retryThrottled() {
+        try {
+            if (readThrottled) {
+                readThrottled = false;
+                setInterest(SelectionKey.OP_READ, true);
+                readReady();
+            }
+            if (writeThrottled) {
+                writeThrottled = false;
+                writeReady();
+            }
+        } catch (IOException e) {
+            ioFailed(e);
+        }
+    }
+
+    /**
+     * Called by the selector thread on a I/O problem.
+     *
+     * @param e
+     */
+    void ioFailed(Exception e) {
+        if (!started) {
+            return;
+        }
+        logConnectionClose(e);
+        if (key != null) {
+            key.cancel();
+        }
+        // Shut down outside the selector thread
+        getController().getIOProvider().startIO(new Runnable() {
+            public void run() {
+                shutdownWithMember();
+            }
+        });
+    }
+
+    private void enableWrite() {
+        if (started && !writeThrottled && writeFrame == null) {
+            try {
+                writeReady();
+            } catch (IOException e) {
+                ioFailed(e);
+            }
+        }
+    }
+
+    /**
+     * Re-enables reading after the processor has cleared the pause.
+     */
+    private void resumeRead() {
+        if (started) {
+            setInterest(SelectionKey.OP_READ, true);
+        }
+    }
+
+    private void setInterest(int op, boolean enabled) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(enabled ? ops | op : ops & ~op);
+    }
+
+    /**
+     * Queues the received data for processing.
+     *
+     * @param packet
+     */
+    private void received(Packet packet) {
+        receivedBytes.addAndGet(packet.length);
+        receivedQueue.offer(packet);
+        if (processing.compareAndSet(false, true)) {
+            getController().getIOProvider().startIO(new Processor());
+        }
+    }
+
+    // Processing *************************************************************
+
+    /**
+     * Handles a received message.
+     *
+     * @param packet
+     * @return false if the connection should be closed.
+     */
+    private boolean process(Packet packet) {
+        int totalSize = packet.length;
+        try {
+            Object obj;
+            try {
+                if (packet.chunkHeader != null) {
+                    // Data less file chunk followed by the raw data
+                    Object header = deserialize(packet.chunkHeader,
+                        packet.chunkHeaderLength);
+                    if (!(header instanceof FileChunk)) {
+                        logWarning("Received illegal file chunk: " + header);
+                        return false;
+                    }
+                    FileChunk chunk = (FileChunk) header;
+                    obj = new FileChunkExt(chunk.file, chunk.offset,
+                        packet.data);
+                    totalSize += packet.chunkHeaderLength + 8;
+                } else {
+                    obj = deserialize(packet.data, totalSize);
+                }
+            } finally {
+                packet.release(pool);
+            }
+
+            lastKeepaliveMessage = new Date();
+            getController().getTransferManager()
+                .getTotalDownloadTrafficCounter().bytesTransferred(totalSize);
+
+            if (isFiner()) {
+                logFiner("<- (received, " + Format.formatBytes(totalSize)
+                    + ") - " + obj);
+            }
+
+            if (!getController().isStarted()) {
+                logFiner("Peer still active, shutting down " + getMember());
+                return false;
+            }
+
+            if (obj instanceof Identity) {
+                if (isFiner()) {
+                    logFiner("Received remote identity: " + obj);
+                }
+
+                // Trigger identitywaiter
+                synchronized (identityWaiter) {
+                    // the remote identity
+                    identity = (Identity) obj;
+                    identityWaiter.notifyAll();
+                }
+                // Get magic id
+                if (isFiner()) {
+                    logFiner("Received magicId: " + identity.getMagicId());
+                }
+            } else if (obj instanceof IdentityReply) {
+                if (isFiner()) {
+                    logFiner("Received identity reply: " + obj);
+                }
+                // Trigger identity accept waiter
+                synchronized (identityAcceptWaiter) {
+                    // remote side accpeted our identity
+                    identityReply = (IdentityReply) obj;
+                    identityAcceptWaiter.notifyAll();
+                }
+            } else if (obj instanceof Pong) {
+                // TRAC #812: Ping is answered on Member, not here!
+                // Only the round trip time is measured.
+                if (member != null) {
+                    member.pongReceived((Pong) obj);
+                }
+
+            } else if (obj instanceof Problem) {
+                Problem problem = (Problem) obj;
+                if (member != null) {
+                    member.handleMessage(problem, this);
+                } else {
+                    logWarning("("
+                        + (identity != null
+                            ? identity.getMemberInfo().nick
+                            : "-") + ") Problem received: " + problem.message);
+                    if (problem.fatal) {
+                        // Fatal problem, disconnecting
+                        return false;
+                    }
+                }
+
+            } else if (receivedObject(obj)) {
+                // The object was handled by the subclass.
+                // OK pass through
+            } else if (obj instanceof Message) {
+                Member thisMember = member;
+                if (thisMember != null) {
+                    thisMember.handleMessage((Message) obj, this);
+                } else if (!isConnected()) {
+                    // Simply break. Already disconnected
+                    return false;
+                } else {
+                    logWarning("Connection closed, message received, before peer identified itself: "
+                        + obj);
+                    // connection closed
+                    return false;
+                }
+            } else {
+                logSevere("Received unknown message from peer: " + obj);
+            }
+        } catch (ConnectionException e) {
+            logFiner("ConnectionException", e);
+            logConnectionClose(e);
+            return false;
+        } catch (ClassNotFoundException e) {
+            logFiner("ClassNotFoundException", e);
+            logWarning("Received unknown packet/class: " + e.getMessage()
+                + " from " + this);
+            // do not break connection
+        } catch (RuntimeException e) {
+            logSevere("RuntimeException. " + e, e);
+            return false;
+        }
+        return true;
+    }
+
+    // General ****************************************************************
+
+    public String toString() {
+        Socket socket = channel.socket();
+        return socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    // Inner classes **********************************************************
+
+    /**
+     * A received message.
+     */
+    private static class Packet {
+        private final byte[] data;
+        private final int length;
+        /** The data less file chunk if data is the content of a file region */
+        private final byte[] chunkHeader;
+        private final int chunkHeaderLength;
+
+        private Packet(byte[] data, int length, byte[] chunkHeader,
+            int chunkHeaderLength)
+        {
+            this.data = data;
+            this.length = length;
+            this.chunkHeader = chunkHeader;
+            this.chunkHeaderLength = chunkHeaderLength;
+        }
+
+        /**
+         * Returns the pooled buffers. The data of a file region is not pooled,
+         * it is kept by the received file chunk.
+         *
+         * @param pool
+         */
+        private void release(BufferPool pool) {
+            if (chunkHeader != null) {
+                pool.release(chunkHeader);
+            } else {
+                pool.release(data);
+            }
+        }
+    }
+
+    /**
+     * A serialized message with length header. Optionally followed by the
+     * region of a file, which gets transferred directly into the socket.
+     */
+    private static class Frame {
+        private final ByteBuffer buffer;
+        /** The backing array of the buffer borrowed from the pool */
+        private final byte[] pooled;
+        private final FileChannel file;
+        private long filePosition;
+        private long fileRemaining;
+        private final int size;
+        private final boolean limited;
+        private final CountDownLatch latch;
+        private volatile boolean sent;
+
+        private Frame(ByteBuffer buffer, byte[] pooled,
+            FileChunkRegion region, boolean limited, boolean sync)
+        {
+            this.buffer = buffer;
+            this.pooled = pooled;
+            if (region != null) {
+                this.file = region.getChannel();
+                this.filePosition = region.offset;
+                this.fileRemaining = region.getLength();
+            } else {
+                this.file = null;
+            }
+            this.size = buffer.remaining() + (int) fileRemaining;
+            this.limited = limited;
+            this.latch = sync ? new CountDownLatch(1) : null;
+        }
+
+        /**
+         * @return the bytes remaining of the buffer or if written completely
+         *         of the file region.
+         */
+        private long partRemaining() {
+            return buffer.hasRemaining() ? buffer.remaining() : fileRemaining;
+        }
+
+        /**
+         * Writes the buffer or if written completely the file region.
+         *
+         * @param channel
+         * @param max
+         *            the max number of bytes to write
+         * @return the number of bytes written
+         * @throws IOException
+         */
+        private long write(SocketChannel channel, long max) throws IOException {
+            if (buffer.hasRemaining()) {
+                int limit = buffer.limit();
+                buffer.limit(buffer.position()
+                    + (int) Math.min(max, buffer.remaining()));
+                try {
+                    return channel.write(buffer);
+                } finally {
+                    buffer.limit(limit);
+                }
+            }
+            long written = file.transferTo(filePosition,
+                Math.min(max, fileRemaining), channel);
+            if (written == 0 && filePosition >= file.size()) {
+                throw new IOException("Requested part exceeds filesize!");
+            }
+            filePosition += written;
+            fileRemaining -= written;
+            return written;
+        }
+
+        private void done() {
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+
+        private void await() throws InterruptedException {
+            if (latch != null) {
+                latch.await();
+            }
+        }
+    }
+
+    /**
+     * Serializes the asynchron messages. Stops if too much data waits to be
+     * written, the selector thread spawns a new one when the data has been
+     * written.
+     */
+    private class Sender implements Runnable {
+        public void run() {
+            while (true) {
+                senderSpawnLock.lock();
+                Message msg = frameBytes.get() < MAX_SEND_BACKLOG
+                    ? messagesToSendQueue.poll()
+                    : null;
+                if (msg == null) {
+                    sender = null;
+                    senderSpawnLock.unlock();
+                    break;
+                }
+                senderSpawnLock.unlock();
+
+                if (!started) {
+                    logFine("Peer shutdown while sending: " + msg);
+                    senderSpawnLock.lock();
+                    sender = null;
+                    senderSpawnLock.unlock();
+                    shutdownWithMember();
+                    break;
+                }
+                try {
+                    enqueueFrame(createFrame(msg, false));
+                } catch (ConnectionException e) {
+                    logFine("Unable to send message asynchronly. " + e);
+                    logFiner("ConnectionException", e);
+                    senderSpawnLock.lock();
+                    sender = null;
+                    senderSpawnLock.unlock();
+                    shutdownWithMember();
+                    // Stop thread execution
+                    break;
+                } catch (Throwable t) {
+                    logSevere("Unable to send message asynchronly. " + t, t);
+                    senderSpawnLock.lock();
+                    sender = null;
+                    senderSpawnLock.unlock();
+                    shutdownWithMember();
+                    // Stop thread execution
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes the received messages in order. Active only while messages
+     * are waiting.
+     */
+    private class Processor implements Runnable {
+        public void run() {
+            while (true) {
+                Packet packet;
+                while ((packet = receivedQueue.poll()) != null) {
+                    receivedBytes.addAndGet(-packet.length);
+                    if (receivedBytes.get() < MAX_RECEIVE_BACKLOG / 2
+                        && readPaused.compareAndSet(true, false))
+                    {
+                        loop.execute(new Runnable() {
+                            public void run() {
+                                resumeRead();
+                            }
+                        });
+                    }
+                    if (!started) {
+                        return;
+                    }
+                    if (!process(packet)) {
+                        shutdownWithMember();
+                        return;
+                    }
+                }
+                processing.set(false);
+                if (receivedQueue.isEmpty()
+                    || !processing.compareAndSet(false, true))
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
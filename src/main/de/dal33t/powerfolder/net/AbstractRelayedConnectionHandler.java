@@ -27,6 +27,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
@@ -84,7 +85,7 @@ public abstract class AbstractRelayedConnectionHandler extends PFComponent
     private ByteSerializer serializer;
 
     // The send buffer
-    private Queue<Message> messagesToSendQueue;
+    private SendQueue messagesToSendQueue;
 
     private boolean started;
 
@@ -218,7 +219,9 @@ public abstract class AbstractRelayedConnectionHandler extends PFComponent
         // Don't clear, might have been already received!
         // this.identity = null;
         // this.identityReply = null;
-        this.messagesToSendQueue = new ConcurrentLinkedQueue<Message>();
+        this.messagesToSendQueue = new SendQueue(
+            ConfigurationEntry.NET_SEND_QUEUE_MAX_BYTES
+                .getValueInt(getController()));
         this.senderSpawnLock = new ReentrantLock();
         long startTime = System.currentTimeMillis();
 
@@ -471,31 +474,56 @@ public abstract class AbstractRelayedConnectionHandler extends PFComponent
         Reject.ifNull(message, "Message is null");
 
         senderSpawnLock.lock();
-        messagesToSendQueue.offer(message);
-        if (messagesToSendQueue.size() > 50 && isWarning()) {
-            String msg = "Many messages in send queue: "
-                + messagesToSendQueue.size() + ": " + messagesToSendQueue;
-            if (msg.length() > 300) {
-                msg = msg.substring(0, 300);
-                msg += "...";
+        try {
+            if (!messagesToSendQueue.offer(message)) {
+                if (isFiner()) {
+                    logFiner("Send queue full, dropped " + message);
+                }
+                return;
             }
-            logWarning(msg);
-        }
-        // PFC-2591: Start
-        if (messagesToSendQueue.size() > 5000) {
-            String msg = "Disconnecting " + getIdentity()
-                + ": Too many messages in send queue: "
-                + messagesToSendQueue.size();
-            logWarning(msg);
-            shutdownWithMember();
-            return;
-        }
-        // PFC-2591: End
-        if (sender == null) {
-            sender = new Sender();
-            getController().getIOProvider().startIO(sender);
+            if (messagesToSendQueue.size() > 50 && isWarning()) {
+                String msg = "Many messages in send queue: "
+                    + messagesToSendQueue.size() + ": " + messagesToSendQueue;
+                if (msg.length() > 300) {
+                    msg = msg.substring(0, 300);
+                    msg += "...";
+                }
+                logWarning(msg);
+            }
+            // PFC-2591: Start
+            if (messagesToSendQueue.size() > 5000) {
+                String msg = "Disconnecting " + getIdentity()
+                    + ": Too many messages in send queue: "
+                    + messagesToSendQueue.size();
+                logWarning(msg);
+                shutdownWithMember();
+                return;
+            }
+            // PFC-2591: End
+            if (messagesToSendQueue.isOverflow()) {
+                logWarning("Disconnecting " + getIdentity()
+                    + ": Too many bytes in send queue: "
+                    + Format.formatBytesShort(messagesToSendQueue.getBytes()));
+                shutdownWithMember();
+                return;
+            }
+            if (sender == null) {
+                sender = new Sender();
+                getController().getIOProvider().startIO(sender);
+            }
+        } finally {
+            senderSpawnLock.unlock();
         }
-        senderSpawnLock.unlock();
+    }
+
+    public int getSendQueueSize() {
+        return messagesToSendQueue != null ? messagesToSendQueue.size() : 0;
+    }
+
+    public long getSendQueueBytes() {
+        return messagesToSendQueue != null
+            ? messagesToSendQueue.getBytes()
+            : 0;
     }
 
     public long getTimeDeltaMS() {
@@ -766,8 +794,11 @@ public abstract class AbstractRelayedConnectionHandler extends PFComponent
                 }
 
             } else if (obj instanceof Pong) {
-                // Do nothing.
                 // TRAC #812: Ping is answered on Member, not here!
+                // Only the round trip time is measured.
+                if (member != null) {
+                    member.pongReceived((Pong) obj);
+                }
 
             } else if (obj instanceof Problem) {
                 Problem problem = (Problem) obj;
@@ -29,16 +29,19 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileChunkExt;
+import de.dal33t.powerfolder.message.FileChunkRegion;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.IdentityReply;
 import de.dal33t.powerfolder.message.LimitBandwidth;
@@ -52,6 +55,8 @@ import de.dal33t.powerfolder.util.Convert;
 import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.IdGenerator;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.StreamCompressor;
+import de.dal33t.powerfolder.util.StreamDecompressor;
 import de.dal33t.powerfolder.util.StreamUtils;
 import de.dal33t.powerfolder.util.net.NetworkUtil;
 
@@ -64,6 +69,24 @@ import de.dal33t.powerfolder.util.net.NetworkUtil;
 public abstract class AbstractSocketConnectionHandler extends PFComponent
     implements ConnectionHandler
 {
+    /**
+     * Paket header of a {@link FileChunkRegion} frame: Followed by the size of
+     * the data less chunk, the size of the data, the serialized chunk and the
+     * raw data.
+     */
+    static final int FILE_CHUNK_REGION_FRAME = -2;
+
+    /**
+     * Paket header of a message compressed in the deflate stream of the
+     * connection: Followed by the size of the compressed data and the data.
+     */
+    static final int STREAM_COMPRESSED_FRAME = -3;
+
+    /** Max data size of a file region. Same as of serialized messages. */
+    static final int MAX_REGION_SIZE = 10 * 1024 * 1024;
+
+    /** Size of the buffer to copy file regions into the socket. */
+    private static final int REGION_BUFFER_SIZE = 64 * 1024;
 
     /** The basic io socket */
     private Socket socket;
@@ -83,9 +106,13 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
     private LimitedOutputStream out;
     private LimitedInputStream in;
     private ByteSerializer serializer;
+    // Deflate stream of sent messages. Guarded by sendLock
+    private StreamCompressor compressor;
+    // Deflate stream of received messages. Used by the receiver only
+    private StreamDecompressor decompressor;
 
     // The send buffer
-    private Queue<Message> messagesToSendQueue;
+    private SendQueue messagesToSendQueue;
 
     private boolean started;
     // Flag if client is on lan
@@ -117,6 +144,12 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
      */
     private boolean omitBandwidthLimit;
 
+    /**
+     * Re-used buffer to copy file regions into the socket. Created on first
+     * use.
+     */
+    private ByteBuffer regionBuffer;
+
     /**
      * Builds a new anonymous connection manager for the socket.
      * <p>
@@ -210,7 +243,9 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         this.started = true;
         this.identity = null;
         this.identityReply = null;
-        this.messagesToSendQueue = new ConcurrentLinkedQueue<Message>();
+        this.messagesToSendQueue = new SendQueue(
+            ConfigurationEntry.NET_SEND_QUEUE_MAX_BYTES
+                .getValueInt(getController()));
         this.senderSpawnLock = new ReentrantLock();
         long startTime = System.currentTimeMillis();
 
@@ -235,6 +270,12 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
 
             // Create identity
             myIdentity = createOwnIdentity();
+            myIdentity
+                .setSupportsFileChunkRegions(ConfigurationEntry.TRANSFERS_FILE_CHUNK_REGIONS
+                    .getValueBoolean(getController()));
+            myIdentity
+                .setSupportsStreamCompression(ConfigurationEntry.USE_STREAM_COMPRESSION
+                    .getValueBoolean(getController()));
             if (isFiner()) {
                 logFiner("Sending my identity, nick: '"
                     + myIdentity.getMemberInfo().nick + "', ID: "
@@ -370,6 +411,12 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
 
         // make sure the garbage collector gets this
         serializer = null;
+        synchronized (sendLock) {
+            if (compressor != null) {
+                compressor.close();
+                compressor = null;
+            }
+        }
     }
 
     /**
@@ -473,6 +520,18 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 boolean omittBandwidthLimit = !(message instanceof LimitBandwidth)
                     || this.omitBandwidthLimit;
 
+                if (message instanceof FileChunkRegion
+                    && isFileChunkRegionSupported())
+                {
+                    writeFileChunkRegion((FileChunkRegion) message,
+                        omittBandwidthLimit);
+                    return;
+                }
+                if (isStreamCompression()) {
+                    writeStreamCompressed(message, omittBandwidthLimit);
+                    return;
+                }
+
                 byte[] data = serialize(message);
 
                 // Write paket header / total length
@@ -531,6 +590,114 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
     }
 
+    /**
+     * @return true if file chunks can be sent as file region. Not on
+     *         compressed connections, the raw data would not get compressed.
+     */
+    private boolean isFileChunkRegionSupported() {
+        return identity != null && identity.isSupportsFileChunkRegions()
+            && !Boolean.TRUE.equals(myIdentity.isUseCompressedStream());
+    }
+
+    /**
+     * @return true if messages are sent in the deflate stream of the
+     *         connection. Only after the identities have been exchanged and if
+     *         the connection is compressed anyways.
+     */
+    private boolean isStreamCompression() {
+        return identity != null && identity.isSupportsStreamCompression()
+            && myIdentity.isSupportsStreamCompression()
+            && Boolean.TRUE.equals(myIdentity.isUseCompressedStream());
+    }
+
+    /**
+     * Serializes the message uncompressed and writes it through the deflate
+     * stream of the connection. The data of file chunks, which is already
+     * compressed, is stored only.
+     *
+     * @param message
+     * @param omittBandwidthLimit
+     * @throws IOException
+     * @throws ConnectionException
+     */
+    private void writeStreamCompressed(Message message,
+        boolean omittBandwidthLimit) throws IOException, ConnectionException
+    {
+        if (message instanceof FileChunkRegion) {
+            message = ((FileChunkRegion) message).read();
+        }
+        boolean store = false;
+        if (message instanceof FileChunk) {
+            FileChunk chunk = (FileChunk) message;
+            store = !StreamCompressor.isCompressible(
+                chunk.file.getFilenameOnly(), chunk.data);
+        }
+        ByteSerializer ser = serializer;
+        if (ser == null) {
+            throw new ConnectionException("Connection to remote peer closed")
+                .with(this);
+        }
+        byte[] raw = ser.serialize(message, false, -1);
+        if (compressor == null) {
+            compressor = new StreamCompressor();
+        }
+        byte[] data = compressor.compress(raw, raw.length, store);
+
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        frame.putInt(STREAM_COMPRESSED_FRAME);
+        frame.putInt(data.length);
+        out.write(frame.array(), 0, frame.capacity(), omittBandwidthLimit);
+        out.write(data, 0, data.length, omittBandwidthLimit);
+        getController().getTransferManager().getTotalUploadTrafficCounter()
+            .bytesTransferred(frame.capacity() + data.length);
+    }
+
+    /**
+     * Writes the data less chunk and copies the data of the file region
+     * straight into the socket. Avoids serializing the data into a buffer.
+     *
+     * @param chunk
+     * @param omittBandwidthLimit
+     * @throws IOException
+     * @throws ConnectionException
+     */
+    private void writeFileChunkRegion(FileChunkRegion chunk,
+        boolean omittBandwidthLimit) throws IOException, ConnectionException
+    {
+        byte[] header = serialize(chunk.getHeader());
+        int length = chunk.getLength();
+        ByteBuffer frame = ByteBuffer.allocate(12 + header.length);
+        frame.putInt(FILE_CHUNK_REGION_FRAME);
+        frame.putInt(header.length);
+        frame.putInt(length);
+        frame.put(header);
+        out.write(frame.array(), 0, frame.capacity(), omittBandwidthLimit);
+
+        if (regionBuffer == null) {
+            regionBuffer = ByteBuffer.allocate(REGION_BUFFER_SIZE);
+        }
+        long pos = chunk.offset;
+        int remaining = length;
+        while (remaining > 0) {
+            if (!started) {
+                throw new ConnectionException(
+                    "Unable to send message to peer, connection shutdown")
+                    .with(member).with(this);
+            }
+            regionBuffer.clear();
+            regionBuffer.limit(Math.min(remaining, regionBuffer.capacity()));
+            int read = chunk.getChannel().read(regionBuffer, pos);
+            if (read < 0) {
+                throw new IOException("Requested part exceeds filesize!");
+            }
+            out.write(regionBuffer.array(), 0, read, omittBandwidthLimit);
+            pos += read;
+            remaining -= read;
+        }
+        getController().getTransferManager().getTotalUploadTrafficCounter()
+            .bytesTransferred(frame.capacity() + length);
+    }
+
     public void sendMessagesAsynchron(Message... messages) {
         for (Message message : messages) {
             sendMessageAsynchron(message, null);
@@ -551,7 +718,12 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
 
         senderSpawnLock.lock();
         try {
-            messagesToSendQueue.offer(message);
+            if (!messagesToSendQueue.offer(message)) {
+                if (isFiner()) {
+                    logFiner("Send queue full, dropped " + message);
+                }
+                return;
+            }
             if (messagesToSendQueue.size() > 500 && isWarning()) {
                 String msg = "Many messages in send queue: "
                     + messagesToSendQueue.size() + ": " + messagesToSendQueue;
@@ -571,6 +743,13 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 return;
             }
             // PFC-2591: End
+            if (messagesToSendQueue.isOverflow()) {
+                logWarning("Disconnecting " + getIdentity()
+                    + ": Too many bytes in send queue: "
+                    + Format.formatBytesShort(messagesToSendQueue.getBytes()));
+                shutdownWithMember();
+                return;
+            }
             if (sender == null) {
                 sender = new Sender();
                 getController().getIOProvider().startIO(sender);
@@ -580,6 +759,16 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
     }
 
+    public int getSendQueueSize() {
+        return messagesToSendQueue != null ? messagesToSendQueue.size() : 0;
+    }
+
+    public long getSendQueueBytes() {
+        return messagesToSendQueue != null
+            ? messagesToSendQueue.getBytes()
+            : 0;
+    }
+
     public long getTimeDeltaMS() {
         if (identity.getTimeGMT() == null)
             return 0;
@@ -747,7 +936,9 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
             // Check if the remote address is one of this machine's
             // interfaces.
             try {
-                omitBandwidthLimit = NetworkUtil.isFromThisComputer(socket
+                omitBandwidthLimit = Feature.OMIT_LOCAL_BANDWIDTH_LIMIT
+                    .isEnabled()
+                    && NetworkUtil.isFromThisComputer(socket
                     .getInetAddress());
             } catch (SocketException e) {
                 logSevere("Omitting bandwidth", e);
@@ -810,6 +1001,81 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
     }
 
+    /**
+     * Reads the rest of a {@link FileChunkRegion} frame.
+     *
+     * @param sizeArr
+     *            buffer for the sizes
+     * @return the received file chunk
+     * @throws IOException
+     * @throws ConnectionException
+     * @throws ClassNotFoundException
+     */
+    private FileChunk readFileChunkRegion(byte[] sizeArr) throws IOException,
+        ConnectionException, ClassNotFoundException
+    {
+        read(in, sizeArr, 0, sizeArr.length);
+        int headerSize = Convert.convert2Int(sizeArr);
+        read(in, sizeArr, 0, sizeArr.length);
+        int length = Convert.convert2Int(sizeArr);
+        if (headerSize <= 0 || length < 0
+            || length > MAX_REGION_SIZE)
+        {
+            throw new IOException("Illegal file chunk size: " + headerSize
+                + "/" + length);
+        }
+        ByteSerializer ser = serializer;
+        byte[] header = ser.read(in, headerSize);
+        getController().getTransferManager().getTotalDownloadTrafficCounter()
+            .bytesTransferred(headerSize);
+        Object obj;
+        try {
+            obj = deserialize(header, headerSize);
+        } finally {
+            ser.release(header);
+        }
+        if (!(obj instanceof FileChunk)) {
+            throw new IOException("Illegal file chunk: " + obj);
+        }
+        FileChunk chunk = (FileChunk) obj;
+        byte[] data = new byte[length];
+        read(in, data, 0, length);
+        return new FileChunkExt(chunk.file, chunk.offset, data);
+    }
+
+    /**
+     * Reads the rest of a {@link #STREAM_COMPRESSED_FRAME}.
+     *
+     * @param sizeArr
+     *            buffer for the size
+     * @return the received message.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private Object readStreamCompressed(byte[] sizeArr) throws IOException,
+        ClassNotFoundException
+    {
+        read(in, sizeArr, 0, sizeArr.length);
+        int size = Convert.convert2Int(sizeArr);
+        if (size <= 0) {
+            throw new IOException("Illegal compressed paket size: " + size);
+        }
+        ByteSerializer ser = serializer;
+        byte[] data = ser.read(in, size);
+        getController().getTransferManager().getTotalDownloadTrafficCounter()
+            .bytesTransferred(size);
+        byte[] raw;
+        try {
+            if (decompressor == null) {
+                decompressor = new StreamDecompressor();
+            }
+            raw = decompressor.decompress(data, size);
+        } finally {
+            ser.release(data);
+        }
+        return ByteSerializer.deserializeStatic(raw, raw.length, false);
+    }
+
     // Inner classes **********************************************************
 
     /**
@@ -908,14 +1174,29 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                     if (totalSize == -1) {
                         break;
                     }
-                    if (totalSize <= 0) {
-                        throw new IOException("Illegal paket size: "
-                            + totalSize);
+                    Object obj;
+                    if (totalSize == FILE_CHUNK_REGION_FRAME) {
+                        obj = readFileChunkRegion(sizeArr);
+                        // Already counted while reading
+                        totalSize = 0;
+                    } else if (totalSize == STREAM_COMPRESSED_FRAME) {
+                        obj = readStreamCompressed(sizeArr);
+                        // Already counted while reading
+                        totalSize = 0;
+                    } else {
+                        if (totalSize <= 0) {
+                            throw new IOException("Illegal paket size: "
+                                + totalSize);
+                        }
+                        ByteSerializer ser = serializer;
+                        byte[] data = ser.read(in, totalSize);
+                        try {
+                            obj = deserialize(data, totalSize);
+                        } finally {
+                            ser.release(data);
+                        }
                     }
 
-                    byte[] data = serializer.read(in, totalSize);
-                    Object obj = deserialize(data, totalSize);
-
                     lastKeepaliveMessage = new Date();
                     getController().getTransferManager()
                         .getTotalDownloadTrafficCounter()
@@ -959,8 +1240,11 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                             identityAcceptWaiter.notifyAll();
                         }
                     } else if (obj instanceof Pong) {
-                        // Do nothing.
                         // TRAC #812: Ping is answered on Member, not here!
+                        // Only the round trip time is measured.
+                        if (member != null) {
+                            member.pongReceived((Pong) obj);
+                        }
 
                     } else if (obj instanceof Problem) {
                         Problem problem = (Problem) obj;
@@ -1049,6 +1333,10 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
 
             // Shut down
             shutdownWithMember();
+            if (decompressor != null) {
+                decompressor.close();
+                decompressor = null;
+            }
         }
     }
 }
\ No newline at end of file
@@ -31,11 +31,10 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.Member;
@@ -86,7 +85,7 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
     private ByteSerializer serializer;
 
     // The send buffer
-    private Queue<Message> messagesToSendQueue;
+    private SendQueue messagesToSendQueue;
 
     private boolean started;
     // Flag if client is on lan
@@ -208,7 +207,9 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
         this.started = true;
         this.identity = null;
         this.identityReply = null;
-        this.messagesToSendQueue = new ConcurrentLinkedQueue<Message>();
+        this.messagesToSendQueue = new SendQueue(
+            ConfigurationEntry.NET_SEND_QUEUE_MAX_BYTES
+                .getValueInt(getController()));
         this.senderSpawnLock = new ReentrantLock();
         long startTime = System.currentTimeMillis();
 
@@ -553,7 +554,12 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
 
         senderSpawnLock.lock();
         try {
-            messagesToSendQueue.offer(message);
+            if (!messagesToSendQueue.offer(message)) {
+                if (isFiner()) {
+                    logFiner("Send queue full, dropped " + message);
+                }
+                return;
+            }
             if (messagesToSendQueue.size() > 100 && isWarning()) {
                 String msg = "Many messages in send queue: "
                     + messagesToSendQueue.size() + ": " + messagesToSendQueue;
@@ -573,6 +579,13 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
                 return;
             }
             // PFC-2591: End
+            if (messagesToSendQueue.isOverflow()) {
+                logWarning("Disconnecting " + getIdentity()
+                    + ": Too many bytes in send queue: "
+                    + Format.formatBytesShort(messagesToSendQueue.getBytes()));
+                shutdownWithMember();
+                return;
+            }
             if (sender == null) {
                 sender = new Sender();
                 getController().getIOProvider().startIO(sender);
@@ -582,6 +595,16 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
         }
     }
 
+    public int getSendQueueSize() {
+        return messagesToSendQueue != null ? messagesToSendQueue.size() : 0;
+    }
+
+    public long getSendQueueBytes() {
+        return messagesToSendQueue != null
+            ? messagesToSendQueue.getBytes()
+            : 0;
+    }
+
     public long getTimeDeltaMS() {
         if (identity.getTimeGMT() == null)
             return 0;
@@ -744,7 +767,9 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
             // Check if the remote address is one of this machine's
             // interfaces.
             try {
-                omitBandwidthLimit = NetworkUtil.isFromThisComputer(socket
+                omitBandwidthLimit = Feature.OMIT_LOCAL_BANDWIDTH_LIMIT
+                    .isEnabled()
+                    && NetworkUtil.isFromThisComputer(socket
                     .getRemoteAddress().getAddress());
             } catch (SocketException e) {
                 logSevere("Omitting bandwidth", e);
@@ -919,8 +944,14 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
                             + totalSize);
                     }
 
-                    byte[] data = serializer.read(in, totalSize);
-                    Object obj = deserialize(data, totalSize);
+                    ByteSerializer ser = serializer;
+                    byte[] data = ser.read(in, totalSize);
+                    Object obj;
+                    try {
+                        obj = deserialize(data, totalSize);
+                    } finally {
+                        ser.release(data);
+                    }
 
                     lastKeepaliveMessage = new Date();
                     getController().getTransferManager()
@@ -981,8 +1012,11 @@ public abstract class AbstractUDTSocketConnectionHandler extends PFComponent
                         }
 
                     } else if (obj instanceof Pong) {
-                        // Do nothing.
                         // TRAC #812: Ping is answered on Member, not here!
+                        // Only the round trip time is measured.
+                        if (member != null) {
+                            member.pongReceived((Pong) obj);
+                        }
 
                     } else if (obj instanceof Problem) {
                         Problem problem = (Problem) obj;
@@ -175,6 +175,17 @@ public interface ConnectionHandler {
      */
     ConnectionQuality getConnectionQuality();
 
+    /**
+     * @return the number of messages waiting to be sent asynchronously.
+     */
+    int getSendQueueSize();
+
+    /**
+     * @return the estimated bytes of the messages waiting to be sent
+     *         asynchronously.
+     */
+    long getSendQueueBytes();
+
     // IO Operations **********************************************************
 
     /**
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
@@ -151,8 +152,13 @@ public class ConnectionHandlerFactory extends PFComponent {
     public ConnectionHandler createAndInitSocketConnectionHandler(Socket socket)
         throws ConnectionException
     {
-        ConnectionHandler conHan = new PlainSocketConnectionHandler(
-            getController(), socket);
+        ConnectionHandler conHan;
+        if (useNIOConnections() && socket.getChannel() != null) {
+            conHan = new PlainNIOSocketConnectionHandler(getController(),
+                socket.getChannel());
+        } else {
+            conHan = new PlainSocketConnectionHandler(getController(), socket);
+        }
         try {
             conHan.init();
         } catch (ConnectionException e) {
@@ -219,7 +225,10 @@ public class ConnectionHandlerFactory extends PFComponent {
         throws ConnectionException
     {
         try {
-            Socket socket = new Socket();
+            // Sockets of NIO channels get a non-blocking handler
+            Socket socket = useNIOConnections()
+                ? SocketChannel.open().socket()
+                : new Socket();
             String cfgBind = ConfigurationEntry.NET_BIND_ADDRESS
                 .getValue(getController());
             if (!StringUtils.isEmpty(cfgBind)) {
@@ -282,6 +291,11 @@ public class ConnectionHandlerFactory extends PFComponent {
                 .isRelay(getController().getMySelf().getInfo());
     }
 
+    protected boolean useNIOConnections() {
+        return ConfigurationEntry.NET_NIO_ENABLED
+            .getValueBoolean(getController());
+    }
+
     protected boolean useUDTConnections() {
         return UDTSocket.isSupported()
             && !getController().isLanOnly()
@@ -27,6 +27,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -115,8 +116,17 @@ public class ConnectionListener extends PFComponent implements Runnable {
                     bind = null;
                 }
             }
-            serverSocket = new ServerSocket(port,
-                Constants.MAX_INCOMING_CONNECTIONS, bAddress);
+            if (ConfigurationEntry.NET_NIO_ENABLED
+                .getValueBoolean(getController()))
+            {
+                // Accepted sockets carry a channel for the NIO handler
+                serverSocket = ServerSocketChannel.open().socket();
+                serverSocket.bind(new InetSocketAddress(bAddress, port),
+                    Constants.MAX_INCOMING_CONNECTIONS);
+            } else {
+                serverSocket = new ServerSocket(port,
+                    Constants.MAX_INCOMING_CONNECTIONS, bAddress);
+            }
         } catch (Exception e) {
             throw new ConnectionException(Translation.getTranslation(
                 "dialog.unable_to_open_port", port + ""), e);
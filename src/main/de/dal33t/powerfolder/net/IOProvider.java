@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder.net;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
@@ -29,6 +30,7 @@ import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
@@ -72,6 +74,11 @@ public class IOProvider extends PFComponent {
      */
     private UDTSocketConnectionManager udtConManager;
 
+    /**
+     * The selector threads for NIO connections. Created on first use.
+     */
+    private NIOSelectorPool nioSelectorPool;
+
     /**
      * The list of connection handlers to check for keepalive
      */
@@ -105,6 +112,13 @@ public class IOProvider extends PFComponent {
             logFine("Shutting down connection I/O threadpool");
             ioThreadPool.shutdownNow();
         }
+        synchronized (this) {
+            if (nioSelectorPool != null) {
+                logFine("Shutting down NIO selector threads");
+                nioSelectorPool.shutdown();
+                nioSelectorPool = null;
+            }
+        }
     }
 
     /**
@@ -140,6 +154,27 @@ public class IOProvider extends PFComponent {
         return udtConManager;
     }
 
+    /**
+     * @return the selector threads for NIO connections. Started on first call.
+     * @throws IOException
+     *             if the selectors could not be opened.
+     */
+    public synchronized NIOSelectorPool getNIOSelectorPool()
+        throws IOException
+    {
+        if (nioSelectorPool == null) {
+            if (!started) {
+                throw new IOException("I/O provider not started");
+            }
+            NIOSelectorPool pool = new NIOSelectorPool(getController(),
+                Math.max(1, ConfigurationEntry.NET_NIO_SELECTOR_THREADS
+                    .getValueInt(getController())));
+            pool.start();
+            nioSelectorPool = pool;
+        }
+        return nioSelectorPool;
+    }
+
     /**
      * Starts a general connection handling working.
      *
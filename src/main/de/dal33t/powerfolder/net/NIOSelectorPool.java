@@ -0,0 +1,249 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * A small pool of selector threads doing the non-blocking I/O of all
+ * {@link AbstractNIOSocketConnectionHandler}s. The selector threads only read
+ * and write the framed data. Deserializing and processing of messages happens
+ * in the I/O threadpool of the {@link IOProvider}.
+ *
+ * @author sprajc
+ */
+public class NIOSelectorPool extends PFComponent {
+    /**
+     * Retry interval for connections waiting for bandwidth.
+     */
+    private static final long THROTTLE_RETRY_MS = 50;
+
+    private final Loop[] loops;
+    private volatile boolean started;
+
+    /**
+     * @param controller
+     * @param nThreads
+     *            the number of selector threads.
+     */
+    NIOSelectorPool(Controller controller, int nThreads) {
+        super(controller);
+        Reject.ifTrue(nThreads < 1, "Number of selector threads must be >= 1");
+        loops = new Loop[nThreads];
+    }
+
+    /**
+     * Opens the selectors and starts the selector threads.
+     *
+     * @throws IOException
+     */
+    synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(Selector.open());
+        }
+        started = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "NIOSelector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        logFine("Started " + loops.length + " selector threads");
+    }
+
+    /**
+     * Stops the selector threads. Registered channels are not closed.
+     */
+    synchronized void shutdown() {
+        started = false;
+        for (Loop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * @return the number of connections handled by the pool.
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (Loop loop : loops) {
+            if (loop != null) {
+                count += loop.connections.get();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Registers the channel of the connection handler at the selector with the
+     * fewest connections. The channel is switched to non-blocking mode.
+     *
+     * @param channel
+     * @param handler
+     * @return the selector loop the handler has to use.
+     * @throws IOException
+     */
+    Loop register(final SocketChannel channel,
+        final AbstractNIOSocketConnectionHandler handler) throws IOException
+    {
+        if (!started) {
+            throw new ClosedChannelException();
+        }
+        Loop target = loops[0];
+        for (Loop loop : loops) {
+            if (loop.connections.get() < target.connections.get()) {
+                target = loop;
+            }
+        }
+        channel.configureBlocking(false);
+        target.connections.incrementAndGet();
+        final Loop loop = target;
+        loop.execute(new Runnable() {
+            public void run() {
+                try {
+                    handler.setSelectionKey(channel.register(loop.selector,
+                        SelectionKey.OP_READ, handler));
+                } catch (ClosedChannelException e) {
+                    handler.ioFailed(e);
+                }
+            }
+        });
+        return loop;
+    }
+
+    /**
+     * One selector with its thread.
+     */
+    class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Set<AbstractNIOSocketConnectionHandler> throttled = new CopyOnWriteArraySet<AbstractNIOSocketConnectionHandler>();
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Executes the task in the selector thread.
+         *
+         * @param task
+         */
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Retries the I/O of the handler after a short while. Called from the
+         * selector thread if no bandwidth is available.
+         *
+         * @param handler
+         */
+        void throttle(AbstractNIOSocketConnectionHandler handler) {
+            throttled.add(handler);
+        }
+
+        /**
+         * Called when a handler shut down.
+         */
+        void unregistered() {
+            connections.decrementAndGet();
+        }
+
+        public void run() {
+            long lastRetry = System.currentTimeMillis();
+            while (started) {
+                try {
+                    selector.select(throttled.isEmpty()
+                        ? 0
+                        : THROTTLE_RETRY_MS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys()
+                        .iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        process(key);
+                    }
+                    if (!throttled.isEmpty()
+                        && System.currentTimeMillis() - lastRetry >= THROTTLE_RETRY_MS)
+                    {
+                        lastRetry = System.currentTimeMillis();
+                        for (AbstractNIOSocketConnectionHandler handler : throttled)
+                        {
+                            throttled.remove(handler);
+                            handler.retryThrottled();
+                        }
+                    }
+                } catch (IOException e) {
+                    logSevere("I/O error in selector: " + e, e);
+                } catch (RuntimeException e) {
+                    logSevere("Error in selector: " + e, e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logFiner("Unable to close selector: " + e);
+            }
+        }
+
+        private void process(SelectionKey key) {
+            AbstractNIOSocketConnectionHandler handler = (AbstractNIOSocketConnectionHandler) key
+                .attachment();
+            try {
+                if (key.isReadable()) {
+                    handler.readReady();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handler.writeReady();
+                }
+            } catch (CancelledKeyException e) {
+                // Closed meanwhile
+                handler.ioFailed(e);
+            } catch (IOException e) {
+                handler.ioFailed(e);
+            }
+        }
+    }
+}
@@ -75,7 +75,8 @@ public class PlainRelayedConnectionHandler extends
             expectCompressed = getIdentity().isUseCompressedStream();
         }
         try {
-            return ByteSerializer.deserializeStatic(data, expectCompressed);
+            return ByteSerializer.deserializeStatic(data, len,
+                expectCompressed);
         } catch (IOException e) {
             throw new ConnectionException(
                 "Unable to send message to peer, connection closed", e)
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.message.FileBatch;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.FolderFilesChanged;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.IdentityReply;
+import de.dal33t.powerfolder.message.KnownNodes;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.TransferStatus;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * The queue of messages to be sent asynchronously over one connection. Keeps
+ * track of the estimated size of the queued messages, so a slow peer cannot
+ * pile up huge amounts of file lists.
+ * <p>
+ * Producers never wait: They are often receiver threads or hold locks. Above
+ * the limit periodic status messages (KnownNodes, TransferStatus) are shed,
+ * all others are still queued. Above the overflow limit the connection should
+ * be closed.
+ * <p>
+ * Control messages (Identity, Ping/Pong) are sent ahead of all other
+ * messages. All other messages keep their order.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class SendQueue {
+    /**
+     * Estimated serialized size of a file info.
+     */
+    private static final int FILE_INFO_SIZE = 250;
+
+    /**
+     * Estimated size of messages without bulk data.
+     */
+    private static final int MESSAGE_SIZE = 100;
+
+    /**
+     * Factor of the limit above which the queue overflows.
+     */
+    private static final int OVERFLOW_FACTOR = 4;
+
+    private final Queue<Entry> control = new ConcurrentLinkedQueue<Entry>();
+    private final Queue<Entry> messages = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long maxBytes;
+
+    /**
+     * @param maxBytes
+     *            the number of queued bytes above which status messages are
+     *            shed.
+     */
+    public SendQueue(long maxBytes) {
+        Reject.ifTrue(maxBytes <= 0, "Invalid max bytes: " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds the message to the end of its lane. Sheds status messages while the
+     * queue is full.
+     *
+     * @param message
+     * @return true if the message was queued, false if it was shed.
+     */
+    public boolean offer(Message message) {
+        Reject.ifNull(message, "Message is null");
+        if (isFull() && isSheddable(message)) {
+            return false;
+        }
+        Entry entry = new Entry(message);
+        bytes.addAndGet(entry.size);
+        if (isControl(message)) {
+            control.offer(entry);
+        } else {
+            messages.offer(entry);
+        }
+        return true;
+    }
+
+    /**
+     * @return the next message to send or null if the queue is empty.
+     */
+    public Message poll() {
+        Entry entry = control.poll();
+        if (entry == null) {
+            entry = messages.poll();
+        }
+        if (entry == null) {
+            return null;
+        }
+        bytes.addAndGet(-entry.size);
+        return entry.message;
+    }
+
+    /**
+     * @return true if the queued bytes exceed the limit.
+     */
+    public boolean isFull() {
+        return bytes.get() > maxBytes;
+    }
+
+    /**
+     * @return true if the queued bytes exceed the limit by far. The peer does
+     *         not read fast enough and should be disconnected.
+     */
+    public boolean isOverflow() {
+        return bytes.get() > OVERFLOW_FACTOR * maxBytes;
+    }
+
+    /**
+     * @return the limit of queued bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the estimated number of bytes of all queued messages.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of queued messages.
+     */
+    public int size() {
+        return control.size() + messages.size();
+    }
+
+    public boolean isEmpty() {
+        return control.isEmpty() && messages.isEmpty();
+    }
+
+    /**
+     * Removes all messages.
+     */
+    public void clear() {
+        while (poll() != null) {
+            // Drain
+        }
+    }
+
+    /**
+     * @param message
+     * @return true if the message is sent ahead of all other messages.
+     */
+    public static boolean isControl(Message message) {
+        return message instanceof Ping || message instanceof Pong
+            || message instanceof Identity || message instanceof IdentityReply;
+    }
+
+    /**
+     * @param message
+     * @return true if the message may be dropped while the queue is full. It
+     *         is sent again periodically anyway.
+     */
+    public static boolean isSheddable(Message message) {
+        return message instanceof KnownNodes
+            || message instanceof TransferStatus;
+    }
+
+    /**
+     * @param message
+     * @return the estimated serialized size of the message.
+     */
+    public static int estimateSize(Message message) {
+        if (message instanceof FileChunk) {
+            return MESSAGE_SIZE + ((FileChunk) message).getLength();
+        }
+        if (message instanceof FileList) {
+            return MESSAGE_SIZE + size(((FileList) message).files);
+        }
+        if (message instanceof FolderFilesChanged) {
+            return MESSAGE_SIZE
+                + size(((FolderFilesChanged) message).getFiles());
+        }
+        if (message instanceof FileBatch) {
+            FileBatch batch = (FileBatch) message;
+            int size = MESSAGE_SIZE + size(batch.files);
+            if (batch.data != null) {
+                for (byte[] data : batch.data) {
+                    size += data != null ? data.length : 0;
+                }
+            }
+            return size;
+        }
+        return MESSAGE_SIZE;
+    }
+
+    private static int size(FileInfo[] files) {
+        return files != null ? files.length * FILE_INFO_SIZE : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SendQueue " + size() + " messages, " + bytes.get() + " bytes: "
+            + control + messages;
+    }
+
+    private static class Entry {
+        private final Message message;
+        private final int size;
+
+        private Entry(Message message) {
+            this.message = message;
+            this.size = estimateSize(message);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(message);
+        }
+    }
+}
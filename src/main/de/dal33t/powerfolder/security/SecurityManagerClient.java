@@ -104,7 +104,30 @@ public class SecurityManagerClient extends PFComponent implements
         client.logout();
     }
 
-    private final Object requestPermissionLock = new Object();
+    /**
+     * Locks for permission requests. Striped by account and folder, so
+     * requests for different folders are executed concurrently.
+     */
+    private final Object[] requestPermissionLocks = new Object[16];
+    {
+        for (int i = 0; i < requestPermissionLocks.length; i++) {
+            requestPermissionLocks[i] = new Object();
+        }
+    }
+
+    private Object getRequestPermissionLock(AccountInfo accountInfo,
+        Permission permission)
+    {
+        int hash = accountInfo != null ? accountInfo.hashCode() : 0;
+        if (permission instanceof FolderPermission) {
+            FolderInfo foInfo = ((FolderPermission) permission).folder;
+            hash = hash * 31 + (foInfo != null ? foInfo.hashCode() : 0);
+        } else if (permission != null) {
+            hash = hash * 31 + permission.hashCode();
+        }
+        return requestPermissionLocks[(hash & Integer.MAX_VALUE)
+            % requestPermissionLocks.length];
+    }
 
     public boolean hasPermission(MemberInfo memberInfo, Permission permission) {
         Member m = memberInfo.getNode(getController(), true);
@@ -161,7 +184,9 @@ public class SecurityManagerClient extends PFComponent implements
             }
             if (hasPermission == null) {
                 if (client.isConnected() && client.isLoggedIn()) {
-                    synchronized (requestPermissionLock) {
+                    synchronized (getRequestPermissionLock(accountInfo,
+                        permission))
+                    {
                         // Re-check cache
                         PermissionsCacheSegment secondCheck = permissionsCacheAccounts
                             .get(nullSafeGet(accountInfo));
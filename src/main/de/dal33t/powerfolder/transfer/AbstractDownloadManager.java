@@ -35,6 +35,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
@@ -425,8 +426,16 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                     setTransferState(percentageReached);
                 }
             };
+            int nThreads = ConfigurationEntry.DELTA_MATCHING_THREADS
+                .getValueInt(getController());
+            if (nThreads <= 0) {
+                nThreads = Runtime.getRuntime().availableProcessors();
+            }
             Callable<List<MatchInfo>> mInfoWorker = new MatchResultWorker(
-                remotePartRecord, src, transferObs);
+                remotePartRecord, src, transferObs, nThreads,
+                MatchResultWorker.DEFAULT_SEGMENT_SIZE,
+                ConfigurationEntry.DELTA_MATCHING_MAPPED
+                    .getValueBoolean(getController()));
             List<MatchInfo> mInfoRes = null;
             mInfoRes = mInfoWorker.call();
 
@@ -682,6 +691,14 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
         setStarted();
 
+        if (isAvailable(chunk)) {
+            if (isFiner()) {
+                logFiner("Ignoring duplicate chunk from " + download + ": "
+                    + chunk);
+            }
+            return;
+        }
+
         try {
             tempRAF.seek(chunk.offset);
             tempRAF.write(chunk.data);
@@ -711,6 +728,20 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         }
     }
 
+    /**
+     * @param chunk
+     * @return true if the data of the chunk has already been received. Happens
+     *         on parts requested from several sources in the end game.
+     */
+    private boolean isAvailable(FileChunk chunk) {
+        if (filePartsState == null) {
+            return false;
+        }
+        Range range = Range.getRangeByLength(chunk.offset, chunk.getLength());
+        return filePartsState.countPartStates(range, PartState.AVAILABLE) == range
+            .getLength();
+    }
+
     /**
      * @return true, if the download was actually requested from the source.
      */
@@ -1086,6 +1117,14 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                     PartState.NEEDED);
                 receivedChunk0(download, chunk);
                 break;
+            case CHECKING_FILE_VALIDITY :
+            case COMPLETED :
+                if (isAvailable(chunk)) {
+                    // Late duplicate of the end game
+                    break;
+                }
+                protocolStateError(download, "receivedChunk");
+                break;
             default :
                 protocolStateError(download, "receivedChunk");
                 break;
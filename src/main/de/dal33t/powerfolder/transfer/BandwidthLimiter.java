@@ -20,13 +20,24 @@
 package de.dal33t.powerfolder.transfer;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Convenient class to limit bandwidth (for example for streams). A
- * BandwidthLimiter starts out with 0 available and doesn't increase that. So it
- * needs some kind of "provider" which sets the amount of available bandwidth.
- * The BandwidthProvider class is an example of such. Instances start with no
- * limit. $Id$
+ * BandwidthLimiter is a token bucket, which needs some kind of "provider" to
+ * refill it. The BandwidthProvider class is an example of such. Instances
+ * start with no limit. $Id$
+ * <p>
+ * Bandwidth is granted lock free. Only threads waiting for an empty bucket
+ * block. Concurrent requests get a fair share of the available bandwidth
+ * instead of the first one taking all.
+ * <p>
+ * Limiters can be chained: A limiter with parent grants only bandwidth, which
+ * is also available from the parent. The shared LAN and WAN limiters are
+ * children of a total limiter per direction, per connection limiters are
+ * children of the shared LAN or WAN limiter. Connections below the same parent
+ * get a fair share of the parent's bandwidth.
  *
  * @author Dennis "Dante" Waldherr
  * @version $Revision: 1.3 $
@@ -35,37 +46,113 @@ public class BandwidthLimiter {
 
     public static final long UNLIMITED = -1;
 
+    /**
+     * The minimum amount granted to a request while others are requesting
+     * too. Avoids splitting into tiny writes.
+     */
+    private static final long MIN_FAIR_SHARE = 1024;
+
+    public static final BandwidthLimiter TOTAL_OUTPUT_BANDWIDTH_LIMITER =
+            new BandwidthLimiter(BandwidthLimiterInfo.TOTAL_OUTPUT, null, true);
+    public static final BandwidthLimiter TOTAL_INPUT_BANDWIDTH_LIMITER =
+            new BandwidthLimiter(BandwidthLimiterInfo.TOTAL_INPUT, null, true);
     public static final BandwidthLimiter WAN_OUTPUT_BANDWIDTH_LIMITER =
-            new BandwidthLimiter(BandwidthLimiterInfo.WAN_OUTPUT);
+            new BandwidthLimiter(BandwidthLimiterInfo.WAN_OUTPUT,
+                TOTAL_OUTPUT_BANDWIDTH_LIMITER, true);
     public static final BandwidthLimiter WAN_INPUT_BANDWIDTH_LIMITER =
-            new BandwidthLimiter(BandwidthLimiterInfo.WAN_INPUT);
+            new BandwidthLimiter(BandwidthLimiterInfo.WAN_INPUT,
+                TOTAL_INPUT_BANDWIDTH_LIMITER, true);
     public static final BandwidthLimiter LAN_OUTPUT_BANDWIDTH_LIMITER =
-            new BandwidthLimiter(BandwidthLimiterInfo.LAN_OUTPUT);
+            new BandwidthLimiter(BandwidthLimiterInfo.LAN_OUTPUT,
+                TOTAL_OUTPUT_BANDWIDTH_LIMITER, true);
     public static final BandwidthLimiter LAN_INPUT_BANDWIDTH_LIMITER =
-            new BandwidthLimiter(BandwidthLimiterInfo.LAN_INPUT);
+            new BandwidthLimiter(BandwidthLimiterInfo.LAN_INPUT,
+                TOTAL_INPUT_BANDWIDTH_LIMITER, true);
 
     /**
-     * The amount of bandwidth initially set by setAvailable().
+     * The amount of bandwidth available during the current stats period.
      * This is used to create stats and is NOT modified by bandwidth requests.
      */
-    private long initialAvailable = UNLIMITED;
+    private final AtomicLong initialAvailable = new AtomicLong(UNLIMITED);
 
     /**
      * The amount of bandwidth remaining.
      */
-    private long available = UNLIMITED;
+    private final AtomicLong available = new AtomicLong(UNLIMITED);
+
+    /**
+     * Threads currently requesting bandwidth.
+     */
+    private final AtomicInteger requesters = new AtomicInteger();
+
+    /**
+     * Threads waiting for bandwidth.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
 
     private final Object monitor = new Object();
     private final BandwidthLimiterInfo id;
+    private final BandwidthLimiter parent;
+    private final boolean shared;
 
-    private BandwidthLimiter(BandwidthLimiterInfo id) {
+    private BandwidthLimiter(BandwidthLimiterInfo id, BandwidthLimiter parent,
+        boolean shared)
+    {
         this.id = id;
+        this.parent = parent;
+        this.shared = shared;
+    }
+
+    /**
+     * Creates a limiter, which is additionally limited by this one. The child
+     * starts with no own limit.
+     *
+     * @return the new limiter.
+     */
+    public BandwidthLimiter createChild() {
+        return new BandwidthLimiter(id, this, false);
     }
 
     public BandwidthLimiterInfo getId() {
         return id;
     }
 
+    /**
+     * @return true if this is one of the shared total, LAN or WAN limiters.
+     *         Only those create bandwidth stats, otherwise the traffic of
+     *         each connection would be counted twice.
+     */
+    boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * @return the limiter this one is limited by or null.
+     */
+    public BandwidthLimiter getParent() {
+        return parent;
+    }
+
+    /**
+     * Requests bandwidth on a medium. Does not block.
+     *
+     * @param size
+     *            the amount requested
+     * @return the amount of bandwidth granted. 0 if currently no bandwidth is
+     *         available.
+     */
+    public long tryRequestBandwidth(long size) {
+        long amount = acquire(size);
+        if (parent != null && amount > 0) {
+            long granted = parent.tryRequestBandwidth(amount);
+            if (granted < amount) {
+                release(amount - granted);
+            }
+            amount = granted;
+        }
+        return amount;
+    }
+
     /**
      * Requests bandwidth on a medium. Blocks until bandwidth is available.
      *
@@ -76,16 +163,145 @@ public class BandwidthLimiter {
     public long requestBandwidth(long size)
         throws InterruptedException
     {
-    	synchronized (monitor) {
-            while (available == 0) {
-                monitor.wait();
+        if (size <= 0) {
+            return 0;
+        }
+        long amount = acquire(size);
+        while (amount == 0) {
+            waitForBandwidth();
+            amount = acquire(size);
+        }
+        if (parent != null) {
+            long granted;
+            try {
+                granted = parent.requestBandwidth(amount);
+            } catch (InterruptedException e) {
+                release(amount);
+                throw e;
+            }
+            if (granted < amount) {
+                release(amount - granted);
             }
-	        long amount = available < 0 ? size : Math.min(available, size);
-	        if (available >= 0) {
-	            available -= amount;
-	        }
-	        return amount;
-		}
+            amount = granted;
+        }
+        return amount;
+    }
+
+    /**
+     * Takes bandwidth from this bucket. Limits the amount to a fair share if
+     * others are requesting concurrently.
+     *
+     * @param size
+     * @return the amount taken. 0 if the bucket is empty.
+     */
+    private long acquire(long size) {
+        int n = requesters.incrementAndGet() + waiting.get();
+        try {
+            while (true) {
+                long cur = available.get();
+                if (cur < 0) {
+                    return size;
+                }
+                if (cur == 0 || size <= 0) {
+                    return 0;
+                }
+                long amount = Math.min(cur, size);
+                if (n > 1) {
+                    amount = Math.min(amount,
+                        Math.max(MIN_FAIR_SHARE, cur / n));
+                }
+                if (available.compareAndSet(cur, cur - amount)) {
+                    return amount;
+                }
+                n = Math.max(n, requesters.get() + waiting.get());
+            }
+        } finally {
+            requesters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gives taken bandwidth back to this bucket.
+     *
+     * @param amount
+     */
+    private void release(long amount) {
+        if (amount <= 0) {
+            return;
+        }
+        while (true) {
+            long cur = available.get();
+            if (cur < 0 || available.compareAndSet(cur, cur + amount)) {
+                break;
+            }
+        }
+        notifyWaiting();
+    }
+
+    private void waitForBandwidth() throws InterruptedException {
+        waiting.incrementAndGet();
+        try {
+            synchronized (monitor) {
+                while (available.get() == 0) {
+                    monitor.wait();
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private void notifyWaiting() {
+        if (waiting.get() > 0) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Adds bandwidth to the bucket. Called periodically by the
+     * {@link BandwidthProvider}. Wakes threads waiting in requestBandwidth().
+     *
+     * @param bps
+     *            the bandwidth per second. 0 or less means no limit. The
+     *            bucket holds up to the amount of one second.
+     * @param elapsedMillis
+     *            the time since the last refill.
+     */
+    void refill(long bps, long elapsedMillis) {
+        if (bps <= 0) {
+            available.set(UNLIMITED);
+            initialAvailable.set(UNLIMITED);
+            notifyWaiting();
+            return;
+        }
+        long amount = bps * elapsedMillis / 1000;
+        while (true) {
+            long cur = available.get();
+            long next = Math.min(Math.max(cur, 0) + amount, bps);
+            if (available.compareAndSet(cur, next)) {
+                if (cur < 0 || initialAvailable.get() < 0) {
+                    initialAvailable.set(next);
+                } else if (next > cur) {
+                    initialAvailable.addAndGet(next - cur);
+                }
+                break;
+            }
+        }
+        notifyWaiting();
+    }
+
+    /**
+     * Starts a new stats period.
+     *
+     * @return a stat record of how much bandwidth there was in total during
+     *         the last period and how much was left over.
+     */
+    BandwidthStat takeStat() {
+        long residual = available.get();
+        long initial = initialAvailable.getAndSet(residual);
+        return new BandwidthStat(new Date(), id, initial, residual);
     }
 
     /**
@@ -99,25 +315,12 @@ public class BandwidthLimiter {
      * and how much was left over.
      */
     public BandwidthStat setAvailable(long amount) {
-        BandwidthStat bandwidthStat;
-
-        synchronized (monitor) {
-            // Create a stat of how much bandwidth there was initially
-            // and how much there is now.
-            bandwidthStat = new BandwidthStat(new Date(), id,
-                    initialAvailable, available);
-
-            // Set the new amount
-            initialAvailable = amount;
-            available = amount;
-
-            // Let everyone know.
-            if (available != 0) {
-                monitor.notifyAll();
-            }
-		}
-
-        return bandwidthStat;
+        long residual = available.getAndSet(amount < 0 ? UNLIMITED : amount);
+        long initial = initialAvailable.getAndSet(amount < 0
+            ? UNLIMITED
+            : amount);
+        notifyWaiting();
+        return new BandwidthStat(new Date(), id, initial, residual);
     }
 
     /**
@@ -126,9 +329,7 @@ public class BandwidthLimiter {
      * @return the "bandwidth"
      */
     public long getAvailable() {
-    	synchronized (monitor) {
-            return available;
-		}
+        return available.get();
     }
 
     /**
@@ -139,34 +340,10 @@ public class BandwidthLimiter {
      * @param amount
      */
     public void returnAvailable(int amount) {
-    	synchronized (monitor) {
-            if (available >= 0) {
-                available += amount;
-            }
-		}
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
+        release(amount);
+        if (parent != null) {
+            parent.returnAvailable(amount);
         }
-        if (obj == null || getClass() != obj.getClass()) {
-            return false;
-        }
-
-        BandwidthLimiter that = (BandwidthLimiter) obj;
-
-        if (id != that.id) {
-            return false;
-        }
-
-        return true;
-    }
-
-    @Override
-    public int hashCode() {
-        return id != null ? id.hashCode() : 0;
     }
 
     @Override
@@ -22,14 +22,17 @@ package de.dal33t.powerfolder.transfer;
 /**
  * Encapsulates information about the various BandwidthLimiters so that
  * bandwidth stat listeners can get details about the source of the stat.
- * Four instances are available for LAN/WAN output/input.
+ * Instances are available for LAN/WAN output/input and the total output/input
+ * both of them are limited by.
  */
 public enum BandwidthLimiterInfo {
 
     LAN_OUTPUT("LAN Output", true, false),
     LAN_INPUT("LAN Input", true, true),
     WAN_OUTPUT("WAN Output", false, false),
-    WAN_INPUT("WAN Input", false, true);
+    WAN_INPUT("WAN Input", false, true),
+    TOTAL_OUTPUT("Total Output", false, false),
+    TOTAL_INPUT("Total Input", false, true);
 
     private String name;
     private boolean lan;
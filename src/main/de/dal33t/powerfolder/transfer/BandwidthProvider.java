@@ -33,16 +33,20 @@ import de.dal33t.powerfolder.util.logging.Loggable;
 /**
  * A BandwidthProvider can be used to periodically assign BandwidthLimiters a
  * given amount of bandwidth. It uses a one Thread solution to perform this.
- * $Id$
+ * The limiters get refilled several times per second to avoid bursts at the
+ * start of each second. $Id$
  *
  * @author Dennis "Dante" Waldherr
  * @version $Revision: 1.5 $
  */
 public class BandwidthProvider extends Loggable {
 
-    // ms between bandwidth "pushs"
+    // ms between bandwidth stats
     public static final int PERIOD = 1000;
 
+    // ms between bandwidth "pushs"
+    public static final int REFILL_PERIOD = 100;
+
     private final Map<BandwidthLimiter, Long> limits = new WeakHashMap<BandwidthLimiter, Long>();
     private ScheduledExecutorService scheduledES;
     private ScheduledFuture<?> task;
@@ -55,7 +59,17 @@ public class BandwidthProvider extends Loggable {
 
     public void start() {
         task = scheduledES.scheduleAtFixedRate(new TimerTask() {
+            private long lastRefill = System.currentTimeMillis();
+            private long lastStats;
+
             public void run() {
+                long now = System.currentTimeMillis();
+                long elapsed = Math.max(0, now - lastRefill);
+                lastRefill = now;
+                boolean stats = now - lastStats >= PERIOD;
+                if (stats) {
+                    lastStats = now;
+                }
                 synchronized (limits) {
                     for (Map.Entry<BandwidthLimiter, Long> me : limits
                         .entrySet())
@@ -65,17 +79,18 @@ public class BandwidthProvider extends Loggable {
                             continue;
                         }
 
-                        // Set new limit and distribute the stat from the
-                        // previous period.
+                        // Refill and distribute the stat from the previous
+                        // period.
                         Long value = me.getValue();
-                        BandwidthStat stat = limiter.setAvailable(value > 0
-                            ? PERIOD * value / 1000
-                            : BandwidthLimiter.UNLIMITED);
-                        statListenerSupport.handleBandwidthStat(stat);
+                        limiter.refill(value, elapsed);
+                        if (stats && limiter.isShared()) {
+                            statListenerSupport.handleBandwidthStat(limiter
+                                .takeStat());
+                        }
                     }
                 }
             }
-        }, 0, PERIOD, TimeUnit.MILLISECONDS);
+        }, 0, REFILL_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     public void shutdown() {
@@ -201,7 +201,7 @@ public class Download extends Transfer {
 
         RequestPart rp;
         if (pendingRequests.size() >= getTransferManager()
-            .getMaxRequestsQueued())
+            .getMaxRequestsQueued(getPartner()))
         {
             if (isFiner()) {
                 logFiner("X Skipping request. Already got too many pending requests: " + range);
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.message.FileBatch;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.RequestFileBatch;
+import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.util.Convert;
+import de.dal33t.powerfolder.util.StringUtils;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Transfers small files in batches instead of one {@link Download} and
+ * {@link Upload} per file. Avoids the request/start/part/chunk/stop round
+ * trips per file, which dominate the sync of many small files.
+ * <p>
+ * Downloading side: Small files requested from a node are collected and
+ * requested at once with a {@link RequestFileBatch}. The received files are
+ * committed through {@link Folder#scanDownloadFile(FileInfo, Path)}. Files the
+ * remote side could not send are downloaded the normal way.
+ * <p>
+ * Uploading side: The requested files are read completely and streamed back
+ * in {@link FileBatch} messages.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class FileBatchManager extends PFComponent {
+
+    /**
+     * Files up to this size are transferred in batches.
+     */
+    public static final long MAX_FILE_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of files per batch request.
+     */
+    static final int MAX_FILES = 500;
+
+    /**
+     * The maximum amount of file data per {@link FileBatch} message.
+     */
+    static final int MAX_MESSAGE_DATA = 256 * 1024;
+
+    /**
+     * ms to wait for more files before sending a batch request.
+     */
+    private static final long COLLECT_DELAY = 250;
+
+    /**
+     * ms after which a requested file is assumed to be lost.
+     */
+    private static final long REQUEST_TIMEOUT = Constants.DOWNLOAD_REQUEST_TIMEOUT_LIMIT;
+
+    private final TransferManager transferManager;
+
+    /**
+     * Files collected for the next batch request. Guarded by itself.
+     */
+    private final Map<Member, List<FileInfo>> collected = new HashMap<Member, List<FileInfo>>();
+
+    /**
+     * Files requested, but not received yet.
+     */
+    private final ConcurrentMap<FileInfo, Requested> requested = Util
+        .createConcurrentHashMap();
+
+    /**
+     * Files, which could not be transferred in a batch. Downloaded the normal
+     * way on next request.
+     */
+    private final Set<FileInfo> unbatchable = Collections
+        .newSetFromMap(Util.<FileInfo, Boolean> createConcurrentHashMap());
+
+    FileBatchManager(TransferManager transferManager) {
+        super(transferManager.getController());
+        this.transferManager = transferManager;
+    }
+
+    // Downloading side *******************************************************
+
+    /**
+     * Collects the file for a batch request if possible. Call
+     * {@link #sendIfFull(Member)} afterwards, outside of any lock.
+     *
+     * @param fInfo
+     *            the exact version to download
+     * @param from
+     * @param automatic
+     * @return true if the file is requested in a batch. false if it needs to
+     *         be downloaded the normal way.
+     */
+    boolean requestDownload(FileInfo fInfo, Member from, boolean automatic) {
+        if (!isBatchable(fInfo, from)) {
+            return false;
+        }
+        Requested existing = requested.get(fInfo);
+        if (existing != null) {
+            if (existing.fileInfo.isVersionDateAndSizeIdentical(fInfo)) {
+                // Already requested
+                return true;
+            }
+            // Other version. Download the normal way.
+            return false;
+        }
+        if (requested.putIfAbsent(fInfo, new Requested(fInfo, from,
+            automatic)) != null)
+        {
+            return true;
+        }
+        boolean first;
+        synchronized (collected) {
+            List<FileInfo> files = collected.get(from);
+            first = files == null;
+            if (first) {
+                files = new ArrayList<FileInfo>();
+                collected.put(from, files);
+            }
+            files.add(fInfo);
+        }
+        if (first) {
+            final Member node = from;
+            getController().schedule(new Runnable() {
+                public void run() {
+                    sendRequest(node);
+                }
+            }, COLLECT_DELAY);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the files collected for the node if they fill a batch. The others
+     * are sent after a short delay.
+     *
+     * @param node
+     */
+    void sendIfFull(Member node) {
+        boolean full;
+        synchronized (collected) {
+            List<FileInfo> files = collected.get(node);
+            full = files != null && files.size() >= MAX_FILES;
+        }
+        if (full) {
+            sendRequest(node);
+        }
+    }
+
+    /**
+     * @param fInfo
+     * @return true if the file has been requested in a batch and not received
+     *         yet.
+     */
+    public boolean isRequested(FileInfo fInfo) {
+        return requested.containsKey(fInfo);
+    }
+
+    /**
+     * @return the number of files requested in batches and not received yet.
+     */
+    public int countRequested() {
+        return requested.size();
+    }
+
+    private boolean isBatchable(FileInfo fInfo, Member from) {
+        if (!ConfigurationEntry.TRANSFERS_FILE_BATCHES
+            .getValueBoolean(getController()))
+        {
+            return false;
+        }
+        if (fInfo.isDeleted() || fInfo.getSize() > MAX_FILE_SIZE) {
+            return false;
+        }
+        if (fInfo.getFolderInfo().isMetaFolder()) {
+            return false;
+        }
+        Identity id = from.getIdentity();
+        if (id == null || !id.isSupportsFileBatches()) {
+            return false;
+        }
+        if (unbatchable.remove(fInfo)) {
+            return false;
+        }
+        Folder folder = fInfo.getFolder(getController().getFolderRepository());
+        if (folder == null || folder.isEncrypted()) {
+            return false;
+        }
+        // The download script needs a download manager
+        return StringUtils.isBlank(folder.getDownloadScript());
+    }
+
+    private void sendRequest(Member node) {
+        List<FileInfo> files;
+        synchronized (collected) {
+            files = collected.remove(node);
+        }
+        if (files == null || files.isEmpty()) {
+            return;
+        }
+        if (!node.isCompletelyConnected()) {
+            for (FileInfo fInfo : files) {
+                requested.remove(fInfo);
+            }
+            return;
+        }
+        RequestFileBatch request = new RequestFileBatch(
+            files.toArray(new FileInfo[files.size()]));
+        if (isFine()) {
+            logFine("Requesting batch of " + files.size() + " files from "
+                + node.getNick());
+        }
+        node.sendMessageAsynchron(request);
+    }
+
+    /**
+     * Commits the received files in background.
+     *
+     * @param from
+     * @param batch
+     */
+    public void receivedBatch(final Member from, final FileBatch batch) {
+        transferManager.doWork(new Runnable() {
+            public void run() {
+                commitBatch(from, batch);
+            }
+        });
+    }
+
+    private void commitBatch(Member from, FileBatch batch) {
+        if (!batch.isValid()) {
+            // The requested files time out and get requested again.
+            logWarning("Received invalid batch from " + from.getNick());
+            return;
+        }
+        Set<FolderInfo> folders = new HashSet<FolderInfo>();
+        long bytes = 0;
+        for (int i = 0; i < batch.files.length; i++) {
+            FileInfo fInfo = batch.files[i];
+            byte[] data = batch.data[i];
+            Requested req = requested.get(fInfo);
+            if (req == null || !req.from.equals(from)
+                || !req.fileInfo.isVersionDateAndSizeIdentical(fInfo))
+            {
+                logFine("Received unrequested file in batch: "
+                    + fInfo.toDetailString());
+                continue;
+            }
+            if (data != null) {
+                bytes += data.length;
+            }
+            boolean committed = data != null && commit(req.fileInfo, data);
+            requested.remove(fInfo, req);
+            folders.add(fInfo.getFolderInfo());
+            if (!committed) {
+                // Fall back to normal download
+                unbatchable.add(fInfo);
+                transferManager.downloadNewestVersion(fInfo, req.automatic);
+            }
+        }
+        transferManager.getDownloadCounter().bytesTransferred(bytes);
+        transferManager.getTotalDownloadTrafficCounter()
+            .bytesTransferred(bytes);
+
+        if (!hasRequestsTo(from)) {
+            // Batch done. Request more files.
+            for (FolderInfo foInfo : folders) {
+                getController().getFolderRepository().getFileRequestor()
+                    .triggerFileRequesting(foInfo);
+            }
+        }
+    }
+
+    private boolean hasRequestsTo(Member node) {
+        for (Requested req : requested.values()) {
+            if (req.from.equals(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean commit(FileInfo fInfo, byte[] data) {
+        if (data.length != fInfo.getSize()) {
+            logWarning("Received file of wrong size in batch: "
+                + fInfo.toDetailString() + ". Got " + data.length + " bytes");
+            return false;
+        }
+        Folder folder = fInfo.getFolder(getController().getFolderRepository());
+        if (folder == null) {
+            return true;
+        }
+        FileInfo localFile = folder.getFile(fInfo);
+        if (localFile != null && !fInfo.isNewerThan(localFile)) {
+            // Got it meanwhile
+            return true;
+        }
+        Path tempFile = null;
+        try {
+            Path dir = folder.getSystemSubDir().resolve("transfers");
+            Files.createDirectories(dir);
+            tempFile = dir.resolve("(batch) "
+                + new String(Util.encodeHex(Util.md5(fInfo.getRelativeName()
+                    .getBytes(Convert.UTF8)))));
+            Files.write(tempFile, data);
+            transferManager.abortUploadsOf(fInfo);
+            if (!folder.scanDownloadFile(fInfo, tempFile)) {
+                logWarning("Scanning of file received in batch failed: "
+                    + fInfo.toDetailString());
+                return false;
+            }
+            if (isFiner()) {
+                logFiner("Received in batch: " + fInfo.toDetailString());
+            }
+            return true;
+        } catch (IOException e) {
+            logWarning("Unable to write file received in batch: "
+                + fInfo.toDetailString() + ". " + e);
+            return false;
+        } finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e) {
+                    logFiner("Unable to delete " + tempFile + ". " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets requests, which have not been answered in time or whose node
+     * disconnected. They get requested again by the file requestor.
+     */
+    void checkRequests() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Requested> it = requested.values().iterator(); it
+            .hasNext();)
+        {
+            Requested req = it.next();
+            if (now - req.since > REQUEST_TIMEOUT
+                || !req.from.isCompletelyConnected())
+            {
+                logFine("Batch request timed out: "
+                    + req.fileInfo.toDetailString());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all requests to that node.
+     *
+     * @param node
+     */
+    void breakRequests(Member node) {
+        synchronized (collected) {
+            collected.remove(node);
+        }
+        for (Iterator<Requested> it = requested.values().iterator(); it
+            .hasNext();)
+        {
+            if (it.next().from.equals(node)) {
+                it.remove();
+            }
+        }
+    }
+
+    // Uploading side *********************************************************
+
+    /**
+     * Sends the requested files in batches in background. Files, which can't
+     * be sent, are answered without data.
+     *
+     * @param from
+     * @param request
+     */
+    public void handleRequest(final Member from,
+        final RequestFileBatch request)
+    {
+        transferManager.doWork(new Runnable() {
+            public void run() {
+                sendBatches(from, request);
+            }
+        });
+    }
+
+    private void sendBatches(Member from, RequestFileBatch request) {
+        if (isFine()) {
+            logFine("Received batch request of " + request.files.length
+                + " files from " + from.getNick());
+        }
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        List<byte[]> data = new ArrayList<byte[]>();
+        long dataSize = 0;
+        long bytes = 0;
+        try {
+            for (FileInfo fInfo : request.files) {
+                byte[] content = read(from, fInfo);
+                files.add(fInfo);
+                data.add(content);
+                if (content != null) {
+                    dataSize += content.length;
+                    bytes += content.length;
+                }
+                if (dataSize >= MAX_MESSAGE_DATA) {
+                    send(from, files, data);
+                    dataSize = 0;
+                }
+            }
+            if (!files.isEmpty()) {
+                send(from, files, data);
+            }
+        } catch (ConnectionException e) {
+            logFine("Unable to send batch to " + from.getNick() + ". " + e);
+        } finally {
+            transferManager.getUploadCounter().bytesTransferred(bytes);
+            transferManager.getTotalUploadTrafficCounter().bytesTransferred(
+                bytes);
+        }
+    }
+
+    private void send(Member to, List<FileInfo> files, List<byte[]> data)
+        throws ConnectionException
+    {
+        FileBatch batch = new FileBatch(
+            files.toArray(new FileInfo[files.size()]),
+            data.toArray(new byte[data.size()][]));
+        files.clear();
+        data.clear();
+        // Waits for the send queue. Avoids reading ahead too much.
+        to.sendMessage(batch);
+    }
+
+    /**
+     * @param to
+     * @param fInfo
+     * @return the contents of the file or null if it can't be sent.
+     */
+    private byte[] read(Member to, FileInfo fInfo) {
+        if (fInfo == null || fInfo.getSize() > MAX_FILE_SIZE) {
+            return null;
+        }
+        // Never upload db files !!
+        if (Constants.DB_FILENAME.equalsIgnoreCase(fInfo.getRelativeName())
+            || Constants.DB_BACKUP_FILENAME.equalsIgnoreCase(fInfo
+                .getRelativeName()))
+        {
+            logSevere(to.getNick()
+                + " has illegally requested to download a folder database file");
+            return null;
+        }
+        Folder folder = fInfo.getFolder(getController().getFolderRepository());
+        if (folder == null || !folder.hasReadPermission(to)) {
+            return null;
+        }
+        FileInfo localFile = fInfo.getLocalFileInfo(getController()
+            .getFolderRepository());
+        if (localFile == null || !localFile.isVersionDateAndSizeIdentical(fInfo))
+        {
+            return null;
+        }
+        Path diskFile = fInfo.getDiskFile(getController().getFolderRepository());
+        if (diskFile == null || !fInfo.inSyncWithDisk(diskFile)) {
+            return null;
+        }
+        try {
+            byte[] content = Files.readAllBytes(diskFile);
+            // Changed while reading?
+            if (content.length != fInfo.getSize()
+                || !fInfo.inSyncWithDisk(diskFile))
+            {
+                return null;
+            }
+            return content;
+        } catch (IOException e) {
+            logFine("Unable to read " + diskFile + " for batch. " + e);
+            return null;
+        }
+    }
+
+    private static class Requested {
+        private final FileInfo fileInfo;
+        private final Member from;
+        private final boolean automatic;
+        private final long since = System.currentTimeMillis();
+
+        private Requested(FileInfo fileInfo, Member from, boolean automatic) {
+            this.fileInfo = fileInfo;
+            this.from = from;
+            this.automatic = automatic;
+        }
+    }
+}
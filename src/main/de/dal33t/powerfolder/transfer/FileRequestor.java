@@ -24,11 +24,18 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
@@ -43,21 +50,59 @@ import de.dal33t.powerfolder.util.ProblemUtil;
 import de.dal33t.powerfolder.util.Profiling;
 import de.dal33t.powerfolder.util.ProfilingEntry;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.TransferCounter;
 
 /**
  * The filerequestor handles all stuff about requesting new downloads
+ * <p>
+ * Several workers request the files of the queued folders in parallel.
+ * Folders triggered by changes and folders queued by the periodical check are
+ * taken alternately, so neither a small changed folder waits behind all other
+ * folders nor the periodical check starves.
  * 
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
  * @version $Revision: 1.18 $
  */
 public class FileRequestor extends PFComponent {
-    private Thread myThread;
-    private final Queue<Folder> folderQueue;
+    private final List<Thread> workers;
+
+    /**
+     * Folders triggered by changes.
+     */
+    private final Queue<Folder> triggeredFolders;
+
+    /**
+     * Folders queued by the periodical check of all folders.
+     */
+    private final Queue<Folder> periodicalFolders;
+
+    /**
+     * The time each folder was queued at. Guards the queues.
+     */
+    private final Map<Folder, Long> queuedSince;
+
+    /**
+     * The folders currently processed by a worker. Guarded by
+     * {@link #queuedSince}.
+     */
+    private final Set<Folder> activeFolders;
+    private long nPolls;
+    private volatile long averageQueueLatency;
+
+    /**
+     * Counts the requested files. "Bytes" are files.
+     */
+    private final TransferCounter requestedFiles;
     private final Queue<FileInfo> pendingRequests;
 
     public FileRequestor(Controller controller) {
         super(controller);
-        folderQueue = new ConcurrentLinkedQueue<Folder>();
+        workers = new CopyOnWriteArrayList<Thread>();
+        triggeredFolders = new LinkedList<Folder>();
+        periodicalFolders = new LinkedList<Folder>();
+        queuedSince = new HashMap<Folder, Long>();
+        activeFolders = new HashSet<Folder>();
+        requestedFiles = new TransferCounter();
         pendingRequests = new ConcurrentLinkedQueue<FileInfo>();
     }
 
@@ -65,11 +110,20 @@ public class FileRequestor extends PFComponent {
      * Starts the file requestor
      */
     public void start() {
-        myThread = new Thread(new Worker(), "FileRequestor");
-        myThread.setPriority(Thread.MIN_PRIORITY);
-        myThread.start();
+        int nWorkers = ConfigurationEntry.TRANSFERS_REQUESTOR_THREADS
+            .getValueInt(getController());
+        if (nWorkers <= 0) {
+            nWorkers = Runtime.getRuntime().availableProcessors();
+        }
+        requestedFiles.startedTransfer();
+        for (int i = 0; i < nWorkers; i++) {
+            Thread worker = new Thread(new Worker(), "FileRequestor-" + i);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            workers.add(worker);
+            worker.start();
+        }
 
-        logFine("Started");
+        logFine("Started " + nWorkers + " worker(s)");
 
         long waitTime = Controller.getWaitTime() * 12;
         getController()
@@ -90,13 +144,7 @@ public class FileRequestor extends PFComponent {
             logWarning("Folder not joined, not requesting files: " + foInfo);
             return;
         }
-        synchronized (folderQueue) {
-            if (folderQueue.contains(folder)) {
-                return;
-            }
-            folderQueue.offer(folder);
-            folderQueue.notify();
-        }
+        enqueue(folder, triggeredFolders);
     }
 
     /**
@@ -109,14 +157,10 @@ public class FileRequestor extends PFComponent {
         ProfilingEntry pe = Profiling.start();
         Collection<Folder> folders = getController().getFolderRepository()
             .getFolders(true);
-        synchronized (folderQueue) {
+        synchronized (queuedSince) {
             for (Folder folder : folders) {
-                if (folderQueue.contains(folder)) {
-                    continue;
-                }
-                folderQueue.offer(folder);
+                enqueue(folder, periodicalFolders);
             }
-            folderQueue.notifyAll();
         }
         Profiling.end(pe, 100);
     }
@@ -125,15 +169,123 @@ public class FileRequestor extends PFComponent {
      * Stops file requsting
      */
     public void shutdown() {
-        if (myThread != null) {
-            myThread.interrupt();
+        for (Thread worker : workers) {
+            worker.interrupt();
         }
-        synchronized (folderQueue) {
-            folderQueue.notifyAll();
+        workers.clear();
+        synchronized (queuedSince) {
+            queuedSince.notifyAll();
         }
         logFine("Stopped");
     }
 
+    /**
+     * @return the average time in milliseconds a folder recently waited to be
+     *         processed after being queued.
+     */
+    public long getAverageQueueLatency() {
+        return averageQueueLatency;
+    }
+
+    /**
+     * @return the number of folders waiting to be processed.
+     */
+    public int getQueuedFoldersCount() {
+        synchronized (queuedSince) {
+            return queuedSince.size();
+        }
+    }
+
+    /**
+     * @return the total number of files requested for download.
+     */
+    public long getRequestedFilesCount() {
+        synchronized (requestedFiles) {
+            return requestedFiles.getBytesTransferred();
+        }
+    }
+
+    /**
+     * @return the number of files recently requested for download per second.
+     */
+    public double getRequestedFilesRate() {
+        synchronized (requestedFiles) {
+            return requestedFiles.calculateCurrentCPS();
+        }
+    }
+
+    /**
+     * Queues the folder, if not already queued. A folder queued by the
+     * periodical check gets moved to the triggered folders.
+     *
+     * @param folder
+     * @param queue
+     *            the queue to add the folder to.
+     */
+    private void enqueue(Folder folder, Queue<Folder> queue) {
+        synchronized (queuedSince) {
+            if (queuedSince.containsKey(folder)) {
+                if (queue == triggeredFolders
+                    && periodicalFolders.remove(folder))
+                {
+                    triggeredFolders.offer(folder);
+                }
+                return;
+            }
+            queuedSince.put(folder, System.currentTimeMillis());
+            if (activeFolders.contains(folder)) {
+                // Queued again by the worker when done.
+                return;
+            }
+            queue.offer(folder);
+            queuedSince.notify();
+        }
+    }
+
+    /**
+     * Waits for the next folder to process.
+     *
+     * @return the folder, which is marked active until {@link #done(Folder)}.
+     * @throws InterruptedException
+     */
+    private Folder nextFolder() throws InterruptedException {
+        synchronized (queuedSince) {
+            while (triggeredFolders.isEmpty() && periodicalFolders.isEmpty()) {
+                queuedSince.wait();
+            }
+            Folder folder;
+            if (nPolls++ % 2 == 0) {
+                folder = triggeredFolders.poll();
+                if (folder == null) {
+                    folder = periodicalFolders.poll();
+                }
+            } else {
+                folder = periodicalFolders.poll();
+                if (folder == null) {
+                    folder = triggeredFolders.poll();
+                }
+            }
+            Long since = queuedSince.remove(folder);
+            if (since != null) {
+                long latency = System.currentTimeMillis() - since;
+                averageQueueLatency = (averageQueueLatency * 7 + latency) / 8;
+            }
+            activeFolders.add(folder);
+            return folder;
+        }
+    }
+
+    private void done(Folder folder) {
+        synchronized (queuedSince) {
+            activeFolders.remove(folder);
+            if (queuedSince.containsKey(folder)) {
+                // Triggered again while requesting
+                triggeredFolders.offer(folder);
+                queuedSince.notify();
+            }
+        }
+    }
+
     /**
      * Checks all new received filelists from member and downloads unknown/new
      * files, force the settings.
@@ -148,11 +300,33 @@ public class FileRequestor extends PFComponent {
         if (!folder.hasOwnDatabase()) {
             return;
         }
-        Collection<FileInfo> incomingFiles = folder.getIncomingFiles(false,
-            Constants.MAX_DLS_FROM_LAN_MEMBER * 2);
+        Collection<FileInfo> incomingFiles = getIncomingFiles(folder);
         retrieveNewestVersions(folder, incomingFiles, autoDownload);
     }
 
+    /**
+     * @param folder
+     * @return the incoming files to request in one pass. All incoming files
+     *         are considered if the folder has transfer priorities, so the
+     *         files with high priority come first even if far down the list.
+     */
+    private Collection<FileInfo> getIncomingFiles(Folder folder) {
+        int maxPerMember = Constants.MAX_DLS_FROM_LAN_MEMBER * 2;
+        TransferPriorities priorities = folder.getTransferPriorities();
+        if (priorities.isEmpty()) {
+            return folder.getIncomingFiles(false, maxPerMember);
+        }
+        List<FileInfo> incomingFiles = new ArrayList<FileInfo>(
+            folder.getIncomingFiles(false, -1));
+        Collections.sort(incomingFiles, priorities.getComparator());
+        int max = maxPerMember
+            * Math.max(1, folder.getConnectedMembersCount());
+        if (incomingFiles.size() > max) {
+            return incomingFiles.subList(0, max);
+        }
+        return incomingFiles;
+    }
+
     /**
      * Requests missing files for autodownload. May not request any files if
      * folder is not in auto download sync profile. Checks the syncprofile for
@@ -221,8 +395,7 @@ public class FileRequestor extends PFComponent {
             }
             return;
         }
-        Collection<FileInfo> incomingFiles = folder.getIncomingFiles(false,
-            Constants.MAX_DLS_FROM_LAN_MEMBER * 2);
+        Collection<FileInfo> incomingFiles = getIncomingFiles(folder);
         if (incomingFiles.isEmpty()) {
             if (isFiner()) {
                 logFiner("Not requesting files. No incoming files " + folder);
@@ -247,7 +420,7 @@ public class FileRequestor extends PFComponent {
         TransferManager tm = getController().getTransferManager();
         List<FileInfo> filesToDownload = new ArrayList<FileInfo>(fInfos.size());
         for (FileInfo fInfo : fInfos) {
-            if (myThread.isInterrupted()) {
+            if (Thread.currentThread().isInterrupted()) {
                 return;
             }
             if (fInfo.isDeleted()) {
@@ -276,6 +449,7 @@ public class FileRequestor extends PFComponent {
         }
         Collections.sort(filesToDownload, folder.getTransferPriorities()
             .getComparator());
+        int nRequested = 0;
         for (FileInfo fInfo : filesToDownload) {
             try {
                 // Safeguard:
@@ -287,11 +461,15 @@ public class FileRequestor extends PFComponent {
                     continue;
                 }
                 prepareDownload(newestVersion, autoDownload);
+                nRequested++;
             } catch (RuntimeException e) {
                 logWarning("Unable to download: " + fInfo.toDetailString()
                     + ": " + e);
             }
         }
+        synchronized (requestedFiles) {
+            requestedFiles.bytesTransferred(nRequested);
+        }
     }
 
     private void createDirectory(DirectoryInfo dirInfo) {
@@ -379,51 +557,33 @@ public class FileRequestor extends PFComponent {
      */
     private class Worker implements Runnable {
         public void run() {
-            while (!myThread.isInterrupted()) {
+            int nFolders = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                Folder folder;
                 try {
-                    synchronized (folderQueue) {
-                        if (folderQueue.isEmpty()) {
-                            folderQueue.wait();
-                        }
-                    }
-                    int nFolders = 0;
-                    if (isFiner()) {
-                        logFiner("Started requesting files");
+                    // Give CPU a bit time.
+                    if (++nFolders % 5 == 0) {
+                        Thread.sleep(1);
                     }
-                    long start = System.currentTimeMillis();
-                    for (Folder folder : folderQueue) {
-                        // if (i % 100 == 0) {
-                        // if (folderQueue.size() < 5) {
-                        // logWarning("Still in queue: " + folderQueue);
-                        // } else {
-                        // logWarning("Still in queue: "
-                        // + folderQueue.size());
-                        // }
-                        // }
-                        nFolders++;
-                        try {
-                            folderQueue.remove(folder);
-                            // Give CPU a bit time.
-                            if (nFolders % 5 == 0) {
-                                Thread.sleep(1);
-                            }
-                            requestMissingFilesForAutodownload(folder);
-                        } catch (RuntimeException e) {
-                            logSevere("RuntimeException: " + e.toString(), e);
-                        }
-                    }
-                    if (isFine()) {
-                        long took = System.currentTimeMillis() - start;
-                        logFine("Requesting files for " + nFolders
-                            + " folder(s) took " + took + "ms.");
-                    }
-                    // Sleep a bit to avoid spamming
-                    Thread.sleep(10);
+                    folder = nextFolder();
                 } catch (InterruptedException e) {
                     logFine("Stopped");
                     logFiner(e);
                     break;
                 }
+                long start = System.currentTimeMillis();
+                try {
+                    requestMissingFilesForAutodownload(folder);
+                } catch (RuntimeException e) {
+                    logSevere("RuntimeException: " + e.toString(), e);
+                } finally {
+                    done(folder);
+                }
+                if (isFiner()) {
+                    long took = System.currentTimeMillis() - start;
+                    logFiner("Requesting files for " + folder + " took "
+                        + took + "ms.");
+                }
             }
         }
     }
@@ -30,6 +30,7 @@ import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.message.RequestPart;
 import de.dal33t.powerfolder.transfer.Transfer.TransferState;
+import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.Range;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
@@ -38,6 +39,14 @@ import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
 
 /**
  * This download manager will try to download from all available sources.
+ * <p>
+ * Parts are scheduled by the expected finish time: A part is requested from the
+ * source, which is expected to deliver it first considering its measured speed
+ * and the bytes already requested from it. Slow sources thereby get a share
+ * proportional to their speed and are skipped if a faster source would
+ * deliver earlier even after its queue has drained. When all parts have been
+ * requested (end game) sources with free capacity request the parts, which
+ * are expected to arrive last from a slower source, a second time.
  *
  * @author Dennis "Bytekeeper" Waldherr
  */
@@ -140,10 +149,16 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
             throw new AssertionError("Removed non-managed download:" + download
                 + " " + download.getPartner().getInfo());
         }
-        // All pending requests from that download are void.
+        // All pending requests from that download are void. Except the ones
+        // also requested from other sources in the end game.
         if (filePartsState != null) {
             for (RequestPart req : download.getPendingRequests()) {
-                filePartsState.setPartState(req.getRange(), PartState.NEEDED);
+                Range range = req.getRange();
+                if (filePartsState.countPartStates(range, PartState.PENDING) == range
+                    .getLength() && !isRequested(range))
+                {
+                    filePartsState.setPartState(range, PartState.NEEDED);
+                }
             }
         }
     }
@@ -244,23 +259,18 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
                 break;
             }
         }
+        if (range == null) {
+            requestEndGame();
+        }
 
         if (isFiner()) {
             logFiner("X Sending part requests over");
         }
 
-        long p = filePartsState.countPartStates(filePartsState.getRange(),
-            PartState.PENDING);
-        if (p > 0) {
-            for (Download d : downloads.values()) {
-                if (d.isStarted() && !d.isBroken()) {
-                    for (RequestPart rp : d.getPendingRequests()) {
-                        p -= rp.getRange().getLength();
-                    }
-                }
-            }
-            assert p == 0;
-        }
+        // Pending parts are not checked against the pending requests of the
+        // sources: Download.addChunk removes the request before the chunk
+        // arrives here. Some parts are requested from several sources in the
+        // end game.
         assert filePartsState.isCompleted()
             || filePartsState.countPartStates(filePartsState.getRange(),
                 PartState.PENDING) > 0 || hasNoAvailableSources() : "AVAIL: "
@@ -286,6 +296,14 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
         return true;
     }
 
+    /**
+     * Requests the range from the source, which is expected to deliver it
+     * first.
+     *
+     * @param range
+     * @return true if requested. false if no source should request it now.
+     * @throws BrokenDownloadException
+     */
     private boolean findAndRequestDownloadFor(Range range)
         throws BrokenDownloadException
     {
@@ -293,14 +311,154 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
         if (isFiner()) {
             logFiner("X findAndRequestDownloadFor: " + range);
         }
+        double fallbackCPS = getFallbackCPS();
+        Download best = null;
+        double bestFinish = Double.MAX_VALUE;
+        for (Download d : downloads.values()) {
+            if (!d.isStarted() || d.isBroken()) {
+                continue;
+            }
+            double finish = estimateFinish(d, range.getLength(), fallbackCPS);
+            if (finish < bestFinish) {
+                best = d;
+                bestFinish = finish;
+            }
+        }
+        // Nothing requested if the fastest source is busy. It requests more
+        // when the next chunk arrives
+        return best != null && best.requestPart(range);
+    }
+
+    /**
+     * End game: Requests parts a second time, which are expected to arrive
+     * late from a slow source, from sources with free capacity. The part is
+     * taken from whichever source delivers first.
+     *
+     * @throws BrokenDownloadException
+     */
+    private void requestEndGame() throws BrokenDownloadException {
+        if (downloads.size() < 2) {
+            return;
+        }
+        double fallbackCPS = getFallbackCPS();
         for (Download d : downloads.values()) {
             if (!d.isStarted() || d.isBroken()) {
                 continue;
             }
-            if (d.requestPart(range)) {
-                return true;
+            while (true) {
+                RequestPart straggler = null;
+                double stragglerFinish = 0;
+                for (Download other : downloads.values()) {
+                    if (other == d || !other.isStarted() || other.isBroken()) {
+                        continue;
+                    }
+                    double cps = estimateCPS(other, fallbackCPS);
+                    long queued = 0;
+                    for (RequestPart rp : other.getPendingRequests()) {
+                        queued += rp.getRange().getLength();
+                        double finish = queued / cps;
+                        if (finish > stragglerFinish
+                            && isEndGameCandidate(rp.getRange()))
+                        {
+                            straggler = rp;
+                            stragglerFinish = finish;
+                        }
+                    }
+                }
+                if (straggler == null
+                    || estimateFinish(d, straggler.getRange().getLength(),
+                        fallbackCPS) >= stragglerFinish)
+                {
+                    break;
+                }
+                if (isFine()) {
+                    logFine("End game: Requesting " + straggler.getRange()
+                        + " again from " + d.getPartner().getNick()
+                        + ". Expected from other source in "
+                        + Format.formatDecimal(stragglerFinish) + "s");
+                }
+                if (!d.requestPart(straggler.getRange())) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param range
+     * @return true if the range is still expected and only requested from one
+     *         source.
+     */
+    private boolean isEndGameCandidate(Range range) {
+        if (filePartsState.countPartStates(range, PartState.PENDING) != range
+            .getLength())
+        {
+            return false;
+        }
+        int requested = 0;
+        for (Download d : downloads.values()) {
+            for (RequestPart rp : d.getPendingRequests()) {
+                if (rp.getRange().equals(range)) {
+                    requested++;
+                }
+            }
+        }
+        return requested == 1;
+    }
+
+    /**
+     * @param range
+     * @return true if any source requested the range.
+     */
+    private boolean isRequested(Range range) {
+        for (Download d : downloads.values()) {
+            for (RequestPart rp : d.getPendingRequests()) {
+                if (rp.getRange().intersects(range)) {
+                    return true;
+                }
             }
         }
         return false;
     }
+
+    /**
+     * @param d
+     * @param length
+     *            the bytes to request
+     * @param fallbackCPS
+     * @return the seconds until the source has delivered the bytes requested
+     *         so far and the given number of bytes.
+     */
+    private static double estimateFinish(Download d, long length,
+        double fallbackCPS)
+    {
+        Collection<RequestPart> pending = d.getPendingRequests();
+        if (pending.isEmpty() && d.getCounter().getBytesTransferred() == 0) {
+            // Not measured yet. Give it a chance.
+            return 0;
+        }
+        long queued = length;
+        for (RequestPart rp : pending) {
+            queued += rp.getRange().getLength();
+        }
+        return queued / estimateCPS(d, fallbackCPS);
+    }
+
+    private static double estimateCPS(Download d, double fallbackCPS) {
+        double cps = d.getCounter().calculateCurrentCPS();
+        return cps > 0 ? cps : fallbackCPS;
+    }
+
+    /**
+     * @return the speed assumed for sources, which have not been measured yet:
+     *         The fastest measured speed. 1 if none is known, which ranks
+     *         sources by requested bytes.
+     */
+    private double getFallbackCPS() {
+        double max = 0;
+        for (Download d : downloads.values()) {
+            max = Math.max(max, d.getCounter().calculateCurrentCPS());
+        }
+        return max > 0 ? max : 1;
+    }
 }
@@ -39,11 +39,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimerTask;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -75,8 +77,8 @@ import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.RequestDownload;
 import de.dal33t.powerfolder.message.TransferStatus;
 import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.transfer.swarm.CachingFileRecordProvider;
 import de.dal33t.powerfolder.transfer.swarm.FileRecordProvider;
-import de.dal33t.powerfolder.transfer.swarm.VolatileFileRecordProvider;
 import de.dal33t.powerfolder.util.Filter;
 import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.NamedThreadFactory;
@@ -109,6 +111,10 @@ public class TransferManager extends PFComponent {
     public static final long PARTIAL_TRANSFER_DELAY = 5000; // Five seconds
     public static final long ONE_DAY = 24L * 3600 * 1000; // One day in ms
     public static final long SIX_HOURS = 6L * 3600 * 1000; // 6 hours
+    /** ms between round trip time measurements while transferring */
+    private static final long RTT_MEASURE_INTERVAL = 5000;
+    /** ms between adaptions of the transfer windows */
+    private static final long WINDOW_UPDATE_INTERVAL = 2000;
 
     private static final DecimalFormat CPS_FORMAT = new DecimalFormat(
         "#,###,###,###.##");
@@ -129,6 +135,14 @@ public class TransferManager extends PFComponent {
      * used for performance optimization
      */
     private final ConcurrentMap<Member, Integer> downloadsCount;
+    /** Transfers small files in batches */
+    private final FileBatchManager fileBatchManager;
+    /** The adaptive upload windows of the members */
+    private final ConcurrentMap<Member, TransferWindow> uploadWindows;
+    /** The adaptive download windows of the members */
+    private final ConcurrentMap<Member, TransferWindow> downloadWindows;
+    /** When the transfer windows were adapted the last time */
+    private long lastWindowUpdate;
     /** A set of pending files, which should be downloaded */
     private final List<Download> pendingDownloads;
     /** The list of completed download */
@@ -175,6 +189,19 @@ public class TransferManager extends PFComponent {
     private final BandwidthLimiter sharedLANOutputHandler;
     /** Output limiter, currently shared between all WAN connections */
     private final BandwidthLimiter sharedWANOutputHandler;
+    /** Input limiter for LAN and WAN connections together */
+    private final BandwidthLimiter totalInputHandler;
+    /** Output limiter for LAN and WAN connections together */
+    private final BandwidthLimiter totalOutputHandler;
+
+    /**
+     * The limiters of the single connections. Weak, the limiters go away
+     * together with their connection.
+     */
+    private final Map<ConnectionHandler, BandwidthLimiter> connectionOutputLimiters = new WeakHashMap<ConnectionHandler, BandwidthLimiter>();
+    private final Map<ConnectionHandler, BandwidthLimiter> connectionInputLimiters = new WeakHashMap<ConnectionHandler, BandwidthLimiter>();
+    /** Upload limits in CPS set for single connections */
+    private final Map<ConnectionHandler, Long> connectionUploadLimits = new WeakHashMap<ConnectionHandler, Long>();
 
     private final TransferManagerListener listenerSupport;
 
@@ -194,6 +221,9 @@ public class TransferManager extends PFComponent {
         pendingDownloads = new CopyOnWriteArrayList<Download>();
         completedDownloads = Util.createConcurrentHashMap();
         downloadsCount = Util.createConcurrentHashMap();
+        uploadWindows = Util.createConcurrentHashMap();
+        downloadWindows = Util.createConcurrentHashMap();
+        fileBatchManager = new FileBatchManager(this);
         uploadCounter = new TransferCounter();
         downloadCounter = new TransferCounter();
         totalUploadTrafficCounter = new TransferCounter();
@@ -212,11 +242,15 @@ public class TransferManager extends PFComponent {
         sharedWANInputHandler = BandwidthLimiter.WAN_INPUT_BANDWIDTH_LIMITER;
         sharedLANOutputHandler = BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER;
         sharedLANInputHandler = BandwidthLimiter.LAN_INPUT_BANDWIDTH_LIMITER;
+        totalOutputHandler = BandwidthLimiter.TOTAL_OUTPUT_BANDWIDTH_LIMITER;
+        totalInputHandler = BandwidthLimiter.TOTAL_INPUT_BANDWIDTH_LIMITER;
 
         checkConfigCPS(ConfigurationEntry.UPLOAD_LIMIT_WAN, 0);
         checkConfigCPS(ConfigurationEntry.DOWNLOAD_LIMIT_WAN, 0);
         checkConfigCPS(ConfigurationEntry.UPLOAD_LIMIT_LAN, 0);
         checkConfigCPS(ConfigurationEntry.DOWNLOAD_LIMIT_LAN, 0);
+        checkConfigCPS(ConfigurationEntry.UPLOAD_LIMIT_TOTAL, 0);
+        checkConfigCPS(ConfigurationEntry.DOWNLOAD_LIMIT_TOTAL, 0);
 
         setUploadCPSForWAN(getConfigCPS(ConfigurationEntry.UPLOAD_LIMIT_WAN));
         setDownloadCPSForWAN(getConfigCPS(ConfigurationEntry.DOWNLOAD_LIMIT_WAN));
@@ -291,7 +325,7 @@ public class TransferManager extends PFComponent {
             logWarning("Not starting TransferManager. disabled by config");
             return;
         }
-        fileRecordProvider = new VolatileFileRecordProvider(getController());
+        fileRecordProvider = new CachingFileRecordProvider(getController());
 
         bandwidthProvider.start();
 
@@ -469,18 +503,36 @@ public class TransferManager extends PFComponent {
         return bandwidthProvider;
     }
 
+    /**
+     * @param handler
+     * @return a new limiter for the connection, limited by the shared LAN or
+     *         WAN output limiter and its own upload limit.
+     */
     public BandwidthLimiter getOutputLimiter(ConnectionHandler handler) {
-        if (handler.isOnLAN()) {
-            return sharedLANOutputHandler;
+        BandwidthLimiter limiter = handler.isOnLAN() ? sharedLANOutputHandler
+            .createChild() : sharedWANOutputHandler.createChild();
+        synchronized (connectionOutputLimiters) {
+            connectionOutputLimiters.put(handler, limiter);
+            bandwidthProvider.setLimitBPS(limiter,
+                getUploadCPSForConnection(handler));
         }
-        return sharedWANOutputHandler;
+        return limiter;
     }
 
+    /**
+     * @param handler
+     * @return a new limiter for the connection, limited by the shared LAN or
+     *         WAN input limiter and the download limit per connection.
+     */
     public BandwidthLimiter getInputLimiter(ConnectionHandler handler) {
-        if (handler.isOnLAN()) {
-            return sharedLANInputHandler;
+        BandwidthLimiter limiter = handler.isOnLAN() ? sharedLANInputHandler
+            .createChild() : sharedWANInputHandler.createChild();
+        synchronized (connectionInputLimiters) {
+            connectionInputLimiters.put(handler, limiter);
+            bandwidthProvider.setLimitBPS(limiter,
+                getDownloadCPSPerConnection());
         }
-        return sharedWANInputHandler;
+        return limiter;
     }
 
     /**
@@ -692,6 +744,8 @@ public class TransferManager extends PFComponent {
      * @param node
      */
     public void breakTransfers(Member node) {
+        fileBatchManager.breakRequests(node);
+
         // Search for uls to break
         if (!queuedUploads.isEmpty()) {
             for (Upload upload : queuedUploads) {
@@ -897,7 +951,7 @@ public class TransferManager extends PFComponent {
         }
     }
 
-    private boolean abortUploadsOf(FileInfo fInfo) {
+    boolean abortUploadsOf(FileInfo fInfo) {
         uploadsLock.lock();
         boolean abortedUL = false;
         try {
@@ -973,11 +1027,8 @@ public class TransferManager extends PFComponent {
             if (!requestMoreFiles) {
                 // Hmm maybe end of transfer queue is near (25% or less filled),
                 // request if yes!
-                if (transfer.getPartner().isOnLAN()) {
-                    requestMoreFiles = nDlFromNode <= Constants.MAX_DLS_FROM_LAN_MEMBER / 4;
-                } else {
-                    requestMoreFiles = nDlFromNode <= Constants.MAX_DLS_FROM_INET_MEMBER / 4;
-                }
+                requestMoreFiles = nDlFromNode <= getDownloadWindow(
+                    transfer.getPartner()).getMaxTransfers() / 4;
             }
 
             if (requestMoreFiles) {
@@ -1048,6 +1099,23 @@ public class TransferManager extends PFComponent {
             getDownloadCPSForLAN());
         bandwidthProvider.setLimitBPS(sharedWANInputHandler,
             getDownloadCPSForWAN());
+        bandwidthProvider.setLimitBPS(totalOutputHandler, getUploadCPSTotal());
+        bandwidthProvider.setLimitBPS(totalInputHandler,
+            getDownloadCPSTotal());
+        synchronized (connectionOutputLimiters) {
+            for (Map.Entry<ConnectionHandler, BandwidthLimiter> entry : connectionOutputLimiters
+                .entrySet())
+            {
+                bandwidthProvider.setLimitBPS(entry.getValue(),
+                    getUploadCPSForConnection(entry.getKey()));
+            }
+        }
+        synchronized (connectionInputLimiters) {
+            long cps = getDownloadCPSPerConnection();
+            for (BandwidthLimiter limiter : connectionInputLimiters.values()) {
+                bandwidthProvider.setLimitBPS(limiter, cps);
+            }
+        }
     }
 
     /**
@@ -1149,6 +1217,72 @@ public class TransferManager extends PFComponent {
             .getValue(getController())) * 1024;
     }
 
+    /**
+     * @return the upload rate of LAN and WAN together in CPS
+     */
+    public long getUploadCPSTotal() {
+        return ConfigurationEntry.UPLOAD_LIMIT_TOTAL
+            .getValueInt(getController()) * 1024;
+    }
+
+    /**
+     * @return the download rate of LAN and WAN together in CPS
+     */
+    public long getDownloadCPSTotal() {
+        return ConfigurationEntry.DOWNLOAD_LIMIT_TOTAL
+            .getValueInt(getController()) * 1024;
+    }
+
+    /**
+     * @return the download rate of a single connection in CPS. 0 = fair share
+     *         of the LAN or WAN rate.
+     */
+    public long getDownloadCPSPerConnection() {
+        return ConfigurationEntry.DOWNLOAD_LIMIT_CONNECTION
+            .getValueInt(getController()) * 1024;
+    }
+
+    /**
+     * Sets the upload bandwidth usage in CPS for a single connection. Overrides
+     * {@link ConfigurationEntry#UPLOAD_LIMIT_CONNECTION} for this connection.
+     *
+     * @param handler
+     * @param allowedCPS
+     *            the limit. 0 = fair share of the LAN or WAN rate.
+     */
+    public void setUploadCPSForConnection(ConnectionHandler handler,
+        long allowedCPS)
+    {
+        Reject.ifNull(handler, "Connection handler is null");
+        synchronized (connectionOutputLimiters) {
+            connectionUploadLimits.put(handler, allowedCPS);
+            BandwidthLimiter limiter = connectionOutputLimiters.get(handler);
+            if (limiter != null) {
+                bandwidthProvider.setLimitBPS(limiter, allowedCPS);
+            }
+        }
+        if (isFine()) {
+            logFine("Upload limit for " + handler + ": "
+                + Format.formatBytesShort(allowedCPS) + "/s");
+        }
+    }
+
+    /**
+     * @param handler
+     * @return the upload rate of the connection in CPS. 0 = fair share of the
+     *         LAN or WAN rate.
+     */
+    public long getUploadCPSForConnection(ConnectionHandler handler) {
+        synchronized (connectionOutputLimiters) {
+            Long cps = connectionUploadLimits.get(handler);
+            if (cps != null) {
+                return cps;
+            }
+        }
+        return ConfigurationEntry.UPLOAD_LIMIT_CONNECTION
+            .getValueInt(getController()) * 1024;
+    }
+
     /**
      * @see ConfigurationEntry#TRANSFERS_MAX_FILE_CHUNK_SIZE
      * @return the maximum size of a {@link FileChunk}
@@ -1167,6 +1301,140 @@ public class TransferManager extends PFComponent {
             .getValueInt(getController());
     }
 
+    /**
+     * @param node
+     * @return the maximum number of queued requests of a download from the
+     *         node. Adapted by the download window of the node.
+     */
+    int getMaxRequestsQueued(Member node) {
+        return getDownloadWindow(node).getMaxRequestsQueued(
+            getMaxRequestsQueued());
+    }
+
+    /**
+     * @return the manager of small file batch transfers.
+     */
+    public FileBatchManager getFileBatchManager() {
+        return fileBatchManager;
+    }
+
+    /**
+     * @param node
+     * @return the adaptive window for uploads to the node.
+     */
+    public TransferWindow getUploadWindow(Member node) {
+        return getTransferWindow(uploadWindows, node,
+            Constants.START_UPLOADS_TILL_PLANNED_SIZE_LAN,
+            Constants.START_UPLOADS_TILL_PLANNED_SIZE_INET);
+    }
+
+    /**
+     * @param node
+     * @return the adaptive window for downloads from the node.
+     */
+    public TransferWindow getDownloadWindow(Member node) {
+        return getTransferWindow(downloadWindows, node,
+            Constants.START_UPLOADS_TILL_PLANNED_SIZE_LAN,
+            Constants.START_UPLOADS_TILL_PLANNED_SIZE_INET);
+    }
+
+    private TransferWindow getTransferWindow(
+        ConcurrentMap<Member, TransferWindow> windows, Member node,
+        long initialLAN, long initialINet)
+    {
+        TransferWindow window = windows.get(node);
+        if (window == null) {
+            boolean lan = node.isOnLAN();
+            window = new TransferWindow(lan ? initialLAN : initialINet, lan
+                ? Constants.MAX_DLS_FROM_LAN_MEMBER
+                : Constants.MAX_DLS_FROM_INET_MEMBER);
+            TransferWindow existing = windows.putIfAbsent(node, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Adapts the transfer windows of all members to the current throughput
+     * and round trip time. Pings members with transfers to measure the round
+     * trip time.
+     */
+    private void updateTransferWindows() {
+        long now = System.currentTimeMillis();
+        if (now - lastWindowUpdate < WINDOW_UPDATE_INTERVAL) {
+            return;
+        }
+        lastWindowUpdate = now;
+        Map<Member, Double> uploadCPS = new HashMap<Member, Double>();
+        for (Upload upload : activeUploads) {
+            if (upload.isStarted() && !upload.isCompleted()) {
+                addCPS(upload, uploadCPS);
+            }
+        }
+        Map<Member, Double> downloadCPS = new HashMap<Member, Double>();
+        for (DownloadManager man : dlManagers.values()) {
+            for (Download download : man.getSources()) {
+                if (download.isStarted() && !download.isCompleted()) {
+                    addCPS(download, downloadCPS);
+                }
+            }
+        }
+
+        Set<Member> nodes = new HashSet<Member>(uploadCPS.keySet());
+        nodes.addAll(downloadCPS.keySet());
+        for (Member node : nodes) {
+            if (!node.isCompletelyConnected()) {
+                continue;
+            }
+            if (now - node.getLastRoundTripTimeMeasured() > RTT_MEASURE_INTERVAL)
+            {
+                node.ping();
+            }
+            Double cps = uploadCPS.get(node);
+            if (cps != null) {
+                TransferWindow window = getUploadWindow(node);
+                if (window.update(cps, node.getRoundTripTime(),
+                    node.getMinRoundTripTime())
+                    && isFiner())
+                {
+                    logFiner("Upload to " + node.getNick() + ": " + window);
+                }
+            }
+            cps = downloadCPS.get(node);
+            if (cps != null) {
+                TransferWindow window = getDownloadWindow(node);
+                if (window.update(cps, node.getRoundTripTime(),
+                    node.getMinRoundTripTime())
+                    && isFiner())
+                {
+                    logFiner("Download from " + node.getNick() + ": "
+                        + window);
+                }
+            }
+        }
+
+        // Forget disconnected members
+        for (Member node : uploadWindows.keySet()) {
+            if (!node.isConnected()) {
+                uploadWindows.remove(node);
+            }
+        }
+        for (Member node : downloadWindows.keySet()) {
+            if (!node.isConnected()) {
+                downloadWindows.remove(node);
+            }
+        }
+    }
+
+    private static void addCPS(Transfer transfer, Map<Member, Double> cps) {
+        Member node = transfer.getPartner();
+        Double c = cps.get(node);
+        cps.put(node, (c != null ? c : 0)
+            + transfer.getCounter().calculateCurrentCPS());
+    }
+
     /**
      * @return the counter for upload speed
      */
@@ -1791,6 +2059,7 @@ public class TransferManager extends PFComponent {
         FileInfo fInfo = download.getFile();
         // Lock/Disable transfer checker
         DownloadManager man;
+        boolean batched;
         synchronized (dlManagers) {
             Download dl = getActiveDownload(from, fInfo);
             if (dl != null) {
@@ -1813,7 +2082,13 @@ public class TransferManager extends PFComponent {
 
             man = dlManagers.get(fInfo);
 
-            if (man == null
+            // Small file. Collected for a batch request
+            batched = man == null
+                && fileBatchManager.requestDownload(fInfo, from,
+                    download.isRequestedAutomatic());
+            if (batched) {
+                pendingDownloads.remove(download);
+            } else if (man == null
                 || !fInfo.isVersionDateAndSizeIdentical(man.getFileInfo()))
             {
                 if (man != null) {
@@ -1841,6 +2116,12 @@ public class TransferManager extends PFComponent {
             }
         }
 
+        if (batched) {
+            // Send outside the lock
+            fileBatchManager.sendIfFull(from);
+            return;
+        }
+
         if (abortUploadsOf(fInfo)) {
             logFine("Aborted uploads of file to be downloaded: "
                 + fInfo.toDetailString());
@@ -2458,9 +2739,7 @@ public class TransferManager extends PFComponent {
      */
     public boolean hasUploadCapacity(Member node) {
         int nDownloadFrom = countActiveAndQueuedDownloads(node);
-        int maxAllowedDls = node.isOnLAN()
-            ? Constants.MAX_DLS_FROM_LAN_MEMBER
-            : Constants.MAX_DLS_FROM_INET_MEMBER;
+        int maxAllowedDls = getDownloadWindow(node).getMaxTransfers();
         return nDownloadFrom < maxAllowedDls;
     }
 
@@ -2692,9 +2971,15 @@ public class TransferManager extends PFComponent {
                     logFine("Paused.");
                 } else {
 
+                    // Adapt transfer windows
+                    updateTransferWindows();
+
                     // Check queued uploads
                     checkQueuedUploads();
 
+                    // Check batch requests
+                    fileBatchManager.checkRequests();
+
                     // Check pending downloads
                     checkPendingDownloads();
 
@@ -2851,9 +3136,8 @@ public class TransferManager extends PFComponent {
                         alreadyUploadingTo = true;
                     }
                     totalPlannedSizeUploadingTo += upload.getFile().getSize();
-                    long maxSizeUpload = upload.getPartner().isOnLAN()
-                        ? Constants.START_UPLOADS_TILL_PLANNED_SIZE_LAN
-                        : Constants.START_UPLOADS_TILL_PLANNED_SIZE_INET;
+                    long maxSizeUpload = getUploadWindow(upload.getPartner())
+                        .getWindow();
                     if (!alreadyUploadingTo
                         || totalPlannedSizeUploadingTo <= maxSizeUpload)
                     {
@@ -114,6 +114,13 @@ public class TransferPriorities implements Serializable {
         }
     }
 
+    /**
+     * @return true if no file has a priority other than NORMAL.
+     */
+    public synchronized boolean isEmpty() {
+        return priorities.isEmpty();
+    }
+
     /**
      * Removes any priority given to a file.
      * A call to getPriority with the same file will yield a return
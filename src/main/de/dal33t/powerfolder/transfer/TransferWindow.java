@@ -0,0 +1,126 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+/**
+ * Adapts the amount of data in transfer with one member to the measured round
+ * trip time and throughput. Similar to the TCP Vegas congestion control:
+ * <p>
+ * The data queued up on the way to the member is estimated by throughput *
+ * (round trip time - lowest round trip time). If only little data is queued
+ * the link is not filled and the window grows. If much data is queued the link
+ * is overloaded and the window shrinks.
+ * <p>
+ * The window starts with the static limits of LAN or Internet transfers. The
+ * number of concurrent transfers and outstanding requests scale with it.
+ * <p>
+ * Is thread safe.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class TransferWindow {
+    public static final long MIN_WINDOW = 64 * 1024;
+    public static final long MAX_WINDOW = 64 * 1024 * 1024;
+
+    private final long initialWindow;
+    private final int initialTransfers;
+
+    private long window;
+
+    /**
+     * @param initialWindow
+     *            the window in bytes to start with.
+     * @param initialTransfers
+     *            the number of concurrent transfers at the initial window
+     *            size.
+     */
+    public TransferWindow(long initialWindow, int initialTransfers) {
+        this.initialWindow = initialWindow;
+        this.initialTransfers = initialTransfers;
+        this.window = initialWindow;
+    }
+
+    /**
+     * Adapts the window to the current throughput and round trip time. Does
+     * nothing without measurements.
+     *
+     * @param cps
+     *            the current throughput in bytes per second.
+     * @param rtt
+     *            the smoothed round trip time in ms. -1 if unknown.
+     * @param minRtt
+     *            the lowest round trip time in ms. -1 if unknown.
+     * @return true if the window was adapted.
+     */
+    public synchronized boolean update(double cps, long rtt, long minRtt) {
+        if (cps <= 0 || rtt <= 0 || minRtt <= 0) {
+            // Idle or not measured yet
+            return false;
+        }
+
+        // Bytes waiting in queues on the way
+        double queued = cps * Math.max(0, rtt - minRtt) / 1000;
+        // Bytes needed to fill the link
+        double bdp = cps * minRtt / 1000;
+
+        long alpha = Math.max(MIN_WINDOW, window / 8);
+        long beta = Math.max(2 * alpha, window / 2);
+        if (queued < alpha) {
+            // Link not filled. Grow.
+            window += Math.max(MIN_WINDOW, window / 8);
+        } else if (queued > beta) {
+            // Overloaded. Shrink, but keep the link filled.
+            window = Math.max((long) (2 * bdp), window * 3 / 4);
+        }
+        window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window));
+        return true;
+    }
+
+    /**
+     * @return the number of bytes, which may be in transfer at once.
+     */
+    public synchronized long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the maximum number of concurrent transfers.
+     */
+    public synchronized int getMaxTransfers() {
+        long max = initialTransfers * window / initialWindow;
+        return (int) Math.max(2, Math.min(4L * initialTransfers, max));
+    }
+
+    /**
+     * @param maxRequests
+     *            the configured maximum of requested parts per transfer.
+     * @return the number of parts a transfer may have requested at once.
+     */
+    public synchronized int getMaxRequestsQueued(int maxRequests) {
+        long max = maxRequests * window / initialWindow;
+        return (int) Math.max(2, Math.min(4L * maxRequests, max));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TransferWindow " + window / 1024 + "KB, max transfers "
+            + getMaxTransfers();
+    }
+}
@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedList;
@@ -34,6 +35,7 @@ import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.FileChunkExt;
+import de.dal33t.powerfolder.message.FileChunkRegion;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.Message;
 import de.dal33t.powerfolder.message.ReplyFilePartsRecord;
@@ -63,6 +65,9 @@ public class Upload extends Transfer {
     private boolean aborted;
     private transient Queue<Message> pendingRequests = new LinkedList<Message>();
     protected transient RandomAccessFile raf;
+    // True while the connection handler reads a region of the raf
+    private transient boolean sendingRegion;
+    private transient boolean closePending;
     protected transient InputStream in;
     private long inpos;
     private String debugState;
@@ -316,7 +321,10 @@ public class Upload extends Transfer {
                 logSevere("IOException", e);
             }
         }
-        if (raf != null) {
+        if (raf != null && sendingRegion) {
+            // Still read by the connection handler. Close after sending
+            closePending = true;
+        } else if (raf != null) {
             try {
                 if (isFiner()) {
                     logFiner("Closing raf for "
@@ -423,60 +431,29 @@ public class Upload extends Transfer {
         Path f = pr.getFile()
             .getDiskFile(getController().getFolderRepository());
         try {
-            byte[] data = new byte[(int) pr.getRange().getLength()];
-            long startOffset = pr.getRange().getStart();
-            if (raf != null) {
-                raf.seek(startOffset);
-            } else if (in != null) {
-                long skip = startOffset - inpos;
-                if (skip >= 0) {
-                    inpos += in.skip(skip);
-                } else {
-                    try {
-                        try {
-                            in.close();
-                        } catch (Exception e) {
-                            logWarning(e.toString());
-                        }
-                        in = Files.newInputStream(getFile().getDiskFile(
-                            getController().getFolderRepository()));
-                        in.skip(startOffset);
-                        inpos = startOffset;
-                    } catch (FileNotFoundException e) {
-                        throw new TransferException(e);
-                    }
-                }
-
+            FileChunk chunk = null;
+            if (getPartner().getProtocolVersion() >= Identity.PROTOCOL_VERSION_110)
+            {
+                chunk = createChunkRegion(pr);
             }
-            int pos = 0;
-            while (pos < data.length) {
-                int read;
-                int readLen = data.length - pos;
-                if (raf != null) {
-                    read = raf.read(data, pos, readLen);
-                } else if (in != null) {
-                    read = in.read(data, pos, readLen);
-                    inpos += read;
+            if (chunk == null) {
+                byte[] data = readPart(pr);
+                if (getPartner().getProtocolVersion() >= Identity.PROTOCOL_VERSION_110) {
+                    chunk = new FileChunkExt(pr.getFile(), pr.getRange()
+                        .getStart(), data);
                 } else {
-                    throw new TransferException("I/O already closed");
-                }
-                if (read < 0) {
-                    logWarning("Requested part exceeds filesize!");
-                    throw new TransferException(
-                        "Requested part exceeds filesize!");
+                    chunk = new FileChunk(pr.getFile(),
+                        pr.getRange().getStart(), data);
                 }
-                pos += read;
-            }
-            FileChunk chunk;
-            if (getPartner().getProtocolVersion() >= Identity.PROTOCOL_VERSION_110) {
-                chunk = new FileChunkExt(pr.getFile(),
-                    pr.getRange().getStart(), data);
-            } else {
-                chunk = new FileChunk(pr.getFile(), pr.getRange().getStart(),
-                    data);
             }
 
-            getPartner().sendMessage(chunk);
+            try {
+                getPartner().sendMessage(chunk);
+            } finally {
+                if (chunk instanceof FileChunkRegion) {
+                    regionSent();
+                }
+            }
             getCounter().chunkTransferred(chunk);
             getTransferManager().getUploadCounter().chunkTransferred(chunk);
 
@@ -500,6 +477,104 @@ public class Upload extends Transfer {
         return true;
     }
 
+    /**
+     * Creates a chunk referencing the requested part of the file. The
+     * connection handler reads the data straight from the file, without
+     * copying it into a buffer first. The file is kept open until
+     * {@link #regionSent()}.
+     *
+     * @param pr
+     * @return the chunk or null if not reading from a {@link RandomAccessFile}
+     * @throws IOException
+     * @throws TransferException
+     */
+    private synchronized FileChunk createChunkRegion(RequestPart pr)
+        throws IOException, TransferException
+    {
+        if (raf == null) {
+            return null;
+        }
+        long startOffset = pr.getRange().getStart();
+        int length = (int) pr.getRange().getLength();
+        FileChannel channel = raf.getChannel();
+        if (startOffset + length > channel.size()) {
+            logWarning("Requested part exceeds filesize!");
+            throw new TransferException("Requested part exceeds filesize!");
+        }
+        FileChunk chunk = new FileChunkRegion(pr.getFile(), startOffset,
+            channel, length);
+        sendingRegion = true;
+        return chunk;
+    }
+
+    /**
+     * Called after the connection handler finished reading the file region.
+     */
+    private synchronized void regionSent() {
+        sendingRegion = false;
+        if (closePending) {
+            closePending = false;
+            closeIO();
+        }
+    }
+
+    /**
+     * Reads the requested part of the file.
+     *
+     * @param pr
+     * @return the data
+     * @throws IOException
+     * @throws TransferException
+     */
+    private byte[] readPart(RequestPart pr) throws IOException,
+        TransferException
+    {
+        byte[] data = new byte[(int) pr.getRange().getLength()];
+        long startOffset = pr.getRange().getStart();
+        if (raf != null) {
+            raf.seek(startOffset);
+        } else if (in != null) {
+            long skip = startOffset - inpos;
+            if (skip >= 0) {
+                inpos += in.skip(skip);
+            } else {
+                try {
+                    try {
+                        in.close();
+                    } catch (Exception e) {
+                        logWarning(e.toString());
+                    }
+                    in = Files.newInputStream(getFile().getDiskFile(
+                        getController().getFolderRepository()));
+                    in.skip(startOffset);
+                    inpos = startOffset;
+                } catch (FileNotFoundException e) {
+                    throw new TransferException(e);
+                }
+            }
+
+        }
+        int pos = 0;
+        while (pos < data.length) {
+            int read;
+            int readLen = data.length - pos;
+            if (raf != null) {
+                read = raf.read(data, pos, readLen);
+            } else if (in != null) {
+                read = in.read(data, pos, readLen);
+                inpos += read;
+            } else {
+                throw new TransferException("I/O already closed");
+            }
+            if (read < 0) {
+                logWarning("Requested part exceeds filesize!");
+                throw new TransferException("Requested part exceeds filesize!");
+            }
+            pos += read;
+        }
+        return data;
+    }
+
     protected boolean waitForRequests(long requestTimeoutMS) {
         if (isBroken() || aborted) {
             return false;
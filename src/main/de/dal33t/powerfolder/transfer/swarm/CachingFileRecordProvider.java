@@ -0,0 +1,373 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.transfer.swarm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.PathUtils;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.StreamUtils;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+
+/**
+ * Caches the {@link FilePartsRecord}s on disk in the system subdir of the
+ * folder. One cache file per file, which is overwritten when a new version of
+ * the file gets requested. A cached record is only used if relative name,
+ * version, size and modification date match the requested {@link FileInfo}.
+ * <p>
+ * The total size of all cache files is limited by
+ * {@link ConfigurationEntry#DELTA_RECORD_CACHE_MAX_MB}, the least recently
+ * used records get evicted. Concurrent requests for the same file wait for
+ * the one record being built.
+ *
+ * @author sprajc
+ */
+public class CachingFileRecordProvider extends AbstractFileRecordProvider {
+
+    private static final Logger log = Logger
+        .getLogger(CachingFileRecordProvider.class.getName());
+
+    /** The subdir of the folders system subdir */
+    public static final String CACHE_SUBDIR = "records";
+    private static final String CACHE_FILE_EXTENSION = ".fpr";
+
+    private final long maxBytes;
+
+    /** Cache files in LRU order with their size */
+    private final LinkedHashMap<Path, Long> index = new LinkedHashMap<Path, Long>(
+        16, 0.75f, true);
+    private long totalBytes;
+
+    /** Cache dirs already read into the index */
+    private final Set<Path> loadedDirs = new HashSet<Path>();
+
+    /** Records currently being retrieved by file identity */
+    private final ConcurrentMap<String, FutureTask<FilePartsRecord>> building = new ConcurrentHashMap<String, FutureTask<FilePartsRecord>>();
+
+    public CachingFileRecordProvider(Controller controller) {
+        super(controller);
+        maxBytes = 1024L * 1024L * Math.max(0,
+            ConfigurationEntry.DELTA_RECORD_CACHE_MAX_MB
+                .getValueInt(controller));
+    }
+
+    public FilePartsRecord retrieveRecord(final FileInfo fileInfo,
+        final ProgressListener obs) throws IOException
+    {
+        Reject.ifNull(fileInfo, "FileInfo is null!");
+        final Path cacheFile = getCacheFile(fileInfo);
+        if (cacheFile == null || maxBytes <= 0) {
+            return computeFilePartsRecord(fileInfo, obs);
+        }
+        FutureTask<FilePartsRecord> task = new FutureTask<FilePartsRecord>(
+            new Callable<FilePartsRecord>() {
+                public FilePartsRecord call() throws Exception {
+                    return retrieveRecord0(fileInfo, cacheFile, obs);
+                }
+            });
+        String key = cacheFile + ":" + fileInfo.getVersion() + ":"
+            + fileInfo.getSize() + ":" + fileInfo.getModifiedDate().getTime();
+        FutureTask<FilePartsRecord> existing = building.putIfAbsent(key,
+            task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                building.remove(key, task);
+            }
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        synchronized (index) {
+            index.clear();
+            loadedDirs.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * @return the total size of all cached records in bytes.
+     */
+    public long getCacheSize() {
+        synchronized (index) {
+            return totalBytes;
+        }
+    }
+
+    // Internal ***************************************************************
+
+    private FilePartsRecord retrieveRecord0(FileInfo fileInfo,
+        Path cacheFile, ProgressListener obs) throws IOException
+    {
+        CachedRecord cached = readCacheFile(cacheFile);
+        if (cached != null && cached.matches(fileInfo)) {
+            touch(cacheFile);
+            if (log.isLoggable(Level.FINER)) {
+                log.finer("Using cached file parts of "
+                    + fileInfo.toDetailString());
+            }
+            return cached.record;
+        }
+        Path file = fileInfo.getDiskFile(getController()
+            .getFolderRepository());
+        boolean inSync = file != null && fileInfo.inSyncWithDisk(file);
+        FilePartsRecord record = computeFilePartsRecord(fileInfo, obs);
+        if (inSync && fileInfo.inSyncWithDisk(file)) {
+            writeCacheFile(cacheFile, new CachedRecord(fileInfo, record));
+        } else if (cached != null) {
+            // Outdated
+            remove(cacheFile);
+        }
+        return record;
+    }
+
+    /**
+     * @param fileInfo
+     * @return the cache file for the file or null if the folder is not
+     *         available.
+     */
+    private Path getCacheFile(FileInfo fileInfo) {
+        Folder folder = fileInfo.getFolder(getController()
+            .getFolderRepository());
+        if (folder == null || folder.getInfo().isMetaFolder()) {
+            return null;
+        }
+        Path dir = folder.getSystemSubDir().resolve(CACHE_SUBDIR);
+        loadDir(dir);
+        return dir.resolve(toCacheFileName(fileInfo.getRelativeName()));
+    }
+
+    private static String toCacheFileName(String relativeName) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return new String(Util.encodeHex(md5.digest(relativeName
+                .getBytes(StandardCharsets.UTF_8)))) + CACHE_FILE_EXTENSION;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the existing cache files of a folder into the LRU index, oldest
+     * first.
+     *
+     * @param dir
+     */
+    private void loadDir(Path dir) {
+        synchronized (index) {
+            if (!loadedDirs.add(dir) || Files.notExists(dir)) {
+                return;
+            }
+        }
+        final Map<Path, FileTime> lastUsed = new HashMap<Path, FileTime>();
+        Map<Path, Long> sizes = new HashMap<Path, Long>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*"
+            + CACHE_FILE_EXTENSION))
+        {
+            for (Path cacheFile : stream) {
+                lastUsed.put(cacheFile, Files.getLastModifiedTime(cacheFile));
+                sizes.put(cacheFile, Files.size(cacheFile));
+            }
+        } catch (IOException e) {
+            log.warning("Unable to read record cache " + dir + ". " + e);
+            return;
+        }
+        List<Path> cacheFiles = new ArrayList<Path>(lastUsed.keySet());
+        Collections.sort(cacheFiles, new Comparator<Path>() {
+            public int compare(Path o1, Path o2) {
+                return lastUsed.get(o1).compareTo(lastUsed.get(o2));
+            }
+        });
+        synchronized (index) {
+            for (Path cacheFile : cacheFiles) {
+                Long old = index.put(cacheFile, sizes.get(cacheFile));
+                totalBytes += sizes.get(cacheFile)
+                    - (old != null ? old : 0L);
+            }
+        }
+        evict();
+    }
+
+    private CachedRecord readCacheFile(Path cacheFile) {
+        if (Files.notExists(cacheFile)) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(cacheFile)) {
+            byte[] buf = StreamUtils.readIntoByteArray(in);
+            return (CachedRecord) ByteSerializer.deserializeStatic(buf, true);
+        } catch (Exception e) {
+            log.warning("Unable to read cached file parts " + cacheFile
+                + ". " + e);
+            remove(cacheFile);
+            return null;
+        }
+    }
+
+    private void writeCacheFile(Path cacheFile, CachedRecord cached) {
+        try {
+            byte[] buf = ByteSerializer.serializeStatic(cached, true);
+            Files.createDirectories(cacheFile.getParent());
+            PathUtils.copyFromStreamToFile(new ByteArrayInputStream(buf),
+                cacheFile);
+            synchronized (index) {
+                Long old = index.put(cacheFile, (long) buf.length);
+                totalBytes += buf.length - (old != null ? old : 0L);
+            }
+            evict();
+        } catch (IOException e) {
+            log.warning("Unable to write cached file parts " + cacheFile
+                + ". " + e);
+        }
+    }
+
+    private void touch(Path cacheFile) {
+        synchronized (index) {
+            index.get(cacheFile);
+        }
+        try {
+            Files.setLastModifiedTime(cacheFile,
+                FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.fine("Unable to touch " + cacheFile + ". " + e);
+        }
+    }
+
+    private void remove(Path cacheFile) {
+        synchronized (index) {
+            Long size = index.remove(cacheFile);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        }
+        try {
+            Files.deleteIfExists(cacheFile);
+        } catch (IOException e) {
+            log.fine("Unable to delete " + cacheFile + ". " + e);
+        }
+    }
+
+    /**
+     * Removes the least recently used cache files until the total size is
+     * within the limit.
+     */
+    private void evict() {
+        List<Path> evicted = new ArrayList<Path>();
+        synchronized (index) {
+            Iterator<Map.Entry<Path, Long>> it = index.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<Path, Long> entry = it.next();
+                totalBytes -= entry.getValue();
+                evicted.add(entry.getKey());
+                it.remove();
+            }
+        }
+        for (Path cacheFile : evicted) {
+            try {
+                Files.deleteIfExists(cacheFile);
+            } catch (IOException e) {
+                log.fine("Unable to delete " + cacheFile + ". " + e);
+            }
+        }
+        if (!evicted.isEmpty() && log.isLoggable(Level.FINE)) {
+            log.fine("Evicted " + evicted.size() + " cached file parts");
+        }
+    }
+
+    /**
+     * The record with the identity of the file it was built from.
+     */
+    private static class CachedRecord implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String relativeName;
+        private final int version;
+        private final long size;
+        private final Date modifiedDate;
+        private final FilePartsRecord record;
+
+        CachedRecord(FileInfo fileInfo, FilePartsRecord record) {
+            relativeName = fileInfo.getRelativeName();
+            version = fileInfo.getVersion();
+            size = fileInfo.getSize();
+            modifiedDate = fileInfo.getModifiedDate();
+            this.record = record;
+        }
+
+        boolean matches(FileInfo fileInfo) {
+            return record != null
+                && relativeName.equals(fileInfo.getRelativeName())
+                && version == fileInfo.getVersion()
+                && size == fileInfo.getSize()
+                && Util.equals(modifiedDate, fileInfo.getModifiedDate());
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of byte arrays in power of two size classes. Used for the short living
+ * buffers of serialization and network I/O.
+ * <p>
+ * The number and total size of the retained buffers is bounded, surplus
+ * buffers are left to the garbage collector. Buffers bigger than the largest
+ * size class are not pooled.
+ * <p>
+ * A buffer must not be used after it got released and must be released only
+ * once. The leak detection (see {@link #setLeakDetection(boolean)} or system
+ * property <code>powerfolder.bufferpool.leakdetection</code>) records the
+ * borrowers of all buffers to find such problems.
+ *
+ * @author sprajc
+ */
+public class BufferPool {
+    private static final Logger LOG = Logger.getLogger(BufferPool.class
+        .getName());
+
+    /** 512 bytes */
+    private static final int MIN_SHIFT = 9;
+    /** 1 MB */
+    private static final int MAX_SHIFT = 20;
+
+    private static final BufferPool DEFAULT = new BufferPool(64,
+        16 * 1024 * 1024);
+
+    private final SizeClass[] sizeClasses;
+    private final int maxBuffersPerClass;
+    private final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    // Statistics
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private volatile long statsSince = System.currentTimeMillis();
+
+    // Leak detection
+    private volatile boolean leakDetection = Boolean
+        .getBoolean("powerfolder.bufferpool.leakdetection");
+    private final Map<byte[], Throwable> outstanding = Collections
+        .synchronizedMap(new IdentityHashMap<byte[], Throwable>());
+
+    /**
+     * @param maxBuffersPerClass
+     *            the maximum number of retained buffers per size class.
+     * @param maxRetainedBytes
+     *            the maximum total size of retained buffers.
+     */
+    public BufferPool(int maxBuffersPerClass, long maxRetainedBytes) {
+        Reject.ifTrue(maxBuffersPerClass < 0, "Illegal max buffers: "
+            + maxBuffersPerClass);
+        this.maxBuffersPerClass = maxBuffersPerClass;
+        this.maxRetainedBytes = maxRetainedBytes;
+        sizeClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+    }
+
+    /**
+     * @return the pool shared by serialization and connection handlers.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the size of the largest pooled buffers.
+     */
+    public static int getMaxPooledSize() {
+        return 1 << MAX_SHIFT;
+    }
+
+    /**
+     * Borrows a buffer. Give it back by {@link #release(byte[])}.
+     *
+     * @param size
+     *            the minimum size
+     * @return a buffer of at least the given size. Content is undefined.
+     */
+    public byte[] borrow(int size) {
+        Reject.ifTrue(size < 0, "Illegal size: " + size);
+        borrowed.incrementAndGet();
+        byte[] buf = null;
+        SizeClass sizeClass = size <= getMaxPooledSize()
+            ? sizeClasses[indexOf(size)]
+            : null;
+        if (sizeClass != null) {
+            buf = sizeClass.buffers.poll();
+            if (buf != null) {
+                sizeClass.count.decrementAndGet();
+                retainedBytes.addAndGet(-buf.length);
+                reused.incrementAndGet();
+            }
+        }
+        if (buf == null) {
+            buf = new byte[sizeClass != null ? sizeClass.size : size];
+            allocated.incrementAndGet();
+            allocatedBytes.addAndGet(buf.length);
+        }
+        if (leakDetection) {
+            outstanding.put(buf, new Throwable("Borrowed " + buf.length
+                + " bytes in " + Thread.currentThread().getName()));
+        }
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buf
+     *            the buffer or null.
+     */
+    public void release(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        if (leakDetection && outstanding.remove(buf) == null) {
+            LOG.log(Level.WARNING, "Released buffer of " + buf.length
+                + " bytes, which is not borrowed. Released twice?",
+                new RuntimeException("Released here"));
+            return;
+        }
+        released.incrementAndGet();
+        int len = buf.length;
+        if (len < (1 << MIN_SHIFT) || len > getMaxPooledSize()
+            || Integer.bitCount(len) != 1)
+        {
+            discarded.incrementAndGet();
+            return;
+        }
+        SizeClass sizeClass = sizeClasses[indexOf(len)];
+        if (sizeClass.count.incrementAndGet() > maxBuffersPerClass) {
+            sizeClass.count.decrementAndGet();
+            discarded.incrementAndGet();
+            return;
+        }
+        if (retainedBytes.addAndGet(len) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-len);
+            sizeClass.count.decrementAndGet();
+            discarded.incrementAndGet();
+            return;
+        }
+        sizeClass.buffers.offer(buf);
+    }
+
+    /**
+     * Drops all retained buffers.
+     */
+    public void clear() {
+        for (SizeClass sizeClass : sizeClasses) {
+            byte[] buf;
+            while ((buf = sizeClass.buffers.poll()) != null) {
+                sizeClass.count.decrementAndGet();
+                retainedBytes.addAndGet(-buf.length);
+            }
+        }
+    }
+
+    private static int indexOf(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    // Leak detection *********************************************************
+
+    /**
+     * Enables or disables recording of borrowers. Should be enabled for
+     * debugging only.
+     *
+     * @param leakDetection
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        if (!leakDetection) {
+            outstanding.clear();
+        }
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * @return the number of borrowed buffers not released yet. Only with leak
+     *         detection enabled.
+     */
+    public int countLeaks() {
+        return outstanding.size();
+    }
+
+    /**
+     * Logs the borrowers of all buffers not released yet. Only with leak
+     * detection enabled.
+     *
+     * @return the number of buffers not released yet.
+     */
+    public int logLeaks() {
+        List<Throwable> leaks;
+        synchronized (outstanding) {
+            leaks = new ArrayList<Throwable>(outstanding.values());
+        }
+        for (Throwable leak : leaks) {
+            LOG.log(Level.WARNING, "Buffer not released", leak);
+        }
+        return leaks.size();
+    }
+
+    // Statistics *************************************************************
+
+    /**
+     * @return the number of buffers borrowed since last reset.
+     */
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * @return the number of buffers served from the pool since last reset.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return the number of buffers allocated since last reset.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return the bytes allocated since last reset.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return the bytes per second allocated since last reset.
+     */
+    public long getAllocationRate() {
+        long took = Math.max(1, System.currentTimeMillis() - statsSince);
+        return allocatedBytes.get() * 1000 / took;
+    }
+
+    /**
+     * @return the total size of the buffers currently retained.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public void resetStats() {
+        borrowed.set(0);
+        reused.set(0);
+        allocated.set(0);
+        allocatedBytes.set(0);
+        released.set(0);
+        discarded.set(0);
+        statsSince = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the statistics of the pool, human readable.
+     */
+    public String getStats() {
+        long b = borrowed.get();
+        return "Buffers borrowed: " + b + ", reused: " + reused.get()
+            + (b > 0 ? " (" + reused.get() * 100 / b + "%)" : "")
+            + ", released: " + released.get() + ", discarded: "
+            + discarded.get() + "\nAllocated: " + allocated.get() + " / "
+            + Format.formatBytes(allocatedBytes.get()) + ", rate: "
+            + Format.formatBytes(getAllocationRate()) + "/s, retained: "
+            + Format.formatBytes(retainedBytes.get())
+            + (leakDetection ? ", not released: " + countLeaks() : "");
+    }
+
+    public String toString() {
+        return "BufferPool: " + getStats();
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+    }
+}
@@ -28,8 +28,6 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -40,8 +38,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
-
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.util.logging.Loggable;
 
@@ -56,14 +52,8 @@ public class ByteSerializer extends Loggable {
         .getName());
 
     private static final int MAX_BUFFER_SIZE = 10 * 1024 * 1024;
-    // Should at least cover one file chunk. if packet is greater, the buffer
-    // won't get cached = memory waste.
-    private static final int MAX_CACHE_BUFFER_SIZE = 0;
-
-    private static final boolean CACHE_OUT_BUFFER = false;
 
-    private Reference<ByteArrayOutputStream> outBufferRef;
-    private Reference<byte[]> inBufferRef;
+    private final BufferPool pool;
 
     public static boolean BENCHMARK = false;
     private static final Map<Class<?>, Integer> CLASS_STATS = new ConcurrentHashMap<Class<?>, Integer>();
@@ -71,11 +61,21 @@ public class ByteSerializer extends Loggable {
     private static int totalObjects = 0;
 
     public ByteSerializer() {
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * @param pool
+     *            the pool to borrow the serialization buffers from.
+     */
+    public ByteSerializer(BufferPool pool) {
+        Reject.ifNull(pool, "Pool is null");
+        this.pool = pool;
     }
 
     /**
-     * Serialize an object. This method is non-static an re-uses the internal
-     * byteoutputstream
+     * Serialize an object. The serialization buffer is borrowed from the
+     * buffer pool.
      *
      * @param target
      *            The object to be serialized
@@ -92,81 +92,71 @@ public class ByteSerializer extends Loggable {
         throws IOException
     {
         long start = System.currentTimeMillis();
-        ByteArrayOutputStream byteOut;
-        // Reset buffer
-        if (outBufferRef != null && outBufferRef.get() != null) {
-            // Reuse old buffer
-            byteOut = outBufferRef.get();
-            byteOut.reset();
-        } else {
-            // logFiner("Creating send buffer (512bytes)");
-            // Create new bytearray output, 512b buffer
-            byteOut = new ByteArrayOutputStream(512);
-            if (CACHE_OUT_BUFFER) {
-                // Chache outgoing buffer
-                outBufferRef = new SoftReference<ByteArrayOutputStream>(byteOut);
+        PooledByteArrayOutputStream byteOut = new PooledByteArrayOutputStream(
+            pool, 512);
+        try {
+            OutputStream targetOut;
+            // Serialize....
+            if (compress) {
+                PFZIPOutputStream zipOut = new PFZIPOutputStream(byteOut);
+                targetOut = zipOut;
+            } else {
+                targetOut = byteOut;
             }
-        }
-
-        OutputStream targetOut;
-        // Serialize....
-        if (compress) {
-            PFZIPOutputStream zipOut = new PFZIPOutputStream(byteOut);
-            targetOut = zipOut;
-        } else {
-            targetOut = byteOut;
-        }
-        ObjectOutputStream objOut = new ObjectOutputStream(targetOut);
+            ObjectOutputStream objOut = new ObjectOutputStream(targetOut);
 
-        // Write
-        try {
-            objOut.writeUnshared(target);
-        } catch (StreamCorruptedException e) {
-            LOG.log(Level.WARNING, "Problem while serializing: " + e, e);
-            throw e;
-        } catch (InvalidClassException e) {
-            LOG.log(Level.WARNING, "Problem while serializing: " + target
-                + ": " + e, e);
-            throw e;
-        }
+            // Write
+            try {
+                objOut.writeUnshared(target);
+            } catch (StreamCorruptedException e) {
+                LOG.log(Level.WARNING, "Problem while serializing: " + e, e);
+                throw e;
+            } catch (InvalidClassException e) {
+                LOG.log(Level.WARNING, "Problem while serializing: " + target
+                    + ": " + e, e);
+                throw e;
+            }
 
-        objOut.close();
+            // Does not release the buffer
+            objOut.close();
 
-        if (padToSize > 0) {
-            int modulo = byteOut.size() % padToSize;
-            if (modulo != 0) {
-                int additionalBytesRequired = padToSize - (modulo);
-                // LOG.warn("Buffersize: " + byteOut.size()
-                // + ", Additonal bytes required: " + additionalBytesRequired);
-                for (int i = 0; i < additionalBytesRequired; i++) {
-                    byteOut.write(0);
+            if (padToSize > 0) {
+                int modulo = byteOut.size() % padToSize;
+                if (modulo != 0) {
+                    int additionalBytesRequired = padToSize - (modulo);
+                    for (int i = 0; i < additionalBytesRequired; i++) {
+                        byteOut.write(0);
+                    }
                 }
             }
-        }
-        byteOut.flush();
-        byteOut.close();
 
-        if (byteOut.size() >= 256 * 1024) {
-            logWarning("Send buffer exceeds 256KB! "
-                + Format.formatBytes(byteOut.size()) + ". Message: " + target);
-        }
+            if (byteOut.size() >= 256 * 1024) {
+                logWarning("Send buffer exceeds 256KB! "
+                    + Format.formatBytes(byteOut.size()) + ". Message: "
+                    + target);
+            }
 
-        byte[] buf = byteOut.toByteArray();
-        if (BENCHMARK) {
-            totalObjects++;
-            totalTime += System.currentTimeMillis() - start;
-            int count = 0;
-            if (CLASS_STATS.containsKey(target.getClass())) {
-                count = CLASS_STATS.get(target.getClass());
+            byte[] buf = byteOut.toByteArray();
+            if (BENCHMARK) {
+                totalObjects++;
+                totalTime += System.currentTimeMillis() - start;
+                int count = 0;
+                if (CLASS_STATS.containsKey(target.getClass())) {
+                    count = CLASS_STATS.get(target.getClass());
+                }
+                count++;
+                CLASS_STATS.put(target.getClass(), count);
             }
-            count++;
-            CLASS_STATS.put(target.getClass(), count);
+            return buf;
+        } finally {
+            byteOut.release();
         }
-        return buf;
     }
 
     /**
-     * Re-uses internal received buffer for incoming readings.
+     * Reads the data of an incoming packet into a buffer borrowed from the
+     * buffer pool. Give it back by {@link #release(byte[])} after
+     * deserialization.
      *
      * @param in
      *            the input stream to deserialize from
@@ -182,47 +172,30 @@ public class ByteSerializer extends Loggable {
                 "Max buffersize overflow while reading. expected size "
                     + expectedSize);
         }
-        byte[] byteIn = null;
-
-        // Dont cache buffer
-        if (expectedSize > MAX_CACHE_BUFFER_SIZE) {
-            // if (isFiner()) {
-            // logFiner("Uncached buffer: " + expectedSize);
-            // }
-            byteIn = new byte[expectedSize];
+        if (expectedSize >= 128 * 1024 && isFiner()) {
+            logFiner("Received buffer exceeds 128KB! "
+                + Format.formatBytes(expectedSize));
+        }
+        byte[] byteIn = pool.borrow(expectedSize);
+        try {
             // Read into receivebuffer
             StreamUtils.read(in, byteIn, 0, expectedSize);
-            return byteIn;
-        }
-
-        // Resolve old cache
-        if (inBufferRef != null && inBufferRef.get() != null) {
-            // Re-use old buffer
-            byteIn = inBufferRef.get();
-        }
-
-        // Check buffer
-        if (byteIn == null || byteIn.length < expectedSize) {
-            if (isFiner()) {
-                String action = (byteIn == null) ? "Creating" : "Extending";
-                logFiner(action + " receive buffer ("
-                    + Format.formatBytes(expectedSize) + ")");
-            }
-            if (expectedSize >= 128 * 1024) {
-                logWarning("Recived buffer exceeds 128KB! "
-                    + Format.formatBytes(expectedSize));
-            }
-            byteIn = new byte[expectedSize];
-            // Cache buffer
-            inBufferRef = new SoftReference<byte[]>(byteIn);
+        } catch (IOException e) {
+            pool.release(byteIn);
+            throw e;
         }
-
-        // Read into receivebuffer
-        StreamUtils.read(in, byteIn, 0, expectedSize);
-
         return byteIn;
     }
 
+    /**
+     * Returns a buffer obtained by {@link #read(InputStream, int)} to the pool.
+     *
+     * @param buf
+     */
+    public void release(byte[] buf) {
+        pool.release(buf);
+    }
+
     // Static serialization ***************************************************
 
     /**
@@ -257,13 +230,35 @@ public class ByteSerializer extends Loggable {
      */
     public static Object deserializeStatic(byte[] base,
         boolean expectCompression) throws IOException, ClassNotFoundException
+    {
+        return deserializeStatic(base, base.length, expectCompression);
+    }
+
+    /**
+     * Deserialize the first bytes of a byte[] array into an Object. Used for
+     * buffers, which might be bigger than the data.
+     *
+     * @param base
+     *            The byte[] array
+     * @param len
+     *            the number of valid bytes in the array
+     * @param expectCompression
+     *            if there is a zip compression expected
+     * @return The deserialized object
+     * @throws IOException
+     *             an I/O Error occured
+     * @throws ClassNotFoundException
+     *             the class for the Object to be deserialized cannot be found.
+     */
+    public static Object deserializeStatic(byte[] base, int len,
+        boolean expectCompression) throws IOException, ClassNotFoundException
     {
         Object result;
         try {
-            result = deserialize0(base, expectCompression);
+            result = deserialize0(base, len, expectCompression);
         } catch (IOException e) {
             try {
-                result = deserialize0(base, !expectCompression);
+                result = deserialize0(base, len, !expectCompression);
             } catch (StreamCorruptedException e2) {
                 LOG.log(Level.WARNING, "While deserializing "
                     + (expectCompression ? "   compressed" : "uncompressed")
@@ -298,12 +293,14 @@ public class ByteSerializer extends Loggable {
      * compressed
      *
      * @param base
+     * @param len
      * @param compressed
      * @return the dezerialized object
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private static Object deserialize0(byte[] base, boolean compressed)
+    private static Object deserialize0(byte[] base, int len,
+        boolean compressed)
         throws IOException, ClassNotFoundException
     {
         long start = System.currentTimeMillis();
@@ -312,7 +309,7 @@ public class ByteSerializer extends Loggable {
         try {
             InputStream targetIn;
             // deserialize from the array.......u
-            ByteArrayInputStream bin = new ByteArrayInputStream(base);
+            ByteArrayInputStream bin = new ByteArrayInputStream(base, 0, len);
             if (compressed) {
                 GZIPInputStream zipIn = new GZIPInputStream(bin);
                 targetIn = zipIn;
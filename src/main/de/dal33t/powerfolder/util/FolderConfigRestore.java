@@ -1,5 +1,7 @@
 package de.dal33t.powerfolder.util;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -15,6 +17,7 @@ import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.disk.FolderSettings;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.FolderInfo;
 
 public class FolderConfigRestore {
@@ -92,9 +95,18 @@ public class FolderConfigRestore {
         }
         Path dbFile = sysDir.resolve(Constants.DB_FILENAME);
         // load files and scan in
-        ObjectInputStream in = new ObjectInputStream(
-            Files.newInputStream(dbFile));
-        FileInfo[] files = (FileInfo[]) in.readObject();
+        FileInfo[] files;
+        try (BufferedInputStream fIn = new BufferedInputStream(
+            Files.newInputStream(dbFile)))
+        {
+            if (FileInfoCodec.hasHeader(fIn)) {
+                DataInputStream in = new DataInputStream(fIn);
+                FileInfoCodec.readHeader(in);
+                files = FileInfoCodec.readFileInfos(in);
+            } else {
+                files = (FileInfo[]) new ObjectInputStream(fIn).readObject();
+            }
+        }
         // LOG.info("Got " + files.length + " files in " + baseDir);
         if (files.length <= 0) {
             return null;
@@ -20,17 +20,19 @@
 package de.dal33t.powerfolder.util;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.FolderInfo;
 
 /**
@@ -61,12 +63,24 @@ public class FolderDBDebug {
         if (!fn.contains(".")) {
             fn += ".db";
         }
-        InputStream fIn = new BufferedInputStream(new FileInputStream(fn));
-        ObjectInputStream in = new ObjectInputStream(fIn);
-        FileInfo[] files = (FileInfo[]) in.readObject();
-        System.err.println(in.readObject());
-        System.err.println(in.readObject());
-        in.close();
+        BufferedInputStream fIn = new BufferedInputStream(new FileInputStream(
+            fn));
+        FileInfo[] files;
+        if (FileInfoCodec.hasHeader(fIn)) {
+            DataInputStream in = new DataInputStream(fIn);
+            FileInfoCodec.readHeader(in);
+            files = FileInfoCodec.readFileInfos(in);
+            System.err.println(Arrays.asList(FileInfoCodec
+                .readMemberInfos(in)));
+            System.err.println(new Date(in.readLong()));
+            in.close();
+        } else {
+            ObjectInputStream in = new ObjectInputStream(fIn);
+            files = (FileInfo[]) in.readObject();
+            System.err.println(in.readObject());
+            System.err.println(in.readObject());
+            in.close();
+        }
 
         if (!checkForDupes(files)) {
             System.out.println("OK: DB contain NO dupes.");
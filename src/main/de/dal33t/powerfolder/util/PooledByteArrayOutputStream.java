@@ -0,0 +1,123 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.util;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Byte array output stream, which borrows its buffer from a
+ * {@link BufferPool}. Call {@link #release()} after use to return the buffer
+ * to the pool. {@link #close()} does NOT release the buffer.
+ * <p>
+ * Not thread safe.
+ *
+ * @author sprajc
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+    private final BufferPool pool;
+    private byte[] buf;
+    private int count;
+
+    /**
+     * @param pool
+     *            the pool to borrow the buffers from
+     * @param initialSize
+     *            the initial size of the buffer.
+     */
+    public PooledByteArrayOutputStream(BufferPool pool, int initialSize) {
+        Reject.ifNull(pool, "Pool is null");
+        this.pool = pool;
+        this.buf = pool.borrow(initialSize);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (buf == null) {
+            throw new IllegalStateException("Buffer already released");
+        }
+        if (minCapacity <= buf.length) {
+            return;
+        }
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError("Buffer too large");
+        }
+        byte[] newBuf = pool.borrow(Math.max(minCapacity, buf.length * 2));
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        pool.release(buf);
+        buf = newBuf;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Discards the written bytes, keeps the buffer.
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * @return the internal buffer. Only the first {@link #size()} bytes are
+     *         valid. Must not be used after {@link #release()}.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return a copy of the written bytes.
+     */
+    public byte[] toByteArray() {
+        if (buf == null) {
+            throw new IllegalStateException("Buffer already released");
+        }
+        return Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Returns the buffer to the pool. The stream must not be used afterwards.
+     */
+    public void release() {
+        pool.release(buf);
+        buf = null;
+        count = 0;
+    }
+}
@@ -206,6 +206,8 @@ public class Profiling {
                 + stat.getCount() + " elapsed " + stat.getElapsed()
                 + "ms average " + stat.getElapsed() / stat.getCount() + "ms\n");
         }
+        sb.append("\n");
+        sb.append(BufferPool.getDefault().getStats() + '\n');
         sb.append("============================");
         return sb.toString();
     }
@@ -216,6 +218,7 @@ public class Profiling {
         minimumTime = Long.MAX_VALUE;
         totalCount = 0;
         totalTime = 0;
+        BufferPool.getDefault().resetStats();
     }
 
 }
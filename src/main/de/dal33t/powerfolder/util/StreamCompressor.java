@@ -0,0 +1,182 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses all messages of one connection into a single deflate stream.
+ * Each message is flushed with {@link Deflater#SYNC_FLUSH}, so it can be
+ * decompressed on arrival, but the window is kept across messages. Similar
+ * messages like file lists compress much better than with one gzip stream per
+ * message.
+ * <p>
+ * Counterpart of {@link StreamDecompressor}. Not thread safe.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class StreamCompressor {
+
+    /**
+     * Extensions of file formats, which are already compressed.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = Collections
+        .unmodifiableSet(new HashSet<String>(Arrays.asList("zip", "gz",
+            "tgz", "bz2", "xz", "7z", "rar", "jar", "war", "apk", "cab",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "m4a", "aac",
+            "ogg", "flac", "mp4", "m4v", "mov", "avi", "mkv", "webm", "wmv",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "pdf", "dmg")));
+
+    /**
+     * Number of bytes sampled to estimate the entropy of data.
+     */
+    private static final int PROBE_SIZE = 4096;
+
+    /**
+     * Data with more bits of entropy per byte is considered incompressible.
+     */
+    private static final double MAX_ENTROPY = 7.5;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Deflater deflater;
+    private final byte[] buffer = new byte[8 * 1024];
+    private boolean storing;
+
+    public StreamCompressor() {
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Compresses the data and flushes the stream.
+     *
+     * @param data
+     * @param len
+     *            the number of bytes to compress.
+     * @param store
+     *            true to store the data uncompressed in the stream. Saves CPU
+     *            on data, which is already compressed.
+     * @return the compressed bytes to send.
+     */
+    public byte[] compress(byte[] data, int len, boolean store) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+            Math.max(64, len / 2));
+        if (store != storing) {
+            // Apply the new level before the data gets in
+            deflater.setLevel(store
+                ? Deflater.NO_COMPRESSION
+                : Deflater.DEFAULT_COMPRESSION);
+            deflater.setInput(EMPTY);
+            flush(out);
+            storing = store;
+        }
+        deflater.setInput(data, 0, len);
+        flush(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Deflates until all input has been flushed out. A level change consumes
+     * one call without flushing, so it is not sufficient to stop on the first
+     * call, which does not fill the buffer.
+     *
+     * @param out
+     */
+    private void flush(ByteArrayOutputStream out) {
+        int n;
+        do {
+            n = deflater.deflate(buffer, 0, buffer.length,
+                Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, n);
+        } while (n > 0 || !deflater.needsInput());
+    }
+
+    /**
+     * @return the total number of uncompressed bytes.
+     */
+    public long getBytesRead() {
+        return deflater.getBytesRead();
+    }
+
+    /**
+     * @return the total number of compressed bytes.
+     */
+    public long getBytesWritten() {
+        return deflater.getBytesWritten();
+    }
+
+    /**
+     * Frees the native resources.
+     */
+    public void close() {
+        deflater.end();
+    }
+
+    /**
+     * Checks if data of a file is worth to be compressed. Not if the file type
+     * is known to be compressed or a sample of the data looks random.
+     *
+     * @param filename
+     * @param data
+     * @return true if the data probably compresses.
+     */
+    public static boolean isCompressible(String filename, byte[] data) {
+        if (filename != null) {
+            int i = filename.lastIndexOf('.');
+            if (i >= 0
+                && COMPRESSED_EXTENSIONS.contains(filename.substring(i + 1)
+                    .toLowerCase()))
+            {
+                return false;
+            }
+        }
+        return data == null || entropy(data, PROBE_SIZE) < MAX_ENTROPY;
+    }
+
+    /**
+     * @param data
+     * @param max
+     *            the maximum number of bytes to sample.
+     * @return the Shannon entropy in bits per byte of the first bytes.
+     */
+    static double entropy(byte[] data, int max) {
+        int len = Math.min(data.length, max);
+        if (len == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < len; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / len;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses the messages of a deflate stream written by a
+ * {@link StreamCompressor}. Keeps the window across messages.
+ * <p>
+ * Not thread safe.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class StreamDecompressor {
+    private static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024;
+
+    private final Inflater inflater;
+    private final byte[] buffer = new byte[16 * 1024];
+
+    public StreamDecompressor() {
+        inflater = new Inflater(true);
+    }
+
+    /**
+     * Decompresses the bytes of one flushed message.
+     *
+     * @param data
+     * @param len
+     *            the number of compressed bytes.
+     * @return the uncompressed message.
+     * @throws IOException
+     *             if the stream is corrupt or the message too big.
+     */
+    public byte[] decompress(byte[] data, int len) throws IOException {
+        inflater.setInput(data, 0, len);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+            Math.max(64, len * 2));
+        try {
+            while (true) {
+                int n = inflater.inflate(buffer);
+                if (n > 0) {
+                    out.write(buffer, 0, n);
+                    if (out.size() > MAX_MESSAGE_SIZE) {
+                        throw new IOException(
+                            "Max message size exceeded while decompressing");
+                    }
+                } else if (inflater.needsInput()) {
+                    break;
+                } else if (inflater.finished() || inflater.needsDictionary())
+                {
+                    throw new IOException("Unexpected end of compressed stream");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed stream: " + e, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Frees the native resources.
+     */
+    public void close() {
+        inflater.end();
+    }
+}
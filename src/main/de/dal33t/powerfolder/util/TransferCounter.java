@@ -95,7 +95,7 @@ public class TransferCounter implements Serializable {
      *            the transferred chunk
      */
     public void chunkTransferred(FileChunk chunk) {
-        bytesTransferred(chunk.data.length);
+        bytesTransferred(chunk.getLength());
     }
 
     /**
@@ -19,41 +19,102 @@
  */
 package de.dal33t.powerfolder.util.delta;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.dal33t.powerfolder.util.CountedInputStream;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
 
+/**
+ * Finds the parts of a remote {@link FilePartsRecord} in a local file.
+ * <p>
+ * Large files are split into segments that are matched in parallel. Each
+ * segment overlaps the next one by one part length. The results are merged in
+ * order. Where a match reaches into the next segment, that segment is matched
+ * again from the end of the match until both results meet. The merged result
+ * is the same as of a single sequential pass.
+ */
 public class MatchResultWorker implements Callable<List<MatchInfo>> {
+    /** The default size of the segments matched in parallel */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final FilePartsRecord record;
     private final Path inFile;
     private final ProgressListener progressListener;
+    private final int nThreads;
+    private final long segmentSize;
+    private final boolean mapped;
 
     public MatchResultWorker(FilePartsRecord record, Path inFile,
         ProgressListener obs)
+    {
+        this(record, inFile, obs, 1, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * @param record
+     *            the record of the remote file.
+     * @param inFile
+     *            the local file.
+     * @param obs
+     *            the progress listener, may be null.
+     * @param nThreads
+     *            the number of threads matching the segments in parallel.
+     * @param segmentSize
+     *            the size of one segment. At least two part lengths.
+     * @param mapped
+     *            true to read the segments memory-mapped.
+     */
+    public MatchResultWorker(FilePartsRecord record, Path inFile,
+        ProgressListener obs, int nThreads, long segmentSize, boolean mapped)
     {
         Reject.noNullElements(record, inFile);
+        Reject.ifTrue(nThreads < 1, "Number of threads must be at least 1");
         this.record = record;
         this.inFile = inFile;
         this.progressListener = obs;
+        this.nThreads = nThreads;
+        this.segmentSize = Math.max(segmentSize,
+            2L * record.getPartLength());
+        this.mapped = mapped;
     }
 
     public List<MatchInfo> call() throws Exception {
-        CountedInputStream in = new CountedInputStream(Files.newInputStream(inFile));
-        PartInfoMatcher matcher = null;
-        try {
-            final long fsize = Files.size(inFile);
-
-            matcher = new PartInfoMatcher(in,
-                new RollingAdler32(record.getPartLength()), MessageDigest
-                    .getInstance("SHA-256"), record.getInfos());
+        long fsize = Files.size(inFile);
+        if (nThreads == 1 || fsize <= segmentSize) {
+            return matchSequential(fsize);
+        }
+        return matchParallel(fsize);
+    }
 
+    private List<MatchInfo> matchSequential(long fsize) throws IOException,
+        InterruptedException, NoSuchAlgorithmException
+    {
+        CountedInputStream in = new CountedInputStream(openRange(0, fsize));
+        try {
+            PartInfoMatcher matcher = newMatcher(in, 0, true);
             List<MatchInfo> matches = new LinkedList<MatchInfo>();
             MatchInfo match = null;
             while ((match = matcher.nextMatch()) != null) {
@@ -67,7 +128,238 @@ public class MatchResultWorker implements Callable<List<MatchInfo>> {
             return matches;
         } finally {
             in.close();
-            matcher.close();
+        }
+    }
+
+    private List<MatchInfo> matchParallel(final long fsize) throws Exception {
+        int partLength = record.getPartLength();
+        int nSegments = (int) ((fsize + segmentSize - 1) / segmentSize);
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(nThreads, nSegments), new NamedThreadFactory(
+                "MatchResultWorker-"));
+        try {
+            List<Future<List<MatchInfo>>> results = new ArrayList<Future<List<MatchInfo>>>(
+                nSegments);
+            for (int i = 0; i < nSegments; i++) {
+                final long start = i * segmentSize;
+                final long limit = segmentLimit(i, nSegments, fsize);
+                final boolean last = i == nSegments - 1;
+                results.add(executor.submit(new Callable<List<MatchInfo>>() {
+                    public List<MatchInfo> call() throws Exception {
+                        return matchRange(start, limit, last, null);
+                    }
+                }));
+            }
+
+            List<MatchInfo> matches = new ArrayList<MatchInfo>();
+            // End of the last match
+            long matchEnd = 0;
+            for (int i = 0; i < nSegments; i++) {
+                List<MatchInfo> segmentMatches = results.get(i).get();
+                long start = i * segmentSize;
+                if (matchEnd > start) {
+                    // Previous match reaches into this segment
+                    long limit = segmentLimit(i, nSegments, fsize);
+                    segmentMatches = matchRange(matchEnd, limit,
+                        i == nSegments - 1, segmentMatches);
+                }
+                for (MatchInfo match : segmentMatches) {
+                    matches.add(match);
+                    matchEnd = match.getMatchedPosition() + partLength;
+                }
+                if (progressListener != null) {
+                    progressListener.progressReached((double) Math.min(fsize,
+                        start + segmentSize)
+                        / fsize);
+                }
+            }
+            return matches;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the end of the data to read for the segment, which overlaps the
+     *         next segment by one part length minus one.
+     */
+    private long segmentLimit(int i, int nSegments, long fsize) {
+        if (i == nSegments - 1) {
+            return fsize;
+        }
+        return Math.min(fsize, (i + 1) * segmentSize + record.getPartLength()
+            - 1);
+    }
+
+    /**
+     * Matches the data in the given range.
+     *
+     * @param start
+     * @param limit
+     * @param last
+     *            if the range ends with the file.
+     * @param syncMatches
+     *            the matches of a previous pass over the range or null. If
+     *            one of them is matched again, the rest of them is returned
+     *            without further matching.
+     * @return the matches
+     */
+    private List<MatchInfo> matchRange(long start, long limit, boolean last,
+        List<MatchInfo> syncMatches) throws IOException, InterruptedException,
+        NoSuchAlgorithmException
+    {
+        List<MatchInfo> matches = new ArrayList<MatchInfo>();
+        if (start > limit) {
+            return matches;
+        }
+        try (InputStream in = openRange(start, limit)) {
+            PartInfoMatcher matcher = newMatcher(in, start, last);
+            MatchInfo match;
+            while ((match = matcher.nextMatch()) != null) {
+                if (syncMatches != null) {
+                    int i = indexOf(syncMatches, match.getMatchedPosition());
+                    if (i >= 0) {
+                        // Same state as the previous pass from here on
+                        matches.addAll(syncMatches.subList(i,
+                            syncMatches.size()));
+                        return matches;
+                    }
+                }
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    private static int indexOf(List<MatchInfo> matches, long position) {
+        for (int i = 0; i < matches.size(); i++) {
+            long matchPos = matches.get(i).getMatchedPosition();
+            if (matchPos == position) {
+                return i;
+            } else if (matchPos > position) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param in
+     *            the data starting at <code>start</code>
+     * @param start
+     * @param matchTail
+     * @return the matcher with the rolling checksum primed with the data
+     *         before <code>start</code>
+     */
+    private PartInfoMatcher newMatcher(InputStream in, long start,
+        boolean matchTail) throws IOException, NoSuchAlgorithmException
+    {
+        RollingAdler32 chksum = new RollingAdler32(record.getPartLength());
+        long primeStart = Math.max(0, start - record.getPartLength() + 1);
+        if (primeStart < start) {
+            try (InputStream prime = openRange(primeStart, start)) {
+                byte[] buf = new byte[(int) (start - primeStart)];
+                int read;
+                while ((read = prime.read(buf)) > 0) {
+                    chksum.update(buf, 0, read);
+                }
+            }
+        }
+        return new PartInfoMatcher(in, chksum,
+            MessageDigest.getInstance("SHA-256"), record.getInfos(), start,
+            matchTail);
+    }
+
+    private InputStream openRange(long start, long limit) throws IOException
+    {
+        FileChannel channel = FileChannel.open(inFile,
+            StandardOpenOption.READ);
+        if (mapped && limit - start <= Integer.MAX_VALUE) {
+            try {
+                return new ByteBufferInputStream(channel.map(
+                    MapMode.READ_ONLY, start, limit - start));
+            } finally {
+                // Mapping stays valid
+                channel.close();
+            }
+        }
+        channel.position(start);
+        return new BufferedInputStream(new LimitedInputStream(
+            Channels.newInputStream(channel), limit - start), BUFFER_SIZE);
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int data = in.read();
+            if (data >= 0) {
+                remaining--;
+            }
+            return data;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
         }
     }
 }
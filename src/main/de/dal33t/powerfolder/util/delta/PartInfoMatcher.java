@@ -47,14 +47,42 @@ public class PartInfoMatcher extends FilterInputStream {
     private final Map<Long, List<PartInfo>> partCache =
         new HashMap<Long, List<PartInfo>>();
     private final byte[] dbuf;
+    private final boolean matchTail;
 
     private long pos;
 
 	public PartInfoMatcher(InputStream in, RollingChecksum chksum, MessageDigest digester, PartInfo[] partInfos) {
+	    this(in, chksum, digester, partInfos, 0, true);
+	}
+
+    /**
+     * Creates a matcher for a segment of the data.
+     *
+     * @param in
+     *            the data, starting at <code>startPos</code>.
+     * @param chksum
+     *            the checksum, may already contain the data before
+     *            <code>startPos</code>.
+     * @param digester
+     * @param partInfos
+     * @param startPos
+     *            the position of the first byte of <code>in</code> in the
+     *            data.
+     * @param matchTail
+     *            true if <code>in</code> ends with the end of the data and the
+     *            last incomplete part should be matched.
+     */
+    public PartInfoMatcher(InputStream in, RollingChecksum chksum,
+        MessageDigest digester, PartInfo[] partInfos, long startPos,
+        boolean matchTail)
+    {
 		super(in);
 		Reject.noNullElements(chksum, digester, partInfos);
+		Reject.ifTrue(startPos < 0, "Negative start position");
 		this.chksum = chksum;
 		this.digester = digester;
+		this.matchTail = matchTail;
+		pos = startPos;
 
         rbuf = new RingBuffer(chksum.getFrameSize());
         dbuf = new byte[chksum.getFrameSize()];
@@ -110,6 +138,9 @@ public class PartInfoMatcher extends FilterInputStream {
 	        chksum.update(data);
 	    }
 	    // Step 3: If we got on EOF before try to finalize the result or return null if all is done
+	    if (!matchTail) {
+	        return null;
+	    }
         rem = (int) (pos % chksum.getFrameSize());
         if (rem > 0) {
             pos -= rem;
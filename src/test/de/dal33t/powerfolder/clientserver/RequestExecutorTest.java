@@ -0,0 +1,366 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.clientserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.MessageListener;
+import de.dal33t.powerfolder.message.clientserver.RemoteMethodCallRequest;
+import de.dal33t.powerfolder.message.clientserver.RemoteMethodCallResponse;
+import de.dal33t.powerfolder.message.clientserver.Request;
+import de.dal33t.powerfolder.message.clientserver.Response;
+import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.security.FolderPermission;
+import de.dal33t.powerfolder.security.Permission;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+
+/**
+ * Tests the concurrent execution of requests by the {@link RequestExecutor}.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ * @version $Revision: 1.5 $
+ */
+public class RequestExecutorTest extends ControllerTestCase {
+    private TestNode node;
+    private RequestExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        node = new TestNode(getController());
+        executor = node.getRequestExecutor();
+    }
+
+    public void testOutOfOrderResponses() throws ConnectionException {
+        RequestExecutor.ResponseFuture f1 = executor
+            .executeAsync(new TestRequest());
+        RequestExecutor.ResponseFuture f2 = executor
+            .executeAsync(new TestRequest());
+        assertEquals(2, node.sent.size());
+        assertEquals(2, executor.countPending());
+        Request r1 = node.sent.poll();
+        Request r2 = node.sent.poll();
+
+        node.respond(r2);
+        assertTrue(f2.isDone());
+        assertFalse(f1.isDone());
+        assertEquals(r2.getRequestId(), f2.getResponse().requestId);
+
+        node.respond(r1);
+        assertTrue(f1.isDone());
+        assertEquals(r1.getRequestId(), f1.getResponse().requestId);
+        assertNoPending();
+    }
+
+    public void testCoalescedCallers() throws Exception {
+        RequestExecutor.ResponseFuture future = executor.executeAsync(
+            new TestRequest(), "key");
+        assertSame(future, executor.executeAsync(new TestRequest(), "key"));
+        assertNotSame(future, executor.executeAsync(new TestRequest(),
+            "other"));
+        assertEquals(2, node.sent.size());
+        Request request = node.sent.poll();
+
+        Waiter[] waiters = new Waiter[3];
+        for (int i = 0; i < waiters.length; i++) {
+            waiters[i] = new Waiter(future, 10000);
+            waiters[i].start();
+        }
+        node.respond(request);
+        for (Waiter waiter : waiters) {
+            waiter.join(5000);
+            assertNull(waiter.failure.get());
+            assertEquals(request.getRequestId(),
+                waiter.response.get().requestId);
+        }
+
+        // Done: Not joined anymore
+        assertNotSame(future, executor.executeAsync(new TestRequest(), "key"));
+    }
+
+    public void testSendFailure() throws ConnectionException {
+        node.failSend = true;
+        try {
+            executor.executeAsync(new TestRequest(), "key");
+            fail("Send failure not thrown");
+        } catch (ConnectionException e) {
+            // OK
+        }
+        assertNoPending();
+
+        // Equal request does not join the failed one
+        node.failSend = false;
+        RequestExecutor.ResponseFuture future = executor.executeAsync(
+            new TestRequest(), "key");
+        assertFalse(future.isDone());
+        assertEquals(1, node.sent.size());
+    }
+
+    public void testDisconnect() throws ConnectionException {
+        RequestExecutor.ResponseFuture f1 = executor
+            .executeAsync(new TestRequest());
+        RequestExecutor.ResponseFuture f2 = executor.executeAsync(
+            new TestRequest(), "key");
+        node.disconnect();
+
+        for (RequestExecutor.ResponseFuture future : new RequestExecutor.ResponseFuture[]{
+            f1, f2})
+        {
+            assertTrue(future.isDone());
+            try {
+                future.getResponse();
+                fail("Disconnect not thrown");
+            } catch (ConnectionException e) {
+                // OK
+            }
+        }
+        assertNoPending();
+    }
+
+    public void testTimeoutOfOneWaiter() throws Exception {
+        RequestExecutor.ResponseFuture future = executor.executeAsync(
+            new TestRequest(), "key");
+        Request request = node.sent.poll();
+        Waiter other = new Waiter(future, 10000);
+        other.start();
+        other.awaitWaiting();
+
+        try {
+            future.getResponse(100);
+            fail("Timeout not thrown");
+        } catch (ConnectionException e) {
+            // OK
+        }
+        assertFalse(future.isDone());
+        assertEquals(1, executor.countPending());
+        // Not joined anymore
+        assertNotSame(future, executor.executeAsync(new TestRequest(), "key"));
+
+        node.respond(request);
+        other.join(5000);
+        assertNull(other.failure.get());
+        assertEquals(request.getRequestId(), other.response.get().requestId);
+    }
+
+    public void testTimeoutOfLastWaiter() throws ConnectionException {
+        RequestExecutor.ResponseFuture future = executor.executeAsync(
+            new TestRequest(), "key");
+        try {
+            future.getResponse(100);
+            fail("Timeout not thrown");
+        } catch (ConnectionException e) {
+            // OK
+        }
+        assertTrue(future.isDone());
+        assertNoPending();
+    }
+
+    public void testInterruptOfOneWaiter() throws Exception {
+        RequestExecutor.ResponseFuture future = executor.executeAsync(
+            new TestRequest(), "key");
+        Request request = node.sent.poll();
+        Waiter interrupted = new Waiter(future, 10000);
+        Waiter other = new Waiter(future, 10000);
+        interrupted.start();
+        other.start();
+        interrupted.awaitWaiting();
+        other.awaitWaiting();
+
+        interrupted.interrupt();
+        interrupted.join(5000);
+        assertNotNull(interrupted.failure.get());
+        assertTrue(interrupted.interruptFlag.get());
+        assertFalse(future.isDone());
+
+        node.respond(request);
+        other.join(5000);
+        assertNull(other.failure.get());
+        assertEquals(request.getRequestId(), other.response.get().requestId);
+    }
+
+    public void testJoinOnlyImmutableResults() throws Exception {
+        SecurityService stub = RemoteServiceStubFactory.createRemoteStub(
+            getController(), SecurityService.class, node);
+        AccountInfo aInfo = new AccountInfo(IdGenerator.makeId(), "user");
+        FolderPermission permission = FolderPermission.read(new FolderInfo(
+            "Folder", IdGenerator.makeFolderId()));
+
+        // boolean result: Joined
+        RemoteServiceStubFactory.invokeAsync(stub, SecurityService.class
+            .getMethod("hasPermission", AccountInfo.class,
+                Permission.class), aInfo,
+            permission);
+        RemoteServiceStubFactory.invokeAsync(stub, SecurityService.class
+            .getMethod("hasPermission", AccountInfo.class,
+                Permission.class), aInfo,
+            permission);
+        assertEquals(1, node.sent.size());
+
+        // Mutable collection result: Not joined
+        List<MemberInfo> nodes = Collections.singletonList(node.getInfo());
+        RemoteServiceStubFactory.invokeAsync(stub, SecurityService.class
+            .getMethod("getAccountInfos", Collection.class), nodes);
+        RemoteServiceStubFactory.invokeAsync(stub, SecurityService.class
+            .getMethod("getAccountInfos", Collection.class), nodes);
+        assertEquals(3, node.sent.size());
+
+        Request request;
+        while ((request = node.sent.poll()) != null) {
+            node.respond(request);
+        }
+        assertNoPending();
+    }
+
+    private void assertNoPending() {
+        assertEquals(0, executor.countPending());
+        assertTrue("Listener not removed", node.listeners.isEmpty());
+    }
+
+    /**
+     * A connected node, which records the sent requests.
+     */
+    private static class TestNode extends Member {
+        private volatile boolean connected = true;
+        private volatile boolean failSend;
+        private final BlockingQueue<Request> sent = new LinkedBlockingQueue<Request>();
+        private final List<MessageListener> listeners = new CopyOnWriteArrayList<MessageListener>();
+
+        private TestNode(Controller controller) {
+            super(controller, new MemberInfo("Remote", IdGenerator.makeId(),
+                null));
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isCompletelyConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isInteresting() {
+            return false;
+        }
+
+        @Override
+        public void sendMessage(Message message) throws ConnectionException {
+            if (failSend) {
+                throw new ConnectionException("Send failed");
+            }
+            sent.add((Request) message);
+        }
+
+        @Override
+        public void addMessageListener(MessageListener aListener) {
+            listeners.add(aListener);
+        }
+
+        @Override
+        public void removeMessageListener(MessageListener aListener) {
+            listeners.remove(aListener);
+        }
+
+        private void respond(Request request) {
+            Response response;
+            if (request instanceof RemoteMethodCallRequest) {
+                response = new RemoteMethodCallResponse(
+                    (RemoteMethodCallRequest) request, (Object) null);
+            } else {
+                response = new TestResponse(request);
+            }
+            for (MessageListener listener : listeners) {
+                listener.handleMessage(this, response);
+            }
+        }
+
+        private void disconnect() {
+            connected = false;
+            getController().getNodeManager().connectStateChanged(this);
+        }
+    }
+
+    /**
+     * Waits for the response in its own thread.
+     */
+    private static class Waiter extends Thread {
+        private final RequestExecutor.ResponseFuture future;
+        private final long timeoutMS;
+        private final AtomicReference<Response> response = new AtomicReference<Response>();
+        private final AtomicReference<ConnectionException> failure = new AtomicReference<ConnectionException>();
+        private final AtomicBoolean interruptFlag = new AtomicBoolean();
+        private final AtomicBoolean waiting = new AtomicBoolean();
+
+        private Waiter(RequestExecutor.ResponseFuture future, long timeoutMS)
+        {
+            this.future = future;
+            this.timeoutMS = timeoutMS;
+        }
+
+        @Override
+        public void run() {
+            try {
+                waiting.set(true);
+                response.set(future.getResponse(timeoutMS));
+            } catch (ConnectionException e) {
+                failure.set(e);
+            }
+            interruptFlag.set(isInterrupted());
+        }
+
+        private void awaitWaiting() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!waiting.get() || getState() != State.TIMED_WAITING) {
+                assertTrue("Not waiting",
+                    System.currentTimeMillis() < deadline);
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        }
+    }
+
+    private static class TestRequest extends Request {
+        private static final long serialVersionUID = 100L;
+    }
+
+    private static class TestResponse extends Response {
+        private static final long serialVersionUID = 100L;
+
+        private TestResponse(Request request) {
+            super(request);
+        }
+    }
+}
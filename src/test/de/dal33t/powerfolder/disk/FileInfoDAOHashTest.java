@@ -2,6 +2,7 @@ package de.dal33t.powerfolder.disk;
 
 import java.util.logging.Level;
 
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -45,12 +46,39 @@ public class FileInfoDAOHashTest extends FileInfoDAOTestCase {
         testFindAll(dao, 5000);
     }
 
+    public void testDeleteBatch() {
+        testDeleteBatch(dao, 1000);
+    }
+
     public void testFindInDir() {
         testFindInDir(dao, 1);
         testFindInDir(dao, 100);
         testFindInDir(dao, 5000);
     }
 
+    public void testDirectoryIndex() {
+        FileInfo file = createFileInfo("a/b/file.txt", 1, false);
+        FileInfo dir = createFileInfo("a/b/sub", 1, true);
+        dao.store(null, file, dir, createFileInfo("a/b/sub/x.txt", 1, false));
+        assertEquals(2, dao.findInDirectory(null, "a/b", false).size());
+        assertEquals(3, dao.findInDirectory(null, "a", true).size());
+        assertEquals(0, dao.findInDirectory(null, "a", false).size());
+
+        // Directory replaced by file with same name
+        dao.store(null, createFileInfo("a/b/sub", 2, false));
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setPath("a/b");
+        crit.setType(FileInfoCriteria.Type.DIRECTORIES_ONLY);
+        assertEquals(0, dao.findFiles(crit).size());
+        assertEquals(2, dao.findInDirectory(null, "a/b", false).size());
+
+        dao.delete(null, file);
+        dao.delete(null, createFileInfo("a/b/sub/x.txt", 1, false));
+        assertEquals(1, dao.findInDirectory(null, "a", true).size());
+        assertEquals(0, dao.findInDirectory(null, "a/b/sub", true).size());
+    }
+
     public void testFindByOID() {
         String[] domains = new String[]{null, "anydomain"};
         FileInfo noID = createFileInfo("subdir/relative/NameNoID.txt", 1, false);
@@ -89,4 +117,8 @@ public class FileInfoDAOHashTest extends FileInfoDAOTestCase {
         assertNotNull(found);
         testAssertEquals(fInfoWithID_2, found);
     }
+
+    public void testFindByHash() {
+        testFindByHash(dao);
+    }
 }
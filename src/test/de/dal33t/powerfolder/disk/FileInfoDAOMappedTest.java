@@ -0,0 +1,103 @@
+package de.dal33t.powerfolder.disk;
+
+import java.util.logging.Level;
+
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOMappedImpl;
+import de.dal33t.powerfolder.light.DirectoryInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FileInfoDAOMappedTest extends FileInfoDAOTestCase {
+    private FileInfoDAO dao;
+    private DiskItemFilter filter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        filter = new DiskItemFilter();
+        dao = new FileInfoDAOMappedImpl("ME", filter, TestHelper.getTestDir()
+            .resolve("mapped"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dao.stop();
+        super.tearDown();
+    }
+
+    public void testIndexFileInfo() {
+        testIndexFileInfo(dao);
+    }
+
+    public void testFindNewestVersion() {
+        testFindNewestVersion(dao);
+    }
+
+    public void testFindByHash() {
+        testFindByHash(dao);
+    }
+
+    public void testFindAll() {
+        LoggingManager.setConsoleLogging(Level.SEVERE);
+        testFindAll(dao, 5000);
+    }
+
+    public void testDeleteBatch() {
+        testDeleteBatch(dao, 1000);
+    }
+
+    public void testFindInDir() {
+        testFindInDir(dao, 1);
+        testFindInDir(dao, 100);
+        testFindInDir(dao, 5000);
+    }
+
+    public void testUpdateAndCompaction() {
+        int n = 5000;
+        for (int v = 0; v < 20; v++) {
+            for (int i = 0; i < n; i++) {
+                dao.store(null, createRandomFileInfo(i, "file.txt", v));
+            }
+        }
+        assertEquals(n, dao.count(null, true, false));
+        assertEquals(n, dao.findAllFiles(null).size());
+        for (FileInfo fInfo : dao.findAllFiles(null)) {
+            assertEquals(19, fInfo.getVersion());
+        }
+
+        // Replace files by directories and delete some
+        for (int i = 0; i < n; i += 2) {
+            dao.store(null, createRandomFileInfo(i, "file.txt", 1, true));
+        }
+        for (int i = 1; i < n; i += 4) {
+            dao.delete(null, createRandomFileInfo(i, "file.txt"));
+        }
+        assertEquals(n / 4, dao.count(null, false, false));
+        assertEquals(n / 2, dao.findAllDirectories(null).size());
+        for (DirectoryInfo dInfo : dao.findAllDirectories(null)) {
+            assertTrue(dInfo.isDiretory());
+            assertEquals(1, dInfo.getVersion());
+        }
+        assertNull(dao.find(createRandomFileInfo(1, "file.txt"), null));
+        assertNotNull(dao.find(createRandomFileInfo(3, "file.txt"), null));
+    }
+
+    public void testChangeWhileIterating() {
+        for (int i = 0; i < 100; i++) {
+            dao.store(null, createRandomFileInfo(i, "file.txt", 0));
+        }
+        int n = 0;
+        for (FileInfo fInfo : dao.findAllFiles(null)) {
+            // Update all, forces compaction and index rebuild.
+            for (int i = 0; i < 100; i++) {
+                dao.store(null, createRandomFileInfo(i, "file.txt", n + 1));
+            }
+            // Next item got materialized before the last update.
+            assertEquals(Math.max(0, n - 1), fInfo.getVersion());
+            n++;
+        }
+        assertEquals(100, n);
+    }
+}
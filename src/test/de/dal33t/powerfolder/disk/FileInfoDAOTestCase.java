@@ -225,6 +225,31 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
         assertEquals(0, dao.findAllFiles("123").size());
     }
 
+    protected void testDeleteBatch(FileInfoDAO dao, int n) {
+        List<FileInfo> fInfos = new ArrayList<FileInfo>();
+        for (int i = 0; i < n; i++) {
+            fInfos.add(createRandomFileInfo(i, IdGenerator.makeId()));
+        }
+        dao.store(null, fInfos);
+        dao.store("XXX", fInfos);
+
+        List<FileInfo> deleted = fInfos.subList(0, n / 2);
+        dao.delete(null, deleted);
+        assertEquals(n - deleted.size(), dao.count(null, true, true));
+        assertEquals(n, dao.count("XXX", true, true));
+        for (FileInfo fInfo : deleted) {
+            assertNull(dao.find(fInfo, null));
+            assertNotNull(dao.find(fInfo, "XXX"));
+        }
+        for (FileInfo fInfo : fInfos.subList(n / 2, n)) {
+            assertNotNull(dao.find(fInfo, null));
+        }
+
+        dao.delete("XXX", fInfos);
+        assertEquals(0, dao.count("XXX", true, true));
+        assertEquals(0, dao.findAllFiles("XXX").size());
+    }
+
     protected void testFindNewestVersion(FileInfoDAO dao) {
         FileInfo expected = createRandomFileInfo(10, "MyExcelsheet.xls");
         expected = version(expected, 1);
@@ -329,6 +354,32 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
             .size());
     }
 
+    protected void testFindByHash(FileInfoDAO dao) {
+        String[] domains = new String[]{null, "anydomain"};
+        FileInfo fInfo = createFileInfo("dir/file.txt", 1, false);
+        dao.store(null, withHashes(fInfo, "HASH1,HASH2"));
+        dao.store("anydomain",
+            withHashes(createFileInfo("other/copy.txt", 3, false), "HASH2"));
+
+        assertEquals(1, dao.findNewestByHash("HASH1", domains).getVersion());
+        assertEquals(3, dao.findNewestByHash("HASH2", domains).getVersion());
+        assertNull(dao.findNewestByHash("HASH3", domains));
+
+        // Changed content
+        dao.store(null, withHashes(version(fInfo, 2), "HASH3"));
+        assertNull(dao.findNewestByHash("HASH1", domains));
+        assertEquals(2, dao.findNewestByHash("HASH3", domains).getVersion());
+
+        dao.delete(null, fInfo);
+        assertNull(dao.findNewestByHash("HASH3", domains));
+
+        // Only whole hashes match
+        dao.store(null,
+            withHashes(createFileInfo("dir/part.txt", 1, false), "xabcx"));
+        assertNull(dao.findNewestByHash("abc", domains));
+        assertNotNull(dao.findNewestByHash("xabcx", domains));
+    }
+
     protected static FileInfo createFileInfo(String name, int version,
         boolean directory)
     {
@@ -364,6 +415,14 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
         return createRandomFileInfo(n, name, 0);
     }
 
+    protected static FileInfo withHashes(FileInfo fInfo, String hashes) {
+        return FileInfoFactory.unmarshallExistingFile(fInfo.getFolderInfo(),
+            fInfo.getRelativeName(), fInfo.getOID(), fInfo.getSize(),
+            fInfo.getModifiedBy(), fInfo.getModifiedByAccount(),
+            fInfo.getModifiedDate(), fInfo.getVersion(), hashes,
+            fInfo.isDiretory(), fInfo.getTags());
+    }
+
     protected static FolderInfo createRandomFolderInfo() {
         FolderInfo foInfo = new FolderInfo("TestFolder / " + UUID.randomUUID(),
             "FOLDERID").intern();
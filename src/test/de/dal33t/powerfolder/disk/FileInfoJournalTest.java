@@ -0,0 +1,152 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.disk.dao.FileInfoJournal;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FileInfoJournalTest extends FileInfoDAOTestCase {
+    private Path journalFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        journalFile = TestHelper.getTestDir().resolve("test.db.journal");
+        Files.createDirectories(journalFile.getParent());
+        Files.deleteIfExists(journalFile);
+        Files.deleteIfExists(journalFile.resolveSibling("test.db.journal.old"));
+    }
+
+    public void testReplay() {
+        FileInfoJournal journal = new FileInfoJournal(journalFile);
+        FileInfoDAO dao = new FileInfoDAOHashMapImpl("ME", null);
+        dao.setJournal(journal);
+
+        FileInfo kept = createFileInfo("dir/kept.txt", 1, false);
+        FileInfo deleted = createFileInfo("dir/deleted.txt", 1, false);
+        FileInfo dir = createFileInfo("dir", 0, true);
+        dao.store(null, kept, deleted, dir);
+        dao.store("OTHER", createFileInfo("notjournaled.txt", 1, false));
+        dao.delete(null, deleted);
+        FileInfo keptV2 = version(kept, 2);
+        dao.store(null, keptV2);
+        assertEquals(5, journal.getEntryCount());
+        journal.close();
+
+        FileInfoDAO loaded = new FileInfoDAOHashMapImpl("ME", null);
+        FileInfoJournal replayJournal = new FileInfoJournal(journalFile);
+        assertEquals(5, replayJournal.replay(loaded, null));
+        assertEquals(2, loaded.count(null, true, false));
+        assertNull(loaded.find(deleted, null));
+        testAssertEquals(keptV2, loaded.find(kept, null));
+        assertTrue(loaded.find(dir, null).isDiretory());
+        assertEquals(0, loaded.count("OTHER", true, false));
+    }
+
+    public void testRotation() throws Exception {
+        FileInfoJournal journal = new FileInfoJournal(journalFile);
+        FileInfoDAO dao = new FileInfoDAOHashMapImpl("ME", null);
+        dao.setJournal(journal);
+
+        FileInfo before = createFileInfo("before.txt", 1, false);
+        dao.store(null, before);
+        assertFalse(journal.isCompactionRequired(10));
+        journal.rotate();
+        // Snapshot not committed yet
+        assertTrue(journal.isCompactionRequired(10));
+        FileInfo after = createFileInfo("after.txt", 1, false);
+        dao.store(null, after);
+        journal.close();
+
+        // Failed snapshot: Both parts must be replayed.
+        FileInfoDAO loaded = new FileInfoDAOHashMapImpl("ME", null);
+        assertEquals(2, new FileInfoJournal(journalFile).replay(loaded, null));
+        assertNotNull(loaded.find(before, null));
+        assertNotNull(loaded.find(after, null));
+
+        // Successful snapshot: Only changes after rotation remain.
+        journal.rotate();
+        journal.commitRotation();
+        assertFalse(journal.isCompactionRequired(10));
+        FileInfo last = createFileInfo("last.txt", 1, false);
+        dao.store(null, last);
+        journal.close();
+        loaded = new FileInfoDAOHashMapImpl("ME", null);
+        assertEquals(1, new FileInfoJournal(journalFile).replay(loaded, null));
+        assertNotNull(loaded.find(last, null));
+    }
+
+    public void testTruncatedTail() throws Exception {
+        FileInfoJournal journal = new FileInfoJournal(journalFile);
+        FileInfoDAO dao = new FileInfoDAOHashMapImpl("ME", null);
+        dao.setJournal(journal);
+        for (int i = 0; i < 10; i++) {
+            dao.store(null, createRandomFileInfo(i, "file.txt"));
+        }
+        journal.close();
+
+        // Simulate crash while writing the last record.
+        long size = Files.size(journalFile);
+        Files.newByteChannel(journalFile, StandardOpenOption.WRITE)
+            .truncate(size - 5).close();
+
+        FileInfoDAO loaded = new FileInfoDAOHashMapImpl("ME", null);
+        assertEquals(9, new FileInfoJournal(journalFile).replay(loaded, null));
+        assertEquals(9, loaded.count(null, false, false));
+    }
+
+    public void testAppendAfterTruncatedTail() throws Exception {
+        FileInfoJournal journal = new FileInfoJournal(journalFile);
+        FileInfoDAO dao = new FileInfoDAOHashMapImpl("ME", null);
+        dao.setJournal(journal);
+        for (int i = 0; i < 10; i++) {
+            dao.store(null, createRandomFileInfo(i, "file.txt"));
+        }
+        journal.close();
+
+        // Simulate crash while writing the last record.
+        long size = Files.size(journalFile);
+        Files.newByteChannel(journalFile, StandardOpenOption.WRITE)
+            .truncate(size - 5).close();
+
+        // Restart: Replay and continue appending.
+        FileInfoDAO restarted = new FileInfoDAOHashMapImpl("ME", null);
+        FileInfoJournal restartedJournal = new FileInfoJournal(journalFile);
+        assertEquals(9, restartedJournal.replay(restarted, null));
+        restarted.setJournal(restartedJournal);
+        FileInfo appended1 = createFileInfo("appended1.txt", 1, false);
+        FileInfo appended2 = createFileInfo("appended2.txt", 1, false);
+        restarted.store(null, appended1, appended2);
+        restartedJournal.close();
+
+        FileInfoDAO loaded = new FileInfoDAOHashMapImpl("ME", null);
+        assertEquals(11, new FileInfoJournal(journalFile).replay(loaded, null));
+        assertEquals(11, loaded.count(null, false, false));
+        testAssertEquals(appended1, loaded.find(appended1, null));
+        testAssertEquals(appended2, loaded.find(appended2, null));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.disk;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests the candidates of the {@link IncomingFilesIndex}.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class IncomingFilesIndexTest extends TwoControllerTestCase {
+    private static final int N_FILES = 20;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connectBartAndLisa();
+        joinTestFolder(SyncProfile.MANUAL_SYNCHRONIZATION);
+    }
+
+    /**
+     * Files changed locally are no candidates, unless local changes get
+     * reverted. Otherwise every local change would stay a candidate until the
+     * other members got it.
+     */
+    public void testLocalChangesNoCandidates() {
+        for (int i = 0; i < N_FILES; i++) {
+            TestHelper.createRandomFile(getFolderAtBart().getLocalBase());
+        }
+        scanFolder(getFolderAtBart());
+        getFolderAtLisa().setSyncProfile(SyncProfile.AUTOMATIC_DOWNLOAD);
+        TestHelper.waitForCondition(30, new ConditionWithMessage() {
+            public boolean reached() {
+                return getFolderAtLisa().getKnownItemCount() == N_FILES
+                    && getFolderAtLisa().getIncomingFiles().isEmpty();
+            }
+
+            public String message() {
+                return "Known files at Lisa: "
+                    + getFolderAtLisa().getKnownItemCount();
+            }
+        });
+        getFolderAtLisa().setSyncProfile(SyncProfile.MANUAL_SYNCHRONIZATION);
+        IncomingFilesIndex index = new IncomingFilesIndex(getFolderAtLisa());
+        assertEquals(0, index.getCandidates().size());
+
+        // Bart keeps the old versions
+        for (FileInfo fInfo : getFolderAtLisa().getKnownFiles()) {
+            TestHelper.changeFile(fInfo.getDiskFile(getContollerLisa()
+                .getFolderRepository()));
+        }
+        scanFolder(getFolderAtLisa());
+        assertFalse(getFolderAtLisa().isRevertLocalChanges());
+        index.invalidate();
+        assertEquals(0, index.getCandidates().size());
+        assertEquals(0, getFolderAtLisa().getIncomingFiles().size());
+    }
+}
@@ -19,6 +19,10 @@
  */
 package de.dal33t.powerfolder.light;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Date;
 
@@ -109,6 +113,51 @@ public class FileInfoTest extends TestCase {
         testAssertEquals(fInfo, copy);
     }
 
+    public void testCodec() throws IOException {
+        FolderInfo foInfo = new FolderInfo("Random name of folder "
+            + IdGenerator.makeFolderId(), IdGenerator.makeFolderId());
+        MemberInfo mInfo = new MemberInfo("Nickname", IdGenerator.makeId(),
+            IdGenerator.makeId());
+        AccountInfo aInfo = new AccountInfo(IdGenerator.makeId(), "Nickname",
+            "Nick name hans");
+        FileInfo[] fInfos = new FileInfo[]{
+            FileInfoFactory.unmarshallExistingFile(foInfo,
+                "subdir/Xyz/Filename.xlsx", IdGenerator.makeFileId(),
+                6300404, mInfo, aInfo, new Date(), 4711, "MD5:XYZ", false,
+                "sync,share,xx"),
+            FileInfoFactory.unmarshallExistingFile(foInfo,
+                "subdir/Xyz/Other.txt", null, 0, mInfo, aInfo, new Date(0),
+                0, null, false, null),
+            FileInfoFactory.unmarshallExistingFile(foInfo, "subdir/Xyz",
+                null, 0, mInfo, null, new Date(), 2, null, true, null),
+            FileInfoFactory.unmarshallDeletedFile(foInfo, "Root file ü.doc",
+                null, null, aInfo, new Date(), 3, null, false, null)};
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bOut);
+        FileInfoCodec.writeHeader(out);
+        FileInfoCodec.writeFileInfos(out, fInfos);
+        FileInfoCodec.writeMemberInfos(out, new MemberInfo[]{mInfo});
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+            bOut.toByteArray()));
+        assertEquals(FileInfoCodec.VERSION, FileInfoCodec.readHeader(in));
+        FileInfo[] copies = FileInfoCodec.readFileInfos(in);
+        assertEquals(fInfos.length, copies.length);
+        for (int i = 0; i < fInfos.length; i++) {
+            testAssertEquals(fInfos[i], copies[i]);
+            assertEquals(fInfos[i].isDiretory(), copies[i].isDiretory());
+            assertEquals(fInfos[i].isDeleted(), copies[i].isDeleted());
+            assertEquals(fInfos[i].getModifiedByAccount(),
+                copies[i].getModifiedByAccount());
+        }
+        MemberInfo[] members = FileInfoCodec.readMemberInfos(in);
+        assertEquals(1, members.length);
+        assertEquals(mInfo, members[0]);
+        assertEquals(mInfo.nick, members[0].nick);
+    }
+
     private void testAssertEquals(FileInfo fInfo, FileInfo copy) {
         // Test
         assertEquals(fInfo, copy);
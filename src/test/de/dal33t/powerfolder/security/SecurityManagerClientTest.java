@@ -0,0 +1,194 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.security;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.clientserver.SecurityService;
+import de.dal33t.powerfolder.clientserver.ServerClient;
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+
+/**
+ * Tests the permission cache of the {@link SecurityManagerClient} under
+ * concurrent access.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ * @version $Revision: 1.5 $
+ */
+public class SecurityManagerClientTest extends ControllerTestCase {
+    private static final int N_FOLDERS = 20;
+    private static final int N_THREADS = 8;
+
+    private List<FolderInfo> folders;
+    private TestSecurityService service;
+    private SecurityManagerClient securityManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        folders = new ArrayList<FolderInfo>();
+        for (int i = 0; i < N_FOLDERS; i++) {
+            folders.add(new FolderInfo("Folder " + i, IdGenerator
+                .makeFolderId()));
+        }
+        service = new TestSecurityService();
+        securityManager = new SecurityManagerClient(getController(),
+            new TestServerClient(getController(), service.createStub()));
+    }
+
+    public void testConcurrentPermissionChecks() throws InterruptedException
+    {
+        final AccountInfo aInfo = new AccountInfo(IdGenerator.makeId(),
+            "user");
+        final List<String> errors = new CopyOnWriteArrayList<String>();
+        Thread[] threads = new Thread[N_THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            final List<FolderInfo> order = new ArrayList<FolderInfo>(folders);
+            Collections.shuffle(order);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (FolderInfo foInfo : order) {
+                        check(aInfo, foInfo, errors);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        assertTrue("Inconsistent permissions: " + errors, errors.isEmpty());
+        assertTrue("Permission requests not executed concurrently",
+            service.maxConcurrent.get() > 1);
+
+        // All cached now
+        int requests = service.requests.get();
+        for (FolderInfo foInfo : folders) {
+            check(aInfo, foInfo, errors);
+        }
+        assertTrue("Inconsistent permissions: " + errors, errors.isEmpty());
+        assertEquals(requests, service.requests.get());
+    }
+
+    private void check(AccountInfo aInfo, FolderInfo foInfo,
+        List<String> errors)
+    {
+        FolderPermission permission = FolderPermission.read(foInfo);
+        boolean expected = isGranted(permission);
+        if (securityManager.hasPermission(aInfo, permission) != expected) {
+            errors.add(permission.toString());
+        }
+    }
+
+    private static boolean isGranted(Permission permission) {
+        return (permission.hashCode() & 1) == 0;
+    }
+
+    /**
+     * Answers permission requests after a short delay.
+     */
+    private static class TestSecurityService implements InvocationHandler {
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        private SecurityService createStub() {
+            return (SecurityService) Proxy.newProxyInstance(
+                SecurityService.class.getClassLoader(),
+                new Class[]{SecurityService.class}, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            if (!method.getName().equals("hasPermission")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            requests.incrementAndGet();
+            int now = concurrent.incrementAndGet();
+            int max;
+            while (now > (max = maxConcurrent.get())) {
+                if (maxConcurrent.compareAndSet(max, now)) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(50);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+            return isGranted((Permission) args[1]);
+        }
+    }
+
+    /**
+     * A client logged in to a server, which uses the given security service.
+     */
+    private static class TestServerClient extends ServerClient {
+        private final SecurityService securityService;
+        private final Account account = new Account(IdGenerator.makeId());
+
+        private TestServerClient(Controller controller,
+            SecurityService securityService)
+        {
+            super(controller);
+            this.securityService = securityService;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isLoggingIn() {
+            return false;
+        }
+
+        @Override
+        public boolean isLoggedIn() {
+            return true;
+        }
+
+        @Override
+        public Account getAccount() {
+            return account;
+        }
+
+        @Override
+        public SecurityService getSecurityService() {
+            return securityService;
+        }
+    }
+}
@@ -771,7 +771,7 @@ public class DeletionSyncTest extends TwoControllerTestCase {
             Path diskFile = fileInfo.getDiskFile(getContollerLisa().getFolderRepository());
             boolean notInSync = !fileInfo.inSyncWithDisk(diskFile);
             if (notInSync) {
-                getFolderAtLisa().getDAO().delete(null, fileInfo);
+                getFolderAtLisa().removeLocalFileInfo(fileInfo);
             }
         }
         getContollerLisa().getFolderRepository().getFileRequestor()
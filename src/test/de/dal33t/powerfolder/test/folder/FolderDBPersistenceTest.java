@@ -0,0 +1,85 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.test.folder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the persistence of the folder database: Snapshot and journal.
+ */
+public class FolderDBPersistenceTest extends ControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setupTestFolder(SyncProfile.HOST_FILES);
+    }
+
+    public void testReloadSnapshotAndJournal() {
+        for (int i = 0; i < 20; i++) {
+            TestHelper.createRandomFile(getFolder().getLocalBase());
+        }
+        scanFolder(getFolder());
+        assertEquals(20, getFolder().getKnownItemCount());
+
+        // Writes the snapshot (first persist ever)
+        Folder folder = reloadFolder(getFolder());
+        assertEquals(20, folder.getKnownItemCount());
+        Path dbFile = folder.getSystemSubDir().resolve(Constants.DB_FILENAME);
+        assertTrue(Files.exists(dbFile));
+
+        // Changes now only go into the journal
+        Path newFile = TestHelper.createRandomFile(folder.getLocalBase());
+        FileInfo deleted = folder.getKnownFiles().iterator().next();
+        folder.removeFilesLocal(deleted);
+        scanFolder(folder);
+
+        folder = reloadFolder(folder);
+        assertEquals(21, folder.getKnownItemCount());
+        assertTrue(Files.exists(folder.getSystemSubDir().resolve(
+            Constants.DB_JOURNAL_FILENAME)));
+        assertTrue(folder.getFile(deleted).isDeleted());
+        boolean found = false;
+        for (FileInfo fInfo : folder.getKnownFiles()) {
+            if (fInfo.getFilenameOnly().equals(
+                newFile.getFileName().toString()))
+            {
+                found = true;
+            }
+        }
+        assertTrue("New file not found after reload", found);
+    }
+
+    private Folder reloadFolder(Folder folder) {
+        FolderInfo foInfo = folder.getInfo();
+        Path baseDir = folder.getLocalBase();
+        getController().getFolderRepository().removeFolder(folder, false);
+        return joinFolder(foInfo, baseDir, SyncProfile.HOST_FILES);
+    }
+}
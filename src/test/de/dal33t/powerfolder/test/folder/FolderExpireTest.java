@@ -22,10 +22,14 @@ package de.dal33t.powerfolder.test.folder;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
 
 /**
  * This test checks that a FileInfo expires after a period if deleted.
@@ -111,4 +115,35 @@ public class FolderExpireTest extends ControllerTestCase {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * Test the expiry, if the maintenance runs in several slices.
+     */
+    public void testExpireInSlices() throws IOException {
+        ConfigurationEntry.DB_MAINTENANCE_SLICE_SIZE.setValue(getController(),
+            2);
+        Path localBase = getFolder().getLocalBase();
+        List<Path> files = new ArrayList<Path>();
+        for (int i = 0; i < 10; i++) {
+            files.add(TestHelper.createRandomFile(localBase, "file" + i
+                + ".txt"));
+        }
+        scanFolder(getFolder());
+        assertEquals(12, getFolder().getKnownItemCount());
+
+        Files.delete(localBase.resolve("deleted.txt"));
+        for (int i = 0; i < 5; i++) {
+            Files.delete(files.get(i));
+        }
+        scanFolder(getFolder());
+        assertEquals(12, getFolder().getKnownItemCount());
+
+        getFolder().maintainFolderDB(System.currentTimeMillis() + 1000);
+        assertEquals(6, getFolder().getKnownItemCount());
+        for (int i = 5; i < 10; i++) {
+            assertNotNull(getFolder().getDAO().find(
+                FileInfoFactory.lookupInstance(getFolder(), files.get(i)),
+                null));
+        }
+    }
+
+}
@@ -21,13 +21,21 @@ package de.dal33t.powerfolder.test.folder;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.Collection;
 
 import de.dal33t.powerfolder.Feature;
+import de.dal33t.powerfolder.disk.FileHasher;
+import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.disk.FolderScanner;
+import de.dal33t.powerfolder.disk.RemainingFiles;
 import de.dal33t.powerfolder.disk.ScanResult;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.Condition;
 import de.dal33t.powerfolder.util.test.ControllerTestCase;
 import de.dal33t.powerfolder.util.test.TestHelper;
 
@@ -122,11 +130,135 @@ public class FolderScannerTest extends ControllerTestCase {
         }
     }
 
+    public void testParallelScans() throws Exception {
+        final FolderScanner folderScanner = getController()
+            .getFolderRepository().getFolderScanner();
+        Folder other = joinFolder(new FolderInfo("Other",
+            IdGenerator.makeFolderId()), TestHelper.getTestDir().resolve(
+            "otherFolder"), SyncProfile.MANUAL_SYNCHRONIZATION);
+        for (int d = 0; d < 10; d++) {
+            for (int i = 0; i < 20; i++) {
+                TestHelper.createRandomFile(getFolder().getLocalBase().resolve(
+                    "dir" + d + "/sub"));
+                TestHelper.createRandomFile(other.getLocalBase().resolve(
+                    "dir" + d));
+            }
+        }
+
+        final ScanResult[] otherResult = new ScanResult[1];
+        final Folder otherFolder = other;
+        Thread thread = new Thread() {
+            public void run() {
+                otherResult[0] = scanFolderWaitIfBusy(folderScanner,
+                    otherFolder);
+            }
+        };
+        thread.start();
+        ScanResult result = scanFolderWaitIfBusy(folderScanner, getFolder());
+        thread.join();
+
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        // 200 files + 20 dirs
+        assertEquals(result.toString(), 220, result.getNewFiles().size());
+        assertEquals(220, result.getTotalFilesCount());
+        assertTrue(result.getFilesPerSecond() > 0);
+        assertEquals(ScanResult.ResultState.SCANNED,
+            otherResult[0].getResultState());
+        // 200 files + 10 dirs
+        assertEquals(otherResult[0].toString(), 210, otherResult[0]
+            .getNewFiles().size());
+        assertTrue(folderScanner.getFilesPerSecond() > 0);
+        assertFalse(folderScanner.isScanning(getFolder()));
+    }
+
+    /**
+     * PFC-2352: New and changed files get their content hashes calculated in
+     * background after the scan.
+     */
+    public void testContentHashes() throws Exception {
+        getFolder().setSyncProfile(SyncProfile.HOST_FILES);
+        final Path file = TestHelper.createRandomFile(getFolder()
+            .getLocalBase());
+        scanFolder(getFolder());
+        final FileInfo fInfo = FileInfoFactory.lookupInstance(getFolder(),
+            file);
+        waitForHashes(fInfo);
+        assertEquals(sha256(file), getFolder().getFile(fInfo).getHashes());
+        assertEquals(0, getFolder().getFile(fInfo).getVersion());
+
+        // Changed file gets new hashes
+        TestHelper.waitMilliSeconds(2100);
+        TestHelper.changeFile(file);
+        scanFolder(getFolder());
+        assertEquals(1, getFolder().getFile(fInfo).getVersion());
+        waitForHashes(fInfo);
+        assertEquals(sha256(file), getFolder().getFile(fInfo).getHashes());
+        assertEquals(1, getFolder().getFile(fInfo).getVersion());
+    }
+
+    private void waitForHashes(final FileInfo fInfo) {
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                FileInfo localInfo = getFolder().getFile(fInfo);
+                return localInfo != null && localInfo.getHashes() != null;
+            }
+        });
+    }
+
+    private static String sha256(Path file) throws Exception {
+        MessageDigest digest = MessageDigest
+            .getInstance(FileHasher.ALGORITHM);
+        return FileHasher.toHashString(digest.digest(Files
+            .readAllBytes(file)));
+    }
+
+    /**
+     * #1531: Case-insensitive lookup of files found on disk must not scan all
+     * remaining known files.
+     */
+    public void testIgnoreCaseLookupBenchmark() {
+        int n = 50000;
+        RemainingFiles remaining = new RemainingFiles(true);
+        for (int i = 0; i < n; i++) {
+            remaining.add(FileInfoFactory.lookupInstance(getFolder().getInfo(),
+                "Dir" + (i % 100) + "/File-" + i + ".TXT"));
+        }
+        // Two known items differing in case only
+        remaining.add(FileInfoFactory.lookupInstance(getFolder().getInfo(),
+            "Dir1/file-1.txt"));
+
+        long start = System.currentTimeMillis();
+        int found = 0;
+        for (int i = 0; i < n; i++) {
+            // New files
+            assertNull(remaining.removeFound("new/file-" + i + ".txt"));
+            // Known files with different case
+            if (remaining.removeFound("dir" + (i % 100) + "/file-" + i
+                + ".txt") != null)
+            {
+                found++;
+            }
+        }
+        long took = System.currentTimeMillis() - start;
+        System.out.println("Case-insensitive lookup of " + 2 * n
+            + " files took " + took + "ms");
+        assertEquals(n, found);
+        assertEquals(0, remaining.size());
+        // Quadratic lookup takes minutes here.
+        assertTrue("Lookup too slow: " + took + "ms", took < 10000);
+    }
+
     private ScanResult scanFolderWaitIfBusy(final FolderScanner folderScanner) {
+        return scanFolderWaitIfBusy(folderScanner, getFolder());
+    }
+
+    private ScanResult scanFolderWaitIfBusy(FolderScanner folderScanner,
+        Folder folder)
+    {
         ScanResult result;
         boolean scannerBusy;
         do {
-            result = folderScanner.scanFolder(getFolder());
+            result = folderScanner.scanFolder(folder);
             scannerBusy = ScanResult.ResultState.BUSY.equals(result
                 .getResultState());
             if (scannerBusy) {
@@ -27,16 +27,19 @@ import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
 
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PreferencesEntry;
 import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.disk.FolderStatistic;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.FolderStatisticInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.util.logging.LoggingManager;
 import de.dal33t.powerfolder.util.test.Condition;
@@ -461,6 +464,69 @@ public class FolderStatisticTest extends FiveControllerTestCase {
         assertAllInSync(1, Files.size(testFile));
     }
 
+    /**
+     * Tests that the statistics updated by the changed files are identical to
+     * the statistics calculated from all files.
+     */
+    public void testUpdateEqualsRecalculation() throws IOException {
+        assertTrue(tryToConnectSimpsons());
+        setSyncProfile(SyncProfile.AUTOMATIC_SYNCHRONIZATION);
+        List<Path> testFiles = new ArrayList<Path>();
+        for (int i = 0; i < 10; i++) {
+            testFiles.add(TestHelper.createRandomFile(getFolderAtBart()
+                .getLocalBase(), 1000 + i));
+        }
+        scanFolder(getFolderAtBart());
+        waitForCompletedDownloads(10, 0, 10, 10, 10);
+        waitForFileListOnTestFolder();
+        forceStatsCals();
+
+        setSyncProfile(SyncProfile.HOST_FILES);
+        // Let the recalculation after the sync profile change pass.
+        TestHelper.waitMilliSeconds(3000);
+
+        for (int i = 0; i < 3; i++) {
+            TestHelper.changeFile(testFiles.get(i), 500);
+        }
+        Files.delete(testFiles.get(3));
+        Files.delete(testFiles.get(4));
+        TestHelper.createRandomFile(getFolderAtBart().getLocalBase(), 2000);
+        TestHelper.createRandomFile(getFolderAtHomer().getLocalBase(), 3000);
+        scanFolder(getFolderAtBart());
+        scanFolder(getFolderAtHomer());
+        waitForFileListOnTestFolder();
+
+        assertUpdateEqualsRecalculation(getFolderAtHomer());
+        assertUpdateEqualsRecalculation(getFolderAtBart());
+        assertUpdateEqualsRecalculation(getFolderAtMarge());
+        assertUpdateEqualsRecalculation(getFolderAtLisa());
+        assertUpdateEqualsRecalculation(getFolderAtMaggie());
+        assertTotalFileCount(10);
+        assertIncomingFiles(4, 1, 5, 5, 5);
+    }
+
+    private static void assertUpdateEqualsRecalculation(Folder folder) {
+        FolderStatistic statistic = folder.getStatistic();
+        statistic.calculateChanges0();
+        FolderStatisticInfo updated = statistic.getInfo();
+        Date updatedDate = statistic.getLastFileChangeDate();
+
+        statistic.calculate0();
+        FolderStatisticInfo recalculated = statistic.getInfo();
+        assertNotSame(updated, recalculated);
+        assertEquals(recalculated.getTotalFilesCount(),
+            updated.getTotalFilesCount());
+        assertEquals(recalculated.getTotalSize(), updated.getTotalSize());
+        assertEquals(recalculated.getIncomingFilesCount(),
+            updated.getIncomingFilesCount());
+        assertEquals(recalculated.getFilesCount(), updated.getFilesCount());
+        assertEquals(recalculated.getFilesCountInSync(),
+            updated.getFilesCountInSync());
+        assertEquals(recalculated.getSizes(), updated.getSizes());
+        assertEquals(recalculated.getSizesInSync(), updated.getSizesInSync());
+        assertEquals(statistic.getLastFileChangeDate(), updatedDate);
+    }
+
     private final void forceStatsCals() {
         forceStatsCalc(getFolderAtHomer());
         forceStatsCalc(getFolderAtBart());
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.folder;
+
+import java.nio.file.Path;
+
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests that the incoming files follow remote changes, local changes and
+ * ignore patterns.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class IncomingFilesTest extends TwoControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connectBartAndLisa();
+        joinTestFolder(SyncProfile.MANUAL_SYNCHRONIZATION);
+    }
+
+    public void testIncomingFiles() {
+        Path changed = null;
+        for (int i = 0; i < 5; i++) {
+            TestHelper.createRandomFile(getFolderAtBart().getLocalBase(),
+                "file" + i + ".txt");
+            changed = TestHelper.createRandomFile(getFolderAtBart()
+                .getLocalBase(), "file" + i + ".bin");
+        }
+        scanFolder(getFolderAtBart());
+        waitForIncomingAtLisa(10);
+
+        // Ignore patterns
+        getFolderAtLisa().addPattern("*.txt");
+        assertEquals(5, getFolderAtLisa().getIncomingFiles().size());
+        getFolderAtLisa().removePattern("*.txt");
+        assertEquals(10, getFolderAtLisa().getIncomingFiles().size());
+
+        // Local changes
+        getFolderAtLisa().setSyncProfile(SyncProfile.AUTOMATIC_DOWNLOAD);
+        waitForIncomingAtLisa(0);
+        assertEquals(10, getFolderAtLisa().getKnownItemCount());
+
+        // Remote change
+        getFolderAtLisa().setSyncProfile(SyncProfile.MANUAL_SYNCHRONIZATION);
+        TestHelper.changeFile(changed);
+        scanFolder(getFolderAtBart());
+        waitForIncomingAtLisa(1);
+        assertEquals(changed.getFileName().toString(), getFolderAtLisa()
+            .getIncomingFiles().iterator().next().getFilenameOnly());
+    }
+
+    private void waitForIncomingAtLisa(final int n) {
+        TestHelper.waitForCondition(30, new ConditionWithMessage() {
+            public boolean reached() {
+                return getFolderAtLisa().getIncomingFiles().size() == n;
+            }
+
+            public String message() {
+                return "Incoming files at Lisa: "
+                    + getFolderAtLisa().getIncomingFiles();
+            }
+        });
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.test.folder;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.PreferencesEntry;
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.FolderFilesChanged;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+
+/**
+ * Benchmarks the processing of a large filelist received from a new member
+ * into a folder that already has most of the files locally.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ * @version $Revision: 1.5 $
+ */
+public class ReceiveFileListBenchmarkTest extends ControllerTestCase {
+
+    private static final int N_LOCAL = 100000;
+    private static final int N_REMOTE = 200000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        PreferencesEntry.EXPERT_MODE.setValue(getController(), true);
+        ConfigurationEntry.MASS_DELETE_PROTECTION.setValue(getController(),
+            true);
+        setupTestFolder(SyncProfile.AUTOMATIC_SYNCHRONIZATION);
+    }
+
+    /**
+     * The remote list overlaps the local files: Every 4th file has the same
+     * size and date but a higher version (same file), every 100th file got
+     * deleted remotely. The other half of the list is new.
+     */
+    public void testReceiveFileListBenchmark() {
+        Folder folder = getFolder();
+        Date modDate = new Date(System.currentTimeMillis() - 60000L);
+
+        // Local files as found by a scan
+        List<FileInfo> localFiles = new ArrayList<FileInfo>(N_LOCAL);
+        for (int i = 0; i < N_LOCAL; i++) {
+            localFiles.add(FileInfoFactory.unmarshallExistingFile(
+                folder.getInfo(), fileName(i), IdGenerator.makeFileId(), i,
+                getController().getMySelf().getInfo(), null, modDate, 1, null,
+                false, null));
+        }
+        folder.getDAO().store(null, localFiles);
+        assertEquals(N_LOCAL, folder.getKnownItemCount());
+
+        Member remote = new Member(getController(), new MemberInfo("Remote",
+            IdGenerator.makeId(), null));
+        // FolderInfo of the sender differs: Needs to be corrected
+        FolderInfo remoteFoInfo = createRandomFolderInfo();
+        List<FileInfo> files = new ArrayList<FileInfo>(N_REMOTE);
+        int nDeleted = 0;
+        for (int i = 0; i < N_REMOTE; i++) {
+            FileInfo fInfo;
+            if (i < N_LOCAL && i % 100 == 1) {
+                fInfo = FileInfoFactory.unmarshallDeletedFile(remoteFoInfo,
+                    fileName(i), IdGenerator.makeFileId(), remote.getInfo(),
+                    null, new Date(), 2, null, false, null);
+                nDeleted++;
+            } else if (i < N_LOCAL && i % 4 == 0) {
+                fInfo = FileInfoFactory.unmarshallExistingFile(remoteFoInfo,
+                    fileName(i), IdGenerator.makeFileId(), i, remote.getInfo(),
+                    null, modDate, 2, null, false, null);
+            } else if (i < N_LOCAL) {
+                fInfo = FileInfoFactory.unmarshallExistingFile(remoteFoInfo,
+                    fileName(i), IdGenerator.makeFileId(), i, remote.getInfo(),
+                    null, modDate, 1, null, false, null);
+            } else {
+                fInfo = FileInfoFactory.unmarshallExistingFile(remoteFoInfo,
+                    fileName(i), IdGenerator.makeFileId(), i, remote.getInfo(),
+                    null, new Date(), 1, null, false, null);
+            }
+            files.add(fInfo);
+        }
+        Message[] msgs = FileList.create4Test(remoteFoInfo, files,
+            new DiskItemFilter());
+
+        long start = System.currentTimeMillis();
+        for (Message msg : msgs) {
+            if (msg instanceof FileList) {
+                folder.fileListChanged(remote, (FileList) msg);
+            } else {
+                folder.fileListChanged(remote, (FolderFilesChanged) msg);
+            }
+        }
+        long took = System.currentTimeMillis() - start;
+        System.out.println("Receiving filelist with " + N_REMOTE
+            + " files (" + N_LOCAL + " local, " + nDeleted + " deleted) in "
+            + msgs.length + " messages took " + took + "ms");
+
+        assertEquals(N_REMOTE, folder.getDAO().count(remote.getId(), true,
+            false));
+        FileInfo fInfo = folder.getDAO().find(
+            FileInfoFactory.lookupInstance(folder.getInfo(),
+                fileName(N_REMOTE - 1)), remote.getId());
+        assertNotNull(fInfo);
+        assertEquals(folder.getInfo(), fInfo.getFolderInfo());
+
+        // Same file taken over
+        FileInfo sameFile = folder.getDAO().find(
+            FileInfoFactory.lookupInstance(folder.getInfo(), fileName(0)),
+            null);
+        assertEquals(2, sameFile.getVersion());
+        assertEquals(1, folder.getDAO().find(
+            FileInfoFactory.lookupInstance(folder.getInfo(), fileName(2)),
+            null).getVersion());
+
+        // Deletions below threshold: No switch to a safe profile
+        assertEquals(SyncProfile.AUTOMATIC_SYNCHRONIZATION,
+            folder.getSyncProfile());
+        assertTrue("Receiving too slow: " + took + "ms", took < 60000);
+    }
+
+    private static String fileName(int i) {
+        return "Dir" + (i % 100) + "/File-" + i + ".txt";
+    }
+
+    private static FolderInfo createRandomFolderInfo() {
+        return new FolderInfo("TestFolder / " + IdGenerator.makeId(),
+            IdGenerator.makeFolderId());
+    }
+}
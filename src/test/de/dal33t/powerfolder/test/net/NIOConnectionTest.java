@@ -0,0 +1,141 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.net.PlainNIOSocketConnectionHandler;
+import de.dal33t.powerfolder.net.PlainSocketConnectionHandler;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Test for NIO connections. Bart uses the non-blocking connection handler,
+ * Lisa the classic one.
+ *
+ * @author sprajc
+ */
+public class NIOConnectionTest extends TwoControllerTestCase {
+
+    @Override
+    protected void startControllerBart() {
+        try {
+            Files.write(Paths.get("build/test/ControllerBart/PowerFolder.config"),
+                "\nnet.nio=true\n".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        super.startControllerBart();
+    }
+
+    public void testIncomingConnection() {
+        connectBartAndLisa();
+        assertNIOAtBart();
+        transferFiles();
+    }
+
+    public void testOutgoingConnection() {
+        assertTrue(connect(getContollerBart(), getContollerLisa()));
+        assertNIOAtBart();
+        transferFiles();
+    }
+
+    public void testReconnect() {
+        connectBartAndLisa();
+        assertNIOAtBart();
+        disconnectBartAndLisa();
+        TestHelper.waitForCondition(10, new ConditionWithMessage() {
+            public String message() {
+                return "NIO connections at bart: " + getNIOConnectionCount();
+            }
+
+            public boolean reached() {
+                return getNIOConnectionCount() == 0;
+            }
+        });
+        assertTrue(connect(getContollerBart(), getContollerLisa()));
+        assertNIOAtBart();
+    }
+
+    private void assertNIOAtBart() {
+        Member lisaAtBart = getContollerBart().getNodeManager().getNode(
+            getContollerLisa().getMySelf().getId());
+        ConnectionHandler peer = lisaAtBart.getPeer();
+        assertTrue("Wrong connection handler at bart: " + peer,
+            peer instanceof PlainNIOSocketConnectionHandler);
+        Member bartAtLisa = getContollerLisa().getNodeManager().getNode(
+            getContollerBart().getMySelf().getId());
+        assertTrue("Wrong connection handler at lisa: " + bartAtLisa.getPeer(),
+            bartAtLisa.getPeer() instanceof PlainSocketConnectionHandler);
+        assertEquals(1, getNIOConnectionCount());
+    }
+
+    private int getNIOConnectionCount() {
+        try {
+            return getContollerBart().getIOProvider().getNIOSelectorPool()
+                .getConnectionCount();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void transferFiles() {
+        joinTestFolder(SyncProfile.AUTOMATIC_DOWNLOAD);
+        // Some small and one bigger than the max send backlog.
+        for (int i = 0; i < 20; i++) {
+            TestHelper.createRandomFile(getFolderAtBart().getLocalBase(),
+                1000 + i * 100);
+        }
+        TestHelper.createRandomFile(getFolderAtBart().getLocalBase(),
+            5 * 1024 * 1024);
+        TestHelper.createRandomFile(getFolderAtLisa().getLocalBase(),
+            3 * 1024 * 1024);
+        scanFolder(getFolderAtBart());
+        scanFolder(getFolderAtLisa());
+
+        TestHelper.waitForCondition(40, new ConditionWithMessage() {
+            public String message() {
+                return "Files at lisa: "
+                    + getFolderAtLisa().getKnownItemCount() + ", at bart: "
+                    + getFolderAtBart().getKnownItemCount();
+            }
+
+            public boolean reached() {
+                return getFolderAtLisa().getKnownItemCount() == 22
+                    && getFolderAtBart().getKnownItemCount() == 22
+                    && getContollerLisa().getTransferManager()
+                        .countActiveDownloads() == 0
+                    && getContollerBart().getTransferManager()
+                        .countActiveDownloads() == 0;
+            }
+        });
+        assertTrue(getFolderAtLisa().getIncomingFiles().isEmpty());
+        assertTrue(getFolderAtBart().getIncomingFiles().isEmpty());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.KnownNodes;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.TransferStatus;
+import de.dal33t.powerfolder.net.SendQueue;
+
+public class SendQueueTest extends TestCase {
+
+    public void testControlFirst() {
+        SendQueue queue = new SendQueue(1024 * 1024);
+        FileChunk chunk1 = createChunk(1000);
+        FileChunk chunk2 = createChunk(1000);
+        Ping ping = new Ping();
+        Pong pong = new Pong(ping);
+        queue.offer(chunk1);
+        queue.offer(chunk2);
+        queue.offer(ping);
+        queue.offer(pong);
+        assertEquals(4, queue.size());
+        assertTrue(queue.getBytes() > 2000);
+
+        assertSame(ping, queue.poll());
+        assertSame(pong, queue.poll());
+        assertSame(chunk1, queue.poll());
+        assertSame(chunk2, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBytes());
+    }
+
+    public void testShedStatusWhenFull() {
+        SendQueue queue = new SendQueue(10000);
+        assertTrue(queue.offer(new TransferStatus()));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(createChunk(5000)));
+        }
+        assertTrue(queue.isFull());
+        assertFalse(queue.isOverflow());
+
+        // Status is shed, all others are still queued
+        assertFalse(queue.offer(new TransferStatus()));
+        assertFalse(queue.offer(new KnownNodes(new MemberInfo[0])));
+        assertTrue(queue.offer(createChunk(100)));
+        assertTrue(queue.offer(new Ping()));
+        assertEquals(6, queue.size());
+
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getBytes());
+        assertTrue(queue.offer(new TransferStatus()));
+    }
+
+    public void testOverflow() {
+        SendQueue queue = new SendQueue(10000);
+        for (int i = 0; i < 7; i++) {
+            assertTrue(queue.offer(createChunk(5000)));
+        }
+        assertTrue(queue.isFull());
+        assertFalse(queue.isOverflow());
+        assertTrue(queue.offer(createChunk(5000)));
+        assertTrue(queue.isOverflow());
+        while (queue.isFull()) {
+            queue.poll();
+        }
+        assertFalse(queue.isOverflow());
+    }
+
+    private static FileChunk createChunk(int size) {
+        FileChunk chunk = new FileChunk();
+        chunk.data = new byte[size];
+        return chunk;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests the sync over connections, which compress all messages in one deflate
+ * stream.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class StreamCompressionTest extends TwoControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Compress also on LAN
+        ConfigurationEntry.USE_ZIP_ON_LAN.setValue(getContollerBart(), true);
+        ConfigurationEntry.USE_ZIP_ON_LAN.setValue(getContollerLisa(), true);
+        connectBartAndLisa();
+        joinTestFolder(SyncProfile.AUTOMATIC_DOWNLOAD);
+    }
+
+    public void testSync() throws IOException {
+        final int nFiles = 100;
+        for (int i = 0; i < nFiles - 2; i++) {
+            TestHelper.createRandomFile(getFolderAtBart().getLocalBase());
+        }
+        // Multiple chunks, random data is stored only
+        TestHelper.createRandomFile(getFolderAtBart().getLocalBase(),
+            3 * 1024 * 1024);
+        TestHelper.createTestFile(getFolderAtBart().getLocalBase(),
+            "archive.zip", new byte[200000]);
+        scanFolder(getFolderAtBart());
+
+        TestHelper.waitForCondition(60, new ConditionWithMessage() {
+            public boolean reached() {
+                return getFolderAtLisa().getKnownItemCount() == nFiles;
+            }
+
+            public String message() {
+                return "Known files at Lisa: "
+                    + getFolderAtLisa().getKnownItemCount();
+            }
+        });
+        assertTrue(getContollerBart().getNodeManager()
+            .getNode(getContollerLisa().getMySelf().getInfo())
+            .isCompletelyConnected());
+        for (FileInfo fInfo : getFolderAtLisa().getKnownFiles()) {
+            Path fileAtLisa = fInfo.getDiskFile(getContollerLisa()
+                .getFolderRepository());
+            Path fileAtBart = fInfo.getDiskFile(getContollerBart()
+                .getFolderRepository());
+            assertFileMatch(fileAtLisa, fInfo, getContollerLisa());
+            assertTrue(fInfo.toDetailString(),
+                TestHelper.compareFiles(fileAtBart, fileAtLisa));
+        }
+    }
+}
@@ -38,6 +38,20 @@ import de.dal33t.powerfolder.transfer.LimitedOutputStream;
 public class BandwidthLimitText extends TestCase {
     BandwidthProvider provider = new BandwidthProvider();
 
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Shared limiters, reset what previous tests left
+        BandwidthLimiter.LAN_INPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.TOTAL_INPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.TOTAL_OUTPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+    }
+
     public void testUnlimited() {
         BandwidthLimiter bl = BandwidthLimiter.LAN_INPUT_BANDWIDTH_LIMITER;
         try {
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.transfer.BandwidthLimiter;
+import de.dal33t.powerfolder.transfer.BandwidthProvider;
+
+/**
+ * Tests the token bucket of the {@link BandwidthLimiter}, the child limiters
+ * of connections and the total limiters.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ * @version $Revision: 1.5 $
+ */
+public class BandwidthLimiterTest extends TestCase {
+    private BandwidthProvider provider = new BandwidthProvider();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        resetLimiters();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        provider.shutdown();
+        resetLimiters();
+        super.tearDown();
+    }
+
+    public void testSubSecondRefill() throws InterruptedException {
+        BandwidthLimiter bl = BandwidthLimiter.LAN_INPUT_BANDWIDTH_LIMITER;
+        bl.setAvailable(0);
+        provider.start();
+        provider.setLimitBPS(bl, 10000);
+        Thread.sleep(500);
+        long available = bl.getAvailable();
+        assertTrue("No refill within a second: " + available, available > 0);
+        assertTrue("Refilled too much: " + available, available < 10000);
+        Thread.sleep(2000);
+        provider.removeLimiter(bl);
+        provider.shutdown();
+        assertEquals(10000, bl.getAvailable());
+    }
+
+    public void testChild() throws InterruptedException {
+        BandwidthLimiter bl = BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER;
+        bl.setAvailable(1000);
+        BandwidthLimiter child = bl.createChild();
+        assertSame(bl, child.getParent());
+        assertEquals(BandwidthLimiter.UNLIMITED, child.getAvailable());
+        assertEquals(1000, child.requestBandwidth(5000));
+        assertEquals(0, bl.getAvailable());
+        assertEquals(0, child.tryRequestBandwidth(100));
+        child.returnAvailable(400);
+        assertEquals(400, bl.getAvailable());
+
+        // Limited child
+        child.setAvailable(100);
+        assertEquals(100, child.tryRequestBandwidth(1000));
+        assertEquals(300, bl.getAvailable());
+        assertEquals(0, child.tryRequestBandwidth(1000));
+    }
+
+    public void testTotalLimitsLANAndWAN() throws InterruptedException {
+        BandwidthLimiter total = BandwidthLimiter.TOTAL_OUTPUT_BANDWIDTH_LIMITER;
+        assertSame(total, BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER
+            .getParent());
+        assertSame(total, BandwidthLimiter.WAN_OUTPUT_BANDWIDTH_LIMITER
+            .getParent());
+        total.setAvailable(1000);
+        BandwidthLimiter lan = BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER
+            .createChild();
+        BandwidthLimiter wan = BandwidthLimiter.WAN_OUTPUT_BANDWIDTH_LIMITER
+            .createChild();
+        assertEquals(600, lan.requestBandwidth(600));
+        assertEquals(400, wan.requestBandwidth(600));
+        assertEquals(0, lan.tryRequestBandwidth(100));
+        assertEquals(0, wan.tryRequestBandwidth(100));
+        BandwidthLimiter.WAN_OUTPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+    }
+
+    public void testChildrenShareParent() throws InterruptedException {
+        BandwidthLimiter bl = BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER;
+        bl.setAvailable(0);
+        provider.start();
+        provider.setLimitBPS(bl, 100 * 1024);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong[] granted = new AtomicLong[2];
+        Thread[] threads = new Thread[granted.length];
+        for (int i = 0; i < threads.length; i++) {
+            final BandwidthLimiter child = bl.createChild();
+            final AtomicLong counter = new AtomicLong();
+            granted[i] = counter;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            counter.addAndGet(child.requestBandwidth(1024));
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(3000);
+        stop.set(true);
+        provider.removeLimiter(bl);
+        provider.shutdown();
+        bl.setAvailable(BandwidthLimiter.UNLIMITED);
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        long total = granted[0].get() + granted[1].get();
+        // 3 seconds plus the bucket of one second
+        assertTrue("Parent limit exceeded: " + total, total <= 4 * 100 * 1024);
+        assertTrue("Parent limit not used: " + total, total >= 2 * 100 * 1024);
+        assertTrue("Unfair split: " + granted[0] + " / " + granted[1],
+            granted[0].get() > total / 3 && granted[1].get() > total / 3);
+    }
+
+    /**
+     * The limiters are shared. Resets what previous tests left.
+     */
+    private static void resetLimiters() {
+        BandwidthLimiter.LAN_INPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.LAN_OUTPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.WAN_INPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.WAN_OUTPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.TOTAL_INPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+        BandwidthLimiter.TOTAL_OUTPUT_BANDWIDTH_LIMITER
+            .setAvailable(BandwidthLimiter.UNLIMITED);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.message.FileBatch;
+import de.dal33t.powerfolder.transfer.FileBatchManager;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests the transfer of small files in batches.
+ *
+ * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
+ */
+public class FileBatchTest extends TwoControllerTestCase {
+    private static final int N_FILES = 200;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConfigurationEntry.TRANSFERS_FILE_BATCHES.setValue(
+            getContollerLisa(), true);
+        connectBartAndLisa();
+        joinTestFolder(SyncProfile.AUTOMATIC_DOWNLOAD);
+    }
+
+    public void testManySmallFiles() throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        for (int i = 0; i < N_FILES; i++) {
+            files.add(TestHelper.createRandomFile(getFolderAtBart()
+                .getLocalBase()));
+        }
+        // One larger file, which is not batched
+        files.add(TestHelper.createRandomFile(getFolderAtBart()
+            .getLocalBase(), FileBatchManager.MAX_FILE_SIZE + 1));
+        scanFolder(getFolderAtBart());
+        assertEquals(N_FILES + 1, getFolderAtBart().getKnownItemCount());
+
+        TestHelper.waitForCondition(60, new ConditionWithMessage() {
+            public boolean reached() {
+                return getFolderAtLisa().getKnownItemCount() == N_FILES + 1
+                    && getContollerLisa().getTransferManager()
+                        .getFileBatchManager().countRequested() == 0;
+            }
+
+            public String message() {
+                return "Known files at Lisa: "
+                    + getFolderAtLisa().getKnownItemCount()
+                    + ", requested in batches: "
+                    + getContollerLisa().getTransferManager()
+                        .getFileBatchManager().countRequested();
+            }
+        });
+
+        // Only the large file was downloaded the normal way
+        assertEquals(1, getContollerLisa().getTransferManager()
+            .countCompletedDownloads());
+        for (FileInfo fInfo : getFolderAtLisa().getKnownFiles()) {
+            Path fileAtLisa = fInfo.getDiskFile(getContollerLisa()
+                .getFolderRepository());
+            Path fileAtBart = fInfo.getDiskFile(getContollerBart()
+                .getFolderRepository());
+            assertFileMatch(fileAtLisa, fInfo, getContollerLisa());
+            assertTrue(fInfo.toDetailString(),
+                TestHelper.compareFiles(fileAtBart, fileAtLisa));
+        }
+        TestHelper.assertIncompleteFilesGone(this);
+    }
+
+    public void testInvalidBatch() {
+        FileInfo fInfo = FileInfoFactory.unmarshallExistingFile(
+            getFolderAtLisa().getInfo(), "small.txt", IdGenerator.makeId(),
+            10, null, null, new Date(), 1, null, false, null);
+        assertTrue(new FileBatch(new FileInfo[]{fInfo},
+            new byte[][]{new byte[10]}).isValid());
+        // Could not be sent
+        assertTrue(new FileBatch(new FileInfo[]{fInfo}, new byte[1][])
+            .isValid());
+
+        FileBatch batch = new FileBatch();
+        assertFalse(batch.isValid());
+        batch.files = new FileInfo[]{fInfo};
+        batch.data = new byte[0][];
+        assertFalse("Number of files and data differs", batch.isValid());
+        batch.files = new FileInfo[1];
+        batch.data = new byte[][]{new byte[10]};
+        assertFalse("No file", batch.isValid());
+        batch.files = new FileInfo[]{fInfo};
+        batch.data = new byte[][]{new byte[11]};
+        assertFalse("Data larger than file", batch.isValid());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.nio.file.Path;
+
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.transfer.swarm.CachingFileRecordProvider;
+import de.dal33t.powerfolder.util.PathUtils;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the disk cache of file part records for delta sync.
+ */
+public class FileRecordCacheTest extends ControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setupTestFolder(SyncProfile.HOST_FILES);
+    }
+
+    public void testCachedRecord() throws Exception {
+        Path file = TestHelper.createRandomFile(getFolder().getLocalBase(),
+            1024 * 1024);
+        scanFolder(getFolder());
+        FileInfo fInfo = getFolder().getFile(
+            FileInfoFactory.lookupInstance(getFolder(), file));
+        CachingFileRecordProvider provider = new CachingFileRecordProvider(
+            getController());
+
+        FilePartsRecord record = provider.retrieveRecord(fInfo, null);
+        assertTrue(provider.getCacheSize() > 0);
+        Path cacheDir = getFolder().getSystemSubDir().resolve(
+            CachingFileRecordProvider.CACHE_SUBDIR);
+        assertEquals(1, PathUtils.getNumberOfSiblings(cacheDir));
+        assertEquals(record, provider.retrieveRecord(fInfo, null));
+
+        // Survives restart
+        provider.shutdown();
+        provider = new CachingFileRecordProvider(getController());
+        assertEquals(record, provider.retrieveRecord(fInfo, null));
+
+        // New version replaces cached record
+        TestHelper.waitMilliSeconds(2100);
+        TestHelper.changeFile(file, 2 * 1024 * 1024);
+        scanFolder(getFolder());
+        FileInfo newInfo = getFolder().getFile(fInfo);
+        assertEquals(1, newInfo.getVersion());
+        FilePartsRecord newRecord = provider.retrieveRecord(newInfo, null);
+        assertEquals(2 * 1024 * 1024, newRecord.getFileLength());
+        assertFalse(record.equals(newRecord));
+        assertEquals(1, PathUtils.getNumberOfSiblings(cacheDir));
+        provider.shutdown();
+    }
+}
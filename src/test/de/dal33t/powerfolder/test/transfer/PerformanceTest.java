@@ -1,9 +1,13 @@
 package de.dal33t.powerfolder.test.transfer;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.disk.DiskItemFilter;
 import de.dal33t.powerfolder.disk.SyncProfile;
@@ -13,7 +17,10 @@ import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.message.FileList;
 import de.dal33t.powerfolder.message.Message;
 import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
 import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
 
 /**
@@ -49,6 +56,54 @@ public class PerformanceTest extends TwoControllerTestCase {
 
     }
 
+    /**
+     * Measures the upload throughput with and without sending file chunks as
+     * file region.
+     */
+    public void testUploadThroughput() throws IOException {
+        getFolderAtLisa().setSyncProfile(SyncProfile.AUTOMATIC_DOWNLOAD);
+        long withRegions = measureUpload();
+
+        ConfigurationEntry.TRANSFERS_FILE_CHUNK_REGIONS.setValue(
+            getContollerLisa(), false);
+        disconnectBartAndLisa();
+        connectBartAndLisa();
+        long withoutRegions = measureUpload();
+
+        System.out.println("Upload throughput with file regions: "
+            + Format.formatBytes(withRegions) + "/s, without: "
+            + Format.formatBytes(withoutRegions) + "/s");
+    }
+
+    /**
+     * @return the bytes per second uploaded from bart to lisa
+     * @throws IOException
+     */
+    private long measureUpload() throws IOException {
+        final long size = 100 * 1024 * 1024;
+        final Path file = TestHelper.createRandomFile(getFolderAtBart()
+            .getLocalBase(), size);
+        final Path target = getFolderAtLisa().getLocalBase().resolve(
+            file.getFileName().toString());
+        long start = System.currentTimeMillis();
+        scanFolder(getFolderAtBart());
+        TestHelper.waitForCondition(120, new ConditionWithMessage() {
+            public boolean reached() {
+                try {
+                    return Files.exists(target) && Files.size(target) == size;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            public String message() {
+                return "File not downloaded at lisa: " + target;
+            }
+        });
+        long took = Math.max(1, System.currentTimeMillis() - start);
+        return size * 1000 / took;
+    }
+
     private FileInfo createTestFileInfo(FolderInfo foInfo, int i) {
         FileInfo fInfo = FileInfoFactory.unmarshallExistingFile(foInfo,
             "subdir/SUBDIR2withAlongName/Another_deep/Spreadsheet-" + i
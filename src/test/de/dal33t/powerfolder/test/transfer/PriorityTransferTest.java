@@ -19,12 +19,18 @@
  */
 package de.dal33t.powerfolder.test.transfer;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.Sequence;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 
+import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -32,6 +38,7 @@ import de.dal33t.powerfolder.transfer.DownloadManager;
 import de.dal33t.powerfolder.transfer.TransferManager;
 import de.dal33t.powerfolder.transfer.TransferPriorities;
 import de.dal33t.powerfolder.transfer.TransferPriorities.TransferPriority;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
 import de.dal33t.powerfolder.util.test.TestHelper;
 import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
 
@@ -129,4 +136,72 @@ public class PriorityTransferTest extends TwoControllerTestCase {
 
         mockery.assertIsSatisfied();
     }
+
+    /**
+     * A high priority file is requested first, even if not within the files
+     * usually requested in one pass.
+     */
+    public void testPriorityBeyondRequestLimit() {
+        connectBartAndLisa();
+        joinTestFolder(SyncProfile.HOST_FILES);
+        int nFiles = Constants.MAX_DLS_FROM_LAN_MEMBER * 2 + 10;
+        for (int i = 0; i < nFiles; i++) {
+            TestHelper.createRandomFile(getFolderAtLisa().getLocalBase(),
+                "file" + (1000 + i) + ".txt");
+        }
+        TestHelper.createRandomFile(getFolderAtLisa().getLocalBase(),
+            "zzz.txt");
+        scanFolder(getFolderAtLisa());
+        final List<FileInfo> fInfos = new ArrayList<FileInfo>(
+            getFolderAtLisa().getKnownFiles());
+        assertEquals(nFiles + 1, fInfos.size());
+        FileInfo highFile = null;
+        for (FileInfo fInfo : fInfos) {
+            if (fInfo.getFilenameOnly().equals("zzz.txt")) {
+                highFile = fInfo;
+            }
+        }
+        assertNotNull(highFile);
+        getFolderAtBart().getTransferPriorities().setPriority(highFile,
+            TransferPriority.HIGH);
+
+        final List<FileInfo> requested = Collections
+            .synchronizedList(new ArrayList<FileInfo>());
+        mockery.checking(new Expectations() {
+            {
+                for (FileInfo fInfo : fInfos) {
+                    allowing(helperBart).downloadNewestVersion(fInfo, true);
+                    will(new CustomAction("Record request") {
+                        public Object invoke(Invocation invocation) {
+                            requested.add((FileInfo) invocation
+                                .getParameter(0));
+                            return null;
+                        }
+                    });
+                }
+            }
+        });
+
+        getFolderAtBart().setSyncProfile(SyncProfile.AUTOMATIC_DOWNLOAD);
+        TestHelper.waitForCondition(10, new ConditionWithMessage() {
+            public boolean reached() {
+                return !requested.isEmpty();
+            }
+
+            public String message() {
+                return "No files requested";
+            }
+        });
+        assertEquals(highFile, requested.get(0));
+        TestHelper.waitForCondition(10, new ConditionWithMessage() {
+            public boolean reached() {
+                return getContollerBart().getFolderRepository()
+                    .getFileRequestor().getRequestedFilesCount() > 0;
+            }
+
+            public String message() {
+                return "Requested files not counted";
+            }
+        });
+    }
 }
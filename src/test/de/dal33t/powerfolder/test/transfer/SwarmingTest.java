@@ -27,9 +27,11 @@ import java.util.Random;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.transfer.Download;
 import de.dal33t.powerfolder.transfer.DownloadManager;
 import de.dal33t.powerfolder.transfer.TransferManager;
@@ -55,6 +57,86 @@ public class SwarmingTest extends MultipleControllerTestCase {
 
     }
 
+    /**
+     * A fast and a slow source: The download must not wait for the parts
+     * requested from the slow source.
+     */
+    public void testMixedSpeedSources() throws IOException {
+        // Limit the local connections
+        Feature.OMIT_LOCAL_BANDWIDTH_LIMIT.disable();
+        try {
+            mixedSpeedSources();
+        } finally {
+            Feature.OMIT_LOCAL_BANDWIDTH_LIMIT.enable();
+        }
+    }
+
+    private void mixedSpeedSources() throws IOException {
+        final long fsize = 4000000;
+        nSetupControllers(3);
+        setConfigurationEntry(ConfigurationEntry.USE_SWARMING_ON_LAN, "true");
+        connectAll();
+        joinNTestFolder(SyncProfile.HOST_FILES);
+
+        TestHelper.createRandomFile(getFolderOf("0").getLocalBase(), fsize);
+        scanFolder(getFolderOf("0"));
+        final FileInfo fInfo = getFolderOf("0").getKnownFiles().iterator()
+            .next();
+
+        // Second source
+        getFolderOf("1").setSyncProfile(SyncProfile.AUTOMATIC_DOWNLOAD);
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return getContoller("1").getTransferManager()
+                    .countCompletedDownloads() == 1;
+            }
+        });
+        final TransferManager slow = getContoller("1").getTransferManager();
+        final TransferManager fast = getContoller("0").getTransferManager();
+        // Throttle only the connection of the slow source to the downloader
+        ConnectionHandler slowPeer = getContoller("1").getNodeManager()
+            .getNode(getContoller("2").getMySelf().getInfo()).getPeer();
+        assertNotNull(slowPeer);
+        slow.setUploadCPSForConnection(slowPeer, 20 * 1024);
+        long slowUploaded = slow.getUploadCounter().getBytesTransferred();
+        long fastUploaded = fast.getUploadCounter().getBytesTransferred();
+
+        // 20 KB/s for the whole file would take more than 3 minutes. Waiting
+        // for the parts queued at the slow source would take about 20 seconds
+        getFolderOf("2").setSyncProfile(SyncProfile.AUTOMATIC_DOWNLOAD);
+        TestHelper.waitForCondition(20, new ConditionWithMessage() {
+            public boolean reached() {
+                return getContoller("2").getTransferManager()
+                    .countCompletedDownloads() == 1;
+            }
+
+            public String message() {
+                return "Download: "
+                    + getContoller("2").getTransferManager()
+                        .getActiveDownload(fInfo) + ", fast uploaded: "
+                    + fast.getUploadCounter().getBytesTransferred()
+                    + ", slow uploaded: "
+                    + slow.getUploadCounter().getBytesTransferred();
+            }
+        });
+
+        // The slow source only got a small share
+        slowUploaded = slow.getUploadCounter().getBytesTransferred()
+            - slowUploaded;
+        fastUploaded = fast.getUploadCounter().getBytesTransferred()
+            - fastUploaded;
+        assertTrue("Slow source uploaded " + slowUploaded + " bytes",
+            slowUploaded < fsize / 4);
+        assertTrue("Fast source uploaded " + fastUploaded + " bytes",
+            fastUploaded > fsize * 3 / 4);
+
+        Path f0 = fInfo.getDiskFile(getContoller("0").getFolderRepository());
+        Path f2 = getFolderOf("2").getKnownFiles().iterator().next()
+            .getDiskFile(getContoller("2").getFolderRepository());
+        assertTrue(TestHelper.compareFiles(f0, f2));
+        TestHelper.assertIncompleteFilesGone(this);
+    }
+
     public void xtestKillerSwarm() throws IOException {
         nSetupControllers(20);
         setConfigurationEntry(ConfigurationEntry.USE_SWARMING_ON_LAN, "true");
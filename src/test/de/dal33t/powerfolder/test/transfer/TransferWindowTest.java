@@ -0,0 +1,79 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.transfer.TransferWindow;
+
+/**
+ * Tests the adaption of the {@link TransferWindow}.
+ */
+public class TransferWindowTest extends TestCase {
+    private static final long INITIAL = 500 * 1024;
+
+    public void testInitial() {
+        TransferWindow window = new TransferWindow(INITIAL, 10);
+        assertEquals(INITIAL, window.getWindow());
+        assertEquals(10, window.getMaxTransfers());
+        assertEquals(15, window.getMaxRequestsQueued(15));
+
+        // Nothing measured yet
+        assertFalse(window.update(0, 100, 100));
+        assertFalse(window.update(100000, -1, -1));
+        assertEquals(INITIAL, window.getWindow());
+    }
+
+    public void testGrowOnFatLink() {
+        TransferWindow window = new TransferWindow(INITIAL, 10);
+        // 10 MB/s, 200ms without any queuing delay
+        for (int i = 0; i < 30; i++) {
+            assertTrue(window.update(10 * 1024 * 1024, 200, 200));
+        }
+        assertTrue(window.getWindow() > 4 * INITIAL);
+        assertEquals(40, window.getMaxTransfers());
+        assertEquals(60, window.getMaxRequestsQueued(15));
+    }
+
+    public void testShrinkOnOverload() {
+        TransferWindow window = new TransferWindow(INITIAL, 10);
+        // 50 KB/s, RTT grew from 50ms to 10s: Data is queuing up
+        for (int i = 0; i < 30; i++) {
+            window.update(50 * 1024, 10000, 50);
+        }
+        assertEquals(TransferWindow.MIN_WINDOW, window.getWindow());
+        assertEquals(2, window.getMaxTransfers());
+        assertEquals(2, window.getMaxRequestsQueued(15));
+    }
+
+    public void testStable() {
+        TransferWindow window = new TransferWindow(INITIAL, 10);
+        // 100 KB/s, queued: 100 KB * 1s = 100KB. Between alpha and beta.
+        window.update(100 * 1024, 1100, 100);
+        assertEquals(INITIAL, window.getWindow());
+    }
+
+    public void testBounds() {
+        TransferWindow window = new TransferWindow(INITIAL, 10);
+        for (int i = 0; i < 1000; i++) {
+            window.update(1024L * 1024 * 1024, 1, 1);
+        }
+        assertEquals(TransferWindow.MAX_WINDOW, window.getWindow());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2004 - 2014 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id: AddLicenseHeader.java 4282 2008-06-16 03:25:09Z tot $
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.BufferPool;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.PooledByteArrayOutputStream;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(4, 1024 * 1024);
+        assertEquals(512, pool.borrow(0).length);
+        assertEquals(512, pool.borrow(512).length);
+        assertEquals(1024, pool.borrow(513).length);
+        assertEquals(64 * 1024, pool.borrow(40000).length);
+        assertEquals(BufferPool.getMaxPooledSize(),
+            pool.borrow(BufferPool.getMaxPooledSize()).length);
+        // Not pooled
+        int huge = BufferPool.getMaxPooledSize() + 1;
+        assertEquals(huge, pool.borrow(huge).length);
+    }
+
+    public void testReuse() {
+        BufferPool pool = new BufferPool(4, 1024 * 1024);
+        byte[] buf = pool.borrow(1000);
+        pool.release(buf);
+        assertSame(buf, pool.borrow(700));
+        assertEquals(2, pool.getBorrowed());
+        assertEquals(1, pool.getReused());
+        assertEquals(1, pool.getAllocated());
+        assertEquals(1024, pool.getAllocatedBytes());
+
+        // Foreign sizes are not pooled
+        pool.release(new byte[1000]);
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testBounds() {
+        BufferPool pool = new BufferPool(2, 1024 * 1024);
+        byte[][] bufs = new byte[5][];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = pool.borrow(512);
+        }
+        for (byte[] buf : bufs) {
+            pool.release(buf);
+        }
+        assertEquals(2 * 512, pool.getRetainedBytes());
+
+        pool = new BufferPool(10, 4096);
+        bufs = new byte[3][];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = pool.borrow(2048);
+        }
+        for (byte[] buf : bufs) {
+            pool.release(buf);
+        }
+        assertEquals(4096, pool.getRetainedBytes());
+        pool.clear();
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testLeakDetection() {
+        BufferPool pool = new BufferPool(4, 1024 * 1024);
+        pool.setLeakDetection(true);
+        byte[] buf1 = pool.borrow(100);
+        byte[] buf2 = pool.borrow(100);
+        assertEquals(2, pool.countLeaks());
+        pool.release(buf1);
+        assertEquals(1, pool.countLeaks());
+        assertEquals(1, pool.logLeaks());
+
+        // Double release must not put the buffer twice into the pool
+        pool.release(buf1);
+        assertEquals(512, pool.getRetainedBytes());
+        pool.release(buf2);
+        assertEquals(0, pool.countLeaks());
+        assertNotSame(pool.borrow(100), pool.borrow(100));
+    }
+
+    public void testOutputStream() {
+        BufferPool pool = new BufferPool(4, 1024 * 1024);
+        pool.setLeakDetection(true);
+        PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(
+            pool, 512);
+        byte[] data = new byte[3000];
+        Arrays.fill(data, (byte) 7);
+        out.write(1);
+        out.write(data, 0, data.length);
+        assertEquals(3001, out.size());
+        assertEquals(4096, out.getBuffer().length);
+        byte[] copy = out.toByteArray();
+        assertEquals(3001, copy.length);
+        assertEquals(1, copy[0]);
+        assertEquals(7, copy[3000]);
+        out.release();
+        assertEquals(0, pool.countLeaks());
+    }
+
+    public void testSerializer() throws Exception {
+        BufferPool pool = new BufferPool(4, 1024 * 1024);
+        pool.setLeakDetection(true);
+        ByteSerializer serializer = new ByteSerializer(pool);
+        char[] chars = new char[5000];
+        Arrays.fill(chars, 'x');
+        String text = new String(chars);
+        for (boolean compress : new boolean[]{false, true}) {
+            byte[] data = serializer.serialize(text, compress, -1);
+            byte[] buf = serializer.read(new ByteArrayInputStream(data),
+                data.length);
+            assertTrue(buf.length > data.length);
+            Object read = ByteSerializer.deserializeStatic(buf, data.length,
+                compress);
+            serializer.release(buf);
+            assertEquals(text, read);
+        }
+        assertEquals(0, pool.countLeaks());
+        assertTrue(pool.getReused() > 0);
+    }
+}
@@ -20,8 +20,11 @@
 package de.dal33t.powerfolder.test.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -39,6 +42,7 @@ import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsState;
 import de.dal33t.powerfolder.util.delta.MatchInfo;
+import de.dal33t.powerfolder.util.delta.MatchResultWorker;
 import de.dal33t.powerfolder.util.delta.PartInfo;
 import de.dal33t.powerfolder.util.delta.PartInfoMatcher;
 import de.dal33t.powerfolder.util.delta.RollingAdler32;
@@ -300,6 +304,93 @@ public class DeltaTest extends TestCase {
         }
     }
 
+    public void testParallelMatching() throws Exception {
+        Random rng = new Random();
+        byte[] remote = new byte[4 * 1024 * 1024 + 333];
+        rng.nextBytes(remote);
+        int partSize = 1000;
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new Adler32(), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), partSize);
+        builder.update(remote);
+        FilePartsRecord record = builder.getRecord();
+
+        // Local: Remote data with inserted and changed bytes
+        ByteArrayOutputStream local = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < remote.length) {
+            int len = Math.min(remote.length - i, rng.nextInt(50000));
+            local.write(remote, i, len);
+            i += len;
+            byte[] noise = new byte[rng.nextInt(1500)];
+            rng.nextBytes(noise);
+            local.write(noise);
+            // Repeated parts
+            if (rng.nextBoolean() && i > partSize) {
+                local.write(remote, i - partSize, partSize);
+            }
+        }
+        Path file = Files.createTempFile("delta", ".bin");
+        try {
+            Files.write(file, local.toByteArray());
+            List<MatchInfo> expected = new MatchResultWorker(record, file,
+                null).call();
+            assertTrue(expected.size() > remote.length / partSize / 2);
+            for (int segmentSize : new int[]{2000, 2999, 77777, 1000000}) {
+                for (boolean mapped : new boolean[]{false, true}) {
+                    List<MatchInfo> matches = new MatchResultWorker(record,
+                        file, null, 4, segmentSize, mapped).call();
+                    String msg = "Segment size " + segmentSize + ", mapped "
+                        + mapped;
+                    assertEquals(msg, expected.size(), matches.size());
+                    for (int j = 0; j < expected.size(); j++) {
+                        assertEquals(msg, expected.get(j)
+                            .getMatchedPosition(), matches.get(j)
+                            .getMatchedPosition());
+                        assertEquals(msg, expected.get(j).getMatchedPart(),
+                            matches.get(j).getMatchedPart());
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void testParallelMatchingBenchmark() throws Exception {
+        Random rng = new Random();
+        byte[] data = new byte[64 * 1024 * 1024];
+        rng.nextBytes(data);
+        int partSize = (int) (Math.pow(data.length, 0.25) * 2048);
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new Adler32(), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), partSize);
+        builder.update(data);
+        FilePartsRecord record = builder.getRecord();
+        // Shift the local data by one byte
+        data[0]++;
+        Path file = Files.createTempFile("delta", ".bin");
+        try {
+            Files.write(file, data);
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int nThreads = 1; nThreads <= cores; nThreads *= 2) {
+                for (boolean mapped : new boolean[]{false, true}) {
+                    long start = System.nanoTime();
+                    List<MatchInfo> matches = new MatchResultWorker(record,
+                        file, null, nThreads, 8 * 1024 * 1024, mapped)
+                        .call();
+                    long took = Math.max(1, System.nanoTime() - start);
+                    assertTrue(matches.size() >= record.getInfos().length - 1);
+                    System.out.println("Matching " + nThreads + " thread(s)"
+                        + (mapped ? ", mapped" : "") + ": "
+                        + (data.length * 1000L / took) + " MB/s");
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
     private void testDigest(String alg) throws NoSuchAlgorithmException {
         MessageDigest d1 = MessageDigest.getInstance(alg);
         MessageDigest d2 = MessageDigest.getInstance(alg);
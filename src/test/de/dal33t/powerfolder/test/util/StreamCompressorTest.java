@@ -0,0 +1,100 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.StreamCompressor;
+import de.dal33t.powerfolder.util.StreamDecompressor;
+
+public class StreamCompressorTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        StreamCompressor compressor = new StreamCompressor();
+        StreamDecompressor decompressor = new StreamDecompressor();
+        Random random = new Random(1);
+        try {
+            for (int i = 0; i < 50; i++) {
+                byte[] data = new byte[random.nextInt(100000)];
+                if (i % 2 == 0) {
+                    random.nextBytes(data);
+                } else {
+                    Arrays.fill(data, (byte) i);
+                }
+                byte[] compressed = compressor.compress(data, data.length,
+                    i % 3 == 0);
+                assertTrue(Arrays.equals(data, decompressor.decompress(
+                    compressed, compressed.length)));
+            }
+        } finally {
+            compressor.close();
+            decompressor.close();
+        }
+    }
+
+    public void testSharedWindow() throws Exception {
+        StreamCompressor compressor = new StreamCompressor();
+        StreamDecompressor decompressor = new StreamDecompressor();
+        long streamSize = 0;
+        long messageSize = 0;
+        try {
+            for (int i = 0; i < 20; i++) {
+                String[] files = new String[50];
+                for (int j = 0; j < files.length; j++) {
+                    files[j] = "Documents/Projects/Report " + i + "/Chapter "
+                        + j + ".txt";
+                }
+                byte[] raw = ByteSerializer.serializeStatic(files, false);
+                byte[] compressed = compressor.compress(raw, raw.length,
+                    false);
+                streamSize += compressed.length;
+                messageSize += ByteSerializer.serializeStatic(files, true).length;
+
+                byte[] received = decompressor.decompress(compressed,
+                    compressed.length);
+                assertTrue(Arrays.equals(files,
+                    (String[]) ByteSerializer.deserializeStatic(received,
+                        false)));
+            }
+        } finally {
+            compressor.close();
+            decompressor.close();
+        }
+        assertTrue("Stream: " + streamSize + " messages: " + messageSize,
+            streamSize < messageSize * 3 / 4);
+    }
+
+    public void testIsCompressible() {
+        byte[] random = new byte[10000];
+        new Random(1).nextBytes(random);
+        byte[] text = new byte[10000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 26);
+        }
+        assertTrue(StreamCompressor.isCompressible("readme.txt", text));
+        assertFalse(StreamCompressor.isCompressible("readme.txt", random));
+        assertFalse(StreamCompressor.isCompressible("Photo.JPG", text));
+        assertFalse(StreamCompressor.isCompressible("archive.tar.gz", text));
+        assertTrue(StreamCompressor.isCompressible(null, text));
+    }
+}